@@ -17,3 +17,19 @@ cp target/jwordpress-[0-9][0-9.]*-*cli.jar ${dest}/lib
 
 chmod u=rwx,go=rx ${dest}/bin/jwordpress
 chmod u=rw,go=r ${dest}/lib/jwordpress-[0-9][0-9.]*-*cli.jar
+
+# the class data sharing archive is only valid for the paths it was written
+# with, so it is written again for the installed jar; JVMs older than Java 13
+# cannot write it, and the command line runs without it
+if [ ! -z "$JAVA_HOME" ]
+then
+  JAVA=${JAVA_HOME}/bin/java
+else
+  JAVA=java
+fi
+lib=$(cd ${dest}/lib ; pwd)
+for jar in ${lib}/jwordpress-[0-9][0-9.]*-*cli.jar
+do
+  ${JAVA} -cp ${jar} net.bican.wordpress.StartupBenchmark --train ${jar%.jar}.jsa > /dev/null 2>&1 \
+    && chmod u=rw,go=r ${jar%.jar}.jsa
+done
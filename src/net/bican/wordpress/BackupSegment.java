@@ -0,0 +1,471 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import redstone.xmlrpc.XmlRpcArray;
+import redstone.xmlrpc.XmlRpcStruct;
+
+/**
+ * A file of backup records sorted by key and snapshot. Records are written
+ * in deflate compressed blocks, followed by a sparse index that holds the
+ * first key and the offset of each block, so a key is found by reading a
+ * single block or a few.
+ * 
+ * <pre>
+ * segment := block* index count:int index-offset:long magic:int
+ * block   := compressed-length:int length:int deflated-records
+ * record  := kind:utf id:utf snapshot:int fingerprint:utf length:int data
+ * index   := (first-key:utf offset:long)*
+ * </pre>
+ * 
+ * A record with a length of -1 has no data and marks a deleted object.
+ * 
+ * @author Can Bican
+ */
+class BackupSegment {
+  private static final int MAGIC = 0x57504253;
+  private static final int FOOTER = 4 + 8 + 4;
+  
+  /**
+   * A version of an object, or its deletion
+   */
+  static class Record implements Comparable<Record> {
+    final String kind;
+    final String id;
+    final int snapshot;
+    final String fingerprint;
+    final byte[] data;
+    
+    Record(final String kind, final String id, final int snapshot,
+        final String fingerprint, final byte[] data) {
+      this.kind = kind;
+      this.id = id;
+      this.snapshot = snapshot;
+      this.fingerprint = fingerprint;
+      this.data = data;
+    }
+    
+    String key() {
+      return key(this.kind, this.id);
+    }
+    
+    static String key(final String kind, final String id) {
+      return kind + '\t' + id;
+    }
+    
+    boolean isDeleted() {
+      return this.data == null;
+    }
+    
+    @Override
+    public int compareTo(final Record o) {
+      final int c = key().compareTo(o.key());
+      return c != 0 ? c : Integer.compare(this.snapshot, o.snapshot);
+    }
+  }
+  
+  private final File file;
+  private final List<String> firstKeys = new ArrayList<>();
+  private final List<Long> offsets = new ArrayList<>();
+  private long indexOffset;
+  
+  /**
+   * Opens a segment and reads its index
+   */
+  BackupSegment(final File file) throws IOException {
+    this.file = file;
+    try (RandomAccessFile f = new RandomAccessFile(file, "r")) { //$NON-NLS-1$
+      if (f.length() < FOOTER) {
+        throw new IOException("truncated segment " + file); //$NON-NLS-1$
+      }
+      f.seek(f.length() - FOOTER);
+      final int count = f.readInt();
+      this.indexOffset = f.readLong();
+      if (f.readInt() != MAGIC) {
+        throw new IOException("not a segment " + file); //$NON-NLS-1$
+      }
+      final byte[] index = new byte[(int) (f.length() - FOOTER
+          - this.indexOffset)];
+      f.seek(this.indexOffset);
+      f.readFully(index);
+      final DataInputStream in = new DataInputStream(
+          new ByteArrayInputStream(index));
+      for (int i = 0; i < count; i++) {
+        this.firstKeys.add(in.readUTF());
+        this.offsets.add(Long.valueOf(in.readLong()));
+      }
+    }
+  }
+  
+  File getFile() {
+    return this.file;
+  }
+  
+  /**
+   * @return the records of a key, in snapshot order
+   */
+  List<Record> find(final String key) throws IOException {
+    // the last block starting before the key may hold its first records
+    int block = Collections.binarySearch(this.firstKeys, key);
+    block = block < 0 ? -block - 2 : block - 1;
+    while (block > 0 && this.firstKeys.get(block).equals(key)) {
+      block--;
+    }
+    block = Math.max(block, 0);
+    final List<Record> result = new ArrayList<>();
+    try (RandomAccessFile f = new RandomAccessFile(this.file, "r")) { //$NON-NLS-1$
+      for (; block < this.offsets.size()
+          && this.firstKeys.get(block).compareTo(key) <= 0; block++) {
+        f.seek(this.offsets.get(block).longValue());
+        for (final Record r : readBlock(f)) {
+          if (r.key().equals(key)) {
+            result.add(r);
+          }
+        }
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * @return all records in order; the iterator must be closed
+   */
+  RecordIterator iterator() throws IOException {
+    return new RecordIterator();
+  }
+  
+  /**
+   * Reads the blocks of the segment one by one
+   */
+  class RecordIterator implements Iterator<Record>, AutoCloseable {
+    private final RandomAccessFile f;
+    private Iterator<Record> current = Collections.emptyIterator();
+    
+    RecordIterator() throws IOException {
+      this.f = new RandomAccessFile(BackupSegment.this.file, "r"); //$NON-NLS-1$
+    }
+    
+    @Override
+    public boolean hasNext() {
+      try {
+        while (!this.current.hasNext()) {
+          if (this.f.getFilePointer() >= BackupSegment.this.indexOffset) {
+            return false;
+          }
+          this.current = readBlock(this.f).iterator();
+        }
+        return true;
+      } catch (final IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    
+    @Override
+    public Record next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return this.current.next();
+    }
+    
+    @Override
+    public void close() throws IOException {
+      this.f.close();
+    }
+  }
+  
+  private static List<Record> readBlock(final RandomAccessFile f)
+      throws IOException {
+    final byte[] compressed = new byte[f.readInt()];
+    final byte[] raw = new byte[f.readInt()];
+    f.readFully(compressed);
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      if (inflater.inflate(raw) != raw.length) {
+        throw new IOException("corrupt block"); //$NON-NLS-1$
+      }
+    } catch (final DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+    final DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(raw));
+    final List<Record> result = new ArrayList<>();
+    while (in.available() > 0) {
+      final String kind = in.readUTF();
+      final String id = in.readUTF();
+      final int snapshot = in.readInt();
+      final String fingerprint = in.readUTF();
+      final int length = in.readInt();
+      byte[] data = null;
+      if (length >= 0) {
+        data = new byte[length];
+        in.readFully(data);
+      }
+      result.add(new Record(kind, id, snapshot, fingerprint, data));
+    }
+    return result;
+  }
+  
+  /**
+   * Writes a segment from records added in order
+   */
+  static class Writer implements AutoCloseable {
+    private final DataOutputStream out;
+    private final int blockSize;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final DataOutputStream blockOut = new DataOutputStream(
+        this.block);
+    private final List<String> firstKeys = new ArrayList<>();
+    private final List<Long> offsets = new ArrayList<>();
+    private final Deflater deflater = new Deflater();
+    private String firstKey = null;
+    private Record last = null;
+    private long offset = 0;
+    private int count = 0;
+    
+    Writer(final File file, final int blockSize) throws IOException {
+      this.out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(file)));
+      this.blockSize = blockSize;
+    }
+    
+    void add(final Record r) throws IOException {
+      if (this.last != null && this.last.compareTo(r) > 0) {
+        throw new IllegalArgumentException("records out of order"); //$NON-NLS-1$
+      }
+      this.last = r;
+      if (this.firstKey == null) {
+        this.firstKey = r.key();
+      }
+      this.blockOut.writeUTF(r.kind);
+      this.blockOut.writeUTF(r.id);
+      this.blockOut.writeInt(r.snapshot);
+      this.blockOut.writeUTF(r.fingerprint);
+      if (r.data == null) {
+        this.blockOut.writeInt(-1);
+      } else {
+        this.blockOut.writeInt(r.data.length);
+        this.blockOut.write(r.data);
+      }
+      this.count++;
+      if (this.block.size() >= this.blockSize) {
+        flushBlock();
+      }
+    }
+    
+    int getCount() {
+      return this.count;
+    }
+    
+    private void flushBlock() throws IOException {
+      if (this.block.size() == 0) {
+        return;
+      }
+      final byte[] raw = this.block.toByteArray();
+      this.deflater.reset();
+      this.deflater.setInput(raw);
+      this.deflater.finish();
+      final ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+          raw.length / 2 + 64);
+      final byte[] buffer = new byte[8192];
+      while (!this.deflater.finished()) {
+        compressed.write(buffer, 0, this.deflater.deflate(buffer));
+      }
+      this.firstKeys.add(this.firstKey);
+      this.offsets.add(Long.valueOf(this.offset));
+      this.out.writeInt(compressed.size());
+      this.out.writeInt(raw.length);
+      compressed.writeTo(this.out);
+      this.offset += 8 + compressed.size();
+      this.block.reset();
+      this.firstKey = null;
+    }
+    
+    @Override
+    public void close() throws IOException {
+      try {
+        flushBlock();
+        for (int i = 0; i < this.firstKeys.size(); i++) {
+          this.out.writeUTF(this.firstKeys.get(i));
+          this.out.writeLong(this.offsets.get(i).longValue());
+        }
+        this.out.writeInt(this.firstKeys.size());
+        this.out.writeLong(this.offset);
+        this.out.writeInt(MAGIC);
+      } finally {
+        this.deflater.end();
+        this.out.close();
+      }
+    }
+  }
+  
+  /**
+   * Encodes an object as a compact binary struct, in field order
+   */
+  static byte[] encode(final XmlRpcMapped o) throws IOException {
+    final ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(result)) {
+      writeValue(out, o);
+    }
+    return result.toByteArray();
+  }
+  
+  /**
+   * Decodes an object encoded by {@link #encode(XmlRpcMapped)}
+   */
+  static <T extends XmlRpcMapped> T decode(final byte[] data,
+      final Class<T> type) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new ByteArrayInputStream(data)))) {
+      final T result = type.newInstance();
+      result.fromXmlRpcStruct((XmlRpcStruct) readValue(in));
+      return result;
+    } catch (InstantiationException | IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  private static final int STRING = 1;
+  private static final int INTEGER = 2;
+  private static final int DOUBLE = 3;
+  private static final int BOOLEAN = 4;
+  private static final int DATE = 5;
+  private static final int STRUCT = 6;
+  private static final int ARRAY = 7;
+  private static final int BYTES = 8;
+  
+  private static void writeValue(final DataOutputStream out, final Object v)
+      throws IOException {
+    if (v instanceof XmlRpcMapped) {
+      writeValue(out, ((XmlRpcMapped) v).toXmlRpcStruct());
+    } else if (v instanceof Map) {
+      // sorted, so that equal objects have equal fingerprints
+      final Map<String, Object> map = new TreeMap<>();
+      for (final Map.Entry<?, ?> e : ((Map<?, ?>) v).entrySet()) {
+        map.put(String.valueOf(e.getKey()), e.getValue());
+      }
+      out.writeByte(STRUCT);
+      out.writeInt(map.size());
+      for (final Map.Entry<String, Object> e : map.entrySet()) {
+        writeString(out, e.getKey());
+        writeValue(out, e.getValue());
+      }
+    } else if (v instanceof List) {
+      final List<?> list = (List<?>) v;
+      out.writeByte(ARRAY);
+      out.writeInt(list.size());
+      for (final Object item : list) {
+        writeValue(out, item);
+      }
+    } else if (v instanceof Integer) {
+      out.writeByte(INTEGER);
+      out.writeInt(((Integer) v).intValue());
+    } else if (v instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble(((Double) v).doubleValue());
+    } else if (v instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean(((Boolean) v).booleanValue());
+    } else if (v instanceof Date) {
+      out.writeByte(DATE);
+      out.writeLong(((Date) v).getTime());
+    } else if (v instanceof byte[]) {
+      out.writeByte(BYTES);
+      out.writeInt(((byte[]) v).length);
+      out.write((byte[]) v);
+    } else {
+      out.writeByte(STRING);
+      writeString(out, String.valueOf(v));
+    }
+  }
+  
+  @SuppressWarnings("unchecked")
+  private static Object readValue(final DataInputStream in)
+      throws IOException {
+    final int tag = in.readByte();
+    switch (tag) {
+      case STRING:
+        return readString(in);
+      case INTEGER:
+        return Integer.valueOf(in.readInt());
+      case DOUBLE:
+        return Double.valueOf(in.readDouble());
+      case BOOLEAN:
+        return Boolean.valueOf(in.readBoolean());
+      case DATE:
+        return new Date(in.readLong());
+      case STRUCT: {
+        final int n = in.readInt();
+        final XmlRpcStruct result = new XmlRpcStruct();
+        for (int i = 0; i < n; i++) {
+          final String k = readString(in);
+          result.put(k, readValue(in));
+        }
+        return result;
+      }
+      case ARRAY: {
+        final int n = in.readInt();
+        final XmlRpcArray result = new XmlRpcArray();
+        for (int i = 0; i < n; i++) {
+          result.add(readValue(in));
+        }
+        return result;
+      }
+      case BYTES: {
+        final byte[] result = new byte[in.readInt()];
+        in.readFully(result);
+        return result;
+      }
+      default:
+        throw new IOException("unknown value type " + tag); //$NON-NLS-1$
+    }
+  }
+  
+  // writeUTF is limited to 64k, which post contents can exceed
+  private static void writeString(final DataOutputStream out, final String s)
+      throws IOException {
+    final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(b.length);
+    out.write(b);
+  }
+  
+  private static String readString(final DataInputStream in)
+      throws IOException {
+    final byte[] b = new byte[in.readInt()];
+    in.readFully(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Runs a stream of command line operations over a single connection, one
+ * command per line, and writes a JSON object per command in the same order.
+ * 
+ * <p>
+ * A line is a command name followed by its arguments, separated by spaces;
+ * arguments with spaces are quoted with double quotes. Empty lines and lines
+ * starting with <code>#</code> are skipped. The commands are:
+ * 
+ * <pre>
+ * authors
+ * categories
+ * newcategory name [slug [parent-id]]
+ * deletecategory id
+ * userinfo
+ * recentposts number
+ * getpost id
+ * newpost file
+ * editpost id file
+ * deletepost id
+ * newmedia file [overwrite]
+ * supportedstatus
+ * commentstatus
+ * commentcount post-id
+ * getcomment id
+ * getcomments post-id [status [offset [number]]]
+ * newcomment file
+ * editcomment file
+ * deletecomment id
+ * </pre>
+ * 
+ * <p>
+ * Each output line has the input "line" number, the "command", a "status"
+ * of "ok" with the "result", or "error" with the "error" type and its
+ * "message".
+ * 
+ * @author Can Bican
+ */
+public class BatchRunner {
+  private final Wordpress wp;
+  private int threads = 1;
+  private File directory = null;
+  
+  /**
+   * @param wp
+   *          wordpress connection
+   */
+  public BatchRunner(final Wordpress wp) {
+    this.wp = wp;
+  }
+  
+  /**
+   * @param threads
+   *          the number of commands run at the same time; the output stays
+   *          in the order of the input
+   */
+  public void setThreads(final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.threads = threads;
+  }
+  
+  /**
+   * @param directory
+   *          directory relative file names are resolved against, or null
+   *          for the working directory
+   */
+  public void setDirectory(final File directory) {
+    this.directory = directory;
+  }
+  
+  private File file(final String name) {
+    final File f = new File(name);
+    return f.isAbsolute() || this.directory == null ? f
+        : new File(this.directory, name);
+  }
+  
+  /**
+   * Runs the commands until the end of the input. Every result is flushed
+   * as soon as the results before it are written.
+   * 
+   * @param in
+   *          the commands
+   * @param out
+   *          receives a JSON line per command
+   * @return the number of commands that were "ok" or failed with "error"
+   * @throws IOException
+   *           if the input cannot be read or the output cannot be written
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  @SuppressWarnings("nls")
+  public Map<String, Integer> run(final BufferedReader in, final Writer out)
+      throws IOException, InterruptedException {
+    final Map<String, Integer> counts = new HashMap<>();
+    counts.put("ok", Integer.valueOf(0));
+    counts.put("error", Integer.valueOf(0));
+    final ExecutorService executor = this.threads > 1
+        ? Executors.newFixedThreadPool(this.threads) : null;
+    // results waiting for the ones before them, bounded so a long input
+    // is not read far ahead
+    final Deque<Future<JSONObject>> pending = new ArrayDeque<>();
+    try {
+      String line;
+      int number = 0;
+      while ((line = in.readLine()) != null) {
+        number++;
+        final String command = line.trim();
+        if (command.isEmpty() || command.startsWith("#")) {
+          continue;
+        }
+        if (executor == null) {
+          write(execute(number, command), out, counts);
+          continue;
+        }
+        final int n = number;
+        pending.add(executor.submit(() -> execute(n, command)));
+        while (!pending.isEmpty() && (pending.peek().isDone()
+            || pending.size() >= 4 * this.threads)) {
+          write(get(pending.poll()), out, counts);
+        }
+      }
+      while (!pending.isEmpty()) {
+        write(get(pending.poll()), out, counts);
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+    return counts;
+  }
+  
+  private static JSONObject get(final Future<JSONObject> f)
+      throws InterruptedException {
+    try {
+      return f.get();
+    } catch (final ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+  
+  @SuppressWarnings("nls")
+  private static void write(final JSONObject result, final Writer out,
+      final Map<String, Integer> counts) throws IOException {
+    final String status = result.getString("status");
+    counts.put(status, Integer.valueOf(counts.get(status).intValue() + 1));
+    out.write(result.toString());
+    out.write('\n');
+    out.flush();
+  }
+  
+  /**
+   * Runs a command, turning its failure into an error result.
+   * 
+   * @param line
+   *          line number of the command
+   * @param command
+   *          the command line
+   * @return the result line
+   */
+  @SuppressWarnings("nls")
+  JSONObject execute(final int line, final String command) {
+    final JSONObject result = new JSONObject();
+    result.put("line", Integer.valueOf(line));
+    try {
+      final List<String> args = split(command);
+      result.put("command", args.get(0));
+      result.put("result", toJson(call(args)));
+      result.put("status", "ok");
+    } catch (final Exception e) {
+      result.put("status", "error");
+      result.put("error", e.getClass().getSimpleName());
+      result.put("message",
+          e.getMessage() == null ? JSONObject.NULL : e.getMessage());
+    }
+    return result;
+  }
+  
+  @SuppressWarnings("nls")
+  private Object call(final List<String> a) throws Exception {
+    final String name = a.get(0);
+    switch (name) {
+      case "authors":
+        return this.wp.getAuthors();
+      case "categories":
+        return this.wp.getTerms("category");
+      case "newcategory": {
+        final Term term = new Term();
+        term.setName(arg(a, 1, "name"));
+        term.setSlug(a.size() > 2 ? a.get(2) : "");
+        term.setParent(Integer.valueOf(a.size() > 3 ? a.get(3) : "0"));
+        return this.wp.newTerm(term);
+      }
+      case "deletecategory":
+        return Boolean.valueOf(this.wp.deleteTerm("category", id(a, 1)));
+      case "userinfo": {
+        final FilterUser filter = new FilterUser();
+        filter.setWho(this.wp.getUsername());
+        return this.wp.getUsers(filter).get(0);
+      }
+      case "recentposts": {
+        final FilterPost filter = new FilterPost();
+        filter.setNumber(id(a, 1));
+        return this.wp.getPosts(filter);
+      }
+      case "getpost":
+        return this.wp.getPost(id(a, 1));
+      case "newpost":
+        return this.wp.newPost(Post.fromFile(file(arg(a, 1, "file"))));
+      case "editpost":
+        return Boolean.valueOf(this.wp.editPost(id(a, 1),
+            Post.fromFile(file(arg(a, 2, "file")))));
+      case "deletepost":
+        return Boolean.valueOf(this.wp.deletePost(id(a, 1)));
+      case "newmedia":
+        return this.wp.uploadFile(file(arg(a, 1, "file")).toPath(),
+            Boolean.valueOf(a.size() > 2 && a.get(2).equals("overwrite")),
+            null);
+      case "supportedstatus":
+        return this.wp.getPostStatusList();
+      case "commentstatus":
+        return this.wp.getCommentStatusList();
+      case "commentcount":
+        return this.wp.getCommentsCount(id(a, 1));
+      case "getcomment":
+        return this.wp.getComment(id(a, 1));
+      case "getcomments":
+        return this.wp.getComments(a.size() > 2 ? a.get(2) : null, id(a, 1),
+            a.size() > 4 ? Integer.valueOf(a.get(4)) : null,
+            a.size() > 3 ? Integer.valueOf(a.get(3)) : null);
+      case "newcomment": {
+        final Comment c = Comment.fromFile(file(arg(a, 1, "file")));
+        return this.wp.newComment(c.getPost_id(), c.getParent(),
+            c.getContent(), c.getAuthor(), c.getAuthor_url(),
+            c.getAuthor_email());
+      }
+      case "editcomment":
+        return Boolean.valueOf(this.wp
+            .editComment(Comment.fromFile(file(arg(a, 1, "file")))));
+      case "deletecomment":
+        return Boolean.valueOf(this.wp.deleteComment(id(a, 1)));
+      default:
+        throw new IllegalArgumentException("unknown command " + name);
+    }
+  }
+  
+  @SuppressWarnings("nls")
+  private static String arg(final List<String> a, final int i,
+      final String what) {
+    if (a.size() <= i) {
+      throw new IllegalArgumentException(a.get(0) + " needs " + what);
+    }
+    return a.get(i);
+  }
+  
+  @SuppressWarnings("nls")
+  private static Integer id(final List<String> a, final int i) {
+    return Integer.valueOf(arg(a, i, "a number"));
+  }
+  
+  /**
+   * Splits a command line at spaces outside double quotes; a backslash
+   * escapes the next character.
+   */
+  static List<String> split(final String line) {
+    final List<String> result = new ArrayList<>();
+    final StringBuilder current = new StringBuilder();
+    boolean quoted = false;
+    boolean token = false;
+    for (int i = 0; i < line.length(); i++) {
+      final char c = line.charAt(i);
+      if (c == '\\' && i + 1 < line.length()) {
+        current.append(line.charAt(++i));
+        token = true;
+      } else if (c == '"') {
+        quoted = !quoted;
+        token = true;
+      } else if (Character.isWhitespace(c) && !quoted) {
+        if (token) {
+          result.add(current.toString());
+          current.setLength(0);
+          token = false;
+        }
+      } else {
+        current.append(c);
+        token = true;
+      }
+    }
+    if (quoted) {
+      throw new IllegalArgumentException("unterminated quote"); //$NON-NLS-1$
+    }
+    if (token) {
+      result.add(current.toString());
+    }
+    return result;
+  }
+  
+  /**
+   * Converts results to JSON values; objects and dates are written by
+   * {@link XmlRpcMapped#writeJSON(Appendable)}, as in the other JSON output.
+   * 
+   * @param o
+   *          a result
+   * @return the JSON value
+   */
+  static Object toJson(final Object o) {
+    if (o == null) {
+      return JSONObject.NULL;
+    }
+    if (o instanceof XmlRpcMapped) {
+      final StringBuilder json = new StringBuilder();
+      try {
+        ((XmlRpcMapped) o).writeJSON(json);
+      } catch (final IOException e) {
+        throw new IllegalStateException(e); // not from a StringBuilder
+      }
+      return new JSONObject(json.toString());
+    }
+    if (o instanceof Map) {
+      final JSONObject result = new JSONObject();
+      for (final Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+        result.put(String.valueOf(e.getKey()), toJson(e.getValue()));
+      }
+      return result;
+    }
+    if (o instanceof Collection) {
+      final JSONArray result = new JSONArray();
+      for (final Object v : (Collection<?>) o) {
+        result.put(toJson(v));
+      }
+      return result;
+    }
+    if (o instanceof Date) {
+      return XmlRpcMapped.formatDate((Date) o);
+    }
+    if (o instanceof byte[]) {
+      return Base64.getEncoder().encodeToString((byte[]) o);
+    }
+    return o;
+  }
+}
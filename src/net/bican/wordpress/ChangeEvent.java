@@ -0,0 +1,97 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.util.Date;
+
+/**
+ * A change to a blog, as published by {@link ChangePoller}
+ * 
+ * @author Can Bican
+ */
+public abstract class ChangeEvent {
+  private final Date detected = new Date();
+  
+  /**
+   * @return the time the change was noticed
+   */
+  public Date getDetected() {
+    return this.detected;
+  }
+  
+  /**
+   * A post that was created or edited
+   */
+  public static class PostChanged extends ChangeEvent {
+    private final Post post;
+    
+    PostChanged(final Post post) {
+      this.post = post;
+    }
+    
+    /**
+     * @return the post as it is after the change
+     */
+    public Post getPost() {
+      return this.post;
+    }
+    
+    @Override
+    public String toString() {
+      return "PostChanged " + this.post.getPost_id(); //$NON-NLS-1$
+    }
+  }
+  
+  /**
+   * A post that was moved to the trash
+   */
+  public static class PostDeleted extends ChangeEvent {
+    private final Post post;
+    
+    PostDeleted(final Post post) {
+      this.post = post;
+    }
+    
+    /**
+     * @return the post as it is in the trash
+     */
+    public Post getPost() {
+      return this.post;
+    }
+    
+    @Override
+    public String toString() {
+      return "PostDeleted " + this.post.getPost_id(); //$NON-NLS-1$
+    }
+  }
+  
+  /**
+   * A new comment
+   */
+  public static class CommentAdded extends ChangeEvent {
+    private final Comment comment;
+    
+    CommentAdded(final Comment comment) {
+      this.comment = comment;
+    }
+    
+    /**
+     * @return the comment
+     */
+    public Comment getComment() {
+      return this.comment;
+    }
+    
+    @Override
+    public String toString() {
+      return "CommentAdded " + this.comment.getComment_id(); //$NON-NLS-1$
+    }
+  }
+}
@@ -0,0 +1,424 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bican.wordpress.PrefetchingIterable.PrefetchingIterator;
+import net.bican.wordpress.exceptions.InsufficientRightsException;
+import net.bican.wordpress.util.EventBus;
+import redstone.xmlrpc.XmlRpcFault;
+
+/**
+ * Polls a blog for changes and publishes them on an event bus, so that one
+ * poller serves any number of subscribers. Posts are polled newest modified
+ * first, down to the watermark of the previous poll, and comments newest
+ * first down to the highest comment id seen. The first poll only sets the
+ * watermarks, so changes made before it are not published.
+ * 
+ * <p>
+ * When started, polls run on a background thread: right after a poll that
+ * found changes the next one comes after the minimum interval, and each
+ * quiet poll doubles the interval up to the maximum. Publishing waits while
+ * the bus is full, which delays the next poll rather than dropping events.
+ * 
+ * <p>
+ * Posts moved to the trash are published as {@link ChangeEvent.PostDeleted};
+ * posts deleted permanently cannot be noticed this way.
+ * 
+ * @author Can Bican
+ */
+public class ChangePoller implements AutoCloseable {
+  /** default interval after a poll that found changes, in milliseconds */
+  public static final long DEFAULT_MIN_INTERVAL = TimeUnit.SECONDS
+      .toMillis(5);
+  /** default longest interval between polls, in milliseconds */
+  public static final long DEFAULT_MAX_INTERVAL = TimeUnit.MINUTES
+      .toMillis(5);
+  /** default number of objects fetched per request */
+  public static final int DEFAULT_PAGE_SIZE = 20;
+  
+  private static final Logger logger = LoggerFactory
+      .getLogger(ChangePoller.class);
+  /**
+   * posts modified within this much before the watermark are looked at
+   * again, as modification times can be committed out of order
+   */
+  private static final long WATERMARK_SKEW = TimeUnit.MINUTES.toMillis(10);
+  /**
+   * statuses polled; "any" leaves out the trash, which is polled on its own
+   * to notice deleted posts
+   */
+  @SuppressWarnings("nls")
+  private static final String[] STATUSES = { "any", "trash" };
+  
+  private final Wordpress wp;
+  private final EventBus<ChangeEvent> bus;
+  private final File stateFile;
+  private volatile long minInterval = DEFAULT_MIN_INTERVAL;
+  private volatile long maxInterval = DEFAULT_MAX_INTERVAL;
+  private int pageSize = DEFAULT_PAGE_SIZE;
+  
+  // guarded by this
+  private boolean loaded = false;
+  private long postWatermark = -1;
+  private int commentWatermark = -1;
+  /** modification times of the posts seen within the skew */
+  private final Map<Integer, Long> recent = new HashMap<>();
+  private List<String> postTypes = null;
+  
+  private final Object scheduling = new Object();
+  private ScheduledExecutorService scheduler = null;
+  private volatile long interval = DEFAULT_MIN_INTERVAL;
+  
+  /**
+   * @param wp
+   *          wordpress connection
+   * @param bus
+   *          bus to publish the changes on
+   * @param stateFile
+   *          file to keep the watermarks in between runs, or null to start
+   *          from the current state of the blog
+   */
+  public ChangePoller(final Wordpress wp, final EventBus<ChangeEvent> bus,
+      final File stateFile) {
+    this.wp = wp;
+    this.bus = bus;
+    this.stateFile = stateFile;
+  }
+  
+  /**
+   * @return the bus the changes are published on
+   */
+  public EventBus<ChangeEvent> getBus() {
+    return this.bus;
+  }
+  
+  /**
+   * @param min
+   *          the interval after a poll that found changes
+   * @param max
+   *          the longest interval between polls
+   * @param unit
+   *          unit of the intervals
+   */
+  public void setInterval(final long min, final long max,
+      final TimeUnit unit) {
+    if (min <= 0 || max < min) {
+      throw new IllegalArgumentException();
+    }
+    this.minInterval = unit.toMillis(min);
+    this.maxInterval = unit.toMillis(max);
+  }
+  
+  /**
+   * @param pageSize
+   *          the number of objects fetched per request
+   */
+  public synchronized void setPageSize(final int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.pageSize = pageSize;
+  }
+  
+  /**
+   * @return the time until the next background poll, in milliseconds
+   */
+  public long getInterval() {
+    return this.interval;
+  }
+  
+  /**
+   * Polls once, and publishes the changes found. The watermarks move only
+   * when all of them are published, so after a failure the next poll finds
+   * the same changes again, and subscribers can get a change twice.
+   * 
+   * @return the number of changes published
+   * @throws IOException
+   *           if the state file cannot be read or written
+   * @throws InsufficientRightsException
+   *           if the user cannot list the comments
+   * @throws XmlRpcFault
+   *           if the blog cannot be polled
+   * @throws InterruptedException
+   *           if the thread is interrupted while publishing
+   */
+  public synchronized int poll() throws IOException,
+      InsufficientRightsException, XmlRpcFault, InterruptedException {
+    readState();
+    final List<ChangeEvent> events = new ArrayList<>();
+    final Map<Integer, Long> seen = new HashMap<>(this.recent);
+    final long posts = pollPosts(events, seen);
+    final int comments = pollComments(events);
+    for (final ChangeEvent e : events) {
+      this.bus.publish(e);
+    }
+    // only after publishing, so a failed poll or a restart publishes the
+    // changes again rather than missing them
+    this.postWatermark = posts;
+    this.commentWatermark = comments;
+    this.recent.clear();
+    this.recent.putAll(seen);
+    writeState();
+    return events.size();
+  }
+  
+  /**
+   * @param seen
+   *          modification times of the recent posts, updated with the posts
+   *          found
+   * @return the new post watermark
+   */
+  @SuppressWarnings("nls")
+  private long pollPosts(final List<ChangeEvent> events,
+      final Map<Integer, Long> seen) throws XmlRpcFault {
+    if (this.postTypes == null) {
+      this.postTypes = new ArrayList<>();
+      for (final PostType type : this.wp.getPostTypes()) {
+        if (!"attachment".equals(type.getName())) {
+          this.postTypes.add(type.getName());
+        }
+      }
+    }
+    final boolean baseline = this.postWatermark < 0;
+    long watermark = this.postWatermark;
+    final List<Post> changed = new ArrayList<>();
+    for (final String type : this.postTypes) {
+      for (final String status : STATUSES) {
+        final FilterPost filter = new FilterPost();
+        filter.setPost_type(type);
+        filter.setPost_status(status);
+        filter.setOrderby("modified");
+        filter.setOrder("DESC");
+        final PrefetchingIterable<Post> posts = this.wp
+            .iteratePosts(filter);
+        posts.setPageSize(this.pageSize);
+        posts.setPrefetchPages(1);
+        long stop = baseline ? Long.MIN_VALUE : this.postWatermark
+            - WATERMARK_SKEW;
+        try (PrefetchingIterator<Post> it = posts.iterator()) {
+          while (it.hasNext()) {
+            final Post p = it.next();
+            final long modified = modified(p);
+            if (stop == Long.MIN_VALUE) {
+              stop = modified - WATERMARK_SKEW;
+            }
+            if (modified < stop) {
+              break;
+            }
+            watermark = Math.max(watermark, modified);
+            final Long before = seen.put(p.getPost_id(),
+                Long.valueOf(modified));
+            if (!baseline
+                && (before == null || before.longValue() != modified)) {
+              changed.add(p);
+            }
+          }
+        }
+      }
+    }
+    final long result = Math.max(watermark, 0);
+    final Iterator<Long> it = seen.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().longValue() < result - WATERMARK_SKEW) {
+        it.remove();
+      }
+    }
+    changed.sort(Comparator.comparingLong(ChangePoller::modified));
+    for (final Post p : changed) {
+      events.add("trash".equals(p.getPost_status())
+          ? new ChangeEvent.PostDeleted(p) : new ChangeEvent.PostChanged(p));
+    }
+    return result;
+  }
+  
+  /**
+   * @return when the post was last modified, or created if the server does
+   *         not tell, in milliseconds; 0 if neither is known
+   */
+  private static long modified(final Post p) {
+    if (p.getPost_modified_gmt() != null) {
+      return p.getPost_modified_gmt().getTime();
+    }
+    return p.getPost_date_gmt() != null ? p.getPost_date_gmt().getTime() : 0;
+  }
+  
+  /**
+   * @return the new comment watermark
+   */
+  private int pollComments(final List<ChangeEvent> events)
+      throws XmlRpcFault, InsufficientRightsException {
+    final boolean baseline = this.commentWatermark < 0;
+    final Map<Integer, Comment> added = new TreeMap<>();
+    int watermark = this.commentWatermark;
+    int offset = 0;
+    pages: while (true) {
+      final List<Comment> page = this.wp.getComments(null, null,
+          Integer.valueOf(this.pageSize), Integer.valueOf(offset));
+      for (final Comment c : page) {
+        final int id = c.getComment_id().intValue();
+        if (id <= this.commentWatermark) {
+          break pages;
+        }
+        watermark = Math.max(watermark, id);
+        added.put(c.getComment_id(), c);
+      }
+      if (baseline || page.size() < this.pageSize) {
+        break;
+      }
+      offset += this.pageSize;
+    }
+    if (!baseline) {
+      for (final Comment c : added.values()) {
+        events.add(new ChangeEvent.CommentAdded(c));
+      }
+    }
+    return Math.max(watermark, 0);
+  }
+  
+  /**
+   * Starts polling on a background thread, the first poll right away.
+   */
+  public void start() {
+    synchronized (this.scheduling) {
+      if (this.scheduler != null) {
+        return;
+      }
+      this.scheduler = Executors
+          .newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+              final Thread t = new Thread(r, "change-poller"); //$NON-NLS-1$
+              t.setDaemon(true);
+              return t;
+            }
+          });
+      this.interval = this.minInterval;
+      this.scheduler.execute(this::tick);
+    }
+  }
+  
+  private void tick() {
+    long next;
+    try {
+      next = poll() > 0 ? this.minInterval
+          : Math.min(this.maxInterval, this.interval * 2);
+    } catch (final InterruptedException e) {
+      return; // stopped
+    } catch (final Exception e) {
+      logger.warn("poll failed: {}", e.toString()); //$NON-NLS-1$
+      next = Math.min(this.maxInterval, this.interval * 2);
+    }
+    this.interval = next;
+    synchronized (this.scheduling) {
+      if (this.scheduler != null) {
+        this.scheduler.schedule(this::tick, next, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+  
+  /**
+   * Stops background polling, interrupting a poll that waits to publish.
+   */
+  public void stop() {
+    synchronized (this.scheduling) {
+      if (this.scheduler != null) {
+        this.scheduler.shutdownNow();
+        this.scheduler = null;
+      }
+    }
+  }
+  
+  @Override
+  public void close() {
+    stop();
+  }
+  
+  /**
+   * State lines are "posts millis", "comments id" and "recent post-id
+   * millis".
+   */
+  @SuppressWarnings("nls")
+  private void readState() throws IOException {
+    if (this.loaded) {
+      return;
+    }
+    this.loaded = true;
+    if (this.stateFile == null || !this.stateFile.exists()) {
+      return;
+    }
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(
+        new FileInputStream(this.stateFile), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = r.readLine()) != null) {
+        final String[] f = line.split("\t");
+        if (f[0].equals("posts") && f.length == 2) {
+          this.postWatermark = Long.parseLong(f[1]);
+        } else if (f[0].equals("comments") && f.length == 2) {
+          this.commentWatermark = Integer.parseInt(f[1]);
+        } else if (f[0].equals("recent") && f.length == 3) {
+          this.recent.put(Integer.valueOf(f[1]), Long.valueOf(f[2]));
+        }
+      }
+    }
+  }
+  
+  /**
+   * Replaces the state file atomically.
+   */
+  @SuppressWarnings("nls")
+  private void writeState() throws IOException {
+    if (this.stateFile == null) {
+      return;
+    }
+    final File dir = this.stateFile.getAbsoluteFile().getParentFile();
+    final File temp = File.createTempFile("changes", null, dir);
+    try {
+      try (Writer w = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+        w.write("posts\t" + this.postWatermark + "\n");
+        w.write("comments\t" + this.commentWatermark + "\n");
+        for (final Map.Entry<Integer, Long> e : this.recent.entrySet()) {
+          w.write("recent\t" + e.getKey() + "\t" + e.getValue() + "\n");
+        }
+      }
+      Files.move(temp.toPath(), this.stateFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      temp.delete();
+    }
+  }
+}
@@ -14,7 +14,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import net.bican.wordpress.exceptions.InvalidPostFormatException;
 import net.bican.wordpress.util.FileParser;
@@ -286,4 +288,31 @@ public class Comment extends XmlRpcMapped implements StringHeader {
       return result;
     }
   }
+  
+  /**
+   * creates comment objects from a file of many comments, separated by
+   * lines of {@link FileParser#SEPARATOR}
+   * 
+   * @param file
+   *          input file
+   * @return new Comment objects, in the order of the file
+   * @throws FileNotFoundException
+   *           when the file is absent
+   * @throws IOException
+   *           when the file cannot be read
+   * @throws InvalidPostFormatException
+   *           when the file format is invalid
+   */
+  public static List<Comment> listFromFile(final File file)
+      throws FileNotFoundException, IOException, InvalidPostFormatException {
+    try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+      final List<Comment> result = new ArrayList<>();
+      for (final XmlRpcStruct c : FileParser.parseDocuments(br)) {
+        final Comment item = new Comment();
+        item.fromXmlRpcStruct(c);
+        result.add(item);
+      }
+      return result;
+    }
+  }
 }
@@ -0,0 +1,453 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bican.wordpress.exceptions.InsufficientRightsException;
+import redstone.xmlrpc.XmlRpcException;
+import redstone.xmlrpc.XmlRpcFault;
+import redstone.xmlrpc.XmlRpcStruct;
+
+/**
+ * Moderates the comments waiting in the "hold" status. Held comments are
+ * fetched page by page and given to a classifier on several threads, and the
+ * decisions are sent in <code>system.multicall</code> batches.
+ * 
+ * <p>
+ * The moderator slows down when the server starts failing: the failure
+ * rate of recent calls is tracked, and while it is above a threshold the
+ * batches are halved and a growing pause is made between them. Batches grow
+ * back one call at a time once the failures stop.
+ * 
+ * @author Can Bican
+ */
+public class CommentModerator {
+  /**
+   * What to do with a held comment
+   */
+  public enum Decision {
+    /** approve the comment */
+    APPROVE,
+    /** mark the comment as spam */
+    SPAM,
+    /** delete the comment */
+    DELETE,
+    /** leave the comment on hold */
+    HOLD
+  }
+  
+  /**
+   * Decides about a comment. Called on several threads at once.
+   */
+  @FunctionalInterface
+  public interface Classifier {
+    /**
+     * @param comment
+     *          a held comment
+     * @return the decision, null to leave the comment on hold
+     */
+    Decision classify(Comment comment);
+  }
+  
+  /**
+   * Result of moderating one comment
+   */
+  public static class Result {
+    private final Comment comment;
+    private final Decision decision;
+    private final Exception error;
+    
+    Result(final Comment comment, final Decision decision,
+        final Exception error) {
+      this.comment = comment;
+      this.decision = decision;
+      this.error = error;
+    }
+    
+    /**
+     * @return the comment
+     */
+    public Comment getComment() {
+      return this.comment;
+    }
+    
+    /**
+     * @return the decision made for the comment
+     */
+    public Decision getDecision() {
+      return this.decision;
+    }
+    
+    /**
+     * @return why applying the decision failed, or null if it succeeded
+     */
+    public Exception getError() {
+      return this.error;
+    }
+    
+    @SuppressWarnings("nls")
+    @Override
+    public String toString() {
+      return this.comment.getComment_id() + " : " + this.decision
+          + (this.error != null ? " " + this.error : "");
+    }
+  }
+  
+  /**
+   * Receives the result of each comment. Called from several threads.
+   */
+  @FunctionalInterface
+  public interface Listener {
+    /**
+     * @param result
+     *          result of one comment
+     */
+    void moderated(Result result);
+  }
+  
+  private static final Logger logger = LoggerFactory
+      .getLogger(CommentModerator.class);
+  /** weight of the latest call in the failure rate */
+  private static final double RATE_WEIGHT = 0.2;
+  
+  private final Wordpress wp;
+  private final Classifier classifier;
+  private int threads = 4;
+  private int pageSize = 100;
+  private int maxBatchSize = 50;
+  private double maxErrorRate = 0.2;
+  private long maxPause = TimeUnit.SECONDS.toMillis(30);
+  private Listener listener = null;
+  
+  private int batchSize;
+  private double errorRate = 0;
+  private long pause = 0;
+  private final Map<Decision, Integer> counts = new EnumMap<>(
+      Decision.class);
+  private int failures = 0;
+  
+  /**
+   * @param wp
+   *          wordpress connection
+   * @param classifier
+   *          decides about each comment
+   */
+  public CommentModerator(final Wordpress wp, final Classifier classifier) {
+    this.wp = wp;
+    this.classifier = classifier;
+    this.batchSize = this.maxBatchSize;
+  }
+  
+  /**
+   * @param threads
+   *          the number of threads classifying comments and sending batches
+   */
+  public void setThreads(final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.threads = threads;
+  }
+  
+  /**
+   * @param pageSize
+   *          the number of held comments fetched per request
+   */
+  public void setPageSize(final int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.pageSize = pageSize;
+  }
+  
+  /**
+   * @param maxBatchSize
+   *          the number of decisions sent per multicall when the server is
+   *          healthy
+   */
+  public synchronized void setMaxBatchSize(final int maxBatchSize) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.maxBatchSize = maxBatchSize;
+    this.batchSize = Math.min(this.batchSize, maxBatchSize);
+  }
+  
+  /**
+   * @param maxErrorRate
+   *          the failure rate above which the moderator slows down
+   * @param maxPause
+   *          the longest pause between batches while slowing down
+   * @param unit
+   *          unit of maxPause
+   */
+  public synchronized void setThrottling(final double maxErrorRate,
+      final long maxPause, final TimeUnit unit) {
+    this.maxErrorRate = maxErrorRate;
+    this.maxPause = unit.toMillis(maxPause);
+  }
+  
+  /**
+   * @param listener
+   *          receives the result of each comment, or null
+   */
+  public void setListener(final Listener listener) {
+    this.listener = listener;
+  }
+  
+  /**
+   * Moderates the held comments, until a page of held comments has nothing
+   * that was not seen before. Comments arriving while it runs are moderated
+   * too. Decisions that fail are reported to the listener and do not stop
+   * the moderation.
+   * 
+   * @return number of comments per decision applied, without the failed
+   *         ones
+   * @throws InsufficientRightsException
+   *           if the user does not have the moderate_comments cap
+   * @throws XmlRpcFault
+   *           if held comments cannot be fetched
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  @SuppressWarnings("nls")
+  public Map<Decision, Integer> moderate() throws InsufficientRightsException,
+      XmlRpcFault, InterruptedException {
+    synchronized (this) {
+      this.counts.clear();
+      for (final Decision d : Decision.values()) {
+        this.counts.put(d, Integer.valueOf(0));
+      }
+      this.failures = 0;
+    }
+    final Set<Integer> seen = new HashSet<>();
+    final ExecutorService executor = Executors
+        .newFixedThreadPool(this.threads);
+    try {
+      // passes over the held comments until one finds nothing new, so that
+      // comments arriving in front of the ones seen are not missed
+      boolean found = true;
+      while (found) {
+        found = false;
+        // comments left on hold, or failed, are skipped by offset
+        int kept = 0;
+        while (true) {
+          final List<Comment> page = this.wp.getComments("hold", null,
+              Integer.valueOf(this.pageSize), Integer.valueOf(kept));
+          final List<Comment> fresh = new ArrayList<>();
+          for (final Comment c : page) {
+            if (seen.add(c.getComment_id())) {
+              fresh.add(c);
+            }
+          }
+          if (fresh.isEmpty()) {
+            if (page.size() < this.pageSize) {
+              break;
+            }
+            kept += page.size();
+            continue;
+          }
+          found = true;
+          kept += page.size() - fresh.size() + moderatePage(fresh, executor);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    synchronized (this) {
+      return new EnumMap<>(this.counts);
+    }
+  }
+  
+  /**
+   * @return number of decisions that failed in the last run
+   */
+  public synchronized int getFailures() {
+    return this.failures;
+  }
+  
+  /**
+   * @return the current failure rate estimate
+   */
+  public synchronized double getErrorRate() {
+    return this.errorRate;
+  }
+  
+  /**
+   * @return number of comments that stay on hold
+   */
+  private int moderatePage(final List<Comment> comments,
+      final ExecutorService executor) throws InterruptedException {
+    final List<Future<Decision>> decisions = new ArrayList<>();
+    for (final Comment c : comments) {
+      decisions.add(executor.submit(new Callable<Decision>() {
+        @Override
+        public Decision call() throws Exception {
+          final Decision d = CommentModerator.this.classifier.classify(c);
+          return d == null ? Decision.HOLD : d;
+        }
+      }));
+    }
+    final List<Comment> toApply = new ArrayList<>();
+    final List<Decision> applied = new ArrayList<>();
+    int held = 0;
+    for (int i = 0; i < comments.size(); i++) {
+      Decision d;
+      try {
+        d = decisions.get(i).get();
+      } catch (final ExecutionException e) {
+        logger.warn("cannot classify comment {}: {}", //$NON-NLS-1$
+            comments.get(i).getComment_id(), e.getCause().toString());
+        d = Decision.HOLD;
+      }
+      if (d == Decision.HOLD) {
+        held++;
+        report(new Result(comments.get(i), d, null));
+      } else {
+        toApply.add(comments.get(i));
+        applied.add(d);
+      }
+    }
+    int failed = 0;
+    for (int from = 0; from < toApply.size();) {
+      final List<Future<Integer>> batches = new ArrayList<>();
+      for (int t = 0; t < this.threads && from < toApply.size(); t++) {
+        final int size = Math.min(currentBatchSize(), toApply.size() - from);
+        final List<Comment> c = toApply.subList(from, from + size);
+        final List<Decision> d = applied.subList(from, from + size);
+        batches.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            return Integer.valueOf(apply(c, d));
+          }
+        }));
+        from += size;
+      }
+      for (final Future<Integer> f : batches) {
+        try {
+          failed += f.get().intValue();
+        } catch (final ExecutionException e) {
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+      final long p = currentPause();
+      if (p > 0) {
+        Thread.sleep(p);
+      }
+    }
+    return held + failed;
+  }
+  
+  /**
+   * Sends one batch of decisions.
+   * 
+   * @return number of failed decisions
+   */
+  @SuppressWarnings({ "nls", "unchecked" })
+  private int apply(final List<Comment> comments, final List<Decision> decisions) {
+    final MultiCall call = this.wp.newMultiCall();
+    for (int i = 0; i < comments.size(); i++) {
+      final Integer id = comments.get(i).getComment_id();
+      switch (decisions.get(i)) {
+        case DELETE:
+          call.add("wp.deleteComment", id);
+          break;
+        default:
+          final XmlRpcStruct status = new XmlRpcStruct();
+          status.put("status",
+              decisions.get(i) == Decision.APPROVE ? "approve" : "spam");
+          call.add("wp.editComment", id, status);
+      }
+    }
+    List<Object> results;
+    try {
+      results = call.execute();
+    } catch (final XmlRpcFault | XmlRpcException e) {
+      for (int i = 0; i < comments.size(); i++) {
+        report(new Result(comments.get(i), decisions.get(i), e));
+      }
+      recordCalls(comments.size(), comments.size());
+      return comments.size();
+    }
+    int failed = 0;
+    int serverFailed = 0;
+    for (int i = 0; i < comments.size(); i++) {
+      final Object r = results.get(i);
+      if (r instanceof XmlRpcFault) {
+        failed++;
+        final int code = ((XmlRpcFault) r).getErrorCode();
+        if (code != 401 && code != 403 && code != 404) {
+          serverFailed++;
+        }
+        report(new Result(comments.get(i), decisions.get(i),
+            (XmlRpcFault) r));
+      } else {
+        report(new Result(comments.get(i), decisions.get(i), null));
+      }
+    }
+    recordCalls(comments.size(), serverFailed);
+    return failed;
+  }
+  
+  /**
+   * Updates the failure rate, and the batch size and pause with it.
+   */
+  private synchronized void recordCalls(final int calls, final int failed) {
+    final double rate = calls == 0 ? 0 : (double) failed / calls;
+    this.errorRate = RATE_WEIGHT * rate + (1 - RATE_WEIGHT) * this.errorRate;
+    if (this.errorRate > this.maxErrorRate) {
+      this.batchSize = Math.max(1, this.batchSize / 2);
+      this.pause = Math.min(this.maxPause,
+          this.pause == 0 ? 100 : this.pause * 2);
+      logger.info("failure rate {}, slowing down to {} per batch", //$NON-NLS-1$
+          Double.valueOf(this.errorRate), Integer.valueOf(this.batchSize));
+    } else {
+      this.batchSize = Math.min(this.maxBatchSize, this.batchSize + 1);
+      this.pause = this.pause / 2;
+    }
+  }
+  
+  private synchronized int currentBatchSize() {
+    return this.batchSize;
+  }
+  
+  private synchronized long currentPause() {
+    return this.pause;
+  }
+  
+  private void report(final Result result) {
+    synchronized (this) {
+      if (result.getError() != null) {
+        this.failures++;
+      } else {
+        this.counts.put(result.getDecision(), Integer
+            .valueOf(this.counts.get(result.getDecision()).intValue() + 1));
+      }
+    }
+    if (this.listener != null) {
+      this.listener.moderated(result);
+    }
+  }
+}
@@ -0,0 +1,385 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A resident process that runs command lines for {@link DaemonClient}, so
+ * that each command costs a round trip instead of a JVM start. The
+ * connections of every site and user stay open between commands, with their
+ * caches and their pooled HTTP connections.
+ * 
+ * <p>
+ * The daemon listens on the loopback interface only, on a free port. The
+ * port and a random token are written to a state file readable by the
+ * owner only. The token itself is never sent: the daemon proves it knows
+ * the token to the client, then the client to the daemon, as described in
+ * {@link DaemonClient}. The state file is removed when the daemon stops,
+ * including when the JVM is shut down.
+ * 
+ * @author Can Bican
+ */
+public class Daemon implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(Daemon.class);
+  
+  private final File stateFile;
+  private long idleMillis = TimeUnit.MINUTES.toMillis(30);
+  private final ConcurrentMap<List<String>, Wordpress> connections =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger running = new AtomicInteger();
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private volatile long lastUsed = System.currentTimeMillis();
+  private ServerSocket server = null;
+  private ExecutorService workers = null;
+  private String token = null;
+  private Thread shutdownHook = null;
+  
+  /**
+   * @param stateFile
+   *          file to write the port and the token to
+   */
+  public Daemon(final File stateFile) {
+    this.stateFile = stateFile;
+  }
+  
+  /**
+   * @param timeout
+   *          time without commands after which the daemon stops, 0 to run
+   *          until it is closed
+   * @param unit
+   *          unit of the timeout
+   */
+  public void setIdleTimeout(final long timeout, final TimeUnit unit) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.idleMillis = unit.toMillis(timeout);
+  }
+  
+  /**
+   * @return the port the daemon listens on
+   */
+  public int getPort() {
+    return this.server.getLocalPort();
+  }
+  
+  /**
+   * Starts listening, and writes the state file.
+   * 
+   * @throws IOException
+   *           if the socket or the state file cannot be created
+   */
+  public synchronized void start() throws IOException {
+    if (this.server != null) {
+      throw new IllegalStateException("started"); //$NON-NLS-1$
+    }
+    this.token = DaemonClient.nonce(24);
+    this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    this.workers = Executors.newCachedThreadPool();
+    writeState();
+    this.shutdownHook = new Thread(this::deleteState, "daemon-shutdown"); //$NON-NLS-1$
+    Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+    final Thread acceptor = new Thread(this::accept, "daemon"); //$NON-NLS-1$
+    acceptor.start();
+    if (this.idleMillis > 0) {
+      final Thread watchdog = new Thread(this::watch, "daemon-idle"); //$NON-NLS-1$
+      watchdog.setDaemon(true);
+      watchdog.start();
+    }
+  }
+  
+  /**
+   * Waits until the daemon stops.
+   * 
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  public void awaitTermination() throws InterruptedException {
+    this.stopped.await();
+  }
+  
+  /**
+   * Stops listening and removes the state file; commands that are running
+   * are finished.
+   */
+  @Override
+  public synchronized void close() {
+    if (this.server == null || this.server.isClosed()) {
+      return;
+    }
+    try {
+      this.server.close();
+    } catch (final IOException e) {
+      logger.warn("cannot close the daemon socket: {}", e.toString()); //$NON-NLS-1$
+    }
+    this.workers.shutdown();
+    deleteState();
+    try {
+      Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+    } catch (final IllegalStateException e) {
+      // shutting down
+    }
+    this.stopped.countDown();
+  }
+  
+  /**
+   * Removes the state file, unless another daemon has replaced it.
+   */
+  private void deleteState() {
+    try {
+      final String state = new String(
+          Files.readAllBytes(this.stateFile.toPath()),
+          StandardCharsets.UTF_8);
+      if (state.trim().endsWith(" " + this.token)) { //$NON-NLS-1$
+        Files.delete(this.stateFile.toPath());
+      }
+    } catch (final IOException e) {
+      // already removed
+    }
+  }
+  
+  private void writeState() throws IOException {
+    final File dir = this.stateFile.getAbsoluteFile().getParentFile();
+    Files.createDirectories(dir.toPath());
+    final File temp = File.createTempFile("daemon", null, dir); //$NON-NLS-1$
+    try {
+      try {
+        Files.setPosixFilePermissions(temp.toPath(),
+            PosixFilePermissions.fromString("rw-------")); //$NON-NLS-1$
+      } catch (final UnsupportedOperationException e) {
+        temp.setReadable(false, false);
+        temp.setReadable(true, true);
+      }
+      Files.write(temp.toPath(), (getPort() + " " + this.token + "\n") //$NON-NLS-1$ //$NON-NLS-2$
+          .getBytes(StandardCharsets.UTF_8));
+      Files.move(temp.toPath(), this.stateFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      temp.delete();
+    }
+  }
+  
+  private void accept() {
+    try {
+      while (true) {
+        final Socket socket = this.server.accept();
+        this.workers.execute(() -> serve(socket));
+      }
+    } catch (final SocketException e) {
+      // closed
+    } catch (final IOException e) {
+      logger.warn("daemon stopped accepting: {}", e.toString()); //$NON-NLS-1$
+    } finally {
+      close();
+    }
+  }
+  
+  private void watch() {
+    try {
+      while (!this.server.isClosed()) {
+        final long idle = System.currentTimeMillis() - this.lastUsed;
+        if (this.running.get() == 0 && idle >= this.idleMillis) {
+          logger.info("daemon idle, stopping"); //$NON-NLS-1$
+          close();
+          return;
+        }
+        Thread.sleep(Math.max(1000, this.idleMillis - idle));
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  private void serve(final Socket socket) {
+    this.running.incrementAndGet();
+    try (Socket s = socket) {
+      s.setTcpNoDelay(true);
+      final DataInputStream request = new DataInputStream(
+          new BufferedInputStream(s.getInputStream()));
+      final DataOutputStream response = new DataOutputStream(
+          new BufferedOutputStream(s.getOutputStream()));
+      s.setSoTimeout(DaemonClient.HANDSHAKE_TIMEOUT);
+      final String clientNonce = request.readUTF();
+      final String nonce = DaemonClient.nonce(16);
+      response.writeUTF(nonce);
+      response.writeUTF(DaemonClient.proof(this.token, "daemon", //$NON-NLS-1$
+          clientNonce, nonce));
+      response.flush();
+      if (!DaemonClient.matches(request.readUTF(), DaemonClient.proof(
+          this.token, "client", nonce, clientNonce))) { //$NON-NLS-1$
+        logger.warn("daemon rejected a client with a wrong token"); //$NON-NLS-1$
+        return;
+      }
+      s.setSoTimeout(0);
+      final File directory = new File(request.readUTF());
+      final String[] args = new String[request.readInt()];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = request.readUTF();
+      }
+      int status = 0;
+      if (args.length == 1 && args[0].equals(DaemonClient.STOP)) {
+        close();
+      } else {
+        status = run(args, directory, request, response);
+      }
+      synchronized (response) {
+        response.writeByte(DaemonClient.EXIT);
+        response.writeInt(status);
+        response.flush();
+      }
+    } catch (final IOException e) {
+      logger.debug("daemon client failed: {}", e.toString()); //$NON-NLS-1$
+    } finally {
+      this.lastUsed = System.currentTimeMillis();
+      this.running.decrementAndGet();
+    }
+  }
+  
+  private int run(final String[] args, final File directory,
+      final DataInputStream request, final DataOutputStream response) {
+    final PrintStream out = new PrintStream(
+        new BufferedOutputStream(new Frames(response, DaemonClient.OUT)),
+        true);
+    final PrintStream err = new PrintStream(
+        new BufferedOutputStream(new Frames(response, DaemonClient.ERR)),
+        true);
+    int status = 0;
+    try {
+      new Main(new Input(request), out, err, directory, this::connect)
+          .run(args);
+    } catch (final Exception e) {
+      err.println(e.toString());
+      status = 1;
+    } finally {
+      out.flush();
+      err.flush();
+    }
+    return status;
+  }
+  
+  /**
+   * @return the open connection of the site and user
+   */
+  private Wordpress connect(final String username, final String password,
+      final String xmlRpcUrl) throws MalformedURLException {
+    final List<String> key = Arrays.asList(xmlRpcUrl, username, password);
+    Wordpress wp = this.connections.get(key);
+    if (wp == null) {
+      wp = new Wordpress(username, password, xmlRpcUrl);
+      final Wordpress other = this.connections.putIfAbsent(key, wp);
+      if (other != null) {
+        wp = other;
+      }
+    }
+    return wp;
+  }
+  
+  /**
+   * Writes to the client as frames of a type
+   */
+  private static class Frames extends OutputStream {
+    private final DataOutputStream response;
+    private final int type;
+    
+    Frames(final DataOutputStream response, final int type) {
+      this.response = response;
+      this.type = type;
+    }
+    
+    @Override
+    public void write(final int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+    
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+      if (len == 0) {
+        return;
+      }
+      synchronized (this.response) {
+        this.response.writeByte(this.type);
+        this.response.writeInt(len);
+        this.response.write(b, off, len);
+        this.response.flush();
+      }
+    }
+  }
+  
+  /**
+   * Reads the standard input of the client from its frames
+   */
+  private static class Input extends InputStream {
+    private final DataInputStream request;
+    private int left = 0;
+    private boolean ended = false;
+    
+    Input(final DataInputStream request) {
+      this.request = request;
+    }
+    
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+    
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+        throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (this.left == 0) {
+        if (this.ended) {
+          return -1;
+        }
+        this.left = this.request.readInt();
+        this.ended = this.left == 0;
+      }
+      final int n = this.request.read(b, off, Math.min(len, this.left));
+      if (n < 0) {
+        return -1;
+      }
+      this.left -= n;
+      return n;
+    }
+  }
+}
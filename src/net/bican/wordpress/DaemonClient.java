@@ -0,0 +1,245 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Thin command line front end of {@link Daemon}: forwards the arguments,
+ * the working directory and the standard input to a running daemon and
+ * copies its output back, exiting with its status. Without a daemon the
+ * command runs in this process, as {@link Main} does.
+ * 
+ * <p>
+ * The state file may be stale, and its port taken by another process, so
+ * the token is never sent: the daemon and the client each prove they know
+ * it by a keyed hash of two random nonces, the daemon first, before the
+ * client sends anything about the command.
+ * 
+ * <p>
+ * This class uses nothing but the JDK, so that it starts quickly.
+ * 
+ * @author Can Bican
+ */
+public class DaemonClient {
+  /**
+   * the file the daemon writes its port and token to, set by the system
+   * property "jwordpress.daemon" or ~/.jwordpress/daemon
+   */
+  public static final File STATE = new File(System.getProperty(
+      "jwordpress.daemon", System.getProperty("user.home") //$NON-NLS-1$ //$NON-NLS-2$
+          + File.separator + ".jwordpress" + File.separator + "daemon")); //$NON-NLS-1$ //$NON-NLS-2$
+  
+  /** frame of standard output */
+  static final int OUT = 1;
+  /** frame of standard error */
+  static final int ERR = 2;
+  /** last frame, with the exit status */
+  static final int EXIT = 3;
+  /** arguments that stop the daemon */
+  static final String STOP = "--daemon-stop"; //$NON-NLS-1$
+  /** how long each side waits for the other to prove itself, in ms */
+  static final int HANDSHAKE_TIMEOUT = 10000;
+  
+  private static final SecureRandom random = new SecureRandom();
+  
+  private DaemonClient() {
+    // only static methods
+  }
+  
+  /**
+   * @param args
+   *          the same as those of {@link Main}, or "--daemon-stop"
+   * @throws Exception
+   *           if the command fails
+   */
+  public static void main(final String[] args) throws Exception {
+    final int status = run(STATE, args, System.in, System.out, System.err);
+    if (status < 0) {
+      Main.main(args);
+    } else {
+      System.exit(status);
+    }
+  }
+  
+  /**
+   * Runs a command on the daemon.
+   * 
+   * @param state
+   *          the state file of the daemon
+   * @param args
+   *          the arguments
+   * @param in
+   *          forwarded as the standard input of the command
+   * @param out
+   *          receives the standard output
+   * @param err
+   *          receives the standard error
+   * @return the exit status, or -1 if no daemon that knows the token of the
+   *         state file is running
+   * @throws IOException
+   *           if the connection to the daemon fails during the command
+   */
+  static int run(final File state, final String[] args, final InputStream in,
+      final OutputStream out, final OutputStream err) throws IOException {
+    final Socket socket;
+    final String token;
+    try {
+      final String[] s = new String(Files.readAllBytes(state.toPath()),
+          StandardCharsets.UTF_8).trim().split(" "); //$NON-NLS-1$
+      token = s[1];
+      socket = new Socket(InetAddress.getLoopbackAddress(),
+          Integer.parseInt(s[0]));
+    } catch (final IOException | RuntimeException e) {
+      return -1;
+    }
+    try {
+      socket.setTcpNoDelay(true);
+      final DataOutputStream request = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream()));
+      final DataInputStream response = new DataInputStream(
+          new BufferedInputStream(socket.getInputStream()));
+      try {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        final String nonce = nonce(16);
+        request.writeUTF(nonce);
+        request.flush();
+        final String daemonNonce = response.readUTF();
+        if (!matches(response.readUTF(),
+            proof(token, "daemon", nonce, daemonNonce))) { //$NON-NLS-1$
+          return -1;
+        }
+        request.writeUTF(proof(token, "client", daemonNonce, nonce)); //$NON-NLS-1$
+        socket.setSoTimeout(0);
+      } catch (final IOException e) {
+        // not a daemon
+        return -1;
+      }
+      request.writeUTF(new File("").getAbsolutePath()); //$NON-NLS-1$
+      request.writeInt(args.length);
+      for (final String a : args) {
+        request.writeUTF(a);
+      }
+      request.flush();
+      final Thread input = new Thread(() -> forward(in, request), "stdin"); //$NON-NLS-1$
+      input.setDaemon(true);
+      input.start();
+      final byte[] buffer = new byte[8192];
+      while (true) {
+        final int type = response.readByte();
+        final int length = response.readInt();
+        if (type == EXIT) {
+          out.flush();
+          err.flush();
+          return length;
+        }
+        final OutputStream target = type == ERR ? err : out;
+        int left = length;
+        while (left > 0) {
+          final int n = response.read(buffer, 0, Math.min(left,
+              buffer.length));
+          if (n < 0) {
+            throw new EOFException();
+          }
+          target.write(buffer, 0, n);
+          left -= n;
+        }
+        target.flush();
+      }
+    } finally {
+      socket.close();
+    }
+  }
+  
+  /**
+   * @param bytes
+   *          number of random bytes
+   * @return random bytes in hexadecimal
+   */
+  static String nonce(final int bytes) {
+    final byte[] b = new byte[bytes];
+    random.nextBytes(b);
+    final StringBuilder sb = new StringBuilder();
+    for (final byte x : b) {
+      sb.append(String.format("%02x", Integer.valueOf(x & 0xff))); //$NON-NLS-1$
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * @param token
+   *          the token of the daemon
+   * @param parts
+   *          what the proof is about: who gives it and the nonces
+   * @return the HMAC-SHA256 of the parts keyed by the token, in base 64
+   */
+  static String proof(final String token, final String... parts) {
+    try {
+      final Mac mac = Mac.getInstance("HmacSHA256"); //$NON-NLS-1$
+      mac.init(new SecretKeySpec(token.getBytes(StandardCharsets.UTF_8),
+          "HmacSHA256")); //$NON-NLS-1$
+      for (final String part : parts) {
+        mac.update(part.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+      }
+      return Base64.getEncoder().encodeToString(mac.doFinal());
+    } catch (final GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  /**
+   * @return whether a proof is the expected one, in constant time
+   */
+  static boolean matches(final String proof, final String expected) {
+    return MessageDigest.isEqual(proof.getBytes(StandardCharsets.UTF_8),
+        expected.getBytes(StandardCharsets.UTF_8));
+  }
+  
+  /**
+   * Sends the standard input as length prefixed frames, and an empty frame
+   * at its end.
+   */
+  private static void forward(final InputStream in,
+      final DataOutputStream request) {
+    final byte[] buffer = new byte[8192];
+    try {
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        request.writeInt(n);
+        request.write(buffer, 0, n);
+        request.flush();
+      }
+      request.writeInt(0);
+      request.flush();
+    } catch (final IOException e) {
+      // the command finished without reading all of its input
+    }
+  }
+}
@@ -79,4 +79,20 @@ public class FilterMediaItem extends XmlRpcMapped {
   public final void setMime_type(final String mime_type) {
     this.mime_type = mime_type;
   }
+  
+  /**
+   * @param offset
+   *          offset of the copy
+   * @param number
+   *          number of the copy
+   * @return a copy of this filter for the given page
+   */
+  FilterMediaItem page(final Integer offset, final Integer number) {
+    final FilterMediaItem copy = new FilterMediaItem();
+    copy.parent_id = this.parent_id;
+    copy.mime_type = this.mime_type;
+    copy.offset = offset;
+    copy.number = number;
+    return copy;
+  }
 }
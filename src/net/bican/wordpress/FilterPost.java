@@ -112,4 +112,22 @@ public class FilterPost extends XmlRpcMapped {
   public final void setOrder(final String order) {
     this.order = order;
   }
+  
+  /**
+   * @param offset
+   *          offset of the copy
+   * @param number
+   *          number of the copy
+   * @return a copy of this filter for the given page
+   */
+  FilterPost page(final Integer offset, final Integer number) {
+    final FilterPost copy = new FilterPost();
+    copy.post_type = this.post_type;
+    copy.post_status = this.post_status;
+    copy.orderby = this.orderby;
+    copy.order = this.order;
+    copy.offset = offset;
+    copy.number = number;
+    return copy;
+  }
 }
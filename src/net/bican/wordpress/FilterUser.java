@@ -140,4 +140,22 @@ public class FilterUser {
     }
     return r;
   }
+  
+  /**
+   * @param offset
+   *          offset of the copy
+   * @param number
+   *          number of the copy
+   * @return a copy of this filter for the given page
+   */
+  FilterUser page(final Integer offset, final Integer number) {
+    final FilterUser copy = new FilterUser();
+    copy.role = this.role;
+    copy.who = this.who;
+    copy.orderby = this.orderby;
+    copy.order = this.order;
+    copy.offset = offset;
+    copy.number = number;
+    return copy;
+  }
 }
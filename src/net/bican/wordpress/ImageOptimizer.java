@@ -0,0 +1,451 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bican.wordpress.util.MimeTypes;
+
+/**
+ * Shrinks JPEG and PNG images before they are uploaded, so that neither the
+ * upload nor the thumbnail generation on the server handles more pixels than
+ * the blog shows. Images are scaled down to fit a maximum dimension and
+ * written again without their metadata; JPEG images are also encoded at the
+ * configured quality. As the Exif orientation is dropped with the metadata,
+ * the pixels of JPEG images are turned the way it says first.
+ * 
+ * <p>
+ * The optimized copy keeps the file name of the original and is written to
+ * a directory of its own under the work directory. Other files, images
+ * that cannot be decoded and images whose copy would not be smaller are
+ * passed through unchanged.
+ * 
+ * @author Can Bican
+ */
+public class ImageOptimizer {
+  private static final Logger logger = LoggerFactory
+      .getLogger(ImageOptimizer.class);
+  private static final String JPEG = "image/jpeg"; //$NON-NLS-1$
+  private static final String PNG = "image/png"; //$NON-NLS-1$
+  
+  private final Path workDirectory;
+  private int maxDimension = 2048;
+  private float quality = 0.82f;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private final AtomicLong bytesBefore = new AtomicLong();
+  private final AtomicLong bytesAfter = new AtomicLong();
+  private final AtomicInteger optimized = new AtomicInteger();
+  
+  /**
+   * @param workDirectory
+   *          directory to write the optimized copies to
+   */
+  public ImageOptimizer(final Path workDirectory) {
+    this.workDirectory = workDirectory;
+  }
+  
+  /**
+   * @param maxDimension
+   *          the largest width or height an optimized image has
+   */
+  public void setMaxDimension(final int maxDimension) {
+    if (maxDimension < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.maxDimension = maxDimension;
+  }
+  
+  /**
+   * @param quality
+   *          JPEG quality, between 0 and 1
+   */
+  public void setQuality(final float quality) {
+    if (quality <= 0 || quality > 1) {
+      throw new IllegalArgumentException();
+    }
+    this.quality = quality;
+  }
+  
+  /**
+   * @param threads
+   *          the number of images optimized at the same time by
+   *          {@link #optimize(Collection)}
+   */
+  public void setThreads(final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.threads = threads;
+  }
+  
+  /**
+   * @return the number of images replaced by a smaller copy
+   */
+  public int getOptimized() {
+    return this.optimized.get();
+  }
+  
+  /**
+   * @return the total size of the images replaced by a smaller copy
+   */
+  public long getBytesBefore() {
+    return this.bytesBefore.get();
+  }
+  
+  /**
+   * @return the number of bytes the copies saved
+   */
+  public long getBytesSaved() {
+    return this.bytesBefore.get() - this.bytesAfter.get();
+  }
+  
+  /**
+   * Optimizes the images in parallel.
+   * 
+   * @param files
+   *          the files
+   * @return for each file, the file to upload instead
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  public Map<Path, Path> optimize(final Collection<Path> files)
+      throws InterruptedException {
+    final ExecutorService executor = Executors
+        .newFixedThreadPool(this.threads);
+    final Map<Path, Future<Path>> futures = new LinkedHashMap<>();
+    try {
+      for (final Path file : files) {
+        futures.put(file, executor.submit(new Callable<Path>() {
+          @Override
+          public Path call() throws Exception {
+            return optimize(file);
+          }
+        }));
+      }
+      final Map<Path, Path> result = new LinkedHashMap<>();
+      for (final Map.Entry<Path, Future<Path>> e : futures.entrySet()) {
+        try {
+          result.put(e.getKey(), e.getValue().get());
+        } catch (final ExecutionException ex) {
+          logger.warn("cannot optimize {}: {}", e.getKey(), //$NON-NLS-1$
+              ex.getCause().toString());
+          result.put(e.getKey(), e.getKey());
+        }
+      }
+      return result;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  /**
+   * Optimizes an image.
+   * 
+   * @param file
+   *          the file
+   * @return the optimized copy, or the file itself if it is left as it is
+   * @throws IOException
+   *           if the file cannot be read or the copy cannot be written
+   */
+  public Path optimize(final Path file) throws IOException {
+    final String type = MimeTypes.detect(file);
+    if (!type.equals(JPEG) && !type.equals(PNG)) {
+      return file;
+    }
+    final BufferedImage image = read(file);
+    if (image == null) {
+      return file;
+    }
+    final BufferedImage scaled = orient(scale(image,
+        type.equals(PNG) && image.getColorModel().hasAlpha()),
+        type.equals(JPEG) ? orientation(file) : 1);
+    Files.createDirectories(this.workDirectory);
+    final Path dir = Files.createTempDirectory(this.workDirectory, "img"); //$NON-NLS-1$
+    final Path copy = dir.resolve(file.getFileName());
+    write(scaled, type, copy);
+    final long before = Files.size(file);
+    final long after = Files.size(copy);
+    if (after >= before) {
+      discard(copy);
+      return file;
+    }
+    this.bytesBefore.addAndGet(before);
+    this.bytesAfter.addAndGet(after);
+    this.optimized.incrementAndGet();
+    return copy;
+  }
+  
+  /**
+   * Deletes an optimized copy; files that are not copies are left alone.
+   * 
+   * @param copy
+   *          a file returned by {@link #optimize(Path)}
+   * @throws IOException
+   *           if the copy cannot be deleted
+   */
+  public void discard(final Path copy) throws IOException {
+    final Path dir = copy.toAbsolutePath().getParent();
+    if (dir != null && this.workDirectory.toAbsolutePath().equals(
+        dir.getParent())) {
+      Files.deleteIfExists(copy);
+      Files.deleteIfExists(dir);
+    }
+  }
+  
+  /**
+   * Decodes the image, skipping rows and columns of images much larger than
+   * the maximum dimension so that they are never decoded in full.
+   */
+  private BufferedImage read(final Path file) throws IOException {
+    try (ImageInputStream in = ImageIO.createImageInputStream(file
+        .toFile())) {
+      final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      final ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        final int largest = Math.max(reader.getWidth(0), reader.getHeight(0));
+        final ImageReadParam param = reader.getDefaultReadParam();
+        final int step = largest / (2 * this.maxDimension);
+        if (step > 1) {
+          param.setSourceSubsampling(step, step, 0, 0);
+        }
+        return reader.read(0, param);
+      } catch (final IOException | RuntimeException e) {
+        // e.g. CMYK JPEG images, which are uploaded as they are
+        logger.debug("cannot decode {}: {}", file, e.toString()); //$NON-NLS-1$
+        return null;
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+  
+  /**
+   * Scales down in halving steps, which keeps the quality of bilinear
+   * interpolation for large factors.
+   */
+  private BufferedImage scale(final BufferedImage image,
+      final boolean alpha) {
+    final int type = alpha ? BufferedImage.TYPE_INT_ARGB
+        : BufferedImage.TYPE_INT_RGB;
+    int w = image.getWidth();
+    int h = image.getHeight();
+    final double factor = Math.min(1.0,
+        (double) this.maxDimension / Math.max(w, h));
+    final int targetW = Math.max(1, (int) Math.round(w * factor));
+    final int targetH = Math.max(1, (int) Math.round(h * factor));
+    BufferedImage current = image;
+    do {
+      w = Math.max(targetW, w / 2);
+      h = Math.max(targetH, h / 2);
+      final BufferedImage next = new BufferedImage(w, h, type);
+      final Graphics2D g = next.createGraphics();
+      try {
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING,
+            RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(current, 0, 0, w, h, null);
+      } finally {
+        g.dispose();
+      }
+      current = next;
+    } while (w != targetW || h != targetH);
+    return current;
+  }
+  
+  /**
+   * @return the Exif orientation of a JPEG image, between 1 and 8; 1, the
+   *         default, if there is none
+   */
+  static int orientation(final Path file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        Files.newInputStream(file)))) {
+      if (in.readUnsignedShort() != 0xffd8) {
+        return 1;
+      }
+      while (true) {
+        final int marker = in.readUnsignedShort();
+        if ((marker & 0xff00) != 0xff00 || marker == 0xffda) {
+          return 1; // the metadata comes before the image data
+        }
+        final int length = in.readUnsignedShort() - 2;
+        if (length < 0) {
+          return 1;
+        }
+        if (marker != 0xffe1) {
+          for (int left = length; left > 0;) {
+            final int n = in.skipBytes(left);
+            if (n <= 0) {
+              return 1;
+            }
+            left -= n;
+          }
+          continue;
+        }
+        final byte[] segment = new byte[length];
+        in.readFully(segment);
+        if (length > 6 && new String(segment, 0, 6,
+            StandardCharsets.ISO_8859_1).equals("Exif\0\0")) { //$NON-NLS-1$
+          return exifOrientation(segment, 6);
+        }
+      }
+    } catch (final EOFException e) {
+      return 1;
+    }
+  }
+  
+  /**
+   * Looks the orientation tag up in the first directory of the TIFF
+   * structure at the offset.
+   */
+  private static int exifOrientation(final byte[] b, final int tiff) {
+    if (b.length < tiff + 8) {
+      return 1;
+    }
+    final boolean little = b[tiff] == 'I';
+    final int ifd = tiff + (int) Math.min(Integer.MAX_VALUE,
+        unsigned(b, tiff + 4, 4, little));
+    if (ifd < tiff || b.length < ifd + 2) {
+      return 1;
+    }
+    final int entries = (int) unsigned(b, ifd, 2, little);
+    for (int i = 0; i < entries; i++) {
+      final int entry = ifd + 2 + i * 12;
+      if (b.length < entry + 12) {
+        return 1;
+      }
+      if (unsigned(b, entry, 2, little) == 0x0112) {
+        final int value = (int) unsigned(b, entry + 8, 2, little);
+        return value >= 1 && value <= 8 ? value : 1;
+      }
+    }
+    return 1;
+  }
+  
+  private static long unsigned(final byte[] b, final int offset,
+      final int length, final boolean little) {
+    long v = 0;
+    for (int i = 0; i < length; i++) {
+      final int shift = little ? 8 * i : 8 * (length - 1 - i);
+      v |= (long) (b[offset + i] & 0xff) << shift;
+    }
+    return v;
+  }
+  
+  /**
+   * Turns the pixels the way an Exif orientation says the image is shown.
+   */
+  private static BufferedImage orient(final BufferedImage image,
+      final int orientation) {
+    if (orientation == 1) {
+      return image;
+    }
+    final int w = image.getWidth();
+    final int h = image.getHeight();
+    final boolean turned = orientation >= 5;
+    final BufferedImage result = new BufferedImage(turned ? h : w,
+        turned ? w : h, image.getType());
+    for (int y = 0; y < h; y++) {
+      for (int x = 0; x < w; x++) {
+        final int dx;
+        final int dy;
+        switch (orientation) {
+          case 2: // mirrored left to right
+            dx = w - 1 - x;
+            dy = y;
+            break;
+          case 3: // turned half round
+            dx = w - 1 - x;
+            dy = h - 1 - y;
+            break;
+          case 4: // mirrored top to bottom
+            dx = x;
+            dy = h - 1 - y;
+            break;
+          case 5: // mirrored along the diagonal
+            dx = y;
+            dy = x;
+            break;
+          case 6: // turned clockwise
+            dx = h - 1 - y;
+            dy = x;
+            break;
+          case 7: // mirrored along the other diagonal
+            dx = h - 1 - y;
+            dy = w - 1 - x;
+            break;
+          default: // 8, turned counterclockwise
+            dx = y;
+            dy = w - 1 - x;
+            break;
+        }
+        result.setRGB(dx, dy, image.getRGB(x, y));
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Writes the pixels only, so no metadata of the original is kept.
+   */
+  private void write(final BufferedImage image, final String type,
+      final Path file) throws IOException {
+    final ImageWriter writer = ImageIO.getImageWritersByMIMEType(type).next();
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(file
+        .toFile())) {
+      writer.setOutput(out);
+      final ImageWriteParam param = writer.getDefaultWriteParam();
+      if (type.equals(JPEG)) {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(this.quality);
+        param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+      }
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+  }
+}
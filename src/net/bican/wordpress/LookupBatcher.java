@@ -0,0 +1,232 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redstone.xmlrpc.XmlRpcArray;
+import redstone.xmlrpc.XmlRpcException;
+import redstone.xmlrpc.XmlRpcFault;
+import redstone.xmlrpc.XmlRpcStruct;
+
+/**
+ * Collects point lookups issued within a time window and sends them in one
+ * <code>system.multicall</code> request. Option names are merged into a single
+ * <code>wp.getOptions</code> call. Identical lookups in the same window are
+ * sent once.
+ * 
+ * @author Can Bican
+ */
+class LookupBatcher {
+  /**
+   * Kinds of lookups that can be batched
+   */
+  enum Kind {
+    POST("wp.getPost"), //$NON-NLS-1$
+    USER("wp.getUser"), //$NON-NLS-1$
+    MEDIA_ITEM("wp.getMediaItem"), //$NON-NLS-1$
+    OPTION("wp.getOptions"); //$NON-NLS-1$
+    
+    final String methodName;
+    
+    Kind(final String methodName) {
+      this.methodName = methodName;
+    }
+  }
+  
+  private static class Request {
+    final Kind kind;
+    final Object key;
+    final CountDownLatch done = new CountDownLatch(1);
+    Object result;
+    XmlRpcFault fault;
+    RuntimeException error;
+    
+    Request(final Kind kind, final Object key) {
+      this.kind = kind;
+      this.key = key;
+    }
+  }
+  
+  private static final Logger logger = LoggerFactory
+      .getLogger(LookupBatcher.class);
+  
+  private final Wordpress wp;
+  private final long windowNanos;
+  private final int maxBatchSize;
+  private final ScheduledExecutorService executor;
+  private List<Request> pending = new ArrayList<>();
+  private final Runnable flusher = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+  
+  LookupBatcher(final Wordpress wp, final long window, final TimeUnit unit,
+      final int maxBatchSize) {
+    this.wp = wp;
+    this.windowNanos = unit.toNanos(window);
+    this.maxBatchSize = maxBatchSize;
+    this.executor = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "wordpress-batcher"); //$NON-NLS-1$
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+  
+  /**
+   * Queues a lookup and waits for the batch it ends up in.
+   * 
+   * @param kind
+   *          kind of the lookup
+   * @param key
+   *          id of the object, or the option name
+   * @return the raw result; for options the option struct, or null if the
+   *         option does not exist
+   * @throws XmlRpcFault
+   *           the fault for this particular lookup
+   */
+  Object lookup(final Kind kind, final Object key) throws XmlRpcFault {
+    final Request request = new Request(kind, key);
+    boolean inline = false;
+    synchronized (this) {
+      this.pending.add(request);
+      if (this.executor.isShutdown()) {
+        inline = true;
+      } else if (this.pending.size() >= this.maxBatchSize) {
+        this.executor.execute(this.flusher);
+      } else if (this.pending.size() == 1) {
+        this.executor.schedule(this.flusher, this.windowNanos,
+            TimeUnit.NANOSECONDS);
+      }
+    }
+    if (inline) {
+      flush();
+    }
+    try {
+      request.done.await();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new XmlRpcException("interrupted while waiting for batch", e); //$NON-NLS-1$
+    }
+    if (request.fault != null) {
+      throw request.fault;
+    }
+    if (request.error != null) {
+      throw request.error;
+    }
+    return request.result;
+  }
+  
+  @SuppressWarnings("unchecked")
+  void flush() {
+    final List<Request> batch;
+    synchronized (this) {
+      if (this.pending.isEmpty()) {
+        return;
+      }
+      batch = this.pending;
+      this.pending = new ArrayList<>();
+    }
+    final Map<String, List<Request>> byCall = new LinkedHashMap<>();
+    final List<Request> options = new ArrayList<>();
+    for (final Request request : batch) {
+      if (request.kind == Kind.OPTION) {
+        options.add(request);
+      } else {
+        final String callKey = request.kind.methodName + ':' + request.key;
+        List<Request> same = byCall.get(callKey);
+        if (same == null) {
+          same = new ArrayList<>();
+          byCall.put(callKey, same);
+        }
+        same.add(request);
+      }
+    }
+    try {
+      final MultiCall call = this.wp.newMultiCall();
+      final List<List<Request>> order = new ArrayList<>();
+      if (!options.isEmpty()) {
+        final XmlRpcArray names = new XmlRpcArray();
+        for (final Request request : options) {
+          if (!names.contains(request.key)) {
+            names.add(request.key);
+          }
+        }
+        call.add(Kind.OPTION.methodName, names);
+        order.add(options);
+      }
+      for (final List<Request> same : byCall.values()) {
+        call.add(same.get(0).kind.methodName, same.get(0).key);
+        order.add(same);
+      }
+      logger.debug("sending {} lookups in {} calls", //$NON-NLS-1$
+          Integer.valueOf(batch.size()), Integer.valueOf(call.size()));
+      final List<Object> results = call.execute();
+      for (int i = 0; i < order.size(); i++) {
+        final Object r = results.get(i);
+        for (final Request request : order.get(i)) {
+          if (r instanceof XmlRpcFault) {
+            request.fault = (XmlRpcFault) r;
+          } else if (request.kind == Kind.OPTION) {
+            request.result = ((XmlRpcStruct) r).get(request.key);
+          } else {
+            request.result = r;
+          }
+        }
+      }
+    } catch (final XmlRpcFault e) {
+      for (final Request request : batch) {
+        request.fault = e;
+      }
+    } catch (final RuntimeException e) {
+      for (final Request request : batch) {
+        request.error = e;
+      }
+    } finally {
+      for (final Request request : batch) {
+        request.done.countDown();
+      }
+    }
+  }
+  
+  /**
+   * @return number of lookups waiting for their batch to be sent
+   */
+  synchronized int pending() {
+    return this.pending.size();
+  }
+  
+  /**
+   * Sends the pending lookups and stops the batching thread.
+   */
+  void shutdown() {
+    synchronized (this) {
+      this.executor.shutdown();
+    }
+    flush();
+  }
+}
@@ -9,13 +9,30 @@
  */
 package net.bican.wordpress;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import net.bican.wordpress.configuration.WpCliConfiguration;
 import net.bican.wordpress.exceptions.FileUploadException;
@@ -23,6 +40,7 @@ import net.bican.wordpress.exceptions.InsufficientRightsException;
 import net.bican.wordpress.exceptions.InvalidArgumentsException;
 import net.bican.wordpress.exceptions.InvalidPostFormatException;
 import net.bican.wordpress.exceptions.ObjectNotFoundException;
+import net.bican.wordpress.util.CallStats;
 import net.bican.wordpress.util.StringHeader;
 
 import org.apache.commons.cli.HelpFormatter;
@@ -37,6 +55,58 @@ import redstone.xmlrpc.XmlRpcFault;
  * @author Can Bican
  */
 public class Main {
+  private final InputStream in;
+  private final PrintStream out;
+  private final PrintStream err;
+  private final File directory;
+  private final Connector connector;
+  private final boolean resident;
+  private RecordWriter.Format format = null;
+  private long statsStarted = 0;
+  private CallStats stats = null;
+  
+  /**
+   * Creates the wordpress connections of a run
+   */
+  interface Connector {
+    /**
+     * @param username
+     *          User name
+     * @param password
+     *          Password
+     * @param xmlRpcUrl
+     *          xmlrpc communication point
+     * @return the connection
+     * @throws MalformedURLException
+     *           If the URL is faulty
+     */
+    Wordpress connect(String username, String password, String xmlRpcUrl)
+        throws MalformedURLException;
+  }
+  
+  /**
+   * @param in
+   *          standard input of the run
+   * @param out
+   *          standard output of the run
+   * @param err
+   *          standard error of the run
+   * @param directory
+   *          directory relative file names are resolved against
+   * @param connector
+   *          creates the connections, or null for new ones on every run; a
+   *          connector is given by the daemon
+   */
+  Main(final InputStream in, final PrintStream out, final PrintStream err,
+      final File directory, final Connector connector) {
+    this.in = in;
+    this.out = out;
+    this.err = err;
+    this.directory = directory;
+    this.connector = connector != null ? connector : Wordpress::new;
+    this.resident = connector != null;
+  }
+  
   /**
    * @param args
    *          execute with "-?" for an explanation of args
@@ -51,10 +121,46 @@ public class Main {
    * @throws FileUploadException
    *           thrown from a wordpress call
    */
-  @SuppressWarnings({ "nls", "boxing" })
   public static void main(final String[] args)
       throws ParseException, InsufficientRightsException,
       InvalidArgumentsException, ObjectNotFoundException, FileUploadException {
+    new Main(System.in, System.out, System.err,
+        new File("").getAbsoluteFile(), null).run(args);
+  }
+  
+  /**
+   * Runs a command line, as {@link #main(String[])} does, with the given
+   * streams and working directory.
+   * 
+   * @param args
+   *          the arguments
+   * @throws ParseException
+   *           When the command line options cannot be parsed
+   * @throws InvalidArgumentsException
+   *           thrown from a wordpress call
+   * @throws InsufficientRightsException
+   *           thrown from a wordpress call
+   * @throws ObjectNotFoundException
+   *           thrown from a wordpress call
+   * @throws FileUploadException
+   *           thrown from a wordpress call
+   */
+  void run(final String[] args)
+      throws ParseException, InsufficientRightsException,
+      InvalidArgumentsException, ObjectNotFoundException, FileUploadException {
+    try {
+      execute(args);
+    } finally {
+      if (this.statsStarted != 0) {
+        stats();
+      }
+    }
+  }
+  
+  @SuppressWarnings({ "nls", "boxing" })
+  private void execute(final String[] args)
+      throws ParseException, InsufficientRightsException,
+      InvalidArgumentsException, ObjectNotFoundException, FileUploadException {
     try {
       final Options options = new Options();
       options.addOption("?", "help", false, "Print usage information");
@@ -97,19 +203,85 @@ public class Main {
           "Comment offset # (for --getcomments)");
       options.addOption("cm", "commentnumber", true,
           "Comment # (for --getcomments)");
+      options.addOption("ex", "export", true,
+          "Export the blog into directory <arg>");
+      options.addOption("th", "threads", true,
+          "Number of parallel requests (for --export, --import, --batch)");
+      options.addOption("im", "import", true,
+          "Import the post files in directory <arg>");
+      options.addOption("up", "upsert", false,
+          "Update posts with the same slug (for --import)");
+      options.addOption("um", "uploadmedia", false,
+          "Upload local files referred to by posts (for --import)");
+      options.addOption("mp", "multipost", false,
+          "Read many posts from each file, separated by --- lines "
+              + "(for --import)");
+      options.addOption("dm", "daemon", false,
+          "Run as a daemon serving jwordpress commands");
+      options.addOption("b", "batch", true,
+          "Run the commands in file <arg>, - for standard input, one per line "
+              + "(uses --threads)");
+      options.addOption("ul", "users", false, "Get all users");
+      options.addOption("cl", "comments", false,
+          "Get all comments (uses --commentstatus)");
+      options.addOption("pa", "parallel", true,
+          "Number of parallel requests when --getpost, --deletepost, "
+              + "--getcomment, --deletecomment or --commentcount is given "
+              + "ids such as 1000-5000, 3,7,10-20 or @file");
+      options.addOption("fo", "format", true,
+          "Output format <arg> of listings: text (default), json, ndjson, "
+              + "csv or tsv");
+      options.addOption("st", "stats", false,
+          "Print where the time of the command went to standard error");
+      options.addOption("xp", "explain", false,
+          "Print the measures of every request too (implies --stats)");
+      options.addOption("md", "metadata", true,
+          "Keep the post types, statuses, taxonomies and options of the blog "
+              + "in directory <arg> instead of fetching them every time");
+      options.addOption("ma", "metadatamaxage", true,
+          "Minutes after which the metadata kept by --metadata is fetched "
+              + "again (default 60)");
       try {
         final WpCliConfiguration config = new WpCliConfiguration(args, options,
             Main.class);
+        final String format = config.getOptionValue("format");
+        if (format != null && !format.equals("text")) {
+          this.format = RecordWriter.Format.of(format);
+        }
         if (config.hasOption("help")) {
           showHelp(options);
+        } else if (format != null && !format.equals("text")
+            && this.format == null) {
+          this.err.println(
+              "Specify text, json, ndjson, csv or tsv for --format");
+        } else if (config.hasOption("daemon")) {
+          daemon();
         } else if (!config.hasOption("url") || !config.hasOption("user")
             || !config.hasOption("pass")) {
-          System.err.println("Specify --user, --pass and --url");
+          this.err.println("Specify --user, --pass and --url");
         } else {
           try {
-            final Wordpress wp = new Wordpress(config.getOptionValue("user"),
-                config.getOptionValue("pass"), config.getOptionValue("url"));
-            if (config.hasOption("authors")) {
+            if (config.hasOption("stats") || config.hasOption("explain")) {
+              this.statsStarted = System.nanoTime();
+              this.stats = CallStats.start(config.hasOption("explain"));
+              this.stats.resolve(new URL(config.getOptionValue("url")));
+            }
+            final Wordpress wp = this.connector.connect(
+                config.getOptionValue("user"), config.getOptionValue("pass"),
+                config.getOptionValue("url"));
+            if (config.hasOption("metadata")) {
+              final Integer maxAge = getInteger("metadatamaxage", config);
+              final long minutes = maxAge != null ? maxAge.longValue() : 60;
+              wp.setSiteMetadata(SiteMetadata.get(wp,
+                  file(config.getOptionValue("metadata")), minutes, minutes,
+                  TimeUnit.MINUTES));
+            }
+            final String range = rangeOption(config);
+            if (config.hasOption("batch")) {
+              batch(config, wp);
+            } else if (range != null) {
+              range(config, wp, range);
+            } else if (config.hasOption("authors")) {
               printList(wp.getAuthors(), Author.class, true);
             } else if (config.hasOption("categories")) {
               printList(wp.getTerms("category"), Term.class, true);
@@ -117,7 +289,7 @@ public class Main {
               final Integer category_id = Integer
                   .valueOf(config.getOptionValue("deletecategory"));
               final boolean r = wp.deleteTerm("category", category_id);
-              System.out.println(r);
+              this.out.println(r);
             } else if (config.hasOption("newcategory")) {
               String slug = config.getOptionValue("slug");
               Integer parentId = getInteger("parentid", config);
@@ -131,11 +303,17 @@ public class Main {
               term.setSlug(slug);
               term.setParent(parentId);
               term.setName(config.getOptionValue("newcategory"));
-              System.out.println(wp.newTerm(term));
+              this.out.println(wp.newTerm(term));
             } else if (config.hasOption("userinfo")) {
               final FilterUser filter = new FilterUser();
               filter.setWho(config.getOptionValue("user"));
               printItem(wp.getUsers(filter).get(0), User.class);
+            } else if (config.hasOption("users")) {
+              printList(wp.iterateUsers(null), User.class, true);
+            } else if (config.hasOption("comments")) {
+              printList(wp.iterateComments(
+                  config.getOptionValue("commentstatus"), null), Comment.class,
+                  true);
             } else if (config.hasOption("recentposts")) {
               final FilterPost filter = new FilterPost();
               filter.setNumber(getInteger("recentposts", config));
@@ -147,27 +325,28 @@ public class Main {
             } else if (config.hasOption("deletepost")) {
               delete(options, config, wp, "deletepost", false);
             } else if (config.hasOption("newpost")) {
-              System.out.println(wp.newPost(
-                  Post.fromFile(new File(config.getOptionValue("newpost")))));
+              this.out.println(wp.newPost(
+                  Post.fromFile(file(config.getOptionValue("newpost")))));
             } else if (config.hasOption("newmedia")) {
               final String fileName = config.getOptionValue("newmedia");
-              final File file = new File(fileName);
               Boolean overwrite = Boolean.FALSE;
               if (config.hasOption("overwrite")) {
                 overwrite = Boolean.TRUE;
               }
-              try (FileInputStream fis = new FileInputStream(file)) {
-                final MediaItemUploadResult result = wp.uploadFile(fis, fileName,
-                    overwrite);
-                if (result != null) {
-                  System.out.println(result);
-                }
+              final MediaItemUploadResult result = wp
+                  .uploadFile(file(fileName).toPath(), overwrite, null);
+              if (result != null) {
+                this.out.println(result);
               }
             } else if (config.hasOption("supportedstatus")) {
-              System.out.println("Recognized status values for posts:");
               final Map<String, String> psl = wp.getPostStatusList();
-              for (final String k : psl.keySet()) {
-                System.out.println(k + " : " + psl.get(k));
+              if (this.format != null) {
+                printItem(psl, Map.class);
+              } else {
+                this.out.println("Recognized status values for posts:");
+                for (final String k : psl.keySet()) {
+                  this.out.println(k + " : " + psl.get(k));
+                }
               }
             } else if (config.hasOption("commentstatus")) {
               showCommentStatus(wp);
@@ -180,7 +359,7 @@ public class Main {
               editComment(wp, config.getOptionValue("editcomment"),
                   "editcomment");
             } else if (config.hasOption("deletecomment")) {
-              System.err.println(
+              this.err.println(
                   Integer.valueOf(config.getOptionValue("deletecomment")));
               deleteComment(wp,
                   Integer.valueOf(config.getOptionValue("deletecomment")));
@@ -207,119 +386,320 @@ public class Main {
               }
               printComments(wp, postID, commentStatus, commentOffset,
                   commentNumber);
+            } else if (config.hasOption("export")) {
+              final SiteExporter exporter = new SiteExporter(wp,
+                  file(config.getOptionValue("export")));
+              final Integer threads = getInteger("threads", config);
+              if (threads != null) {
+                exporter.setThreads(threads);
+              }
+              final Map<String, Long> counts = exporter.export();
+              for (final String k : counts.keySet()) {
+                this.out.println(k + " : " + counts.get(k));
+              }
+            } else if (config.hasOption("import")) {
+              importPosts(config, wp);
             } else {
               showHelp(options);
             }
           } catch (final MalformedURLException e) {
-            System.err.println("URL \"" + config.getOptionValue("url")
+            this.err.println("URL \"" + config.getOptionValue("url")
                 + "\" is invalid, reason is: " + e.getLocalizedMessage());
           } catch (final IOException e) {
-            System.err.println(
+            this.err.println(
                 "Can't read from file, reason is: " + e.getLocalizedMessage());
           } catch (final InvalidPostFormatException e) {
-            System.err.println("Input format is invalid.");
+            this.err.println("Input format is invalid.");
           }
         }
       } catch (final ParseException e) {
-        System.err.println("Can't process command line arguments, reason is: "
+        this.err.println("Can't process command line arguments, reason is: "
             + e.getLocalizedMessage());
       }
     } catch (final XmlRpcFault e) {
       final String reason = e.getLocalizedMessage();
-      System.err.println("Operation failed, reason is: " + reason);
+      this.err.println("Operation failed, reason is: " + reason);
     }
   }
   
+  /**
+   * Prints the counters of {@link CallStats}; startup is the time the JVM
+   * took before the command started, which a resident run does not pay.
+   */
+  @SuppressWarnings("nls")
+  private void stats() {
+    final long total = System.nanoTime() - this.statsStarted;
+    this.stats.stop();
+    this.err.println("--- stats");
+    if (!this.resident) {
+      final long startup = System.currentTimeMillis()
+          - ManagementFactory.getRuntimeMXBean().getStartTime()
+          - TimeUnit.NANOSECONDS.toMillis(total);
+      CallStats.line(this.err, "jvm startup", Long.valueOf(startup), "ms");
+    }
+    this.stats.report(this.err);
+    CallStats.line(this.err, "total",
+        Long.valueOf(TimeUnit.NANOSECONDS.toMillis(total)), "ms");
+  }
+  
+  @SuppressWarnings("nls")
+  private void daemon() {
+    if (this.resident) {
+      this.err.println("Already running in the daemon");
+      return;
+    }
+    try (Daemon daemon = new Daemon(DaemonClient.STATE)) {
+      daemon.start();
+      this.err.println("Daemon listening on port " + daemon.getPort());
+      daemon.awaitTermination();
+    } catch (final IOException e) {
+      this.err.println("Can't start the daemon, reason is: "
+          + e.getLocalizedMessage());
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * @return the option that is given a range or a list of ids, or null
+   */
   @SuppressWarnings("nls")
-  private static void printComments(final Wordpress wp, final Integer postID,
+  private static String rangeOption(final WpCliConfiguration config) {
+    for (final String option : new String[] { "getpost", "deletepost",
+        "getcomment", "deletecomment", "commentcount" }) {
+      if (config.hasOption(option)
+          && RangeRunner.isRange(config.getOptionValue(option))) {
+        return option;
+      }
+    }
+    return null;
+  }
+  
+  @SuppressWarnings("nls")
+  private void range(final WpCliConfiguration config, final Wordpress wp,
+      final String option) throws IOException {
+    final Iterable<Integer> ids;
+    try {
+      ids = RangeRunner.ids(config.getOptionValue(option), this.directory,
+          this.in);
+    } catch (final IllegalArgumentException e) {
+      this.err.println(
+          "Can't process the ids, reason is: " + e.getLocalizedMessage());
+      return;
+    }
+    final RangeRunner runner = new RangeRunner(wp);
+    final Integer parallel = getInteger("parallel", config);
+    if (parallel != null) {
+      runner.setParallel(parallel.intValue());
+    }
+    final Writer w = new BufferedWriter(
+        new OutputStreamWriter(this.out, StandardCharsets.UTF_8), 1 << 16);
+    final RecordWriter records = this.format != null
+        ? new RecordWriter(w, this.format) : null;
+    try {
+      final Map<String, Integer> counts = runner.run(
+          RangeRunner.Operation.valueOf(option.toUpperCase(Locale.ROOT)), ids,
+          r -> {
+            if (records != null) {
+              final Map<String, Object> record = new LinkedHashMap<>();
+              record.put("id", r.getId());
+              record.put("status", r.getError() == null ? "ok" : "error");
+              record.put("result", r.getValue());
+              record.put("error", r.getError() == null ? null
+                  : r.getError().getClass().getSimpleName());
+              record.put("message",
+                  r.getError() == null ? null : r.getError().getMessage());
+              records.write(record);
+            } else if (r.getError() != null) {
+              w.flush();
+              this.err.println(r);
+            } else {
+              w.write(r.toString());
+              w.write('\n');
+            }
+          });
+      if (records != null) {
+        records.finish();
+      }
+      w.flush();
+      for (final String k : counts.keySet()) {
+        this.err.println(k + " : " + counts.get(k));
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      w.flush();
+    }
+  }
+  
+  @SuppressWarnings("nls")
+  private void batch(final WpCliConfiguration config,
+      final Wordpress wp) throws IOException {
+    final String source = config.getOptionValue("batch");
+    final BatchRunner runner = new BatchRunner(wp);
+    runner.setDirectory(this.directory);
+    final Integer threads = getInteger("threads", config);
+    if (threads != null) {
+      runner.setThreads(threads.intValue());
+    }
+    final Writer out = new BufferedWriter(
+        new OutputStreamWriter(this.out, StandardCharsets.UTF_8));
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(
+        source.equals("-") ? this.in : new FileInputStream(file(source)),
+        StandardCharsets.UTF_8))) {
+      final Map<String, Integer> counts = runner.run(in, out);
+      for (final String k : counts.keySet()) {
+        this.err.println(k + " : " + counts.get(k));
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  @SuppressWarnings("nls")
+  private void importPosts(final WpCliConfiguration config,
+      final Wordpress wp) throws IOException, XmlRpcFault {
+    final File dir = file(config.getOptionValue("import"));
+    final File journal = new File(dir, "import.journal");
+    final List<File> files = new ArrayList<>();
+    final File[] entries = dir.listFiles();
+    if (entries == null) {
+      throw new FileNotFoundException(dir.getPath());
+    }
+    Arrays.sort(entries);
+    for (final File f : entries) {
+      if (f.isFile() && !f.equals(journal)) {
+        files.add(f);
+      }
+    }
+    final PostImporter importer = new PostImporter(wp, journal);
+    final Integer threads = getInteger("threads", config);
+    if (threads != null) {
+      importer.setThreads(Runtime.getRuntime().availableProcessors(), 2,
+          threads.intValue(), threads.intValue());
+    }
+    importer.setUpsert(config.hasOption("upsert"));
+    importer.setUploadMedia(config.hasOption("uploadmedia"));
+    importer.setMultiPost(config.hasOption("multipost"));
+    importer.setListener(new PostImporter.Listener() {
+      @Override
+      public void imported(final PostImporter.Result result) {
+        Main.this.out.println(result);
+      }
+    });
+    try {
+      final Map<PostImporter.Status, Integer> counts = importer
+          .importFiles(files);
+      for (final PostImporter.Status k : counts.keySet()) {
+        this.err.println(k + " : " + counts.get(k));
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  @SuppressWarnings("nls")
+  private void printComments(final Wordpress wp, final Integer postID,
       final String commentStatus, final Integer commentOffset, final Integer commentNumber)
           throws XmlRpcFault, InsufficientRightsException {
     final List<Comment> r = wp.getComments(commentStatus, postID, commentNumber,
         commentOffset);
+    if (this.format != null) {
+      printList(r, Comment.class, true);
+      return;
+    }
     for (final Comment comment : r) {
-      System.out.println("--- BEGIN COMMENT");
-      System.out.println(comment);
-      System.out.println("--- END COMMENT");
+      this.out.println("--- BEGIN COMMENT");
+      this.out.println(comment);
+      this.out.println("--- END COMMENT");
     }
   }
   
-  private static void printComment(final Wordpress wp, final Integer commentID)
+  private void printComment(final Wordpress wp, final Integer commentID)
       throws XmlRpcFault, InsufficientRightsException, ObjectNotFoundException {
     final Comment r = wp.getComment(commentID);
-    System.out.println(r);
+    if (this.format != null) {
+      printItem(r, Comment.class);
+    } else {
+      this.out.println(r);
+    }
   }
   
   @SuppressWarnings("nls")
-  private static void deleteComment(final Wordpress wp, final int commentID)
+  private void deleteComment(final Wordpress wp, final int commentID)
       throws XmlRpcFault, InsufficientRightsException, ObjectNotFoundException {
     final boolean result = wp.deleteComment(Integer.valueOf(commentID));
     if (result) {
-      System.out.println("Comment deleted.");
+      this.out.println("Comment deleted.");
     } else {
-      System.out.println("Comment not deleted");
+      this.out.println("Comment not deleted");
     }
   }
   
   @SuppressWarnings({ "nls", "boxing" })
-  private static void editComment(final Wordpress wp, final String fileName,
+  private void editComment(final Wordpress wp, final String fileName,
       final String operation) throws XmlRpcFault, FileNotFoundException, IOException,
           InvalidPostFormatException, InsufficientRightsException,
           ObjectNotFoundException, InvalidArgumentsException {
-    final Comment comment = Comment.fromFile(new File(fileName));
-    System.err.println(comment.getPost_id());
-    System.err.println(comment.getContent());
+    final Comment comment = Comment.fromFile(file(fileName));
+    this.err.println(comment.getPost_id());
+    this.err.println(comment.getContent());
     if (operation.equals("newcomment")) {
       final Integer r = wp.newComment(comment.getPost_id(), comment.getParent(),
           comment.getContent(), comment.getAuthor(), comment.getAuthor_url(),
           comment.getAuthor_email());
-      System.err.println("Comment ID: " + r);
+      this.err.println("Comment ID: " + r);
     } else if (operation.equals("editcomment")) {
       final Boolean r = wp.editComment(comment);
       if (r) {
-        System.err.println("Comment edited.");
+        this.err.println("Comment edited.");
       } else {
-        System.err.println("Comment not edited.");
+        this.err.println("Comment not edited.");
       }
     }
   }
   
   @SuppressWarnings("nls")
-  private static void showCommentCount(final WpCliConfiguration config, final Wordpress wp)
+  private void showCommentCount(final WpCliConfiguration config, final Wordpress wp)
       throws InsufficientRightsException {
     final Integer post_ID = getInteger("commentcount", config);
     try {
       final CommentCount result = wp.getCommentsCount(post_ID);
-      System.out.println(result);
+      if (this.format != null) {
+        printItem(result, CommentCount.class);
+      } else {
+        this.out.println(result);
+      }
     } catch (final XmlRpcFault e) {
       final String reason = e.getLocalizedMessage();
-      System.err.println("Operation failed, reason is: " + reason);
+      this.err.println("Operation failed, reason is: " + reason);
     }
   }
   
-  private static void showCommentStatus(final Wordpress wp) throws XmlRpcFault {
+  private void showCommentStatus(final Wordpress wp) throws XmlRpcFault {
     printItem(wp.getCommentStatusList(), CommentStatusList.class);
   }
   
-  private static void delete(final Options options, final WpCliConfiguration config,
+  private void delete(final Options options, final WpCliConfiguration config,
       final Wordpress wp, final String opt, final boolean deletePage) throws XmlRpcFault,
           InsufficientRightsException, ObjectNotFoundException {
     final Integer post_ID = getInteger(opt, config);
     if (post_ID != null) {
-      System.out.println(wp.deletePost(post_ID));
+      this.out.println(wp.deletePost(post_ID));
     } else {
       showHelp(options);
     }
   }
   
   @SuppressWarnings({ "nls" })
-  private static void edit(final Options options, final WpCliConfiguration config,
+  private void edit(final Options options, final WpCliConfiguration config,
       final Wordpress wp, final String opt, final boolean isPage) throws IOException,
           InvalidPostFormatException, XmlRpcFault, InsufficientRightsException,
           InvalidArgumentsException, ObjectNotFoundException {
     final Integer post_ID = getInteger("postid", config);
-    final Post post = Post.fromFile(new File(config.getOptionValue(opt)));
+    final Post post = Post.fromFile(file(config.getOptionValue(opt)));
     if (post_ID != null) {
-      System.out.println(wp.editPost(post_ID, post));
+      this.out.println(wp.editPost(post_ID, post));
     } else {
       showHelp(options);
     }
@@ -336,32 +716,74 @@ public class Main {
   }
   
   @SuppressWarnings("nls")
-  private static void showHelp(final Options options) {
+  private void showHelp(final Options options) {
     final HelpFormatter help = new HelpFormatter();
-    help.printHelp(" ", options);
+    final PrintWriter pw = new PrintWriter(this.out);
+    help.printHelp(pw, help.getWidth(), " ", null, options,
+        help.getLeftPadding(), help.getDescPadding(), null);
+    pw.flush();
   }
   
-  private static void printItem(final Object o, final Class<?> cl) {
+  /**
+   * @return the file of a name given on the command line
+   */
+  private File file(final String name) {
+    final File f = new File(name);
+    return f.isAbsolute() ? f : new File(this.directory, name);
+  }
+  
+  private void printItem(final Object o, final Class<?> cl) {
     cl.cast(o);
-    System.out.println(((StringHeader) o).getStringHeader());
-    System.out.println(o);
+    if (this.format != null) {
+      printRecords(Collections.singletonList(o));
+      return;
+    }
+    this.out.println(((StringHeader) o).getStringHeader());
+    this.out.println(o);
   }
   
-  private static void printList(final List<?> r, final Class<?> cl, final boolean oneLiner) {
+  private void printList(final Iterable<?> r, final Class<?> cl,
+      final boolean oneLiner) {
+    if (this.format != null) {
+      printRecords(r);
+      return;
+    }
     boolean headerPrinted = false;
     for (final Object o : r) {
       cl.cast(o);
       if (!headerPrinted) {
         if (!(o instanceof String) && oneLiner) {
-          System.out.println(((StringHeader) o).getStringHeader());
+          this.out.println(((StringHeader) o).getStringHeader());
         }
         headerPrinted = true;
       }
       if (oneLiner) {
-        System.out.println(((XmlRpcMapped) o).toOneLinerString());
+        this.out.println(((XmlRpcMapped) o).toOneLinerString());
       } else {
-        System.out.println(o);
+        this.out.println(o);
+      }
+    }
+  }
+  
+  /**
+   * Writes records in the output format as they are iterated; the records
+   * written before a failure are flushed too.
+   */
+  @SuppressWarnings("nls")
+  private void printRecords(final Iterable<?> records) {
+    final Writer w = new BufferedWriter(
+        new OutputStreamWriter(this.out, StandardCharsets.UTF_8), 1 << 16);
+    final RecordWriter writer = new RecordWriter(w, this.format);
+    try {
+      try {
+        writer.writeAll(records);
+        writer.finish();
+      } finally {
+        w.flush();
       }
+    } catch (final IOException e) {
+      this.err.println("Can't write the output, reason is: "
+          + e.getLocalizedMessage());
     }
   }
 }
@@ -0,0 +1,533 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps local copies of the files of the media library in a
+ * content-addressed store: every file is kept once, under the SHA-256 hash
+ * of its content, however many urls or attachments have it.
+ * 
+ * <p>
+ * The directory holds <code>objects/ab/abcd...</code> files, a
+ * <code>manifest</code> that maps each url to its hash and HTTP validators,
+ * and a <code>partial</code> directory of interrupted downloads, which are
+ * resumed with a range request on the next run. Urls that are in the
+ * manifest already are not downloaded again; with revalidation they are
+ * checked with a conditional request instead.
+ * 
+ * <p>
+ * The media library is listed a page at a time while the files are
+ * downloaded on several connections.
+ * 
+ * @author Can Bican
+ */
+public class MediaMirror {
+  private static final Logger logger = LoggerFactory
+      .getLogger(MediaMirror.class);
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /** default connect and read timeout, in milliseconds */
+  public static final int DEFAULT_TIMEOUT = (int) TimeUnit.SECONDS
+      .toMillis(30);
+  /** default wait for the downloads once the library is listed */
+  public static final long DEFAULT_MAX_WAIT = TimeUnit.HOURS.toMillis(1);
+  /** size names of {@link MediaItemSizes} */
+  private static final List<String> SIZES = Arrays.asList("thumbnail", //$NON-NLS-1$
+      "post-thumbnail", "medium", "large"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  
+  private final Wordpress wp;
+  private final Path directory;
+  private int connections = 8;
+  private boolean revalidate = false;
+  private int timeout = DEFAULT_TIMEOUT;
+  private long maxWait = DEFAULT_MAX_WAIT;
+  private final Set<String> sizes = new LinkedHashSet<>();
+  
+  private final ConcurrentMap<String, Entry> manifest =
+      new ConcurrentHashMap<>();
+  private final Map<String, Exception> failures = new ConcurrentHashMap<>();
+  private final AtomicLong bytes = new AtomicLong();
+  
+  /**
+   * A mirrored url
+   */
+  private static class Entry {
+    final Integer id;
+    final String hash;
+    final String etag;
+    final String lastModified;
+    
+    Entry(final Integer id, final String hash, final String etag,
+        final String lastModified) {
+      this.id = id;
+      this.hash = hash;
+      this.etag = etag;
+      this.lastModified = lastModified;
+    }
+  }
+  
+  /**
+   * @param wp
+   *          wordpress connection
+   * @param directory
+   *          directory of the store
+   */
+  public MediaMirror(final Wordpress wp, final File directory) {
+    this.wp = wp;
+    this.directory = directory.toPath();
+  }
+  
+  /**
+   * @param connections
+   *          the number of files downloaded at the same time
+   */
+  public void setConnections(final int connections) {
+    if (connections < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.connections = connections;
+  }
+  
+  /**
+   * @param timeout
+   *          the connect and read timeout of a download, in milliseconds
+   */
+  public void setTimeout(final int timeout) {
+    if (timeout < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.timeout = timeout;
+  }
+  
+  /**
+   * @param maxWait
+   *          how long to wait for the downloads once the library is listed;
+   *          files still downloading then count as failed
+   * @param unit
+   *          unit of maxWait
+   */
+  public void setMaxWait(final long maxWait, final TimeUnit unit) {
+    if (maxWait < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.maxWait = unit.toMillis(maxWait);
+  }
+  
+  /**
+   * @param revalidate
+   *          whether to check the files mirrored already with a conditional
+   *          request, instead of assuming they have not changed
+   */
+  public void setRevalidate(final boolean revalidate) {
+    this.revalidate = revalidate;
+  }
+  
+  /**
+   * @param names
+   *          the image sizes to mirror besides the original file, among
+   *          "thumbnail", "post-thumbnail", "medium" and "large"
+   */
+  public void setSizes(final String... names) {
+    for (final String name : names) {
+      if (!SIZES.contains(name)) {
+        throw new IllegalArgumentException(name);
+      }
+    }
+    this.sizes.clear();
+    this.sizes.addAll(Arrays.asList(names));
+  }
+  
+  /**
+   * @return the urls that failed in the last run, with the reason
+   */
+  public Map<String, Exception> getFailures() {
+    return new HashMap<>(this.failures);
+  }
+  
+  /**
+   * @return the number of bytes downloaded in the last run
+   */
+  public long getBytesDownloaded() {
+    return this.bytes.get();
+  }
+  
+  /**
+   * @param url
+   *          url of a media file
+   * @return the local copy of the file, or null if it is not mirrored
+   * @throws IOException
+   *           if the manifest cannot be read
+   */
+  public Path locate(final String url) throws IOException {
+    if (this.manifest.isEmpty()) {
+      readManifest();
+    }
+    final Entry e = this.manifest.get(url);
+    if (e == null) {
+      return null;
+    }
+    final Path object = object(e.hash);
+    return Files.exists(object) ? object : null;
+  }
+  
+  /**
+   * Mirrors the media library. Files that fail are logged and listed by
+   * {@link #getFailures()}; their partial downloads are kept for the next
+   * run. Files still downloading after the maximum wait are failed too.
+   * 
+   * @return the number of files "downloaded", "resumed", "unchanged" and
+   *         "failed"
+   * @throws IOException
+   *           if the store cannot be read or written
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  @SuppressWarnings("nls")
+  public Map<String, Integer> mirror()
+      throws IOException, InterruptedException {
+    readManifest();
+    Files.createDirectories(this.directory.resolve("partial"));
+    this.failures.clear();
+    this.bytes.set(0);
+    final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+    for (final String k : new String[] { "downloaded", "resumed",
+        "unchanged", "failed" }) {
+      counts.put(k, new AtomicInteger());
+    }
+    final Map<String, Entry> seen = new ConcurrentHashMap<>();
+    // urls queued or downloading; whoever removes one counts it
+    final Set<String> pending = ConcurrentHashMap.newKeySet();
+    final ExecutorService executor = Executors
+        .newFixedThreadPool(this.connections);
+    // at most this many urls wait for a connection, so listing the library
+    // does not run far ahead of the downloads
+    final Semaphore queued = new Semaphore(2 * this.connections);
+    try {
+      for (final MediaItem item : this.wp.iterateMediaLibrary(null)) {
+        for (final String url : urls(item)) {
+          queued.acquire();
+          pending.add(url);
+          executor.execute(() -> {
+            try {
+              final String r = fetch(url, item.getAttachment_id(), seen);
+              if (pending.remove(url)) {
+                counts.get(r).incrementAndGet();
+              }
+            } catch (final Exception e) {
+              if (pending.remove(url)) {
+                failed(url, e, counts, seen);
+              }
+            } finally {
+              queued.release();
+            }
+          });
+        }
+      }
+      executor.shutdown();
+      if (!executor.awaitTermination(this.maxWait, TimeUnit.MILLISECONDS)) {
+        final Set<String> late = new TreeSet<>(pending);
+        logger.warn("{} files still downloading after {} ms: {}",
+            Integer.valueOf(late.size()), Long.valueOf(this.maxWait), late);
+        for (final String url : late) {
+          if (pending.remove(url)) {
+            failed(url, new IOException("timed out"), counts, seen);
+          }
+        }
+      }
+      // urls of items that left the library are forgotten, their objects
+      // stay in the store
+      this.manifest.keySet().retainAll(seen.keySet());
+    } finally {
+      executor.shutdownNow();
+      writeManifest();
+    }
+    final Map<String, Integer> result = new HashMap<>();
+    for (final Map.Entry<String, AtomicInteger> e : counts.entrySet()) {
+      result.put(e.getKey(), Integer.valueOf(e.getValue().get()));
+    }
+    return result;
+  }
+  
+  @SuppressWarnings("nls")
+  private void failed(final String url, final Exception e,
+      final Map<String, AtomicInteger> counts,
+      final Map<String, Entry> seen) {
+    logger.warn("cannot mirror {}: {}", url, e.toString());
+    this.failures.put(url, e);
+    counts.get("failed").incrementAndGet();
+    final Entry old = this.manifest.get(url);
+    if (old != null) {
+      seen.put(url, old);
+    }
+  }
+  
+  private Set<String> urls(final MediaItem item) {
+    final Set<String> result = new LinkedHashSet<>();
+    final String link = item.getLink();
+    if (link == null) {
+      return result;
+    }
+    result.add(link);
+    final MediaItemMetadata meta = item.getMetadata();
+    if (meta == null || meta.getSizes() == null) {
+      return result;
+    }
+    final String base = link.substring(0, link.lastIndexOf('/') + 1);
+    for (final String name : this.sizes) {
+      final MediaItemSize size = size(meta.getSizes(), name);
+      if (size != null && size.getFile() != null) {
+        result.add(base + size.getFile());
+      }
+    }
+    return result;
+  }
+  
+  @SuppressWarnings("nls")
+  private static MediaItemSize size(final MediaItemSizes sizes,
+      final String name) {
+    switch (name) {
+      case "thumbnail":
+        return sizes.getThumbnail();
+      case "post-thumbnail":
+        return sizes.getPost_thumbnail();
+      case "medium":
+        return sizes.getMedium();
+      default:
+        return sizes.getLarge();
+    }
+  }
+  
+  /**
+   * @return the count the url goes to
+   */
+  @SuppressWarnings("nls")
+  private String fetch(final String url, final Integer id,
+      final Map<String, Entry> seen) throws IOException {
+    final Entry old = this.manifest.get(url);
+    final boolean have = old != null && Files.exists(object(old.hash));
+    if (have && !this.revalidate) {
+      seen.put(url, old);
+      return "unchanged";
+    }
+    final String key = hex(digest(url.getBytes(StandardCharsets.UTF_8)));
+    final Path part = this.directory.resolve("partial").resolve(key);
+    final Path validator = this.directory.resolve("partial")
+        .resolve(key + ".validator");
+    long offset = Files.exists(part) ? Files.size(part) : 0;
+    final String resumeFrom = offset > 0 && Files.exists(validator)
+        ? new String(Files.readAllBytes(validator), StandardCharsets.UTF_8)
+        : null;
+    final HttpURLConnection c = (HttpURLConnection) new URL(url)
+        .openConnection();
+    c.setConnectTimeout(this.timeout);
+    c.setReadTimeout(this.timeout);
+    if (resumeFrom != null) {
+      c.setRequestProperty("Range", "bytes=" + offset + "-");
+      c.setRequestProperty("If-Range", resumeFrom);
+    } else {
+      offset = 0;
+      if (have) {
+        if (old.etag != null) {
+          c.setRequestProperty("If-None-Match", old.etag);
+        }
+        if (old.lastModified != null) {
+          c.setRequestProperty("If-Modified-Since", old.lastModified);
+        }
+      }
+    }
+    final int status = c.getResponseCode();
+    if (status == HttpURLConnection.HTTP_NOT_MODIFIED && have) {
+      c.disconnect();
+      seen.put(url, old);
+      return "unchanged";
+    }
+    if (status == HttpURLConnection.HTTP_PARTIAL) {
+      final String range = c.getHeaderField("Content-Range");
+      if (range == null || !range.startsWith("bytes " + offset + "-")) {
+        c.disconnect();
+        Files.deleteIfExists(part);
+        throw new IOException("unexpected range " + range);
+      }
+    } else if (status == HttpURLConnection.HTTP_OK) {
+      offset = 0;
+    } else {
+      c.disconnect();
+      throw new IOException("HTTP " + status);
+    }
+    final String etag = c.getHeaderField("ETag");
+    final String lastModified = c.getHeaderField("Last-Modified");
+    if (offset == 0) {
+      // without a strong validator a partial download cannot be resumed
+      final String strong = etag != null && !etag.startsWith("W/") ? etag
+          : lastModified;
+      if (strong != null) {
+        Files.write(validator, strong.getBytes(StandardCharsets.UTF_8));
+      } else {
+        Files.deleteIfExists(validator);
+      }
+    }
+    try (InputStream is = c.getInputStream();
+        ReadableByteChannel in = Channels.newChannel(is);
+        FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE)) {
+      out.truncate(offset);
+      out.position(offset);
+      final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      long received = 0;
+      while (in.read(buffer) != -1) {
+        buffer.flip();
+        received += buffer.remaining();
+        while (buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+        buffer.clear();
+      }
+      this.bytes.addAndGet(received);
+      final long expected = c.getContentLengthLong();
+      if (expected >= 0 && received != expected) {
+        // the part is kept, and resumed on the next run
+        throw new IOException(
+            "connection closed after " + received + " of " + expected);
+      }
+    }
+    final String hash = hash(part);
+    final Path object = object(hash);
+    if (Files.exists(object)) {
+      Files.delete(part);
+    } else {
+      Files.createDirectories(object.getParent());
+      Files.move(part, object, StandardCopyOption.ATOMIC_MOVE);
+    }
+    Files.deleteIfExists(validator);
+    final Entry e = new Entry(id, hash, etag, lastModified);
+    this.manifest.put(url, e);
+    seen.put(url, e);
+    return offset > 0 ? "resumed" : "downloaded";
+  }
+  
+  @SuppressWarnings("nls")
+  private Path object(final String hash) {
+    return this.directory.resolve("objects").resolve(hash.substring(0, 2))
+        .resolve(hash);
+  }
+  
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  private static byte[] digest(final byte[] data) {
+    return newDigest().digest(data);
+  }
+  
+  private static String hash(final Path file) throws IOException {
+    final MessageDigest md = newDigest();
+    final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      while (channel.read(buffer) != -1) {
+        buffer.flip();
+        md.update(buffer);
+        buffer.clear();
+      }
+    }
+    return hex(md.digest());
+  }
+  
+  @SuppressWarnings("nls")
+  private static String hex(final byte[] digest) {
+    final StringBuilder result = new StringBuilder();
+    for (final byte b : digest) {
+      result.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+    }
+    return result.toString();
+  }
+  
+  /**
+   * Manifest lines are "url attachment-id hash etag last-modified", with
+   * empty fields for missing validators.
+   */
+  @SuppressWarnings("nls")
+  private void readManifest() throws IOException {
+    this.manifest.clear();
+    final Path file = this.directory.resolve("manifest");
+    if (!Files.exists(file)) {
+      return;
+    }
+    for (final String line : Files.readAllLines(file,
+        StandardCharsets.UTF_8)) {
+      final String[] f = line.split("\t", -1);
+      if (f.length == 5) {
+        this.manifest.put(f[0], new Entry(Integer.valueOf(f[1]), f[2],
+            f[3].isEmpty() ? null : f[3], f[4].isEmpty() ? null : f[4]));
+      }
+    }
+  }
+  
+  @SuppressWarnings("nls")
+  private void writeManifest() throws IOException {
+    Files.createDirectories(this.directory);
+    final StringBuilder sb = new StringBuilder();
+    for (final Map.Entry<String, Entry> e : this.manifest.entrySet()) {
+      final Entry v = e.getValue();
+      sb.append(e.getKey()).append('\t').append(v.id).append('\t')
+          .append(v.hash).append('\t')
+          .append(v.etag == null ? "" : v.etag).append('\t')
+          .append(v.lastModified == null ? "" : v.lastModified)
+          .append('\n');
+    }
+    final Path temp = Files.createTempFile(this.directory, "manifest", null);
+    try {
+      Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+      Files.move(temp, this.directory.resolve("manifest"),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+}
@@ -0,0 +1,416 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bican.wordpress.exceptions.FileUploadException;
+
+/**
+ * Uploads many files, skipping the ones whose content is already in the
+ * media library. The SHA-256 hash, attachment id and url of each uploaded
+ * file are kept in a local index file.
+ * 
+ * <p>
+ * Files that are not in the index are compared with the media library items
+ * of the same file name, which are downloaded and hashed once and then added
+ * to the index too. Index entries of items that are no longer in the media
+ * library are dropped.
+ * 
+ * <p>
+ * Files are hashed and uploaded on several threads. Uploads also wait for a
+ * budget of bytes in flight, so that a few large files do not use up the
+ * heap or the bandwidth.
+ * 
+ * @author Can Bican
+ */
+public class MediaUploader {
+  private static final Logger logger = LoggerFactory
+      .getLogger(MediaUploader.class);
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /** permits of the budget are kilobytes */
+  private static final int PERMIT = 1024;
+  
+  private final Wordpress wp;
+  private final File indexFile;
+  private int threads = 4;
+  private long maxBytesInFlight = 64L * 1024 * 1024;
+  
+  private final ConcurrentMap<String, MediaItemUploadResult> index =
+      new ConcurrentHashMap<>();
+  private final Map<String, List<MediaItem>> libraryByName = new HashMap<>();
+  private final ConcurrentMap<Integer, FutureTask<String>> remoteHashes =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, FutureTask<MediaItemUploadResult>> uploads =
+      new ConcurrentHashMap<>();
+  private final Map<Path, Exception> failures = new ConcurrentHashMap<>();
+  private Semaphore budget;
+  private ImageOptimizer optimizer = null;
+  
+  /**
+   * @param wp
+   *          wordpress connection
+   * @param indexFile
+   *          file to keep the hashes of uploaded files in
+   */
+  public MediaUploader(final Wordpress wp, final File indexFile) {
+    this.wp = wp;
+    this.indexFile = indexFile;
+  }
+  
+  /**
+   * @param threads
+   *          the number of files hashed or uploaded at the same time
+   */
+  public void setThreads(final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.threads = threads;
+  }
+  
+  /**
+   * @param maxBytesInFlight
+   *          the total size of the files being uploaded at the same time; a
+   *          larger file is uploaded alone
+   */
+  public void setMaxBytesInFlight(final long maxBytesInFlight) {
+    if (maxBytesInFlight < PERMIT) {
+      throw new IllegalArgumentException();
+    }
+    this.maxBytesInFlight = maxBytesInFlight;
+  }
+  
+  /**
+   * @param optimizer
+   *          shrinks the images before they are uploaded, or null to upload
+   *          the files as they are; files are still recognized by the hash
+   *          of the original
+   */
+  public void setOptimizer(final ImageOptimizer optimizer) {
+    this.optimizer = optimizer;
+  }
+  
+  /**
+   * @return the files that failed in the last run, with the reason
+   */
+  public Map<Path, Exception> getFailures() {
+    return new HashMap<>(this.failures);
+  }
+  
+  /**
+   * Uploads the files that are not in the media library yet. Files that
+   * fail are logged, left out of the result and listed by
+   * {@link #getFailures()}.
+   * 
+   * @param files
+   *          files to upload
+   * @return the upload result, or the existing media item, of each file
+   * @throws IOException
+   *           if the index file cannot be read or written
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  public Map<Path, MediaItemUploadResult> upload(final Collection<Path> files)
+      throws IOException, InterruptedException {
+    readIndex();
+    seed();
+    this.failures.clear();
+    this.uploads.clear();
+    this.budget = new Semaphore(permits(this.maxBytesInFlight));
+    final ExecutorService executor = Executors
+        .newFixedThreadPool(this.threads);
+    final Map<Path, Future<MediaItemUploadResult>> results =
+        new LinkedHashMap<>();
+    try {
+      for (final Path file : files) {
+        results.put(file, executor.submit(new Callable<MediaItemUploadResult>() {
+          @Override
+          public MediaItemUploadResult call() throws Exception {
+            return uploadOne(file);
+          }
+        }));
+      }
+      final Map<Path, MediaItemUploadResult> result = new LinkedHashMap<>();
+      for (final Map.Entry<Path, Future<MediaItemUploadResult>> e : results
+          .entrySet()) {
+        try {
+          result.put(e.getKey(), e.getValue().get());
+        } catch (final ExecutionException ex) {
+          final Throwable cause = ex.getCause();
+          logger.warn("cannot upload {}: {}", e.getKey(), //$NON-NLS-1$
+              cause.toString());
+          this.failures.put(e.getKey(), cause instanceof Exception
+              ? (Exception) cause : new IllegalStateException(cause));
+        }
+      }
+      return result;
+    } finally {
+      executor.shutdownNow();
+      writeIndex();
+    }
+  }
+  
+  private MediaItemUploadResult uploadOne(final Path file) throws Exception {
+    final String hash = hash(file);
+    MediaItemUploadResult known = this.index.get(hash);
+    if (known != null) {
+      return known;
+    }
+    final String name = file.getFileName().toString();
+    final List<MediaItem> candidates = this.libraryByName.get(name);
+    if (candidates != null) {
+      for (final MediaItem item : candidates) {
+        if (hash.equals(remoteHash(item))) {
+          known = this.index.get(hash);
+          if (known != null) {
+            return known;
+          }
+        }
+      }
+    }
+    // identical files in the same run are uploaded once
+    final FutureTask<MediaItemUploadResult> task = new FutureTask<>(
+        new Callable<MediaItemUploadResult>() {
+          @Override
+          public MediaItemUploadResult call() throws Exception {
+            final MediaItemUploadResult r = send(file);
+            MediaUploader.this.index.put(hash, r);
+            return r;
+          }
+        });
+    final FutureTask<MediaItemUploadResult> running = this.uploads
+        .putIfAbsent(hash, task);
+    if (running == null) {
+      task.run();
+    }
+    return get(running == null ? task : running);
+  }
+  
+  private MediaItemUploadResult send(final Path file) throws Exception {
+    Path upload = file;
+    if (this.optimizer != null) {
+      try {
+        upload = this.optimizer.optimize(file);
+      } catch (final IOException e) {
+        logger.warn("cannot optimize {}, uploading it as it is: {}", file, //$NON-NLS-1$
+            e.toString());
+      }
+    }
+    final int permits = Math.min(permits(Files.size(upload)),
+        permits(this.maxBytesInFlight));
+    this.budget.acquire(permits);
+    try {
+      final MediaItemUploadResult r = this.wp.uploadFile(upload);
+      if (r == null) {
+        throw new FileUploadException();
+      }
+      return r;
+    } finally {
+      this.budget.release(permits);
+      if (upload != file) {
+        this.optimizer.discard(upload);
+      }
+    }
+  }
+  
+  /**
+   * Downloads and hashes a media library item once, adding it to the index.
+   */
+  private String remoteHash(final MediaItem item) throws Exception {
+    final FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        final MessageDigest md = newDigest();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new URL(item.getLink()).openStream()) {
+          int n;
+          while ((n = in.read(buffer)) != -1) {
+            md.update(buffer, 0, n);
+          }
+        }
+        final String hash = hex(md.digest());
+        MediaUploader.this.index.putIfAbsent(hash, resultOf(item));
+        return hash;
+      }
+    });
+    final FutureTask<String> running = this.remoteHashes
+        .putIfAbsent(item.getAttachment_id(), task);
+    if (running == null) {
+      task.run();
+    }
+    return get(running == null ? task : running);
+  }
+  
+  private static <T> T get(final Future<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      throw cause instanceof Exception ? (Exception) cause
+          : new IllegalStateException(cause);
+    }
+  }
+  
+  private static MediaItemUploadResult resultOf(final MediaItem item) {
+    final MediaItemUploadResult r = new MediaItemUploadResult();
+    r.setId(item.getAttachment_id());
+    r.setUrl(item.getLink());
+    r.setFile(fileName(item.getLink()));
+    return r;
+  }
+  
+  private static String fileName(final String url) {
+    return url.substring(url.lastIndexOf('/') + 1);
+  }
+  
+  private static int permits(final long bytes) {
+    return (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+        (bytes + PERMIT - 1) / PERMIT));
+  }
+  
+  /**
+   * Lists the media library by file name, and drops index entries of items
+   * that are not in it anymore.
+   */
+  private void seed() {
+    this.libraryByName.clear();
+    final Set<Integer> ids = new HashSet<>();
+    for (final MediaItem item : this.wp.iterateMediaLibrary(null)) {
+      ids.add(item.getAttachment_id());
+      if (item.getLink() != null) {
+        final String name = fileName(item.getLink());
+        List<MediaItem> l = this.libraryByName.get(name);
+        if (l == null) {
+          l = new ArrayList<>();
+          this.libraryByName.put(name, l);
+        }
+        l.add(item);
+      }
+    }
+    this.index.values().removeIf(r -> !ids.contains(r.getId()));
+    this.remoteHashes.keySet().retainAll(ids);
+  }
+  
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  private static String hash(final Path file) throws IOException {
+    final MessageDigest md = newDigest();
+    final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      while (channel.read(buffer) != -1) {
+        buffer.flip();
+        md.update(buffer);
+        buffer.clear();
+      }
+    }
+    return hex(md.digest());
+  }
+  
+  @SuppressWarnings("nls")
+  private static String hex(final byte[] digest) {
+    final StringBuilder result = new StringBuilder();
+    for (final byte b : digest) {
+      result.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+    }
+    return result.toString();
+  }
+  
+  /**
+   * Index lines are "hash attachment-id url".
+   */
+  @SuppressWarnings("nls")
+  private void readIndex() throws IOException {
+    this.index.clear();
+    if (!this.indexFile.exists()) {
+      return;
+    }
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(
+        new FileInputStream(this.indexFile), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = r.readLine()) != null) {
+        final String[] f = line.split("\t");
+        if (f.length == 3) {
+          final MediaItemUploadResult m = new MediaItemUploadResult();
+          m.setId(Integer.valueOf(f[1]));
+          m.setUrl(f[2]);
+          m.setFile(fileName(f[2]));
+          this.index.put(f[0], m);
+        }
+      }
+    }
+  }
+  
+  @SuppressWarnings("nls")
+  private void writeIndex() throws IOException {
+    final File dir = this.indexFile.getAbsoluteFile().getParentFile();
+    final File temp = File.createTempFile("media", null, dir);
+    try {
+      try (Writer w = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+        for (final Map.Entry<String, MediaItemUploadResult> e : this.index
+            .entrySet()) {
+          w.write(e.getKey() + "\t" + e.getValue().getId() + "\t"
+              + e.getValue().getUrl() + "\n");
+        }
+      }
+      Files.move(temp.toPath(), this.indexFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      temp.delete();
+    }
+  }
+}
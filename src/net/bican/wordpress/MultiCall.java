@@ -0,0 +1,123 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.bican.wordpress.util.MetricsRegistry;
+import redstone.xmlrpc.XmlRpcArray;
+import redstone.xmlrpc.XmlRpcClient;
+import redstone.xmlrpc.XmlRpcFault;
+import redstone.xmlrpc.XmlRpcStruct;
+
+/**
+ * Collects several wordpress calls and sends them in a single
+ * <code>system.multicall</code> request. Each call gets the blog id, user
+ * name and password prepended to its parameters.
+ * 
+ * @author Can Bican
+ */
+class MultiCall {
+  private final XmlRpcClient client;
+  private final Integer blogId;
+  private final String username;
+  private final String password;
+  private final MetricsRegistry metrics;
+  private final XmlRpcArray calls = new XmlRpcArray();
+  
+  MultiCall(final XmlRpcClient client, final Integer blogId,
+      final String username, final String password,
+      final MetricsRegistry metrics) {
+    this.client = client;
+    this.blogId = blogId;
+    this.username = username;
+    this.password = password;
+    this.metrics = metrics;
+  }
+  
+  /**
+   * @param methodName
+   *          method name, e.g. "wp.getPost"
+   * @param params
+   *          parameters after the blog id, user name and password
+   * @return index of the call in the result of {@link #execute()}
+   */
+  @SuppressWarnings({ "unchecked", "nls" })
+  int add(final String methodName, final Object... params) {
+    final XmlRpcArray p = new XmlRpcArray();
+    p.add(this.blogId);
+    p.add(this.username);
+    p.add(this.password);
+    p.addAll(Arrays.asList(params));
+    final XmlRpcStruct call = new XmlRpcStruct();
+    call.put("methodName", methodName);
+    call.put("params", p);
+    this.calls.add(call);
+    return this.calls.size() - 1;
+  }
+  
+  /**
+   * @return number of calls added so far
+   */
+  int size() {
+    return this.calls.size();
+  }
+  
+  /**
+   * Sends the calls.
+   * 
+   * @return for each call in order, either its result or the
+   *         <code>XmlRpcFault</code> it failed with
+   * @throws XmlRpcFault
+   *           if the multicall request itself fails
+   */
+  @SuppressWarnings("nls")
+  List<Object> execute() throws XmlRpcFault {
+    final List<Object> result = new ArrayList<>(this.calls.size());
+    if (this.calls.isEmpty()) {
+      return result;
+    }
+    final XmlRpcArray r = (XmlRpcArray) invoke("system.multicall",
+        new Object[] { this.calls });
+    for (final Object o : r) {
+      if (o instanceof XmlRpcStruct) {
+        final XmlRpcStruct fault = (XmlRpcStruct) o;
+        final Object code = fault.get("faultCode");
+        result.add(new XmlRpcFault(
+            code instanceof Integer ? ((Integer) code).intValue()
+                : Integer.parseInt(String.valueOf(code)),
+            fault.getString("faultString")));
+      } else {
+        final XmlRpcArray values = (XmlRpcArray) o;
+        result.add(values.isEmpty() ? null : values.get(0));
+      }
+    }
+    return result;
+  }
+  
+  private Object invoke(final String method, final Object[] args)
+      throws XmlRpcFault {
+    if (this.metrics == null) {
+      return this.client.invoke(method, args);
+    }
+    final long started = this.metrics.start();
+    Throwable error = null;
+    try {
+      return this.client.invoke(method, args);
+    } catch (final XmlRpcFault | RuntimeException e) {
+      error = e;
+      throw e;
+    } finally {
+      this.metrics.end(method, started, error);
+    }
+  }
+}
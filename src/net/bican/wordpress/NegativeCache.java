@@ -0,0 +1,152 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.bican.wordpress.util.CountingBloomFilter;
+
+/**
+ * Remembers ids that are known not to exist, per type of object, so that
+ * repeated lookups for them can be answered without a request. Keys are
+ * kept in two generations of Bloom filters; the older one is dropped when the
+ * newer one fills up or gets older than the time to live, so a key is
+ * forgotten after one to two times the time to live.
+ * 
+ * @author Can Bican
+ */
+public class NegativeCache {
+  /**
+   * Types of objects the cache keeps keys for
+   */
+  public enum Type {
+    /** posts by id */
+    POST,
+    /** users by id */
+    USER,
+    /** media items by attachment id */
+    MEDIA_ITEM,
+    /** comments by id */
+    COMMENT,
+    /** terms by taxonomy and id */
+    TERM
+  }
+  
+  private class Generations {
+    private CountingBloomFilter current = newFilter();
+    private CountingBloomFilter previous = newFilter();
+    private long rotatedAt = System.nanoTime();
+    
+    private void rotateIfNeeded() {
+      final long age = System.nanoTime() - this.rotatedAt;
+      if (this.current.size() >= NegativeCache.this.capacity
+          || age >= NegativeCache.this.ttlNanos) {
+        this.previous = this.current;
+        this.current = newFilter();
+        this.rotatedAt = System.nanoTime();
+      }
+    }
+    
+    synchronized void add(final String key) {
+      rotateIfNeeded();
+      if (!this.current.mightContain(key)) {
+        this.current.add(key);
+      }
+    }
+    
+    synchronized void remove(final String key) {
+      this.current.remove(key);
+      this.previous.remove(key);
+    }
+    
+    synchronized boolean mightContain(final String key) {
+      rotateIfNeeded();
+      return this.current.mightContain(key)
+          || this.previous.mightContain(key);
+    }
+    
+    synchronized void clear() {
+      this.current.clear();
+      this.previous.clear();
+    }
+  }
+  
+  private final int capacity;
+  private final double fpp;
+  private final long ttlNanos;
+  private final Map<Type, Generations> filters = new EnumMap<>(Type.class);
+  
+  /**
+   * @param capacity
+   *          number of keys per type a generation holds
+   * @param fpp
+   *          probability that a key that was not marked missing is reported
+   *          as missing
+   * @param ttl
+   *          how long a generation collects keys
+   * @param unit
+   *          unit of ttl
+   */
+  public NegativeCache(final int capacity, final double fpp, final long ttl,
+      final TimeUnit unit) {
+    this.capacity = capacity;
+    this.fpp = fpp;
+    this.ttlNanos = unit.toNanos(ttl);
+    for (final Type type : Type.values()) {
+      this.filters.put(type, new Generations());
+    }
+  }
+  
+  CountingBloomFilter newFilter() {
+    return new CountingBloomFilter(this.capacity, this.fpp);
+  }
+  
+  /**
+   * @param type
+   *          type of the object
+   * @param key
+   *          id that was not found
+   */
+  public void markMissing(final Type type, final Object key) {
+    this.filters.get(type).add(String.valueOf(key));
+  }
+  
+  /**
+   * @param type
+   *          type of the object
+   * @param key
+   *          id that exists now
+   */
+  public void markPresent(final Type type, final Object key) {
+    this.filters.get(type).remove(String.valueOf(key));
+  }
+  
+  /**
+   * @param type
+   *          type of the object
+   * @param key
+   *          id to check
+   * @return true if the key was recently found missing
+   */
+  public boolean isKnownMissing(final Type type, final Object key) {
+    return this.filters.get(type).mightContain(String.valueOf(key));
+  }
+  
+  /**
+   * Forgets all keys.
+   */
+  public void clear() {
+    for (final Generations g : this.filters.values()) {
+      g.clear();
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import redstone.xmlrpc.XmlRpcException;
+
+/**
+ * A spliterator over a list that is fetched in pages by offset and number.
+ * Splitting divides the remaining offsets in halves on page boundaries, so
+ * each part of a parallel stream fetches its own pages, over its own
+ * connection.
+ * 
+ * <p>
+ * A stream that is not split fetches pages of {@link #DEFAULT_PAGE_SIZE}
+ * until a short page. On the first split, the size of the rest of the list is
+ * estimated with single item requests, and the page size is chosen so that
+ * there are a few pages for each thread of the common fork join pool. The
+ * last part does not stop at the estimate but continues until a short page,
+ * so objects added in the meantime are not missed.
+ * 
+ * <p>
+ * Failing requests are thrown as <code>XmlRpcException</code>s with the
+ * original exception as the cause.
+ * 
+ * @author Can Bican
+ * @param <T>
+ *          type of the objects
+ */
+public class PagedSpliterator<T> implements Spliterator<T> {
+  /**
+   * Fetches a page of the list
+   * 
+   * @param <T>
+   *          type of the objects
+   */
+  @FunctionalInterface
+  public interface Pager<T> {
+    /**
+     * @param offset
+     *          offset of the first object
+     * @param number
+     *          number of objects
+     * @return the objects, fewer than number at the end of the list
+     * @throws Exception
+     *           if the request fails
+     */
+    List<T> fetch(int offset, int number) throws Exception;
+  }
+  
+  /** page size until the first split */
+  public static final int DEFAULT_PAGE_SIZE = 100;
+  /** smallest page size chosen */
+  public static final int MIN_PAGE_SIZE = 10;
+  /** largest page size chosen */
+  public static final int MAX_PAGE_SIZE = 500;
+  /** pages per thread the page size is chosen for */
+  private static final int PAGES_PER_THREAD = 4;
+  
+  private final Pager<T> pager;
+  private int pageSize;
+  private int position;
+  /** end of the part, splits are made up to here; -1 until estimated */
+  private int end;
+  /** end of fetching, past end for the last part */
+  private final int limit;
+  private List<T> buffer = Collections.emptyList();
+  private int index = 0;
+  private boolean exhausted = false;
+  
+  private PagedSpliterator(final Pager<T> pager, final int position,
+      final int end, final int limit, final int pageSize) {
+    this.pager = pager;
+    this.position = position;
+    this.end = end;
+    this.limit = limit;
+    this.pageSize = pageSize;
+  }
+  
+  /**
+   * @param pager
+   *          fetches the pages
+   * @param offset
+   *          offset of the first object, or null for the start of the list
+   * @param number
+   *          number of objects at most, or null for all of them
+   * @return a spliterator over the list
+   */
+  public static <T> PagedSpliterator<T> create(final Pager<T> pager,
+      final Integer offset, final Integer number) {
+    final int from = offset == null ? 0 : offset.intValue();
+    final int max = number == null ? Integer.MAX_VALUE - from
+        : number.intValue();
+    return new PagedSpliterator<>(pager, from, -1, from + max,
+        Math.min(DEFAULT_PAGE_SIZE, Math.max(max, 1)));
+  }
+  
+  /**
+   * @param pager
+   *          fetches the pages
+   * @param offset
+   *          offset of the first object, or null for the start of the list
+   * @param number
+   *          number of objects at most, or null for all of them
+   * @param parallel
+   *          to return a parallel stream
+   * @return a stream over the list, that starts fetching on its terminal
+   *         operation
+   */
+  public static <T> Stream<T> stream(final Pager<T> pager,
+      final Integer offset, final Integer number, final boolean parallel) {
+    return StreamSupport.stream(() -> create(pager, offset, number),
+        ORDERED | NONNULL, parallel);
+  }
+  
+  /**
+   * Finds the number of objects from offset on, up to max, by doubling the
+   * probed offset until there is nothing there, then bisecting.
+   */
+  private static <T> int estimateCount(final Pager<T> pager, final int from,
+      final int max) {
+    if (max <= 0 || !exists(pager, from)) {
+      return 0;
+    }
+    int low = 1; // there is an object at index low - 1
+    int high = 2;
+    while (high <= max && exists(pager, from + high - 1)) {
+      low = high;
+      high = high > max / 2 ? max + 1 : high * 2;
+    }
+    high = Math.min(high, max + 1);
+    while (high - low > 1) {
+      final int mid = low + (high - low) / 2;
+      if (exists(pager, from + mid - 1)) {
+        low = mid;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+  
+  private static <T> boolean exists(final Pager<T> pager, final int offset) {
+    return !fetch(pager, offset, 1).isEmpty();
+  }
+  
+  private static <T> List<T> fetch(final Pager<T> pager, final int offset,
+      final int number) {
+    try {
+      return pager.fetch(offset, number);
+    } catch (final RuntimeException e) {
+      throw e;
+    } catch (final Exception e) {
+      throw new XmlRpcException(e.getLocalizedMessage(), e);
+    }
+  }
+  
+  @Override
+  public boolean tryAdvance(final Consumer<? super T> action) {
+    while (this.index >= this.buffer.size()) {
+      final int available = this.limit - this.position;
+      if (this.exhausted || available <= 0) {
+        return false;
+      }
+      final int n = Math.min(this.pageSize, available);
+      this.buffer = fetch(this.pager, this.position, n);
+      this.index = 0;
+      this.position += n;
+      if (this.buffer.size() < n) {
+        this.exhausted = true;
+      }
+    }
+    action.accept(this.buffer.get(this.index++));
+    return true;
+  }
+  
+  @Override
+  public Spliterator<T> trySplit() {
+    if (this.index < this.buffer.size() || this.exhausted) {
+      return null; // the buffered objects precede the rest
+    }
+    if (this.end < 0) {
+      final int estimate = estimateCount(this.pager, this.position,
+          this.limit - this.position);
+      final int threads = ForkJoinPool.getCommonPoolParallelism();
+      this.end = this.position + estimate;
+      this.pageSize = Math.max(MIN_PAGE_SIZE, Math.min(MAX_PAGE_SIZE,
+          (estimate + threads * PAGES_PER_THREAD - 1)
+              / (threads * PAGES_PER_THREAD)));
+    }
+    final int pages = (this.end - this.position + this.pageSize - 1)
+        / this.pageSize;
+    if (pages < 2) {
+      return null;
+    }
+    final int mid = this.position + pages / 2 * this.pageSize;
+    final PagedSpliterator<T> prefix = new PagedSpliterator<>(this.pager,
+        this.position, mid, mid, this.pageSize);
+    this.position = mid;
+    return prefix;
+  }
+  
+  @Override
+  public long estimateSize() {
+    if (this.end < 0) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, this.end - this.position) + this.buffer.size()
+        - this.index;
+  }
+  
+  @Override
+  public int characteristics() {
+    return ORDERED | NONNULL;
+  }
+  
+  /**
+   * @return number of objects fetched per request, chosen on the first split
+   */
+  public int getPageSize() {
+    return this.pageSize;
+  }
+}
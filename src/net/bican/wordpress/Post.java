@@ -10,6 +10,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -463,4 +464,31 @@ public class Post extends XmlRpcMapped {
       return result;
     }
   }
+  
+  /**
+   * creates post objects from a file of many posts, separated by lines of
+   * {@link FileParser#SEPARATOR}
+   * 
+   * @param file
+   *          input file
+   * @return new Post objects, in the order of the file
+   * @throws FileNotFoundException
+   *           when the file is absent
+   * @throws IOException
+   *           when the file cannot be read
+   * @throws InvalidPostFormatException
+   *           when the file format is invalid
+   */
+  public static List<Post> listFromFile(final File file)
+      throws FileNotFoundException, IOException, InvalidPostFormatException {
+    try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+      final List<Post> result = new ArrayList<>();
+      for (final XmlRpcStruct c : FileParser.parseDocuments(br)) {
+        final Post item = new Post();
+        item.fromXmlRpcStruct(c);
+        result.add(item);
+      }
+      return result;
+    }
+  }
 }
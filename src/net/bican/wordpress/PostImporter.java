@@ -0,0 +1,648 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bican.wordpress.exceptions.FileUploadException;
+import net.bican.wordpress.exceptions.InvalidPostFormatException;
+import redstone.xmlrpc.XmlRpcFault;
+
+/**
+ * Imports many post files, in the format read by {@link Post#fromFile(File)},
+ * through a pipeline of stages connected by bounded queues:
+ * <ol>
+ * <li>parse the file,</li>
+ * <li>resolve terms given by name to term ids and map authors,</li>
+ * <li>optionally upload the local files the content refers to,</li>
+ * <li>create the post, or update it in upsert mode.</li>
+ * </ol>
+ * Each stage runs on its own number of threads. With
+ * {@link #setMultiPost(boolean)}, a file may hold many posts, separated by
+ * lines of {@link net.bican.wordpress.util.FileParser#SEPARATOR}, as read by
+ * {@link Post#listFromFile(File)}; each of them goes through the pipeline on
+ * its own.
+ * 
+ * <p>
+ * When a journal file is given, the id of each imported post is appended to
+ * it as soon as the post is created, and posts that are already in the
+ * journal are skipped, so an interrupted import can simply be run again.
+ * 
+ * @author Can Bican
+ */
+public class PostImporter {
+  /**
+   * What happened to an imported file
+   */
+  public enum Status {
+    /** a new post was created */
+    CREATED,
+    /** an existing post with the same slug was updated */
+    UPDATED,
+    /** the post was imported by an earlier run */
+    SKIPPED,
+    /** the file could not be imported */
+    FAILED
+  }
+  
+  /**
+   * Result of importing one file
+   */
+  public static class Result {
+    private final String key;
+    private final Integer postId;
+    private final Status status;
+    private final Exception error;
+    
+    Result(final String key, final Integer postId, final Status status,
+        final Exception error) {
+      this.key = key;
+      this.postId = postId;
+      this.status = status;
+      this.error = error;
+    }
+    
+    /**
+     * @return the source key of the post, the path of its file, followed by
+     *         "#n" for the n-th post of the file when it holds many posts
+     */
+    public String getKey() {
+      return this.key;
+    }
+    
+    /**
+     * @return id of the post, or null if the import failed
+     */
+    public Integer getPostId() {
+      return this.postId;
+    }
+    
+    /**
+     * @return what happened to the file
+     */
+    public Status getStatus() {
+      return this.status;
+    }
+    
+    /**
+     * @return why the import failed, or null
+     */
+    public Exception getError() {
+      return this.error;
+    }
+    
+    @SuppressWarnings("nls")
+    @Override
+    public String toString() {
+      return this.key + " : " + this.status
+          + (this.postId != null ? " " + this.postId : "")
+          + (this.error != null ? " " + this.error : "");
+    }
+  }
+  
+  /**
+   * Receives the result of each file as it is imported. Called from the
+   * threads of the pipeline.
+   */
+  public interface Listener {
+    /**
+     * @param result
+     *          result of one file
+     */
+    void imported(Result result);
+  }
+  
+  private static final Logger logger = LoggerFactory
+      .getLogger(PostImporter.class);
+  private static final Pattern LOCAL_REFERENCE = Pattern
+      .compile("(src|href)=\"([^\":?#]+)\""); //$NON-NLS-1$
+  private static final Item END = new Item(null, null);
+  
+  private final Wordpress wp;
+  private final File journalFile;
+  private int parseThreads = Runtime.getRuntime().availableProcessors();
+  private int resolveThreads = 2;
+  private int uploadThreads = 2;
+  private int createThreads = 4;
+  private int queueSize = 64;
+  private boolean uploadMedia = false;
+  private boolean upsert = false;
+  private boolean multiPost = false;
+  private Integer defaultAuthor = null;
+  private Map<Integer, Integer> authors = Collections.emptyMap();
+  private Listener listener = null;
+  
+  private final Map<String, Integer> journaled = new HashMap<>();
+  private FileOutputStream journal = null;
+  private final ConcurrentMap<String, Integer> slugs =
+      new ConcurrentHashMap<>();
+  private final Object[] slugLocks = new Object[64];
+  private final ConcurrentMap<String, FutureTask<String>> uploads =
+      new ConcurrentHashMap<>();
+  private final Map<Status, AtomicInteger> counts = new EnumMap<>(
+      Status.class);
+  
+  /**
+   * A file passing through the pipeline
+   */
+  private static class Item {
+    final File file;
+    final String key;
+    /** the post, or null for a file of many posts */
+    Post post;
+    /** the posts of a file of many posts */
+    List<Item> more = null;
+    
+    Item(final File file, final String key) {
+      this.file = file;
+      this.key = key;
+    }
+  }
+  
+  /**
+   * Work done on an item by one stage
+   */
+  private interface Step {
+    void process(Item item) throws Exception;
+  }
+  
+  /**
+   * @param wp
+   *          wordpress connection
+   * @param journalFile
+   *          file to record imported posts in, or null for no journal
+   */
+  public PostImporter(final Wordpress wp, final File journalFile) {
+    this.wp = wp;
+    this.journalFile = journalFile;
+    for (int i = 0; i < this.slugLocks.length; i++) {
+      this.slugLocks[i] = new Object();
+    }
+    for (final Status s : Status.values()) {
+      this.counts.put(s, new AtomicInteger());
+    }
+  }
+  
+  /**
+   * @param parse
+   *          threads parsing files
+   * @param resolve
+   *          threads resolving terms
+   * @param upload
+   *          threads uploading media
+   * @param create
+   *          threads creating posts
+   */
+  public void setThreads(final int parse, final int resolve,
+      final int upload, final int create) {
+    if (parse < 1 || resolve < 1 || upload < 1 || create < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.parseThreads = parse;
+    this.resolveThreads = resolve;
+    this.uploadThreads = upload;
+    this.createThreads = create;
+  }
+  
+  /**
+   * @param queueSize
+   *          number of items waiting between two stages at most
+   */
+  public void setQueueSize(final int queueSize) {
+    if (queueSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.queueSize = queueSize;
+  }
+  
+  /**
+   * @param uploadMedia
+   *          to upload the local files referred to by src and href
+   *          attributes in the content, relative to the post file, and
+   *          replace the references with their urls
+   */
+  public void setUploadMedia(final boolean uploadMedia) {
+    this.uploadMedia = uploadMedia;
+  }
+  
+  /**
+   * @param upsert
+   *          to update the existing post with the same post_name instead of
+   *          creating a new one
+   */
+  public void setUpsert(final boolean upsert) {
+    this.upsert = upsert;
+  }
+  
+  /**
+   * @param multiPost
+   *          to read many posts from each file, separated by lines of
+   *          {@link net.bican.wordpress.util.FileParser#SEPARATOR}; otherwise
+   *          such lines are part of the value they are in
+   */
+  public void setMultiPost(final boolean multiPost) {
+    this.multiPost = multiPost;
+  }
+  
+  /**
+   * @param defaultAuthor
+   *          author of posts that do not have one, or null for the user
+   */
+  public void setDefaultAuthor(final Integer defaultAuthor) {
+    this.defaultAuthor = defaultAuthor;
+  }
+  
+  /**
+   * @param authors
+   *          maps post_author values in the files to user ids on the blog
+   */
+  public void setAuthors(final Map<Integer, Integer> authors) {
+    this.authors = new HashMap<>(authors);
+  }
+  
+  /**
+   * @param listener
+   *          receives the result of each file, or null
+   */
+  public void setListener(final Listener listener) {
+    this.listener = listener;
+  }
+  
+  /**
+   * Imports the files, returning when all of them are processed. Failing
+   * files are reported to the listener and do not stop the import.
+   * 
+   * @param files
+   *          post files
+   * @return number of files per status
+   * @throws IOException
+   *           if the journal cannot be read or written
+   * @throws XmlRpcFault
+   *           if the existing posts cannot be listed in upsert mode
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  public Map<Status, Integer> importFiles(final List<File> files)
+      throws IOException, XmlRpcFault, InterruptedException {
+    if (this.journalFile != null) {
+      readJournal();
+      this.journal = new FileOutputStream(this.journalFile, true);
+    }
+    try {
+      if (this.upsert) {
+        loadSlugs();
+      }
+      final List<Step> steps = new ArrayList<>();
+      final List<Integer> threads = new ArrayList<>();
+      steps.add(new Step() {
+        @Override
+        public void process(final Item item) throws Exception {
+          if (!PostImporter.this.multiPost) {
+            item.post = Post.fromFile(item.file);
+            return;
+          }
+          final List<Post> posts = Post.listFromFile(item.file);
+          if (posts.isEmpty()) {
+            throw new InvalidPostFormatException();
+          }
+          item.more = new ArrayList<>();
+          for (int i = 0; i < posts.size(); i++) {
+            final Item next = new Item(item.file,
+                item.key + "#" + (i + 1)); //$NON-NLS-1$
+            next.post = posts.get(i);
+            item.more.add(next);
+          }
+        }
+      });
+      threads.add(Integer.valueOf(this.parseThreads));
+      steps.add(new Step() {
+        @Override
+        public void process(final Item item) throws Exception {
+          resolve(item.post);
+        }
+      });
+      threads.add(Integer.valueOf(this.resolveThreads));
+      if (this.uploadMedia) {
+        steps.add(new Step() {
+          @Override
+          public void process(final Item item) throws Exception {
+            uploadMedia(item);
+          }
+        });
+        threads.add(Integer.valueOf(this.uploadThreads));
+      }
+      steps.add(new Step() {
+        @Override
+        public void process(final Item item) throws Exception {
+          create(item);
+        }
+      });
+      threads.add(Integer.valueOf(this.createThreads));
+      runPipeline(files, steps, threads);
+    } finally {
+      if (this.journal != null) {
+        this.journal.close();
+        this.journal = null;
+      }
+    }
+    final Map<Status, Integer> result = new EnumMap<>(Status.class);
+    for (final Map.Entry<Status, AtomicInteger> e : this.counts.entrySet()) {
+      result.put(e.getKey(), Integer.valueOf(e.getValue().get()));
+    }
+    return result;
+  }
+  
+  private void runPipeline(final List<File> files, final List<Step> steps,
+      final List<Integer> threads) throws InterruptedException {
+    final List<BlockingQueue<Item>> queues = new ArrayList<>();
+    for (int i = 0; i < steps.size(); i++) {
+      queues.add(new ArrayBlockingQueue<Item>(this.queueSize));
+    }
+    final List<Thread> all = new ArrayList<>();
+    for (int i = 0; i < steps.size(); i++) {
+      final Step step = steps.get(i);
+      final BlockingQueue<Item> in = queues.get(i);
+      final BlockingQueue<Item> out = i + 1 < steps.size() ? queues.get(i + 1)
+          : null;
+      final int n = threads.get(i).intValue();
+      final int nextN = out != null ? threads.get(i + 1).intValue() : 0;
+      final AtomicInteger running = new AtomicInteger(n);
+      for (int t = 0; t < n; t++) {
+        final Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              runStage(step, in, out);
+              // the last thread of a stage ends the next one
+              if (running.decrementAndGet() == 0) {
+                for (int k = 0; k < nextN; k++) {
+                  out.put(END);
+                }
+              }
+            } catch (final InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        }, "import-" + i + "-" + t); //$NON-NLS-1$ //$NON-NLS-2$
+        thread.setDaemon(true);
+        all.add(thread);
+        thread.start();
+      }
+    }
+    try {
+      final BlockingQueue<Item> first = queues.get(0);
+      for (final File file : files) {
+        final String key = file.getPath();
+        // the posts of a file of many posts are looked up once it is parsed
+        final Integer done = this.multiPost ? null : this.journaled.get(key);
+        if (done != null) {
+          report(new Result(key, done, Status.SKIPPED, null));
+        } else {
+          first.put(new Item(file, key));
+        }
+      }
+      for (int k = 0; k < threads.get(0).intValue(); k++) {
+        first.put(END);
+      }
+      for (final Thread thread : all) {
+        thread.join();
+      }
+    } finally {
+      for (final Thread thread : all) {
+        thread.interrupt();
+      }
+    }
+  }
+  
+  private void runStage(final Step step, final BlockingQueue<Item> in,
+      final BlockingQueue<Item> out) throws InterruptedException {
+    Item item;
+    while ((item = in.take()) != END) {
+      try {
+        step.process(item);
+      } catch (final Exception e) {
+        report(new Result(item.key, null, Status.FAILED, e));
+        continue;
+      }
+      if (out != null) {
+        if (item.post != null) {
+          out.put(item);
+        }
+        if (item.more != null) {
+          for (final Item next : item.more) {
+            final Integer done = this.journaled.get(next.key);
+            if (done != null) {
+              report(new Result(next.key, done, Status.SKIPPED, null));
+            } else {
+              out.put(next);
+            }
+          }
+          item.more = null;
+        }
+      }
+    }
+  }
+  
+  private void resolve(final Post post) throws Exception {
+    if (post.getTerms() != null) {
+      for (final Term term : post.getTerms()) {
+        if (term.getTerm_id() == null && term.getName() != null) {
+          term.setTerm_id(this.wp.getTermIndex(term.getTaxonomy())
+              .resolve(term.getName(), term.getParent()).getTerm_id());
+        }
+      }
+    }
+    final Integer author = post.getPost_author();
+    if (author == null) {
+      post.setPost_author(this.defaultAuthor);
+    } else if (this.authors.containsKey(author)) {
+      post.setPost_author(this.authors.get(author));
+    }
+  }
+  
+  private void uploadMedia(final Item item) throws Exception {
+    final String content = item.post.getPost_content();
+    if (content == null) {
+      return;
+    }
+    final File base = item.file.getAbsoluteFile().getParentFile();
+    final Matcher m = LOCAL_REFERENCE.matcher(content);
+    final StringBuffer sb = new StringBuffer();
+    while (m.find()) {
+      final File media = new File(base, m.group(2));
+      String replacement = m.group();
+      if (media.isFile()) {
+        replacement = m.group(1) + "=\"" + upload(media) + "\""; //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+    }
+    m.appendTail(sb);
+    item.post.setPost_content(sb.toString());
+  }
+  
+  /**
+   * Uploads a file once per import, however many posts refer to it.
+   */
+  private String upload(final File media) throws Exception {
+    final String path = media.getCanonicalPath();
+    FutureTask<String> task = this.uploads.get(path);
+    if (task == null) {
+      final FutureTask<String> t = new FutureTask<>(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          try (InputStream in = new FileInputStream(media)) {
+            final MediaItemUploadResult r = PostImporter.this.wp
+                .uploadFile(in, media.getName());
+            if (r == null || r.getUrl() == null) {
+              throw new FileUploadException();
+            }
+            return r.getUrl();
+          }
+        }
+      });
+      task = this.uploads.putIfAbsent(path, t);
+      if (task == null) {
+        task = t;
+        t.run();
+      }
+    }
+    try {
+      return task.get();
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      throw cause instanceof Exception ? (Exception) cause
+          : new IllegalStateException(cause);
+    }
+  }
+  
+  private void create(final Item item) throws Exception {
+    final Post post = item.post;
+    final String slug = post.getPost_name();
+    if (this.upsert && slug != null && !slug.isEmpty()) {
+      synchronized (this.slugLocks[(slug.hashCode() & Integer.MAX_VALUE)
+          % this.slugLocks.length]) {
+        final Integer existing = this.slugs.get(slug);
+        if (existing != null) {
+          this.wp.editPost(existing, post);
+          done(item, existing, Status.UPDATED);
+        } else {
+          final Integer postId = this.wp.newPost(post);
+          this.slugs.put(slug, postId);
+          done(item, postId, Status.CREATED);
+        }
+      }
+    } else {
+      done(item, this.wp.newPost(post), Status.CREATED);
+    }
+  }
+  
+  @SuppressWarnings("nls")
+  private void done(final Item item, final Integer postId,
+      final Status status) throws IOException {
+    if (this.journal != null) {
+      final byte[] line = (postId + "\t" + item.key + "\n")
+          .getBytes(StandardCharsets.UTF_8);
+      synchronized (this.journal) {
+        this.journal.write(line);
+        this.journal.getChannel().force(false);
+      }
+    }
+    report(new Result(item.key, postId, status, null));
+  }
+  
+  private void report(final Result result) {
+    this.counts.get(result.getStatus()).incrementAndGet();
+    if (result.getStatus() == Status.FAILED) {
+      logger.warn("cannot import {}: {}", result.getKey(), //$NON-NLS-1$
+          result.getError().toString());
+    }
+    if (this.listener != null) {
+      this.listener.imported(result);
+    }
+  }
+  
+  /**
+   * Journal lines are "post_id key"; a partially written last line is
+   * ignored.
+   */
+  private void readJournal() throws IOException {
+    if (!this.journalFile.exists()) {
+      return;
+    }
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(
+        new FileInputStream(this.journalFile), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = r.readLine()) != null) {
+        final int tab = line.indexOf('\t');
+        if (tab > 0) {
+          try {
+            this.journaled.put(line.substring(tab + 1),
+                Integer.valueOf(line.substring(0, tab)));
+          } catch (final NumberFormatException e) {
+            // partial line
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Collects the slugs of the posts of all types, so that upserts do not
+   * need a lookup per post.
+   */
+  @SuppressWarnings("nls")
+  private void loadSlugs() throws XmlRpcFault {
+    final int pageSize = 200;
+    for (final PostType type : this.wp.getPostTypes()) {
+      for (int offset = 0;; offset += pageSize) {
+        final FilterPost filter = new FilterPost();
+        filter.setPost_type(type.getName());
+        filter.setPost_status("any");
+        filter.setNumber(Integer.valueOf(pageSize));
+        filter.setOffset(Integer.valueOf(offset));
+        final List<Post> page = this.wp.getPosts(filter);
+        for (final Post p : page) {
+          if (p.getPost_name() != null && !p.getPost_name().isEmpty()) {
+            this.slugs.putIfAbsent(p.getPost_name(), p.getPost_id());
+          }
+        }
+        if (page.size() < pageSize) {
+          break;
+        }
+      }
+    }
+  }
+}
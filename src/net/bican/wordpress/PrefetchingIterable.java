@@ -0,0 +1,282 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import net.bican.wordpress.PagedSpliterator.Pager;
+import redstone.xmlrpc.XmlRpcException;
+
+/**
+ * A list that is fetched in pages as it is iterated. While a page is being
+ * consumed, the following ones are fetched on a background thread, up to a
+ * number of buffered pages, so that the requests overlap with the work done
+ * on the objects and memory use stays bounded.
+ * 
+ * <p>
+ * Iterators stop fetching when they reach the end of the list, when they are
+ * closed, or when they are garbage collected. Failing requests are thrown
+ * from <code>hasNext()</code> as <code>XmlRpcException</code>s with the
+ * original exception as the cause.
+ * 
+ * @author Can Bican
+ * @param <T>
+ *          type of the objects
+ */
+public class PrefetchingIterable<T> implements Iterable<T> {
+  /** default number of objects fetched per request */
+  public static final int DEFAULT_PAGE_SIZE = 100;
+  /** default number of pages buffered ahead */
+  public static final int DEFAULT_PREFETCH_PAGES = 2;
+  
+  private static final ExecutorService FETCHERS = Executors
+      .newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          final Thread t = new Thread(r, "prefetch"); //$NON-NLS-1$
+          t.setDaemon(true);
+          return t;
+        }
+      });
+  private static final long POLL_MILLIS = 500;
+  
+  private final Pager<T> pager;
+  private final int offset;
+  private final Integer number;
+  private volatile int pageSize = DEFAULT_PAGE_SIZE;
+  private volatile int prefetchPages = DEFAULT_PREFETCH_PAGES;
+  
+  /**
+   * An iterator that can be closed to stop fetching
+   * 
+   * @param <T>
+   *          type of the objects
+   */
+  public interface PrefetchingIterator<T> extends Iterator<T>, AutoCloseable {
+    @Override
+    void close();
+  }
+  
+  /**
+   * A fetched page, or the end of the list, or the failure that ended it
+   */
+  private static class Page<T> {
+    final List<T> items;
+    final boolean last;
+    final Exception error;
+    
+    Page(final List<T> items, final boolean last, final Exception error) {
+      this.items = items;
+      this.last = last;
+      this.error = error;
+    }
+  }
+  
+  /**
+   * @param pager
+   *          fetches the pages
+   * @param offset
+   *          offset of the first object, or null for the start of the list
+   * @param number
+   *          number of objects at most, or null for all of them
+   */
+  public PrefetchingIterable(final Pager<T> pager, final Integer offset,
+      final Integer number) {
+    this.pager = pager;
+    this.offset = offset == null ? 0 : offset.intValue();
+    this.number = number;
+  }
+  
+  /**
+   * @return the number of objects fetched per request
+   */
+  public int getPageSize() {
+    return this.pageSize;
+  }
+  
+  /**
+   * @param pageSize
+   *          the number of objects fetched per request, for iterators
+   *          created afterwards
+   */
+  public void setPageSize(final int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.pageSize = pageSize;
+  }
+  
+  /**
+   * @return the number of pages buffered ahead
+   */
+  public int getPrefetchPages() {
+    return this.prefetchPages;
+  }
+  
+  /**
+   * @param prefetchPages
+   *          the number of pages buffered ahead, for iterators created
+   *          afterwards
+   */
+  public void setPrefetchPages(final int prefetchPages) {
+    if (prefetchPages < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.prefetchPages = prefetchPages;
+  }
+  
+  @Override
+  public PrefetchingIterator<T> iterator() {
+    final Itr<T> result = new Itr<>(this.prefetchPages);
+    FETCHERS.execute(new Fetcher<>(this.pager, this.offset, this.number,
+        this.pageSize, result));
+    return result;
+  }
+  
+  private static class Itr<T> implements PrefetchingIterator<T> {
+    final BlockingQueue<Page<T>> queue;
+    volatile boolean closed = false;
+    private Iterator<T> current = Collections.emptyIterator();
+    private boolean last = false;
+    
+    Itr(final int pages) {
+      this.queue = new ArrayBlockingQueue<>(pages);
+    }
+    
+    @Override
+    public boolean hasNext() {
+      while (!this.current.hasNext()) {
+        if (this.last || this.closed) {
+          return false;
+        }
+        final Page<T> page;
+        try {
+          page = this.queue.take();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(e);
+        }
+        this.last = page.last;
+        if (page.error != null) {
+          if (page.error instanceof RuntimeException) {
+            throw (RuntimeException) page.error;
+          }
+          throw new XmlRpcException(page.error.getLocalizedMessage(),
+              page.error);
+        }
+        this.current = page.items.iterator();
+      }
+      return true;
+    }
+    
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return this.current.next();
+    }
+    
+    @Override
+    public void close() {
+      this.closed = true;
+      this.queue.clear(); // unblocks the fetcher, which then sees closed
+    }
+  }
+  
+  /**
+   * Fetches pages into the queue. It only keeps a weak reference to the
+   * iterator, so that an abandoned iterator does not keep it running.
+   */
+  private static class Fetcher<T> implements Runnable {
+    private final Pager<T> pager;
+    private final int offset;
+    private final Integer number;
+    private final int pageSize;
+    private final BlockingQueue<Page<T>> queue;
+    private final WeakReference<Itr<T>> iterator;
+    
+    Fetcher(final Pager<T> pager, final int offset, final Integer number,
+        final int pageSize, final Itr<T> iterator) {
+      this.pager = pager;
+      this.offset = offset;
+      this.number = number;
+      this.pageSize = pageSize;
+      this.queue = iterator.queue;
+      this.iterator = new WeakReference<>(iterator);
+    }
+    
+    private boolean abandoned() {
+      final Itr<T> it = this.iterator.get();
+      return it == null || it.closed;
+    }
+    
+    @Override
+    public void run() {
+      int position = this.offset;
+      final long end = this.number == null ? Long.MAX_VALUE
+          : (long) this.offset + this.number.intValue();
+      try {
+        boolean last = false;
+        while (!last) {
+          final int n = (int) Math.min(this.pageSize, end - position);
+          Page<T> page;
+          try {
+            final List<T> items = n > 0 ? this.pager.fetch(position, n)
+                : Collections.<T> emptyList();
+            position += n;
+            last = items.size() < n || position >= end;
+            page = new Page<>(items, last, null);
+          } catch (final Exception e) {
+            last = true;
+            page = new Page<>(null, true, e);
+          }
+          while (!this.queue.offer(page, POLL_MILLIS,
+              TimeUnit.MILLISECONDS)) {
+            if (abandoned()) {
+              return;
+            }
+          }
+          if (abandoned()) {
+            return;
+          }
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
+  /**
+   * @return a sequential stream over the list, which stops fetching when it
+   *         is closed
+   */
+  public Stream<T> stream() {
+    final PrefetchingIterator<T> it = iterator();
+    return StreamSupport
+        .stream(Spliterators.spliteratorUnknownSize(it,
+            Spliterator.ORDERED | Spliterator.NONNULL), false)
+        .onClose(it::close);
+  }
+}
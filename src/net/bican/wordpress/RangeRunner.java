@@ -0,0 +1,429 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bican.wordpress.exceptions.InsufficientRightsException;
+import net.bican.wordpress.exceptions.ObjectNotFoundException;
+import redstone.xmlrpc.XmlRpcException;
+import redstone.xmlrpc.XmlRpcFault;
+import redstone.xmlrpc.XmlRpcStruct;
+
+/**
+ * Runs an operation for each id of a range or a list, sending the ids in
+ * <code>system.multicall</code> batches from a pool of workers. The results
+ * are reported in the order of the ids, each with its result or its failure.
+ * 
+ * <p>
+ * Ids are given as in <code>1000-5000</code>, <code>3,7,10-20</code>, or
+ * <code>@file</code> for the ids in a file, separated by spaces, commas or
+ * line breaks; <code>@-</code> reads them from the standard input. A server
+ * without <code>system.multicall</code> gets one request per id.
+ * 
+ * @author Can Bican
+ */
+public class RangeRunner {
+  /**
+   * Operations that can run over ids
+   */
+  public enum Operation {
+    /** get the post of each id */
+    GETPOST("wp.getPost"), //$NON-NLS-1$
+    /** delete the post of each id */
+    DELETEPOST("wp.deletePost"), //$NON-NLS-1$
+    /** get the comment of each id */
+    GETCOMMENT("wp.getComment"), //$NON-NLS-1$
+    /** delete the comment of each id */
+    DELETECOMMENT("wp.deleteComment"), //$NON-NLS-1$
+    /** get the comment counts of the post of each id */
+    COMMENTCOUNT("wp.getCommentCount"); //$NON-NLS-1$
+    
+    final String methodName;
+    
+    Operation(final String methodName) {
+      this.methodName = methodName;
+    }
+  }
+  
+  /**
+   * Result of the operation on one id
+   */
+  public static class Result {
+    private final Integer id;
+    private final Object value;
+    private final Exception error;
+    
+    Result(final Integer id, final Object value, final Exception error) {
+      this.id = id;
+      this.value = value;
+      this.error = error;
+    }
+    
+    /**
+     * @return the id
+     */
+    public Integer getId() {
+      return this.id;
+    }
+    
+    /**
+     * @return the post, comment, comment count or deletion result, or null
+     *         if the operation failed
+     */
+    public Object getValue() {
+      return this.value;
+    }
+    
+    /**
+     * @return why the operation failed, or null
+     */
+    public Exception getError() {
+      return this.error;
+    }
+    
+    @SuppressWarnings("nls")
+    @Override
+    public String toString() {
+      if (this.error != null) {
+        return this.id + " : " + this.error;
+      }
+      return this.id + " : " + (this.value instanceof XmlRpcMapped
+          ? ((XmlRpcMapped) this.value).toOneLinerString() : this.value);
+    }
+  }
+  
+  /**
+   * Receives the results in the order of the ids
+   */
+  public interface Listener {
+    /**
+     * @param result
+     *          result of one id
+     * @throws IOException
+     *           if the result cannot be written
+     */
+    void done(Result result) throws IOException;
+  }
+  
+  private static final Logger logger = LoggerFactory
+      .getLogger(RangeRunner.class);
+  private static final Pattern SEPARATORS = Pattern.compile("[\\s,]+"); //$NON-NLS-1$
+  private static final Pattern SINGLE = Pattern.compile("-?\\d+"); //$NON-NLS-1$
+  
+  private final Wordpress wp;
+  private int parallel = 1;
+  private int batchSize = 50;
+  private volatile boolean multicall = true;
+  
+  /**
+   * @param wp
+   *          wordpress connection
+   */
+  public RangeRunner(final Wordpress wp) {
+    this.wp = wp;
+  }
+  
+  /**
+   * @param parallel
+   *          the number of batches sent at the same time
+   */
+  public void setParallel(final int parallel) {
+    if (parallel < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.parallel = parallel;
+  }
+  
+  /**
+   * @param batchSize
+   *          the number of ids sent in one request
+   */
+  public void setBatchSize(final int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.batchSize = batchSize;
+  }
+  
+  /**
+   * @param spec
+   *          an argument of the command line
+   * @return <code>true</code> if the argument is a range or a list of ids
+   *         rather than a single id
+   */
+  public static boolean isRange(final String spec) {
+    return spec != null && !SINGLE.matcher(spec.trim()).matches();
+  }
+  
+  /**
+   * Parses ids. Ranges are not expanded, so a range of any length takes
+   * constant memory.
+   * 
+   * @param spec
+   *          a range, a list, or <code>@file</code>
+   * @param directory
+   *          directory a relative file name is resolved against
+   * @param in
+   *          the standard input, for <code>@-</code>
+   * @return the ids
+   * @throws IOException
+   *           if the file cannot be read
+   */
+  public static Iterable<Integer> ids(final String spec, final File directory,
+      final InputStream in) throws IOException {
+    final String text;
+    if (spec.equals("@-")) { //$NON-NLS-1$
+      final StringBuilder sb = new StringBuilder();
+      final BufferedReader r = new BufferedReader(
+          new InputStreamReader(in, StandardCharsets.UTF_8));
+      String line;
+      while ((line = r.readLine()) != null) {
+        sb.append(line).append('\n');
+      }
+      text = sb.toString();
+    } else if (spec.startsWith("@")) { //$NON-NLS-1$
+      File f = new File(spec.substring(1));
+      if (!f.isAbsolute() && directory != null) {
+        f = new File(directory, f.getPath());
+      }
+      text = new String(Files.readAllBytes(f.toPath()),
+          StandardCharsets.UTF_8);
+    } else {
+      text = spec;
+    }
+    final List<int[]> ranges = new ArrayList<>();
+    for (final String part : SEPARATORS.split(text.trim())) {
+      if (part.isEmpty()) {
+        continue;
+      }
+      final int dash = part.indexOf('-', 1);
+      try {
+        final int from = Integer.parseInt(
+            dash < 0 ? part : part.substring(0, dash));
+        final int to = dash < 0 ? from
+            : Integer.parseInt(part.substring(dash + 1));
+        if (to < from) {
+          throw new IllegalArgumentException("empty range " + part); //$NON-NLS-1$
+        }
+        ranges.add(new int[] { from, to });
+      } catch (final NumberFormatException e) {
+        throw new IllegalArgumentException("not an id or a range: " + part); //$NON-NLS-1$
+      }
+    }
+    return () -> new Iterator<Integer>() {
+      private int range = 0;
+      private long next = ranges.isEmpty() ? 0 : ranges.get(0)[0];
+      
+      @Override
+      public boolean hasNext() {
+        return this.range < ranges.size();
+      }
+      
+      @Override
+      public Integer next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final Integer result = Integer.valueOf((int) this.next);
+        if (++this.next > ranges.get(this.range)[1]
+            && ++this.range < ranges.size()) {
+          this.next = ranges.get(this.range)[0];
+        }
+        return result;
+      }
+    };
+  }
+  
+  /**
+   * Runs the operation for every id. The ids are read as they are sent, and
+   * only the batches in flight are held in memory.
+   * 
+   * @param operation
+   *          the operation
+   * @param ids
+   *          the ids
+   * @param listener
+   *          receives each result, in the order of the ids
+   * @return the number of ids that were "ok" or failed with "error"
+   * @throws IOException
+   *           if the listener cannot write a result
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  @SuppressWarnings("nls")
+  public Map<String, Integer> run(final Operation operation,
+      final Iterable<Integer> ids, final Listener listener)
+      throws IOException, InterruptedException {
+    final int[] counts = new int[2];
+    final ExecutorService executor = this.parallel > 1
+        ? Executors.newFixedThreadPool(this.parallel) : null;
+    final Deque<Future<List<Result>>> pending = new ArrayDeque<>();
+    try {
+      final Iterator<Integer> i = ids.iterator();
+      while (i.hasNext()) {
+        final List<Integer> batch = new ArrayList<>(this.batchSize);
+        while (i.hasNext() && batch.size() < this.batchSize) {
+          batch.add(i.next());
+        }
+        if (executor == null) {
+          report(send(operation, batch), listener, counts);
+          continue;
+        }
+        pending.add(executor.submit(() -> send(operation, batch)));
+        while (!pending.isEmpty() && (pending.peek().isDone()
+            || pending.size() >= 2 * this.parallel)) {
+          report(get(pending.poll()), listener, counts);
+        }
+      }
+      while (!pending.isEmpty()) {
+        report(get(pending.poll()), listener, counts);
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+    final Map<String, Integer> result = new HashMap<>();
+    result.put("ok", Integer.valueOf(counts[0]));
+    result.put("error", Integer.valueOf(counts[1]));
+    return result;
+  }
+  
+  private static List<Result> get(final Future<List<Result>> f)
+      throws InterruptedException {
+    try {
+      return f.get();
+    } catch (final ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+  
+  private static void report(final List<Result> results,
+      final Listener listener, final int[] counts) throws IOException {
+    for (final Result r : results) {
+      counts[r.getError() == null ? 0 : 1]++;
+      listener.done(r);
+    }
+  }
+  
+  /**
+   * Sends a batch in one multicall, or id by id if the server cannot.
+   */
+  private List<Result> send(final Operation operation,
+      final List<Integer> batch) {
+    final List<Result> results = new ArrayList<>(batch.size());
+    if (this.multicall && batch.size() > 1) {
+      final MultiCall call = this.wp.newMultiCall();
+      for (final Integer id : batch) {
+        call.add(operation.methodName, id);
+      }
+      try {
+        final List<Object> values = call.execute();
+        for (int i = 0; i < batch.size(); i++) {
+          results.add(result(operation, batch.get(i), values.get(i)));
+        }
+        return results;
+      } catch (final XmlRpcFault e) {
+        logger.info("multicall failed, sending one request per id: {}", //$NON-NLS-1$
+            e.getMessage());
+        this.multicall = false;
+      } catch (final XmlRpcException e) {
+        for (final Integer id : batch) {
+          results.add(new Result(id, null, e));
+        }
+        return results;
+      }
+    }
+    for (final Integer id : batch) {
+      try {
+        results.add(new Result(id, call(operation, id), null));
+      } catch (final Exception e) {
+        results.add(new Result(id, null, e));
+      }
+    }
+    return results;
+  }
+  
+  private Object call(final Operation operation, final Integer id)
+      throws Exception {
+    switch (operation) {
+      case GETPOST:
+        return this.wp.getPost(id);
+      case DELETEPOST:
+        return Boolean.valueOf(this.wp.deletePost(id));
+      case GETCOMMENT:
+        return this.wp.getComment(id);
+      case DELETECOMMENT:
+        return Boolean.valueOf(this.wp.deleteComment(id));
+      default:
+        return this.wp.getCommentsCount(id);
+    }
+  }
+  
+  /**
+   * Converts a multicall result as the single call would, failures to the
+   * same exceptions.
+   */
+  private static Result result(final Operation operation, final Integer id,
+      final Object value) {
+    if (value instanceof XmlRpcFault) {
+      final XmlRpcFault fault = (XmlRpcFault) value;
+      switch (fault.getErrorCode()) {
+        case 401:
+        case 403:
+          return new Result(id, null, new InsufficientRightsException());
+        case 404:
+          return new Result(id, null,
+              new ObjectNotFoundException(id.toString()));
+        default:
+          return new Result(id, null, fault);
+      }
+    }
+    final XmlRpcMapped mapped;
+    switch (operation) {
+      case GETPOST:
+        mapped = new Post();
+        break;
+      case GETCOMMENT:
+        mapped = new Comment();
+        break;
+      case COMMENTCOUNT:
+        mapped = new CommentCount();
+        break;
+      default:
+        return new Result(id, value, null);
+    }
+    mapped.fromXmlRpcStruct((XmlRpcStruct) value);
+    return new Result(id, mapped, null);
+  }
+}
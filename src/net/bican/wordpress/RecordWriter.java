@@ -0,0 +1,319 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Writes records in a machine readable format as they come, so that a
+ * listing of any length is written in constant memory. Each value is
+ * escaped while it is written, without building its text first.
+ * 
+ * <p>
+ * A record is a mapped object, with a column per field, a map, with a
+ * column per key of the first record, or any other value, in a single
+ * "value" column. Dates are written in the same format as in toString(),
+ * and lists, maps and mapped objects in a CSV or TSV column as JSON.
+ * 
+ * @author Can Bican
+ */
+public class RecordWriter {
+  /**
+   * Output formats
+   */
+  public enum Format {
+    /** a JSON array of the records */
+    JSON,
+    /** a JSON object per line */
+    NDJSON,
+    /** comma separated values with a header line, as in RFC 4180 */
+    CSV,
+    /**
+     * tab separated values with a header line; tabs, line breaks and
+     * backslashes in values are escaped with a backslash
+     */
+    TSV;
+    
+    /**
+     * @param name
+     *          name of the format, in any case
+     * @return the format, or null if there is no such format
+     */
+    public static Format of(final String name) {
+      for (final Format f : values()) {
+        if (f.name().equalsIgnoreCase(name)) {
+          return f;
+        }
+      }
+      return null;
+    }
+  }
+  
+  private static final ConcurrentMap<Class<?>, Field[]> fields =
+      new ConcurrentHashMap<>();
+  
+  private final Writer out;
+  private final Format format;
+  private final char separator;
+  private final Cell cell;
+  private Object[] columns = null;
+  private long count = 0;
+  
+  /**
+   * @param out
+   *          where to write to; it is flushed by {@link #finish()} and not
+   *          closed
+   * @param format
+   *          the format
+   */
+  public RecordWriter(final Writer out, final Format format) {
+    this.out = out;
+    this.format = format;
+    this.separator = format == Format.TSV ? '\t' : ',';
+    this.cell = new Cell(out, format == Format.TSV);
+  }
+  
+  /**
+   * @return the number of records written
+   */
+  public long getCount() {
+    return this.count;
+  }
+  
+  /**
+   * Writes the records while they are iterated, and stops a prefetching
+   * iteration if writing fails.
+   * 
+   * @param records
+   *          the records
+   * @throws IOException
+   *           if the output cannot be written
+   */
+  public void writeAll(final Iterable<?> records) throws IOException {
+    final Iterator<?> i = records.iterator();
+    try {
+      while (i.hasNext()) {
+        write(i.next());
+      }
+    } finally {
+      if (i instanceof PrefetchingIterable.PrefetchingIterator) {
+        ((PrefetchingIterable.PrefetchingIterator<?>) i).close();
+      }
+    }
+  }
+  
+  /**
+   * @param record
+   *          the record
+   * @throws IOException
+   *           if the output cannot be written
+   */
+  @SuppressWarnings("nls")
+  public void write(final Object record) throws IOException {
+    switch (this.format) {
+      case JSON:
+        this.out.write(this.count == 0 ? "[" : ",\n");
+        XmlRpcMapped.writeJSONValue(this.out, record);
+        break;
+      case NDJSON:
+        XmlRpcMapped.writeJSONValue(this.out, record);
+        this.out.write('\n');
+        break;
+      default:
+        if (this.columns == null) {
+          this.columns = columns(record);
+          writeRow(null);
+        }
+        writeRow(record);
+    }
+    this.count++;
+  }
+  
+  /**
+   * Ends the output, and flushes it.
+   * 
+   * @throws IOException
+   *           if the output cannot be written
+   */
+  @SuppressWarnings("nls")
+  public void finish() throws IOException {
+    if (this.format == Format.JSON) {
+      this.out.write(this.count == 0 ? "[]\n" : "]\n");
+    }
+    this.out.flush();
+  }
+  
+  /**
+   * @return the fields of a mapped object, the keys of a map, or a single
+   *         "value" column
+   */
+  private static Object[] columns(final Object record) {
+    if (record instanceof XmlRpcMapped) {
+      return fields(record.getClass());
+    }
+    if (record instanceof Map) {
+      return ((Map<?, ?>) record).keySet().toArray();
+    }
+    return new Object[] { "value" }; //$NON-NLS-1$
+  }
+  
+  private static Field[] fields(final Class<?> cl) {
+    return fields.computeIfAbsent(cl, c -> {
+      final List<Field> result = new ArrayList<>();
+      for (final Field f : c.getDeclaredFields()) {
+        if (!Modifier.isStatic(f.getModifiers())) {
+          result.add(f);
+        }
+      }
+      return result.toArray(new Field[result.size()]);
+    });
+  }
+  
+  /**
+   * Writes the header for a null record, the values of the record
+   * otherwise.
+   */
+  @SuppressWarnings("nls")
+  private void writeRow(final Object record) throws IOException {
+    for (int i = 0; i < this.columns.length; i++) {
+      if (i > 0) {
+        this.out.write(this.separator);
+      }
+      final Object column = this.columns[i];
+      if (record == null) {
+        writeCell(column instanceof Field ? ((Field) column).getName()
+            : String.valueOf(column));
+      } else if (column instanceof Field) {
+        try {
+          writeCell(((Field) column).get(record));
+        } catch (final IllegalAccessException | IllegalArgumentException e) {
+          // a record of another type, nothing to write
+        }
+      } else if (record instanceof Map) {
+        writeCell(((Map<?, ?>) record).get(column));
+      } else {
+        writeCell(record);
+      }
+    }
+    this.out.write(this.format == Format.CSV ? "\r\n" : "\n");
+  }
+  
+  private void writeCell(final Object v) throws IOException {
+    if (v == null) {
+      return;
+    }
+    if (v instanceof Number || v instanceof Boolean) {
+      this.out.write(v.toString());
+    } else if (v instanceof Date) {
+      this.out.write(XmlRpcMapped.formatDate((Date) v));
+    } else if (v instanceof String) {
+      this.cell.write((String) v);
+    } else if (v instanceof XmlRpcMapped || v instanceof List
+        || v instanceof Map) {
+      this.cell.begin(true);
+      XmlRpcMapped.writeJSONValue(this.cell, v);
+      this.cell.end();
+    } else {
+      this.cell.write(v.toString());
+    }
+  }
+  
+  /**
+   * Escapes the characters of a CSV or TSV value while they are written
+   */
+  private static class Cell implements Appendable {
+    private final Writer out;
+    private final boolean tsv;
+    private boolean quoted = false;
+    
+    Cell(final Writer out, final boolean tsv) {
+      this.out = out;
+      this.tsv = tsv;
+    }
+    
+    void write(final String s) throws IOException {
+      boolean quote = false;
+      for (int i = 0, il = s.length(); i < il && !this.tsv && !quote; i++) {
+        final char c = s.charAt(i);
+        quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+      }
+      begin(quote);
+      append(s);
+      end();
+    }
+    
+    /**
+     * @param quote
+     *          whether a CSV value needs quotes
+     */
+    void begin(final boolean quote) throws IOException {
+      this.quoted = quote && !this.tsv;
+      if (this.quoted) {
+        this.out.write('"');
+      }
+    }
+    
+    void end() throws IOException {
+      if (this.quoted) {
+        this.out.write('"');
+      }
+    }
+    
+    @Override
+    public Appendable append(final CharSequence csq) throws IOException {
+      return append(csq, 0, csq.length());
+    }
+    
+    @Override
+    public Appendable append(final CharSequence csq, final int start,
+        final int end) throws IOException {
+      for (int i = start; i < end; i++) {
+        append(csq.charAt(i));
+      }
+      return this;
+    }
+    
+    @Override
+    public Appendable append(final char c) throws IOException {
+      if (this.tsv) {
+        switch (c) {
+          case '\t':
+            this.out.write("\\t"); //$NON-NLS-1$
+            return this;
+          case '\n':
+            this.out.write("\\n"); //$NON-NLS-1$
+            return this;
+          case '\r':
+            this.out.write("\\r"); //$NON-NLS-1$
+            return this;
+          case '\\':
+            this.out.write("\\\\"); //$NON-NLS-1$
+            return this;
+          default:
+            break;
+        }
+      } else if (c == '"') {
+        this.out.write('"');
+      }
+      this.out.write(c);
+      return this;
+    }
+  }
+}
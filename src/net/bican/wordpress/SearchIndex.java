@@ -0,0 +1,761 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bican.wordpress.PrefetchingIterable.PrefetchingIterator;
+import redstone.xmlrpc.XmlRpcFault;
+
+/**
+ * A local full-text index of the published posts of a blog, to search
+ * without sending queries to the blog. The title, the excerpt, the content
+ * without its HTML and the public custom fields of each post are indexed.
+ * 
+ * <p>
+ * Queries match the posts that have all of their words, and quoted phrases
+ * as consecutive words; hits are ranked by BM25. The index is kept in
+ * memory mapped segment files with delta and variable length encoded
+ * postings, and is brought up to date by {@link #sync(boolean)}, which
+ * only fetches the posts modified since the previous sync. Searches can
+ * run during a sync.
+ * 
+ * @author Can Bican
+ */
+public class SearchIndex {
+  /** default number of segments that makes a sync merge them into one */
+  public static final int DEFAULT_MERGE_THRESHOLD = 10;
+  /** default number of posts indexed in memory before writing a segment */
+  public static final int DEFAULT_MAX_BUFFERED_DOCS = 5000;
+  /** name of the manifest file in the index directory */
+  public static final String MANIFEST = "manifest"; //$NON-NLS-1$
+  
+  private static final Logger logger = LoggerFactory
+      .getLogger(SearchIndex.class);
+  private static final long WATERMARK_SKEW = TimeUnit.MINUTES.toMillis(10);
+  private static final int FIELD_GAP = 100;
+  private static final int MAX_TERM_LENGTH = 64;
+  private static final double K1 = 1.2;
+  private static final double B = 0.75;
+  private static final Pattern SCRIPT = Pattern.compile(
+      "<(script|style)\\b.*?</\\1\\s*>", //$NON-NLS-1$
+      Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+  private static final Pattern TAG = Pattern.compile("<[^>]*>"); //$NON-NLS-1$
+  private static final Pattern ENTITY = Pattern
+      .compile("&(#[0-9]+|#[xX][0-9a-fA-F]+|[a-zA-Z]+);"); //$NON-NLS-1$
+  private static final Pattern CLAUSE = Pattern
+      .compile("\"([^\"]*)\"?|(\\S+)"); //$NON-NLS-1$
+  
+  /**
+   * A matching post
+   */
+  public static class Hit {
+    private final Integer postId;
+    private final double score;
+    
+    Hit(final int postId, final double score) {
+      this.postId = Integer.valueOf(postId);
+      this.score = score;
+    }
+    
+    /**
+     * @return the id of the post
+     */
+    public Integer getPostId() {
+      return this.postId;
+    }
+    
+    /**
+     * @return the BM25 score of the post for the query
+     */
+    public double getScore() {
+      return this.score;
+    }
+    
+    @Override
+    public String toString() {
+      return this.postId + " " + this.score; //$NON-NLS-1$
+    }
+  }
+  
+  /**
+   * Where the indexed version of a post is
+   */
+  private static class Location {
+    final SearchSegment segment;
+    final int doc;
+    
+    Location(final SearchSegment segment, final int doc) {
+      this.segment = segment;
+      this.doc = doc;
+    }
+  }
+  
+  private final Wordpress wp;
+  private final File directory;
+  private int mergeThreshold = DEFAULT_MERGE_THRESHOLD;
+  private int maxBufferedDocs = DEFAULT_MAX_BUFFERED_DOCS;
+  
+  private volatile List<SearchSegment> segments = null;
+  // guarded by this
+  private final Map<Integer, Location> locations = new HashMap<>();
+  private long watermark = 0;
+  private int nextSegment = 1;
+  
+  /**
+   * @param wp
+   *          wordpress connection to sync from
+   * @param directory
+   *          directory of the index, created if needed
+   */
+  public SearchIndex(final Wordpress wp, final File directory) {
+    this.wp = wp;
+    this.directory = directory;
+  }
+  
+  /**
+   * @param mergeThreshold
+   *          the number of segments that makes a sync merge them into one
+   */
+  public void setMergeThreshold(final int mergeThreshold) {
+    if (mergeThreshold < 2) {
+      throw new IllegalArgumentException();
+    }
+    this.mergeThreshold = mergeThreshold;
+  }
+  
+  /**
+   * @param maxBufferedDocs
+   *          the number of posts indexed in memory before a segment is
+   *          written
+   */
+  public void setMaxBufferedDocs(final int maxBufferedDocs) {
+    if (maxBufferedDocs < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.maxBufferedDocs = maxBufferedDocs;
+  }
+  
+  /**
+   * @return the number of posts in the index
+   * @throws IOException
+   *           if the index cannot be read
+   */
+  public int size() throws IOException {
+    int result = 0;
+    for (final SearchSegment s : segments()) {
+      result += s.getLiveDocs();
+    }
+    return result;
+  }
+  
+  private List<SearchSegment> segments() throws IOException {
+    List<SearchSegment> result = this.segments;
+    if (result == null) {
+      synchronized (this) {
+        load();
+        result = this.segments;
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Brings the index up to date with the blog. An incremental sync only
+   * fetches the posts modified since the previous one, newest first; a full
+   * sync fetches all posts, and also removes the ones that were deleted
+   * from the blog.
+   * 
+   * @param full
+   *          to fetch all posts
+   * @return the number of posts "indexed", "removed" and "unchanged"
+   * @throws IOException
+   *           if the index cannot be read or written
+   * @throws XmlRpcFault
+   *           if the post types cannot be listed
+   */
+  @SuppressWarnings("nls")
+  public synchronized Map<String, Integer> sync(final boolean full)
+      throws IOException, XmlRpcFault {
+    load();
+    final Map<SearchSegment, BitSet> deletes = new HashMap<>();
+    final Set<Integer> seen = new HashSet<>();
+    final List<File> written = new ArrayList<>();
+    int indexed = 0;
+    int unchanged = 0;
+    int removed = 0;
+    long newWatermark = this.watermark;
+    Builder builder = new Builder();
+    for (final PostType type : this.wp.getPostTypes()) {
+      if ("attachment".equals(type.getName())) {
+        continue;
+      }
+      final FilterPost filter = new FilterPost();
+      filter.setPost_type(type.getName());
+      filter.setPost_status("any");
+      filter.setOrderby("modified");
+      filter.setOrder("DESC");
+      try (PrefetchingIterator<Post> it = this.wp.iteratePosts(filter)
+          .iterator()) {
+        while (it.hasNext()) {
+          final Post p = it.next();
+          final long modified = p.getPost_modified_gmt() != null
+              ? p.getPost_modified_gmt().getTime() : 0;
+          if (!full && modified < this.watermark - WATERMARK_SKEW) {
+            break; // the rest are older
+          }
+          newWatermark = Math.max(newWatermark, modified);
+          final Integer id = p.getPost_id();
+          if (!seen.add(id)) {
+            continue;
+          }
+          final boolean publish = "publish".equals(p.getPost_status());
+          final Location l = this.locations.get(id);
+          if (l != null) {
+            if (publish && l.segment.getModified(l.doc) == modified) {
+              unchanged++;
+              continue;
+            }
+            delete(deletes, l);
+            if (!publish) {
+              removed++;
+            }
+          }
+          if (publish) {
+            builder.add(p, modified);
+            indexed++;
+            if (builder.size() >= this.maxBufferedDocs) {
+              written.add(builder.write(allocateSegment()));
+              builder = new Builder();
+            }
+          }
+        }
+      }
+    }
+    if (full) {
+      for (final Map.Entry<Integer, Location> e : this.locations.entrySet()) {
+        if (!seen.contains(e.getKey())) {
+          delete(deletes, e.getValue());
+          removed++;
+        }
+      }
+    }
+    if (builder.size() > 0) {
+      written.add(builder.write(allocateSegment()));
+    }
+    // the new segments are complete before the old docs are deleted, and
+    // they are only used once the manifest lists them
+    for (final Map.Entry<SearchSegment, BitSet> e : deletes.entrySet()) {
+      e.getKey().delete(e.getValue());
+    }
+    final List<SearchSegment> result = new ArrayList<>(this.segments);
+    for (final File f : written) {
+      final SearchSegment s = new SearchSegment(f);
+      result.add(s);
+      for (int d = 0; d < s.getDocCount(); d++) {
+        this.locations.put(Integer.valueOf(s.getPostId(d)),
+            new Location(s, d));
+      }
+    }
+    this.locations.keySet().retainAll(live(result));
+    this.watermark = newWatermark;
+    this.segments = Collections.unmodifiableList(result);
+    writeManifest();
+    if (this.segments.size() >= this.mergeThreshold) {
+      merge();
+    }
+    final Map<String, Integer> counts = new TreeMap<>();
+    counts.put("indexed", Integer.valueOf(indexed));
+    counts.put("removed", Integer.valueOf(removed));
+    counts.put("unchanged", Integer.valueOf(unchanged));
+    logger.info("synced search index: {}", counts);
+    return counts;
+  }
+  
+  private static Set<Integer> live(final List<SearchSegment> segments) {
+    final Set<Integer> result = new HashSet<>();
+    for (final SearchSegment s : segments) {
+      for (int d = 0; d < s.getDocCount(); d++) {
+        if (!s.isDeleted(d)) {
+          result.add(Integer.valueOf(s.getPostId(d)));
+        }
+      }
+    }
+    return result;
+  }
+  
+  private static void delete(final Map<SearchSegment, BitSet> deletes,
+      final Location l) {
+    BitSet docs = deletes.get(l.segment);
+    if (docs == null) {
+      docs = new BitSet();
+      deletes.put(l.segment, docs);
+    }
+    docs.set(l.doc);
+  }
+  
+  /**
+   * Merges all segments into one, leaving the deleted docs out.
+   * 
+   * @throws IOException
+   *           if the index cannot be read or written
+   */
+  public synchronized void merge() throws IOException {
+    load();
+    final List<SearchSegment> merging = this.segments;
+    if (merging.size() < 2) {
+      return;
+    }
+    final File file = allocateSegment();
+    final int[][] remap = new int[merging.size()][];
+    int docs = 0;
+    for (int i = 0; i < merging.size(); i++) {
+      docs += merging.get(i).getLiveDocs();
+    }
+    final Set<String> terms = new TreeSet<>();
+    try (SearchSegment.Writer w = new SearchSegment.Writer(file, docs)) {
+      int next = 0;
+      for (int i = 0; i < merging.size(); i++) {
+        final SearchSegment s = merging.get(i);
+        remap[i] = new int[s.getDocCount()];
+        for (int d = 0; d < s.getDocCount(); d++) {
+          if (s.isDeleted(d)) {
+            remap[i][d] = -1;
+          } else {
+            w.addDoc(s.getPostId(d), s.getLength(d), s.getModified(d));
+            remap[i][d] = next++;
+          }
+        }
+        terms.addAll(s.terms());
+      }
+      for (final String term : terms) {
+        final List<Integer> termDocs = new ArrayList<>();
+        final List<int[]> positions = new ArrayList<>();
+        for (int i = 0; i < merging.size(); i++) {
+          final SearchSegment.Postings p = merging.get(i).postings(term);
+          if (p == null) {
+            continue;
+          }
+          int d;
+          while ((d = p.next()) >= 0) {
+            if (remap[i][d] >= 0) {
+              termDocs.add(Integer.valueOf(remap[i][d]));
+              positions.add(p.positions());
+            }
+          }
+        }
+        w.addTerm(term, termDocs, positions);
+      }
+    }
+    final SearchSegment merged = new SearchSegment(file);
+    this.locations.clear();
+    for (int d = 0; d < merged.getDocCount(); d++) {
+      this.locations.put(Integer.valueOf(merged.getPostId(d)),
+          new Location(merged, d));
+    }
+    this.segments = Collections.singletonList(merged);
+    writeManifest();
+    // searches that still use the old segments keep their mappings
+    for (final SearchSegment s : merging) {
+      if (!s.remove()) {
+        logger.warn("cannot remove {}", s.getFile()); //$NON-NLS-1$
+      }
+    }
+  }
+  
+  /**
+   * Searches the index. Words are matched case insensitively, and
+   * <code>"quoted words"</code> as a phrase.
+   * 
+   * @param query
+   *          words and phrases that all have to match
+   * @param limit
+   *          maximum number of hits
+   * @return the best hits, best first
+   * @throws IOException
+   *           if the index cannot be read
+   */
+  public List<Hit> search(final String query, final int limit)
+      throws IOException {
+    final List<List<String>> clauses = new ArrayList<>();
+    final Set<String> words = new LinkedHashSet<>();
+    final Matcher m = CLAUSE.matcher(query);
+    while (m.find()) {
+      final List<String> clause = new ArrayList<>();
+      analyze(m.group(1) != null ? m.group(1) : m.group(2), 0,
+          (term, position) -> clause.add(term));
+      if (!clause.isEmpty()) {
+        clauses.add(clause);
+        words.addAll(clause);
+      }
+    }
+    final List<SearchSegment> segs = segments();
+    if (clauses.isEmpty() || limit < 1) {
+      return Collections.emptyList();
+    }
+    long docs = 0;
+    long length = 0;
+    for (final SearchSegment s : segs) {
+      docs += s.getLiveDocs();
+      length += s.getLiveLength();
+    }
+    if (docs == 0) {
+      return Collections.emptyList();
+    }
+    final double avgLength = (double) length / docs;
+    final Map<String, Double> idf = new HashMap<>();
+    for (final String w : words) {
+      int df = 0;
+      for (final SearchSegment s : segs) {
+        df += s.docFreq(w);
+      }
+      idf.put(w, Double.valueOf(Math.log(1 + (docs - df + 0.5) / (df + 0.5))));
+    }
+    final PriorityQueue<Hit> top = new PriorityQueue<>(limit + 1,
+        (a, b) -> Double.compare(a.getScore(), b.getScore()));
+    for (final SearchSegment s : segs) {
+      searchSegment(s, clauses, words, idf, avgLength, top, limit);
+    }
+    final List<Hit> result = new ArrayList<>(top);
+    result.sort((a, b) -> Double.compare(b.getScore(), a.getScore()));
+    return result;
+  }
+  
+  private static void searchSegment(final SearchSegment s,
+      final List<List<String>> clauses, final Set<String> words,
+      final Map<String, Double> idf, final double avgLength,
+      final PriorityQueue<Hit> top, final int limit) {
+    final Map<String, Map<Integer, int[]>> postings = new HashMap<>();
+    Map<Integer, int[]> rarest = null;
+    for (final String w : words) {
+      final SearchSegment.Postings p = s.postings(w);
+      if (p == null) {
+        return; // all words have to match
+      }
+      final Map<Integer, int[]> docs = new HashMap<>();
+      int d;
+      while ((d = p.next()) >= 0) {
+        if (!s.isDeleted(d)) {
+          docs.put(Integer.valueOf(d), p.positions());
+        }
+      }
+      postings.put(w, docs);
+      if (rarest == null || docs.size() < rarest.size()) {
+        rarest = docs;
+      }
+    }
+    candidates: for (final Integer doc : rarest.keySet()) {
+      for (final List<String> clause : clauses) {
+        if (!matches(postings, clause, doc)) {
+          continue candidates;
+        }
+      }
+      final double norm = K1
+          * (1 - B + B * s.getLength(doc.intValue()) / avgLength);
+      double score = 0;
+      for (final String w : words) {
+        final int tf = postings.get(w).get(doc).length;
+        score += idf.get(w).doubleValue() * tf * (K1 + 1) / (tf + norm);
+      }
+      top.add(new Hit(s.getPostId(doc.intValue()), score));
+      if (top.size() > limit) {
+        top.poll();
+      }
+    }
+  }
+  
+  /**
+   * @return if the doc has all words of the clause, one after the other
+   */
+  private static boolean matches(
+      final Map<String, Map<Integer, int[]>> postings,
+      final List<String> clause, final Integer doc) {
+    final int[] first = postings.get(clause.get(0)).get(doc);
+    if (first == null) {
+      return false;
+    }
+    final List<int[]> rest = new ArrayList<>();
+    for (int i = 1; i < clause.size(); i++) {
+      final int[] p = postings.get(clause.get(i)).get(doc);
+      if (p == null) {
+        return false;
+      }
+      rest.add(p);
+    }
+    starts: for (final int start : first) {
+      for (int i = 0; i < rest.size(); i++) {
+        if (Arrays.binarySearch(rest.get(i), start + i + 1) < 0) {
+          continue starts;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Receives the terms of a text
+   */
+  @FunctionalInterface
+  interface TermConsumer {
+    void accept(String term, int position);
+  }
+  
+  /**
+   * Splits a text into lower case words of letters and digits.
+   * 
+   * @return the position after the last word
+   */
+  static int analyze(final String text, final int start,
+      final TermConsumer consumer) {
+    int position = start;
+    final StringBuilder word = new StringBuilder();
+    final int length = text.length();
+    for (int i = 0; i <= length;) {
+      final int c = i < length ? text.codePointAt(i) : ' ';
+      if (Character.isLetterOrDigit(c)) {
+        word.appendCodePoint(Character.toLowerCase(c));
+      } else if (word.length() > 0) {
+        if (word.length() <= MAX_TERM_LENGTH) {
+          consumer.accept(word.toString(), position++);
+        }
+        word.setLength(0);
+      }
+      i += Character.charCount(c);
+    }
+    return position;
+  }
+  
+  /**
+   * @return the text of an HTML fragment
+   */
+  @SuppressWarnings("nls")
+  static String stripHtml(final String html) {
+    final String text = TAG.matcher(SCRIPT.matcher(html).replaceAll(" "))
+        .replaceAll(" ");
+    final Matcher m = ENTITY.matcher(text);
+    final StringBuffer result = new StringBuffer(text.length());
+    while (m.find()) {
+      final String e = m.group(1);
+      String r;
+      try {
+        if (e.startsWith("#x") || e.startsWith("#X")) {
+          r = new String(Character.toChars(Integer.parseInt(e.substring(2),
+              16)));
+        } else if (e.startsWith("#")) {
+          r = new String(Character.toChars(Integer.parseInt(e.substring(1))));
+        } else {
+          switch (e) {
+            case "amp":
+              r = "&";
+              break;
+            case "lt":
+              r = "<";
+              break;
+            case "gt":
+              r = ">";
+              break;
+            case "quot":
+              r = "\"";
+              break;
+            case "apos":
+              r = "'";
+              break;
+            default:
+              r = " ";
+          }
+        }
+      } catch (final IllegalArgumentException ex) {
+        r = " ";
+      }
+      m.appendReplacement(result, Matcher.quoteReplacement(r));
+    }
+    m.appendTail(result);
+    return result.toString();
+  }
+  
+  /**
+   * Inverts the posts of a segment in memory
+   */
+  private static class Builder {
+    private final List<int[]> docs = new ArrayList<>();
+    private final List<Long> modified = new ArrayList<>();
+    private final Map<String, List<Integer>> termDocs = new TreeMap<>();
+    private final Map<String, List<int[]>> termPositions = new HashMap<>();
+    
+    int size() {
+      return this.docs.size();
+    }
+    
+    void add(final Post p, final long postModified) {
+      final int doc = this.docs.size();
+      final Map<String, List<Integer>> positions = new HashMap<>();
+      final TermConsumer c = (term, position) -> {
+        List<Integer> l = positions.get(term);
+        if (l == null) {
+          l = new ArrayList<>();
+          positions.put(term, l);
+        }
+        l.add(Integer.valueOf(position));
+      };
+      int position = 0;
+      final List<String> fields = new ArrayList<>();
+      fields.add(p.getPost_title());
+      fields.add(p.getPost_excerpt());
+      fields.add(p.getPost_content() != null
+          ? stripHtml(p.getPost_content()) : null);
+      if (p.getCustom_fields() != null) {
+        for (final CustomField f : p.getCustom_fields()) {
+          if (f.key != null && !f.key.startsWith("_")) { //$NON-NLS-1$
+            fields.add(f.value);
+          }
+        }
+      }
+      int length = 0;
+      for (final String field : fields) {
+        if (field != null) {
+          final int end = analyze(field, position, c);
+          length += end - position;
+          position = end + FIELD_GAP; // phrases do not span fields
+        }
+      }
+      this.docs.add(new int[] { p.getPost_id().intValue(), length });
+      this.modified.add(Long.valueOf(postModified));
+      for (final Map.Entry<String, List<Integer>> e : positions.entrySet()) {
+        List<Integer> d = this.termDocs.get(e.getKey());
+        if (d == null) {
+          d = new ArrayList<>();
+          this.termDocs.put(e.getKey(), d);
+          this.termPositions.put(e.getKey(), new ArrayList<int[]>());
+        }
+        d.add(Integer.valueOf(doc));
+        final int[] a = new int[e.getValue().size()];
+        for (int i = 0; i < a.length; i++) {
+          a[i] = e.getValue().get(i).intValue();
+        }
+        this.termPositions.get(e.getKey()).add(a);
+      }
+    }
+    
+    File write(final File file) throws IOException {
+      try (SearchSegment.Writer w = new SearchSegment.Writer(file,
+          this.docs.size())) {
+        for (int i = 0; i < this.docs.size(); i++) {
+          w.addDoc(this.docs.get(i)[0], this.docs.get(i)[1],
+              this.modified.get(i).longValue());
+        }
+        for (final Map.Entry<String, List<Integer>> e : this.termDocs
+            .entrySet()) {
+          w.addTerm(e.getKey(), e.getValue(),
+              this.termPositions.get(e.getKey()));
+        }
+      }
+      return file;
+    }
+  }
+  
+  private File allocateSegment() throws IOException {
+    if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+      throw new IOException("cannot create " + this.directory); //$NON-NLS-1$
+    }
+    return new File(this.directory, String.format("segment-%06d.idx", //$NON-NLS-1$
+        Integer.valueOf(this.nextSegment++)));
+  }
+  
+  /**
+   * Manifest lines are "watermark millis", "next number" and "segment
+   * name".
+   */
+  @SuppressWarnings("nls")
+  private void load() throws IOException {
+    if (this.segments != null) {
+      return;
+    }
+    final List<SearchSegment> result = new ArrayList<>();
+    final File file = new File(this.directory, MANIFEST);
+    if (file.exists()) {
+      try (BufferedReader r = new BufferedReader(new InputStreamReader(
+          new FileInputStream(file), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = r.readLine()) != null) {
+          final String[] f = line.split("\t");
+          if (f.length != 2) {
+            continue;
+          }
+          if (f[0].equals("watermark")) {
+            this.watermark = Long.parseLong(f[1]);
+          } else if (f[0].equals("next")) {
+            this.nextSegment = Integer.parseInt(f[1]);
+          } else if (f[0].equals("segment")) {
+            result.add(new SearchSegment(new File(this.directory, f[1])));
+          }
+        }
+      }
+    }
+    for (final SearchSegment s : result) {
+      for (int d = 0; d < s.getDocCount(); d++) {
+        if (!s.isDeleted(d)) {
+          this.locations.put(Integer.valueOf(s.getPostId(d)),
+              new Location(s, d));
+        }
+      }
+    }
+    this.segments = Collections.unmodifiableList(result);
+  }
+  
+  @SuppressWarnings("nls")
+  private void writeManifest() throws IOException {
+    final File temp = File.createTempFile(MANIFEST, null, this.directory);
+    try {
+      try (Writer w = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+        w.write("watermark\t" + this.watermark + "\n");
+        w.write("next\t" + this.nextSegment + "\n");
+        for (final SearchSegment s : this.segments) {
+          w.write("segment\t" + s.getFile().getName() + "\n");
+        }
+      }
+      Files.move(temp.toPath(), new File(this.directory, MANIFEST).toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      temp.delete();
+    }
+  }
+}
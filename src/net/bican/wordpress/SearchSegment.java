@@ -0,0 +1,375 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * An immutable part of a search index, read through a memory mapping. Doc
+ * numbers are local to the segment; a set of deleted docs is kept next to
+ * it and replaced when docs are deleted.
+ * 
+ * <pre>
+ * segment  := header docs postings terms term-index
+ * header   := magic:int docs:int terms:int postings:long terms:long
+ *             term-index:long
+ * docs     := (post-id:int length:int modified:long)*
+ * postings := (doc-delta:varint tf:varint position-delta:varint*)* per term
+ * terms    := (length:varint utf-8)*
+ * term-index := (term-offset:int postings-offset:long doc-freq:int)*
+ * </pre>
+ * 
+ * @author Can Bican
+ */
+class SearchSegment {
+  private static final int MAGIC = 0x57505358;
+  private static final int HEADER = 4 + 4 + 4 + 8 + 8 + 8;
+  private static final int DOC = 4 + 4 + 8;
+  private static final int TERM = 4 + 8 + 4;
+  
+  private final File file;
+  private final MappedByteBuffer map;
+  private final int docCount;
+  private final int termCount;
+  private final long postingsOffset;
+  private final long termsOffset;
+  private final long termIndexOffset;
+  private volatile BitSet deleted;
+  private volatile int liveDocs;
+  private volatile long liveLength;
+  
+  /**
+   * Maps a segment file, and reads its deleted docs
+   */
+  SearchSegment(final File file) throws IOException {
+    this.file = file;
+    try (RandomAccessFile f = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        FileChannel channel = f.getChannel()) {
+      this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+    }
+    if (this.map.getInt(0) != MAGIC) {
+      throw new IOException("not a search segment " + file); //$NON-NLS-1$
+    }
+    this.docCount = this.map.getInt(4);
+    this.termCount = this.map.getInt(8);
+    this.postingsOffset = this.map.getLong(12);
+    this.termsOffset = this.map.getLong(20);
+    this.termIndexOffset = this.map.getLong(28);
+    final File deletes = deletesFile(file);
+    setDeleted(deletes.exists()
+        ? BitSet.valueOf(Files.readAllBytes(deletes.toPath())) : new BitSet());
+  }
+  
+  private static File deletesFile(final File segment) {
+    return new File(segment.getPath() + ".del"); //$NON-NLS-1$
+  }
+  
+  File getFile() {
+    return this.file;
+  }
+  
+  int getDocCount() {
+    return this.docCount;
+  }
+  
+  int getPostId(final int doc) {
+    return this.map.getInt(HEADER + doc * DOC);
+  }
+  
+  int getLength(final int doc) {
+    return this.map.getInt(HEADER + doc * DOC + 4);
+  }
+  
+  long getModified(final int doc) {
+    return this.map.getLong(HEADER + doc * DOC + 8);
+  }
+  
+  boolean isDeleted(final int doc) {
+    return this.deleted.get(doc);
+  }
+  
+  int getLiveDocs() {
+    return this.liveDocs;
+  }
+  
+  long getLiveLength() {
+    return this.liveLength;
+  }
+  
+  private void setDeleted(final BitSet deleted) {
+    long length = 0;
+    for (int d = 0; d < this.docCount; d++) {
+      if (!deleted.get(d)) {
+        length += getLength(d);
+      }
+    }
+    this.deleted = deleted;
+    this.liveDocs = this.docCount - deleted.cardinality();
+    this.liveLength = length;
+  }
+  
+  /**
+   * Marks docs deleted, and replaces the file of deleted docs atomically
+   */
+  synchronized void delete(final BitSet docs) throws IOException {
+    final BitSet result = (BitSet) this.deleted.clone();
+    result.or(docs);
+    final File target = deletesFile(this.file);
+    final File temp = new File(target.getPath() + ".tmp"); //$NON-NLS-1$
+    Files.write(temp.toPath(), result.toByteArray());
+    Files.move(temp.toPath(), target.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    setDeleted(result);
+  }
+  
+  /**
+   * Removes the files of the segment
+   */
+  boolean remove() {
+    deletesFile(this.file).delete();
+    return this.file.delete();
+  }
+  
+  private String term(final int i) {
+    final int[] pos = {
+        (int) (this.termsOffset + this.map.getInt((int) this.termIndexOffset
+            + i * TERM)) };
+    final int length = readVInt(this.map, pos);
+    final byte[] b = new byte[length];
+    for (int j = 0; j < length; j++) {
+      b[j] = this.map.get(pos[0] + j);
+    }
+    return new String(b, StandardCharsets.UTF_8);
+  }
+  
+  private int find(final String term) {
+    int low = 0;
+    int high = this.termCount - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int c = term(mid).compareTo(term);
+      if (c < 0) {
+        low = mid + 1;
+      } else if (c > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+  
+  /**
+   * @return the number of docs, deleted ones included, that have the term
+   */
+  int docFreq(final String term) {
+    final int i = find(term);
+    return i < 0 ? 0
+        : this.map.getInt((int) this.termIndexOffset + i * TERM + 12);
+  }
+  
+  /**
+   * @return the terms in order
+   */
+  List<String> terms() {
+    final List<String> result = new ArrayList<>(this.termCount);
+    for (int i = 0; i < this.termCount; i++) {
+      result.add(term(i));
+    }
+    return result;
+  }
+  
+  /**
+   * Postings of a term, decoded lazily
+   */
+  class Postings {
+    private final int[] pos;
+    private int left;
+    private int doc = -1;
+    private int[] positions = new int[0];
+    
+    Postings(final int term) {
+      final int at = (int) SearchSegment.this.termIndexOffset + term * TERM;
+      this.pos = new int[] { (int) (SearchSegment.this.postingsOffset
+          + SearchSegment.this.map.getLong(at + 4)) };
+      this.left = SearchSegment.this.map.getInt(at + 12);
+    }
+    
+    /**
+     * @return the next doc, deleted ones included, or -1 at the end
+     */
+    int next() {
+      if (this.left == 0) {
+        return -1;
+      }
+      this.left--;
+      final ByteBuffer m = SearchSegment.this.map;
+      this.doc += readVInt(m, this.pos);
+      final int tf = readVInt(m, this.pos);
+      this.positions = new int[tf];
+      int p = 0;
+      for (int i = 0; i < tf; i++) {
+        p += readVInt(m, this.pos);
+        this.positions[i] = p;
+      }
+      return this.doc;
+    }
+    
+    int[] positions() {
+      return this.positions;
+    }
+  }
+  
+  /**
+   * @return the postings of a term, or null if no doc has it
+   */
+  Postings postings(final String term) {
+    final int i = find(term);
+    return i < 0 ? null : new Postings(i);
+  }
+  
+  static int readVInt(final ByteBuffer b, final int[] pos) {
+    int result = 0;
+    int shift = 0;
+    byte v;
+    do {
+      v = b.get(pos[0]++);
+      result |= (v & 0x7f) << shift;
+      shift += 7;
+    } while (v < 0);
+    return result;
+  }
+  
+  static void writeVInt(final ByteArrayOutputStream out, final int value) {
+    int v = value;
+    while ((v & ~0x7f) != 0) {
+      out.write((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+  
+  /**
+   * Writes a segment: all docs first, then the terms in order with their
+   * postings.
+   */
+  static class Writer implements AutoCloseable {
+    private final File file;
+    private final RandomAccessFile out;
+    private final int docCount;
+    private int docs = 0;
+    private long postings = -1;
+    private String last = null;
+    private final ByteArrayOutputStream terms = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private int termCount = 0;
+    
+    Writer(final File file, final int docCount) throws IOException {
+      this.file = file;
+      this.out = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+      this.out.setLength(0);
+      this.out.seek(HEADER);
+      this.docCount = docCount;
+    }
+    
+    void addDoc(final int postId, final int length, final long modified)
+        throws IOException {
+      this.out.writeInt(postId);
+      this.out.writeInt(length);
+      this.out.writeLong(modified);
+      this.docs++;
+    }
+    
+    /**
+     * Adds the postings of a term, docs in increasing order
+     */
+    void addTerm(final String term, final List<Integer> docs,
+        final List<int[]> positions) throws IOException {
+      if (this.docs != this.docCount) {
+        throw new IllegalStateException("docs are not all added"); //$NON-NLS-1$
+      }
+      if (this.last != null && this.last.compareTo(term) >= 0) {
+        throw new IllegalArgumentException("terms out of order"); //$NON-NLS-1$
+      }
+      if (docs.isEmpty()) {
+        return;
+      }
+      this.last = term;
+      if (this.postings < 0) {
+        this.postings = this.out.getFilePointer();
+      }
+      final long offset = this.out.getFilePointer() - this.postings;
+      this.buffer.reset();
+      int previous = -1;
+      for (int i = 0; i < docs.size(); i++) {
+        final int doc = docs.get(i).intValue();
+        writeVInt(this.buffer, doc - previous);
+        previous = doc;
+        final int[] p = positions.get(i);
+        writeVInt(this.buffer, p.length);
+        int prev = 0;
+        for (final int position : p) {
+          writeVInt(this.buffer, position - prev);
+          prev = position;
+        }
+      }
+      this.out.write(this.buffer.toByteArray());
+      final int termOffset = this.terms.size();
+      final byte[] b = term.getBytes(StandardCharsets.UTF_8);
+      writeVInt(this.terms, b.length);
+      this.terms.write(b, 0, b.length);
+      final ByteBuffer entry = ByteBuffer.allocate(TERM);
+      entry.putInt(termOffset).putLong(offset).putInt(docs.size());
+      this.index.write(entry.array(), 0, TERM);
+      this.termCount++;
+    }
+    
+    @Override
+    public void close() throws IOException {
+      try {
+        if (this.postings < 0) {
+          this.postings = this.out.getFilePointer();
+        }
+        final long termsOffset = this.out.getFilePointer();
+        this.out.write(this.terms.toByteArray());
+        final long indexOffset = this.out.getFilePointer();
+        this.out.write(this.index.toByteArray());
+        this.out.seek(0);
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(this.docs);
+        this.out.writeInt(this.termCount);
+        this.out.writeLong(this.postings);
+        this.out.writeLong(termsOffset);
+        this.out.writeLong(indexOffset);
+        this.out.getFD().sync();
+      } finally {
+        this.out.close();
+      }
+    }
+    
+    File getFile() {
+      return this.file;
+    }
+  }
+}
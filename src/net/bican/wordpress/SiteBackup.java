@@ -0,0 +1,1110 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bican.wordpress.BackupSegment.Record;
+import net.bican.wordpress.exceptions.ObjectNotFoundException;
+import redstone.xmlrpc.XmlRpcFault;
+
+/**
+ * Incremental backups of a blog into a directory of segment files. Each
+ * backup is a numbered snapshot, and writes a new segment with only the
+ * posts, comments, terms, users, options and media items whose content
+ * fingerprint changed since the previous backup, plus a deletion mark for
+ * each object that is gone. Hourly backups of a quiet blog are therefore
+ * small and quick to write.
+ * 
+ * <p>
+ * Any retained snapshot can be read back, or restored into a blog. The
+ * compactor merges the segments into one, and drops the versions that only
+ * older snapshots than the retained ones need; it can be run in the
+ * background while backups are taken.
+ * 
+ * <p>
+ * Media files themselves are not backed up, only their metadata.
+ * 
+ * @author Can Bican
+ */
+public class SiteBackup {
+  /** default uncompressed size of a block of records */
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+  /** default number of segments that makes the background compactor run */
+  public static final int DEFAULT_COMPACTION_THRESHOLD = 8;
+  /** name of the catalog file in the backup directory */
+  public static final String CATALOG = "catalog"; //$NON-NLS-1$
+  /** name of the file that holds the latest fingerprints */
+  public static final String FINGERPRINTS = "fingerprints"; //$NON-NLS-1$
+  
+  private static final Logger logger = LoggerFactory
+      .getLogger(SiteBackup.class);
+  
+  /**
+   * Kinds of objects that are backed up
+   */
+  public enum Kind {
+    /** posts and pages, and other post types but attachments */
+    POST(Post.class),
+    /** comments */
+    COMMENT(Comment.class),
+    /** terms of all taxonomies */
+    TERM(Term.class),
+    /** users */
+    USER(User.class),
+    /** blog options */
+    OPTION(Option.class),
+    /** media item metadata */
+    MEDIA(MediaItem.class);
+    
+    final Class<? extends XmlRpcMapped> type;
+    
+    Kind(final Class<? extends XmlRpcMapped> type) {
+      this.type = type;
+    }
+  }
+  
+  /**
+   * A backup that was taken
+   */
+  public static class Snapshot {
+    private final int number;
+    private final Date date;
+    private final int records;
+    
+    Snapshot(final int number, final Date date, final int records) {
+      this.number = number;
+      this.date = date;
+      this.records = records;
+    }
+    
+    /**
+     * @return the number of the snapshot, increasing from 1
+     */
+    public int getNumber() {
+      return this.number;
+    }
+    
+    /**
+     * @return the time the backup was taken
+     */
+    public Date getDate() {
+      return this.date;
+    }
+    
+    /**
+     * @return the number of changed or deleted objects it recorded
+     */
+    public int getRecords() {
+      return this.records;
+    }
+    
+    @Override
+    public String toString() {
+      return this.number + " " + this.date + " " + this.records; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+  }
+  
+  private enum Outcome {
+    CREATED, UPDATED, UNCHANGED, SKIPPED, FAILED
+  }
+  
+  private interface Task<T> {
+    Outcome restore(T item) throws Exception;
+  }
+  
+  private final Wordpress wp;
+  private final File directory;
+  private int blockSize = DEFAULT_BLOCK_SIZE;
+  private int threads = 4;
+  private int retainSnapshots = 0;
+  private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+  
+  // the catalog, guarded by this
+  private final List<Snapshot> snapshots = new ArrayList<>();
+  private final List<String> segments = new ArrayList<>();
+  private int nextSegment = 1;
+  
+  /** segments are only deleted under the write lock */
+  private final ReadWriteLock files = new ReentrantReadWriteLock();
+  private final Object compacting = new Object();
+  private ScheduledExecutorService compactor = null;
+  
+  /**
+   * @param wp
+   *          wordpress connection
+   * @param directory
+   *          directory of the backup, created if needed
+   */
+  public SiteBackup(final Wordpress wp, final File directory) {
+    this.wp = wp;
+    this.directory = directory;
+  }
+  
+  /**
+   * @param threads
+   *          the number of objects restored at the same time
+   */
+  public void setThreads(final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.threads = threads;
+  }
+  
+  /**
+   * @param blockSize
+   *          the uncompressed size of a block of records in new segments
+   */
+  public void setBlockSize(final int blockSize) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.blockSize = blockSize;
+  }
+  
+  /**
+   * @param retainSnapshots
+   *          the number of latest snapshots that compaction keeps, or 0 to
+   *          keep all of them
+   */
+  public void setRetainSnapshots(final int retainSnapshots) {
+    if (retainSnapshots < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.retainSnapshots = retainSnapshots;
+  }
+  
+  /**
+   * @param compactionThreshold
+   *          the number of segments that makes the background compactor
+   *          run
+   */
+  public void setCompactionThreshold(final int compactionThreshold) {
+    if (compactionThreshold < 2) {
+      throw new IllegalArgumentException();
+    }
+    this.compactionThreshold = compactionThreshold;
+  }
+  
+  /**
+   * @return the retained snapshots, oldest first
+   * @throws IOException
+   *           if the catalog cannot be read
+   */
+  public synchronized List<Snapshot> getSnapshots() throws IOException {
+    readCatalog();
+    return new ArrayList<>(this.snapshots);
+  }
+  
+  /**
+   * Takes a snapshot of the blog. If some kind of object cannot be listed,
+   * for example users without the rights to, the failure is logged and the
+   * objects of that kind are left as they were in the previous snapshot.
+   * 
+   * @return the new snapshot
+   * @throws IOException
+   *           if the backup cannot be written
+   * @throws XmlRpcFault
+   *           if the post types or the taxonomies cannot be listed
+   */
+  @SuppressWarnings("nls")
+  public Snapshot backup() throws IOException, XmlRpcFault {
+    if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+      throw new IOException("cannot create " + this.directory);
+    }
+    final int number;
+    final String name;
+    synchronized (this) {
+      readCatalog();
+      number = this.snapshots.isEmpty() ? 1
+          : this.snapshots.get(this.snapshots.size() - 1).getNumber() + 1;
+      name = allocateSegment();
+    }
+    final Map<String, String> fingerprints = readFingerprints();
+    final Map<String, String> seen = new HashMap<>();
+    final Set<Kind> incomplete = EnumSet.noneOf(Kind.class);
+    final List<Record> changed = new ArrayList<>();
+    final Collector collector = new Collector(number, fingerprints, seen,
+        changed);
+    for (final PostType type : this.wp.getPostTypes()) {
+      if ("attachment".equals(type.getName())) {
+        continue; // backed up as media
+      }
+      final FilterPost filter = new FilterPost();
+      filter.setPost_type(type.getName());
+      filter.setPost_status("any");
+      collector.collect(Kind.POST, incomplete, this.wp.iteratePosts(filter),
+          p -> p.getPost_id());
+    }
+    collector.collect(Kind.COMMENT, incomplete,
+        this.wp.iterateComments(null, null), c -> c.getComment_id());
+    for (final Taxonomy taxonomy : this.wp.getTaxonomies()) {
+      collector.collect(Kind.TERM, incomplete,
+          this.wp.iterateTerms(taxonomy.getName(), null),
+          t -> t.getTerm_id());
+    }
+    collector.collect(Kind.USER, incomplete, this.wp.iterateUsers(null),
+        u -> u.getUser_id());
+    collector.collect(Kind.OPTION, incomplete, () -> {
+      try {
+        return this.wp.getOptions().iterator();
+      } catch (final XmlRpcFault e) {
+        throw new IllegalStateException(e);
+      }
+    }, o -> o.getName());
+    collector.collect(Kind.MEDIA, incomplete,
+        this.wp.iterateMediaLibrary(null), m -> m.getAttachment_id());
+    for (final String key : fingerprints.keySet()) {
+      final String[] k = key.split("\t", 2);
+      final Kind kind = Kind.valueOf(k[0]);
+      if (!incomplete.contains(kind) && !seen.containsKey(key)) {
+        changed.add(new Record(k[0], k[1], number, "", null));
+      }
+    }
+    Collections.sort(changed);
+    if (!changed.isEmpty()) {
+      writeSegment(name, changed);
+    }
+    final Snapshot result = new Snapshot(number, new Date(), changed.size());
+    synchronized (this) {
+      readCatalog();
+      this.snapshots.add(result);
+      if (!changed.isEmpty()) {
+        this.segments.add(name);
+      }
+      writeCatalog();
+    }
+    writeFingerprints(seen);
+    logger.info("snapshot {}: {} records", Integer.valueOf(number),
+        Integer.valueOf(changed.size()));
+    return result;
+  }
+  
+  /**
+   * Fingerprints the objects of a kind, and records the changed ones
+   */
+  private static class Collector {
+    private final int snapshot;
+    private final Map<String, String> fingerprints;
+    private final Map<String, String> seen;
+    private final List<Record> changed;
+    
+    Collector(final int snapshot, final Map<String, String> fingerprints,
+        final Map<String, String> seen, final List<Record> changed) {
+      this.snapshot = snapshot;
+      this.fingerprints = fingerprints;
+      this.seen = seen;
+      this.changed = changed;
+    }
+    
+    <T extends XmlRpcMapped> void collect(final Kind kind,
+        final Set<Kind> incomplete, final Iterable<T> objects,
+        final Function<T, Object> id) throws IOException {
+      try {
+        for (final T o : objects) {
+          final String i = String.valueOf(id.apply(o));
+          final byte[] data = BackupSegment.encode(o);
+          final String fingerprint = fingerprint(data);
+          final String key = Record.key(kind.name(), i);
+          this.seen.put(key, fingerprint);
+          if (!fingerprint.equals(this.fingerprints.get(key))) {
+            this.changed.add(
+                new Record(kind.name(), i, this.snapshot, fingerprint, data));
+          }
+        }
+      } catch (final RuntimeException e) {
+        logger.warn("cannot list {}: {}", kind, e.toString()); //$NON-NLS-1$
+        incomplete.add(kind);
+        // keep the previous versions of the objects not seen
+        for (final Map.Entry<String, String> f : this.fingerprints
+            .entrySet()) {
+          if (f.getKey().startsWith(kind.name() + '\t')) {
+            this.seen.putIfAbsent(f.getKey(), f.getValue());
+          }
+        }
+      }
+    }
+  }
+  
+  private static String fingerprint(final byte[] data) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-1").digest(data); //$NON-NLS-1$
+      final StringBuilder result = new StringBuilder();
+      for (final byte b : digest) {
+        result.append(Character.forDigit((b >> 4) & 0xf, 16))
+            .append(Character.forDigit(b & 0xf, 16));
+      }
+      return result.toString();
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  private void writeSegment(final String name, final List<Record> records)
+      throws IOException {
+    final File temp = new File(this.directory, name + ".tmp"); //$NON-NLS-1$
+    try {
+      try (BackupSegment.Writer w = new BackupSegment.Writer(temp,
+          this.blockSize)) {
+        for (final Record r : records) {
+          w.add(r);
+        }
+      }
+      Files.move(temp.toPath(), new File(this.directory, name).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temp.delete();
+    }
+  }
+  
+  /**
+   * @param snapshot
+   *          number of a retained snapshot
+   * @param kind
+   *          kind of the objects
+   * @return the objects of a kind as they were in the snapshot
+   * @throws IOException
+   *           if the backup cannot be read
+   */
+  public List<XmlRpcMapped> read(final int snapshot, final Kind kind)
+      throws IOException {
+    final List<XmlRpcMapped> result = new ArrayList<>();
+    for (final Record r : state(snapshot, kind).values()) {
+      result.add(BackupSegment.decode(r.data, kind.type));
+    }
+    return result;
+  }
+  
+  /**
+   * Finds a single object, reading only the blocks that can hold it.
+   * 
+   * @param snapshot
+   *          number of a retained snapshot
+   * @param kind
+   *          kind of the object
+   * @param id
+   *          id of the object, or the name of an option
+   * @return the object as it was in the snapshot, or null if it did not
+   *         exist
+   * @throws IOException
+   *           if the backup cannot be read
+   */
+  public XmlRpcMapped get(final int snapshot, final Kind kind,
+      final String id) throws IOException {
+    final List<String> names = segmentsFor(snapshot);
+    final String key = Record.key(kind.name(), id);
+    Record latest = null;
+    this.files.readLock().lock();
+    try {
+      for (final String name : names) {
+        for (final Record r : new BackupSegment(
+            new File(this.directory, name)).find(key)) {
+          if (r.snapshot <= snapshot
+              && (latest == null || r.snapshot > latest.snapshot)) {
+            latest = r;
+          }
+        }
+      }
+    } finally {
+      this.files.readLock().unlock();
+    }
+    return latest == null || latest.isDeleted() ? null
+        : BackupSegment.decode(latest.data, kind.type);
+  }
+  
+  /**
+   * @return the latest version of each object in a snapshot, deleted ones
+   *         left out, of one kind or of all if kind is null
+   */
+  private Map<String, Record> state(final int snapshot, final Kind kind)
+      throws IOException {
+    final List<String> names = segmentsFor(snapshot);
+    final Map<String, Record> result = new TreeMap<>();
+    this.files.readLock().lock();
+    try {
+      for (final String name : names) {
+        try (BackupSegment.RecordIterator it = new BackupSegment(
+            new File(this.directory, name)).iterator()) {
+          while (it.hasNext()) {
+            final Record r = it.next();
+            if (r.snapshot > snapshot
+                || (kind != null && !kind.name().equals(r.kind))) {
+              continue;
+            }
+            final Record known = result.get(r.key());
+            if (known == null || known.snapshot < r.snapshot) {
+              result.put(r.key(), r);
+            }
+          }
+        }
+      }
+    } finally {
+      this.files.readLock().unlock();
+    }
+    result.values().removeIf(Record::isDeleted);
+    return result;
+  }
+  
+  private synchronized List<String> segmentsFor(final int snapshot)
+      throws IOException {
+    readCatalog();
+    for (final Snapshot s : this.snapshots) {
+      if (s.getNumber() == snapshot) {
+        return new ArrayList<>(this.segments);
+      }
+    }
+    throw new IllegalArgumentException(
+        "no snapshot " + snapshot + " in " + this.directory); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+  
+  /**
+   * Merges all segments into one, and drops the snapshots that are not
+   * retained. Backups can be taken meanwhile; their segments are merged
+   * the next time.
+   * 
+   * @return the number of segments merged
+   * @throws IOException
+   *           if the backup cannot be read or written
+   */
+  public int compact() throws IOException {
+    synchronized (this.compacting) {
+      final List<String> merging;
+      final int oldest;
+      final String name;
+      synchronized (this) {
+        readCatalog();
+        merging = new ArrayList<>(this.segments);
+        final int n = this.snapshots.size();
+        oldest = this.retainSnapshots > 0 && n > this.retainSnapshots
+            ? this.snapshots.get(n - this.retainSnapshots).getNumber() : 0;
+        if (merging.size() < 2 && oldest == 0) {
+          return 0;
+        }
+        name = allocateSegment();
+      }
+      final File temp = new File(this.directory, name + ".tmp"); //$NON-NLS-1$
+      final List<BackupSegment.RecordIterator> iterators = new ArrayList<>();
+      try {
+        try (BackupSegment.Writer w = new BackupSegment.Writer(temp,
+            this.blockSize)) {
+          final PriorityQueue<Head> heads = new PriorityQueue<>();
+          for (final String s : merging) {
+            final BackupSegment.RecordIterator it = new BackupSegment(
+                new File(this.directory, s)).iterator();
+            iterators.add(it);
+            if (it.hasNext()) {
+              heads.add(new Head(it.next(), it));
+            }
+          }
+          final List<Record> group = new ArrayList<>();
+          while (!heads.isEmpty()) {
+            final Head h = heads.poll();
+            if (!group.isEmpty()
+                && !group.get(0).key().equals(h.record.key())) {
+              writeGroup(w, group, oldest);
+              group.clear();
+            }
+            group.add(h.record);
+            if (h.iterator.hasNext()) {
+              heads.add(new Head(h.iterator.next(), h.iterator));
+            }
+          }
+          writeGroup(w, group, oldest);
+        }
+        Files.move(temp.toPath(), new File(this.directory, name).toPath(),
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        for (final BackupSegment.RecordIterator it : iterators) {
+          it.close();
+        }
+        temp.delete();
+      }
+      this.files.writeLock().lock();
+      try {
+        synchronized (this) {
+          readCatalog();
+          this.segments.removeAll(merging);
+          this.segments.add(0, name);
+          this.snapshots.removeIf(s -> s.getNumber() < oldest);
+          writeCatalog();
+        }
+        for (final String s : merging) {
+          if (!new File(this.directory, s).delete()) {
+            logger.warn("cannot delete {}", s); //$NON-NLS-1$
+          }
+        }
+      } finally {
+        this.files.writeLock().unlock();
+      }
+      logger.info("compacted {} segments into {}", //$NON-NLS-1$
+          Integer.valueOf(merging.size()), name);
+      return merging.size();
+    }
+  }
+  
+  /**
+   * The next record of a segment being merged
+   */
+  private static class Head implements Comparable<Head> {
+    final Record record;
+    final BackupSegment.RecordIterator iterator;
+    
+    Head(final Record record, final BackupSegment.RecordIterator iterator) {
+      this.record = record;
+      this.iterator = iterator;
+    }
+    
+    @Override
+    public int compareTo(final Head o) {
+      return this.record.compareTo(o.record);
+    }
+  }
+  
+  /**
+   * Writes the versions of an object that retained snapshots need: the ones
+   * from the oldest retained snapshot on, and the one before it if the
+   * oldest retained snapshot sees it and it is not a deletion. Deletions
+   * with no version before them are dropped.
+   */
+  private static void writeGroup(final BackupSegment.Writer w,
+      final List<Record> group, final int oldest) throws IOException {
+    Record base = null;
+    boolean written = false;
+    for (final Record r : group) {
+      if (r.snapshot < oldest) {
+        base = r;
+        continue;
+      }
+      if (base != null && r.snapshot > oldest && !base.isDeleted()) {
+        w.add(base);
+        written = true;
+      }
+      base = null;
+      if (written || !r.isDeleted()) {
+        w.add(r);
+        written = true;
+      }
+    }
+    if (base != null && !base.isDeleted()) {
+      w.add(base);
+    }
+  }
+  
+  /**
+   * Runs the compactor periodically on a background thread, whenever there
+   * are at least as many segments as the threshold, or more snapshots than
+   * are retained.
+   * 
+   * @param period
+   *          time between checks
+   * @param unit
+   *          unit of the period
+   */
+  public synchronized void startCompactor(final long period,
+      final TimeUnit unit) {
+    stopCompactor();
+    this.compactor = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "compactor"); //$NON-NLS-1$
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    this.compactor.scheduleWithFixedDelay(() -> {
+      try {
+        final boolean due;
+        synchronized (this) {
+          readCatalog();
+          due = this.segments.size() >= this.compactionThreshold
+              || (this.retainSnapshots > 0
+                  && this.snapshots.size() > this.retainSnapshots);
+        }
+        if (due) {
+          compact();
+        }
+      } catch (final IOException | RuntimeException e) {
+        logger.warn("compaction failed: {}", e.toString()); //$NON-NLS-1$
+      }
+    }, period, period, unit);
+  }
+  
+  /**
+   * Stops the background compactor, letting a running compaction finish
+   */
+  public synchronized void stopCompactor() {
+    if (this.compactor != null) {
+      this.compactor.shutdown();
+      this.compactor = null;
+    }
+  }
+  
+  /**
+   * Restores this backup's blog to a snapshot.
+   * 
+   * @param snapshot
+   *          number of a retained snapshot
+   * @return the number of objects per kind and outcome, such as
+   *         "posts.updated"
+   * @throws IOException
+   *           if the backup cannot be read
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   * @see #restore(int, Wordpress)
+   */
+  public Map<String, Integer> restore(final int snapshot)
+      throws IOException, InterruptedException {
+    return restore(snapshot, this.wp);
+  }
+  
+  /**
+   * Writes the objects of a snapshot into a blog. Objects that still exist
+   * with the same id are edited, and missing ones are created again, with
+   * new ids that the objects referring to them are changed to. Objects that
+   * were created after the snapshot are not deleted. Users cannot be
+   * created or edited over XML-RPC, and neither can media items whose file
+   * is gone, so these are skipped.
+   * 
+   * @param snapshot
+   *          number of a retained snapshot
+   * @param target
+   *          blog to restore into
+   * @return the number of objects per kind and outcome, such as
+   *         "posts.updated"
+   * @throws IOException
+   *           if the backup cannot be read
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  @SuppressWarnings({ "nls", "unchecked" })
+  public Map<String, Integer> restore(final int snapshot,
+      final Wordpress target) throws IOException, InterruptedException {
+    final Map<Kind, List<XmlRpcMapped>> objects = new HashMap<>();
+    for (final Kind kind : Kind.values()) {
+      objects.put(kind, new ArrayList<XmlRpcMapped>());
+    }
+    for (final Record r : state(snapshot, null).values()) {
+      final Kind kind = Kind.valueOf(r.kind);
+      objects.get(kind).add(BackupSegment.decode(r.data, kind.type));
+    }
+    final Map<String, Integer> counts = new TreeMap<>();
+    final Restorer restorer = new Restorer(target, counts);
+    final ExecutorService executor = Executors
+        .newFixedThreadPool(this.threads);
+    try {
+      restorer.restoreOptions((List<Option>) (List<?>) objects
+          .get(Kind.OPTION));
+      final List<Term> terms = (List<Term>) (List<?>) objects.get(Kind.TERM);
+      run(executor, restorer, "terms", SiteMirror.levels(terms,
+          Term::getTerm_id, Term::getParent), restorer::restoreTerm);
+      run(executor, restorer, "media", Collections.singletonList(
+          (List<MediaItem>) (List<?>) objects.get(Kind.MEDIA)),
+          restorer::restoreMedia);
+      final List<Post> posts = (List<Post>) (List<?>) objects.get(Kind.POST);
+      run(executor, restorer, "posts", SiteMirror.levels(posts,
+          Post::getPost_id, Post::getPost_parent), restorer::restorePost);
+      final List<Comment> comments = (List<Comment>) (List<?>) objects
+          .get(Kind.COMMENT);
+      run(executor, restorer, "comments", SiteMirror.levels(comments,
+          Comment::getComment_id, Comment::getParent),
+          restorer::restoreComment);
+      for (int i = objects.get(Kind.USER).size(); i > 0; i--) {
+        restorer.increment("users", Outcome.SKIPPED);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return counts;
+  }
+  
+  /**
+   * Restores the objects level by level, the objects of a level in
+   * parallel.
+   */
+  private static <T> void run(final ExecutorService executor,
+      final Restorer restorer, final String type,
+      final List<List<T>> levels, final Task<T> task)
+          throws InterruptedException {
+    for (final List<T> level : levels) {
+      final List<Future<Outcome>> results = new ArrayList<>();
+      for (final T item : level) {
+        results.add(executor.submit(new Callable<Outcome>() {
+          @Override
+          public Outcome call() {
+            try {
+              return task.restore(item);
+            } catch (final Exception e) {
+              logger.warn("cannot restore {} {}: {}", type, //$NON-NLS-1$
+                  ((XmlRpcMapped) item).toOneLinerString(), e.toString());
+              return Outcome.FAILED;
+            }
+          }
+        }));
+      }
+      for (final Future<Outcome> f : results) {
+        try {
+          restorer.increment(type, f.get());
+        } catch (final ExecutionException e) {
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+    }
+  }
+  
+  /**
+   * Writes restored objects into a blog, and keeps the ids of the ones
+   * created again.
+   */
+  private static class Restorer {
+    private final Wordpress target;
+    private final Map<String, Integer> counts;
+    private final Map<Integer, Integer> terms = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> posts = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> comments = new ConcurrentHashMap<>();
+    
+    Restorer(final Wordpress target, final Map<String, Integer> counts) {
+      this.target = target;
+      this.counts = counts;
+    }
+    
+    void increment(final String type, final Outcome outcome) {
+      synchronized (this.counts) {
+        this.counts.merge(type + "." + outcome.name().toLowerCase(), //$NON-NLS-1$
+            Integer.valueOf(1), (a, b) -> Integer.valueOf(a.intValue() + 1));
+      }
+    }
+    
+    private static Integer map(final Map<Integer, Integer> ids,
+        final Integer id) {
+      if (id == null || id.intValue() == 0) {
+        return id;
+      }
+      final Integer mapped = ids.get(id);
+      return mapped != null ? mapped : id;
+    }
+    
+    void restoreOptions(final List<Option> options) throws IOException {
+      final List<Option> changed = new ArrayList<>();
+      try {
+        final Map<String, String> current = new HashMap<>();
+        for (final Option o : this.target.getOptions()) {
+          current.put(o.getName(), o.getValue());
+        }
+        for (final Option o : options) {
+          if (Boolean.TRUE.equals(o.isReadonly())) {
+            continue;
+          }
+          if (Objects.equals(current.get(o.getName()), o.getValue())) {
+            increment("options", Outcome.UNCHANGED); //$NON-NLS-1$
+          } else {
+            final Option c = new Option();
+            c.setName(o.getName());
+            c.setValue(o.getValue());
+            changed.add(c);
+          }
+        }
+        if (!changed.isEmpty()) {
+          this.target.setOptions(changed.toArray(new Option[0]));
+        }
+        for (int i = changed.size(); i > 0; i--) {
+          increment("options", Outcome.UPDATED); //$NON-NLS-1$
+        }
+      } catch (final Exception e) {
+        logger.warn("cannot restore options: {}", e.toString()); //$NON-NLS-1$
+        for (int i = changed.size(); i > 0; i--) {
+          increment("options", Outcome.FAILED); //$NON-NLS-1$
+        }
+      }
+    }
+    
+    Outcome restoreTerm(final Term s) throws Exception {
+      final Term t = new Term();
+      t.setName(s.getName());
+      t.setSlug(s.getSlug());
+      t.setTaxonomy(s.getTaxonomy());
+      t.setDescription(s.getDescription());
+      t.setParent(map(this.terms, s.getParent()));
+      Term current = null;
+      try {
+        current = this.target.getTerm(s.getTaxonomy(), s.getTerm_id());
+      } catch (final ObjectNotFoundException e) {
+        // deleted since
+      }
+      if (current == null) {
+        this.terms.put(s.getTerm_id(), this.target.newTerm(t));
+        return Outcome.CREATED;
+      }
+      if (Objects.equals(current.getName(), t.getName())
+          && Objects.equals(current.getSlug(), t.getSlug())
+          && Objects.equals(current.getDescription(), t.getDescription())
+          && Objects.equals(current.getParent(), t.getParent())) {
+        return Outcome.UNCHANGED;
+      }
+      this.target.editTerm(s.getTerm_id(), t);
+      return Outcome.UPDATED;
+    }
+    
+    Outcome restoreMedia(final MediaItem s) throws Exception {
+      MediaItem current = null;
+      try {
+        current = this.target.getMediaItem(s.getAttachment_id());
+      } catch (final ObjectNotFoundException e) {
+        return Outcome.SKIPPED; // the file is not in the backup
+      }
+      if (Objects.equals(current.getTitle(), s.getTitle())
+          && Objects.equals(current.getCaption(), s.getCaption())
+          && Objects.equals(current.getDescription(), s.getDescription())) {
+        return Outcome.UNCHANGED;
+      }
+      final Post p = new Post();
+      p.setPost_title(s.getTitle());
+      p.setPost_excerpt(s.getCaption());
+      p.setPost_content(s.getDescription());
+      this.target.editPost(s.getAttachment_id(), p);
+      return Outcome.UPDATED;
+    }
+    
+    Outcome restorePost(final Post s) throws Exception {
+      Post current = null;
+      try {
+        current = this.target.getPost(s.getPost_id());
+      } catch (final ObjectNotFoundException e) {
+        // deleted since
+      }
+      final Post t = new Post();
+      t.post_title = s.post_title;
+      t.post_date = s.post_date;
+      t.post_status = s.post_status;
+      t.post_type = s.post_type;
+      t.post_format = s.post_format;
+      t.post_name = s.post_name;
+      t.post_author = s.post_author;
+      t.post_password = s.post_password;
+      t.post_excerpt = s.post_excerpt;
+      t.post_content = s.post_content;
+      t.post_parent = map(this.posts, s.post_parent);
+      t.menu_order = s.menu_order;
+      t.comment_status = s.comment_status;
+      t.ping_status = s.ping_status;
+      t.sticky = s.sticky;
+      if (s.terms != null) {
+        t.terms = new ArrayList<>();
+        for (final Term term : s.terms) {
+          final Term mapped = new Term();
+          mapped.setTerm_id(map(this.terms, term.getTerm_id()));
+          mapped.setTaxonomy(term.getTaxonomy());
+          t.terms.add(mapped);
+        }
+      }
+      if (s.custom_fields != null) {
+        t.custom_fields = new ArrayList<>();
+        for (final CustomField f : s.custom_fields) {
+          if (!f.key.startsWith("_")) { // protected fields cannot be set //$NON-NLS-1$
+            final CustomField c = new CustomField();
+            c.id = current != null ? f.id : null; // ids of the old post
+            c.key = f.key;
+            c.value = f.value;
+            t.custom_fields.add(c);
+          }
+        }
+      }
+      if (current == null) {
+        this.posts.put(s.getPost_id(), this.target.newPost(t));
+        return Outcome.CREATED;
+      }
+      if (Objects.equals(current.getPost_modified_gmt(),
+          s.getPost_modified_gmt())) {
+        return Outcome.UNCHANGED;
+      }
+      this.target.editPost(s.getPost_id(), t);
+      return Outcome.UPDATED;
+    }
+    
+    Outcome restoreComment(final Comment s) throws Exception {
+      Comment current = null;
+      try {
+        current = this.target.getComment(s.getComment_id());
+      } catch (final ObjectNotFoundException e) {
+        // deleted since
+      }
+      final Comment t = new Comment();
+      t.setContent(s.getContent());
+      t.setAuthor(s.getAuthor());
+      t.setAuthor_url(s.getAuthor_url());
+      t.setAuthor_email(s.getAuthor_email());
+      t.setStatus(s.getStatus());
+      t.setDate_created_gmt(s.getDate_created_gmt());
+      Outcome outcome = Outcome.UPDATED;
+      Integer id = s.getComment_id();
+      if (current == null) {
+        final Integer parent = map(this.comments, s.getParent());
+        id = this.target.newComment(map(this.posts, s.getPost_id()),
+            parent != null ? parent : Integer.valueOf(0), s.getContent(),
+            s.getAuthor(), s.getAuthor_url(), s.getAuthor_email());
+        this.comments.put(s.getComment_id(), id);
+        outcome = Outcome.CREATED;
+      } else if (Objects.equals(current.getContent(), s.getContent())
+          && Objects.equals(current.getStatus(), s.getStatus())
+          && Objects.equals(current.getAuthor(), s.getAuthor())) {
+        return Outcome.UNCHANGED;
+      }
+      t.setComment_id(id);
+      this.target.editComment(t);
+      return outcome;
+    }
+  }
+  
+  /**
+   * @return the name for a new segment
+   */
+  private String allocateSegment() throws IOException {
+    final String result = String.format("segment-%06d.seg", //$NON-NLS-1$
+        Integer.valueOf(this.nextSegment++));
+    writeCatalog();
+    return result;
+  }
+  
+  /**
+   * Catalog lines are "next number", "snapshot number millis records" and
+   * "segment name".
+   */
+  @SuppressWarnings("nls")
+  private void readCatalog() throws IOException {
+    this.snapshots.clear();
+    this.segments.clear();
+    this.nextSegment = 1;
+    final File file = new File(this.directory, CATALOG);
+    if (!file.exists()) {
+      return;
+    }
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = r.readLine()) != null) {
+        final String[] f = line.split("\t");
+        if (f[0].equals("next") && f.length == 2) {
+          this.nextSegment = Integer.parseInt(f[1]);
+        } else if (f[0].equals("snapshot") && f.length == 4) {
+          this.snapshots.add(new Snapshot(Integer.parseInt(f[1]),
+              new Date(Long.parseLong(f[2])), Integer.parseInt(f[3])));
+        } else if (f[0].equals("segment") && f.length == 2) {
+          this.segments.add(f[1]);
+        }
+      }
+    }
+  }
+  
+  @SuppressWarnings("nls")
+  private void writeCatalog() throws IOException {
+    final StringBuilder content = new StringBuilder();
+    content.append("next\t").append(this.nextSegment).append('\n');
+    for (final Snapshot s : this.snapshots) {
+      content.append("snapshot\t").append(s.getNumber()).append('\t')
+          .append(s.getDate().getTime()).append('\t').append(s.getRecords())
+          .append('\n');
+    }
+    for (final String s : this.segments) {
+      content.append("segment\t").append(s).append('\n');
+    }
+    replace(CATALOG, Collections.singletonList(content.toString()));
+  }
+  
+  /**
+   * Fingerprint lines are "kind id fingerprint".
+   */
+  private Map<String, String> readFingerprints() throws IOException {
+    final Map<String, String> result = new HashMap<>();
+    final File file = new File(this.directory, FINGERPRINTS);
+    if (!file.exists()) {
+      return result;
+    }
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = r.readLine()) != null) {
+        final int i = line.lastIndexOf('\t');
+        if (i > 0) {
+          result.put(line.substring(0, i), line.substring(i + 1));
+        }
+      }
+    }
+    return result;
+  }
+  
+  private void writeFingerprints(final Map<String, String> fingerprints)
+      throws IOException {
+    final List<String> lines = new ArrayList<>();
+    for (final Map.Entry<String, String> e : fingerprints.entrySet()) {
+      lines.add(e.getKey() + '\t' + e.getValue() + '\n');
+    }
+    replace(FINGERPRINTS, lines);
+  }
+  
+  /**
+   * Replaces a file of the backup directory atomically.
+   */
+  private void replace(final String name, final List<String> lines)
+      throws IOException {
+    final File temp = File.createTempFile(name, null, this.directory);
+    try {
+      try (Writer w = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+        for (final String line : lines) {
+          w.write(line);
+        }
+      }
+      Files.move(temp.toPath(), new File(this.directory, name).toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      temp.delete();
+    }
+  }
+}
@@ -0,0 +1,460 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bican.wordpress.exceptions.InsufficientRightsException;
+import net.bican.wordpress.exceptions.InvalidArgumentsException;
+import redstone.xmlrpc.XmlRpcFault;
+
+/**
+ * Exports the posts, comments, terms, users and media items of a blog into
+ * gzip compressed files with one JSON object per line, one file per type of
+ * object. Pages of each type are fetched by a fixed number of threads, and
+ * each page is written as soon as it arrives, so memory use does not grow
+ * with the size of the blog.
+ * 
+ * <p>
+ * Progress is recorded in a journal file in the output directory. If an
+ * export is interrupted, running it again on the same directory continues
+ * where it stopped; the journal is removed when the export completes.
+ * 
+ * @author Can Bican
+ */
+public class SiteExporter {
+  /** default number of objects fetched per request */
+  public static final int DEFAULT_PAGE_SIZE = 100;
+  /** default number of threads */
+  public static final int DEFAULT_THREADS = 4;
+  /** name of the journal file in the output directory */
+  public static final String JOURNAL = "export.journal"; //$NON-NLS-1$
+  
+  private static final Logger logger = LoggerFactory
+      .getLogger(SiteExporter.class);
+  
+  private final Wordpress wp;
+  private final File directory;
+  private int threads = DEFAULT_THREADS;
+  private int pageSize = DEFAULT_PAGE_SIZE;
+  
+  /**
+   * A paginated list of objects of one kind, written to one file
+   */
+  private abstract class Source {
+    final String name;
+    final Output output;
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger end = new AtomicInteger(Integer.MAX_VALUE);
+    final AtomicLong count = new AtomicLong();
+    final Set<Integer> done = new HashSet<>();
+    
+    Source(final String name, final Output output) {
+      this.name = name;
+      this.output = output;
+    }
+    
+    abstract List<? extends XmlRpcMapped> fetch(Integer number, Integer offset)
+        throws Exception;
+    
+    int claim() {
+      final int page = this.next.getAndIncrement();
+      return page < this.end.get() ? page : -1;
+    }
+    
+    boolean hasMore() {
+      return this.next.get() < this.end.get();
+    }
+    
+    void endAt(final int page) {
+      int e;
+      while (page < (e = this.end.get())) {
+        if (this.end.compareAndSet(e, page)) {
+          break;
+        }
+      }
+    }
+  }
+  
+  /**
+   * An output file, made of concatenated gzip members
+   */
+  private static class Output {
+    final String fileName;
+    FileChannel channel;
+    long resumeAt = 0;
+    
+    Output(final String fileName) {
+      this.fileName = fileName;
+    }
+  }
+  
+  /**
+   * @param wp
+   *          wordpress connection
+   * @param directory
+   *          directory to write the files to
+   */
+  public SiteExporter(final Wordpress wp, final File directory) {
+    this.wp = wp;
+    this.directory = directory;
+  }
+  
+  /**
+   * @return the number of threads
+   */
+  public int getThreads() {
+    return this.threads;
+  }
+  
+  /**
+   * @param threads
+   *          the number of threads to set
+   */
+  public void setThreads(final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.threads = threads;
+  }
+  
+  /**
+   * @return the number of objects fetched per request
+   */
+  public int getPageSize() {
+    return this.pageSize;
+  }
+  
+  /**
+   * @param pageSize
+   *          the number of objects fetched per request
+   */
+  public void setPageSize(final int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.pageSize = pageSize;
+  }
+  
+  /**
+   * Runs the export, or continues an interrupted one.
+   * 
+   * @return number of objects exported per source, e.g. "posts:post" or
+   *         "terms:category", including the ones exported before a resume
+   * @throws IOException
+   *           if the files cannot be written
+   * @throws InsufficientRightsException
+   *           if the user cannot list some of the objects
+   * @throws InvalidArgumentsException
+   *           if a taxonomy cannot be listed
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  @SuppressWarnings("nls")
+  public Map<String, Long> export() throws IOException,
+      InsufficientRightsException, InvalidArgumentsException, XmlRpcFault {
+    if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+      throw new IOException("cannot create " + this.directory);
+    }
+    final Map<String, Output> outputs = new LinkedHashMap<>();
+    for (final String f : new String[] { "posts", "comments", "terms", "users",
+        "media" }) {
+      outputs.put(f, new Output(f + ".ndjson.gz"));
+    }
+    final List<Source> sources = createSources(outputs);
+    final File journalFile = new File(this.directory, JOURNAL);
+    if (journalFile.exists()) {
+      readJournal(journalFile, sources, outputs);
+    }
+    try (Writer journal = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(journalFile, true), StandardCharsets.UTF_8))) {
+      try {
+        for (final Output o : outputs.values()) {
+          o.channel = FileChannel.open(
+              new File(this.directory, o.fileName).toPath(),
+              StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+          o.channel.truncate(o.resumeAt);
+          o.channel.position(o.resumeAt);
+        }
+        run(sources, journal);
+      } finally {
+        for (final Output o : outputs.values()) {
+          if (o.channel != null) {
+            o.channel.close();
+          }
+        }
+      }
+    }
+    if (!journalFile.delete()) {
+      logger.warn("cannot delete {}", journalFile);
+    }
+    final Map<String, Long> result = new LinkedHashMap<>();
+    for (final Source s : sources) {
+      result.put(s.name, Long.valueOf(s.count.get()));
+    }
+    return result;
+  }
+  
+  @SuppressWarnings("nls")
+  private List<Source> createSources(final Map<String, Output> outputs)
+      throws XmlRpcFault {
+    final List<Source> sources = new ArrayList<>();
+    for (final PostType type : this.wp.getPostTypes()) {
+      final String postType = type.getName();
+      if ("attachment".equals(postType)) {
+        continue; // exported as media
+      }
+      sources.add(new Source("posts:" + postType, outputs.get("posts")) {
+        @Override
+        List<Post> fetch(final Integer number, final Integer offset)
+            throws XmlRpcFault {
+          final FilterPost filter = new FilterPost();
+          filter.setPost_type(postType);
+          filter.setPost_status("any");
+          filter.setNumber(number);
+          filter.setOffset(offset);
+          filter.setOrderby("ID");
+          filter.setOrder("ASC");
+          return SiteExporter.this.wp.getPosts(filter);
+        }
+      });
+    }
+    sources.add(new Source("comments", outputs.get("comments")) {
+      @Override
+      List<Comment> fetch(final Integer number, final Integer offset)
+          throws Exception {
+        return SiteExporter.this.wp.getComments(null, null, number, offset);
+      }
+    });
+    for (final Taxonomy taxonomy : this.wp.getTaxonomies()) {
+      final String name = taxonomy.getName();
+      sources.add(new Source("terms:" + name, outputs.get("terms")) {
+        @Override
+        List<Term> fetch(final Integer number, final Integer offset)
+            throws Exception {
+          final TermFilter filter = new TermFilter();
+          filter.setNumber(number);
+          filter.setOffset(offset);
+          filter.setOrderby("id");
+          filter.setOrder("ASC");
+          return SiteExporter.this.wp.getTerms(name, filter);
+        }
+      });
+    }
+    sources.add(new Source("users", outputs.get("users")) {
+      @Override
+      List<User> fetch(final Integer number, final Integer offset)
+          throws Exception {
+        final FilterUser filter = new FilterUser();
+        filter.setNumber(number);
+        filter.setOffset(offset);
+        filter.setOrderby("ID");
+        filter.setOrder("ASC");
+        return SiteExporter.this.wp.getUsers(filter);
+      }
+    });
+    sources.add(new Source("media", outputs.get("media")) {
+      @Override
+      List<MediaItem> fetch(final Integer number, final Integer offset)
+          throws Exception {
+        final FilterMediaItem filter = new FilterMediaItem();
+        filter.setNumber(number);
+        filter.setOffset(offset);
+        return SiteExporter.this.wp.getMediaLibrary(filter);
+      }
+    });
+    return sources;
+  }
+  
+  /**
+   * Journal lines are either "page source index count file offset", written
+   * after a page is appended to a file, or "end source index", written when
+   * a source turns out to have fewer pages than index.
+   */
+  @SuppressWarnings("nls")
+  private static void readJournal(final File journalFile,
+      final List<Source> sources, final Map<String, Output> outputs)
+          throws IOException {
+    final Map<String, Source> byName = new HashMap<>();
+    for (final Source s : sources) {
+      byName.put(s.name, s);
+    }
+    final Map<String, Output> byFile = new HashMap<>();
+    for (final Output o : outputs.values()) {
+      byFile.put(o.fileName, o);
+    }
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(
+        new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = r.readLine()) != null) {
+        final String[] f = line.split("\t");
+        final Source s = f.length >= 3 ? byName.get(f[1]) : null;
+        if (s == null) {
+          continue; // partial last line, or a source that is gone
+        }
+        if (f[0].equals("page") && f.length == 6) {
+          final Output o = byFile.get(f[4]);
+          if (o != null) {
+            s.done.add(Integer.valueOf(f[2]));
+            s.count.addAndGet(Long.parseLong(f[3]));
+            o.resumeAt = Math.max(o.resumeAt, Long.parseLong(f[5]));
+          }
+        } else if (f[0].equals("end")) {
+          s.endAt(Integer.parseInt(f[2]));
+        }
+      }
+    }
+  }
+  
+  private void run(final List<Source> sources, final Writer journal)
+      throws IOException, InsufficientRightsException,
+      InvalidArgumentsException, XmlRpcFault {
+    final ExecutorService executor = Executors
+        .newFixedThreadPool(this.threads);
+    final List<Future<Void>> workers = new ArrayList<>();
+    for (int i = 0; i < this.threads; i++) {
+      final int first = i;
+      workers.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          work(sources, first, journal);
+          return null;
+        }
+      }));
+    }
+    executor.shutdown();
+    try {
+      for (final Future<Void> f : workers) {
+        f.get();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof InsufficientRightsException) {
+        throw (InsufficientRightsException) cause;
+      } else if (cause instanceof InvalidArgumentsException) {
+        throw (InvalidArgumentsException) cause;
+      } else if (cause instanceof XmlRpcFault) {
+        throw (XmlRpcFault) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  /**
+   * Claims and writes pages until all sources are exhausted, starting with a
+   * different source in each worker so that they spread over the sources.
+   */
+  void work(final List<Source> sources, final int first,
+      final Writer journal) throws Exception {
+    final int n = sources.size();
+    while (!Thread.currentThread().isInterrupted()) {
+      Source source = null;
+      int page = -1;
+      for (int k = 0; k < n && source == null; k++) {
+        final Source s = sources.get((first + k) % n);
+        if (s.hasMore()) {
+          page = s.claim();
+          if (page >= 0) {
+            source = s;
+          }
+        }
+      }
+      if (source == null) {
+        return;
+      }
+      if (!source.done.contains(Integer.valueOf(page))) {
+        exportPage(source, page, journal);
+      }
+    }
+  }
+  
+  @SuppressWarnings("nls")
+  private void exportPage(final Source source, final int page,
+      final Writer journal) throws Exception {
+    final List<? extends XmlRpcMapped> items = source.fetch(
+        Integer.valueOf(this.pageSize), Integer.valueOf(page * this.pageSize));
+    if (items.size() < this.pageSize) {
+      source.endAt(page + 1);
+      synchronized (journal) {
+        journal.write("end\t" + source.name + "\t" + (page + 1) + "\n");
+        journal.flush();
+      }
+    }
+    // each page is a complete gzip member, compressed outside of the lock
+    byte[] member = null;
+    if (!items.isEmpty()) {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (Writer w = new BufferedWriter(new OutputStreamWriter(
+          new GZIPOutputStream(bytes), StandardCharsets.UTF_8))) {
+        for (final XmlRpcMapped item : items) {
+          item.writeJSON(w);
+          w.write('\n');
+        }
+      }
+      member = bytes.toByteArray();
+    }
+    final Output output = source.output;
+    synchronized (output) {
+      if (member != null) {
+        final ByteBuffer buffer = ByteBuffer.wrap(member);
+        while (buffer.hasRemaining()) {
+          output.channel.write(buffer);
+        }
+      }
+      source.count.addAndGet(items.size());
+      synchronized (journal) {
+        journal.write("page\t" + source.name + "\t" + page + "\t"
+            + items.size() + "\t" + output.fileName + "\t"
+            + output.channel.position() + "\n");
+        journal.flush();
+      }
+    }
+  }
+}
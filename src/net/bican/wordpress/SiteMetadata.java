@@ -0,0 +1,397 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bican.wordpress.exceptions.InsufficientRightsException;
+import redstone.xmlrpc.XmlRpcFault;
+
+/**
+ * Snapshot of the mostly static metadata of a blog: post types, post formats,
+ * post and comment statuses, taxonomies, options and the blogs of the user.
+ * A snapshot can be saved to a local file and read back, so that short lived
+ * processes do not need to fetch it on every start, and given to
+ * {@link Wordpress#setSiteMetadata(SiteMetadata)} to answer the listings of
+ * the metadata without requests.
+ * 
+ * @author Can Bican
+ */
+public class SiteMetadata implements Serializable {
+  private static final long serialVersionUID = -2270312003315484711L;
+  private static final Logger logger = LoggerFactory
+      .getLogger(SiteMetadata.class);
+  
+  private final String xmlRpcUrl;
+  private final String username;
+  private final long loadedAt;
+  private List<PostType> postTypes;
+  private Map<String, String> postFormats;
+  private Map<String, String> postStatusList;
+  private CommentStatusList commentStatusList;
+  private List<Taxonomy> taxonomies;
+  private List<Option> options;
+  private List<UserBlog> usersBlogs;
+  
+  private SiteMetadata(final Wordpress wp) {
+    this.xmlRpcUrl = wp.getXmlRpcUrl();
+    this.username = wp.getUsername();
+    this.loadedAt = System.currentTimeMillis();
+  }
+  
+  /**
+   * Fetches the metadata, sending all requests concurrently, whether or not
+   * the connection has a snapshot set.
+   * 
+   * @param wp
+   *          wordpress connection
+   * @return the metadata
+   * @throws InsufficientRightsException
+   *           if the user does not have the edit_posts cap
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  @SuppressWarnings("unchecked")
+  public static SiteMetadata load(final Wordpress wp)
+      throws InsufficientRightsException, XmlRpcFault {
+    final SiteMetadata result = new SiteMetadata(wp);
+    final List<Callable<Object>> calls = new ArrayList<>();
+    calls.add(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return wp.getPostTypes(null);
+      }
+    });
+    calls.add(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return wp.getPostFormats(false);
+      }
+    });
+    calls.add(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return wp.fetchPostStatusList();
+      }
+    });
+    calls.add(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return wp.fetchCommentStatusList();
+      }
+    });
+    calls.add(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return wp.fetchTaxonomies();
+      }
+    });
+    calls.add(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return wp.getOptions(null, null);
+      }
+    });
+    calls.add(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return wp.fetchUsersBlogs();
+      }
+    });
+    final ExecutorService executor = Executors
+        .newFixedThreadPool(calls.size());
+    try {
+      final List<Future<Object>> r = executor.invokeAll(calls);
+      result.postTypes = (List<PostType>) resultOf(r.get(0));
+      result.postFormats = (Map<String, String>) resultOf(r.get(1));
+      result.postStatusList = (Map<String, String>) resultOf(r.get(2));
+      result.commentStatusList = (CommentStatusList) resultOf(r.get(3));
+      result.taxonomies = (List<Taxonomy>) resultOf(r.get(4));
+      result.options = (List<Option>) resultOf(r.get(5));
+      result.usersBlogs = (List<UserBlog>) resultOf(r.get(6));
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+    return result;
+  }
+  
+  private static Object resultOf(final Future<Object> f)
+      throws InsufficientRightsException, XmlRpcFault, InterruptedException {
+    try {
+      return f.get();
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof InsufficientRightsException) {
+        throw (InsufficientRightsException) cause;
+      } else if (cause instanceof XmlRpcFault) {
+        throw (XmlRpcFault) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+  
+  /**
+   * Returns the saved metadata of the blog if it is recent enough, otherwise
+   * fetches and saves it. When the saved copy is usable but older than
+   * refreshAfter, it is returned at once and replaced by a fresh copy on a
+   * background daemon thread.
+   * 
+   * @param wp
+   *          wordpress connection
+   * @param directory
+   *          directory to keep the metadata files in
+   * @param refreshAfter
+   *          age after which the saved copy is refreshed in the background
+   * @param maxAge
+   *          age after which the saved copy is not used anymore
+   * @param unit
+   *          unit of refreshAfter and maxAge
+   * @return the metadata
+   * @throws InsufficientRightsException
+   *           if the user does not have the edit_posts cap
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public static SiteMetadata get(final Wordpress wp, final File directory,
+      final long refreshAfter, final long maxAge, final TimeUnit unit)
+          throws InsufficientRightsException, XmlRpcFault {
+    final File file = fileFor(directory, wp);
+    SiteMetadata saved = null;
+    if (file.exists()) {
+      try {
+        saved = read(file);
+      } catch (final IOException e) {
+        logger.warn("cannot read metadata from {}: {}", file, //$NON-NLS-1$
+            e.getLocalizedMessage());
+      }
+    }
+    if (saved != null && saved.getAge(unit) < maxAge) {
+      if (saved.getAge(unit) >= refreshAfter) {
+        final Thread t = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              load(wp).save(file);
+            } catch (InsufficientRightsException | XmlRpcFault | IOException
+                | RuntimeException e) {
+              logger.warn("cannot refresh metadata: {}", //$NON-NLS-1$
+                  e.getLocalizedMessage());
+            }
+          }
+        }, "metadata-refresh"); //$NON-NLS-1$
+        t.setDaemon(true);
+        t.start();
+      }
+      return saved;
+    }
+    final SiteMetadata result = load(wp);
+    try {
+      result.save(file);
+    } catch (final IOException e) {
+      logger.warn("cannot save metadata to {}: {}", file, //$NON-NLS-1$
+          e.getLocalizedMessage());
+    }
+    return result;
+  }
+  
+  /**
+   * @param directory
+   *          directory to keep the metadata files in
+   * @param wp
+   *          wordpress connection
+   * @return the metadata file for the blog and user of the connection
+   */
+  @SuppressWarnings("nls")
+  public static File fileFor(final File directory, final Wordpress wp) {
+    try {
+      final MessageDigest md = MessageDigest.getInstance("SHA-1");
+      final byte[] digest = md.digest((wp.getXmlRpcUrl() + "\n"
+          + wp.getUsername()).getBytes(StandardCharsets.UTF_8));
+      final StringBuilder name = new StringBuilder();
+      for (final byte b : digest) {
+        name.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+      }
+      return new File(directory, name.append(".metadata").toString());
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  /**
+   * Writes the metadata to a compressed file, replacing it atomically.
+   * 
+   * @param file
+   *          file to write to
+   * @throws IOException
+   *           if the file cannot be written
+   */
+  public void save(final File file) throws IOException {
+    final File dir = file.getAbsoluteFile().getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("cannot create " + dir); //$NON-NLS-1$
+    }
+    final File temp = File.createTempFile("metadata", null, dir); //$NON-NLS-1$
+    try {
+      try (ObjectOutputStream out = new ObjectOutputStream(
+          new GZIPOutputStream(new BufferedOutputStream(
+              new FileOutputStream(temp))))) {
+        out.writeObject(this);
+      }
+      Files.move(temp.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      temp.delete();
+    }
+  }
+  
+  /**
+   * @param file
+   *          file to read from
+   * @return the metadata in the file
+   * @throws IOException
+   *           if the file cannot be read, or is written by an incompatible
+   *           version
+   */
+  public static SiteMetadata read(final File file) throws IOException {
+    try (ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(
+        new BufferedInputStream(new FileInputStream(file))))) {
+      return (SiteMetadata) in.readObject();
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new InvalidClassException(e.getLocalizedMessage());
+    }
+  }
+  
+  /**
+   * @param unit
+   *          unit of the result
+   * @return time passed since the metadata was fetched
+   */
+  public long getAge(final TimeUnit unit) {
+    return unit.convert(System.currentTimeMillis() - this.loadedAt,
+        TimeUnit.MILLISECONDS);
+  }
+  
+  /**
+   * @return the xmlrpc url the metadata was fetched from
+   */
+  public String getXmlRpcUrl() {
+    return this.xmlRpcUrl;
+  }
+  
+  /**
+   * @return the user name the metadata was fetched with
+   */
+  public String getUsername() {
+    return this.username;
+  }
+  
+  /**
+   * @return when the metadata was fetched, in milliseconds since the epoch
+   */
+  public long getLoadedAt() {
+    return this.loadedAt;
+  }
+  
+  /**
+   * @return the post types
+   */
+  public List<PostType> getPostTypes() {
+    return this.postTypes;
+  }
+  
+  /**
+   * @return the post formats
+   */
+  public Map<String, String> getPostFormats() {
+    return this.postFormats;
+  }
+  
+  /**
+   * @return the post statuses
+   */
+  public Map<String, String> getPostStatusList() {
+    return this.postStatusList;
+  }
+  
+  /**
+   * @return the comment statuses
+   */
+  public CommentStatusList getCommentStatusList() {
+    return this.commentStatusList;
+  }
+  
+  /**
+   * @return the taxonomies
+   */
+  public List<Taxonomy> getTaxonomies() {
+    return this.taxonomies;
+  }
+  
+  /**
+   * @return the options
+   */
+  public List<Option> getOptions() {
+    return this.options;
+  }
+  
+  /**
+   * @param name
+   *          option name
+   * @return the option, or null if there is no such option
+   */
+  public Option getOption(final String name) {
+    for (final Option option : this.options) {
+      if (option.getName().equals(name)) {
+        return option;
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * @return the blogs of the user
+   */
+  public List<UserBlog> getUsersBlogs() {
+    return this.usersBlogs;
+  }
+}
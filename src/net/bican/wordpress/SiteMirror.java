@@ -0,0 +1,678 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bican.wordpress.PrefetchingIterable.PrefetchingIterator;
+import net.bican.wordpress.exceptions.FileUploadException;
+import net.bican.wordpress.exceptions.InsufficientRightsException;
+import net.bican.wordpress.exceptions.InvalidArgumentsException;
+import redstone.xmlrpc.XmlRpcFault;
+
+/**
+ * Copies the content of one blog to another: terms, media items, posts and
+ * comments, in this order. Users cannot be created through xmlrpc, so authors
+ * are mapped by login name, or by an explicit mapping.
+ * 
+ * <p>
+ * The ids of the copied objects on the target blog are kept in a state file,
+ * along with a hash of what was sent, so a later run updates only the
+ * objects that changed on the source. Posts are listed from the most
+ * recently modified down to the last run's watermark. Objects deleted on the
+ * source are not deleted on the target.
+ * 
+ * <p>
+ * Objects are copied on several threads, level by level: parent terms,
+ * pages and comments before their children, and media items before the
+ * posts, so that links to them in the post content can be rewritten to the
+ * target's urls. An object that cannot be copied is logged and retried on
+ * the next run; its children are not copied until it is.
+ * 
+ * @author Can Bican
+ */
+public class SiteMirror {
+  private static final Logger logger = LoggerFactory
+      .getLogger(SiteMirror.class);
+  /** posts modified this long before the watermark are listed again */
+  private static final long WATERMARK_SKEW = TimeUnit.MINUTES.toMillis(10);
+  private static final String WATERMARK = "#watermark"; //$NON-NLS-1$
+  
+  private enum Outcome {
+    CREATED, UPDATED, UNCHANGED, SKIPPED, FAILED
+  }
+  
+  /**
+   * Where an object of the source was copied to
+   */
+  private static class Mapping {
+    final Integer targetId;
+    final String hash;
+    final String url;
+    
+    Mapping(final Integer targetId, final String hash, final String url) {
+      this.targetId = targetId;
+      this.hash = hash;
+      this.url = url;
+    }
+  }
+  
+  private final Wordpress source;
+  private final Wordpress target;
+  private final File stateFile;
+  private int threads = 4;
+  private Map<Integer, Integer> authors = Collections.emptyMap();
+  private Integer defaultAuthor = null;
+  
+  private final ConcurrentMap<String, Mapping> mappings =
+      new ConcurrentHashMap<>();
+  private final Map<Integer, Integer> users = new HashMap<>();
+  private final ConcurrentMap<String, String> urls = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> counts = new TreeMap<>();
+  private long watermark = 0;
+  
+  /**
+   * @param source
+   *          blog to copy from
+   * @param target
+   *          blog to copy to
+   * @param stateFile
+   *          file to keep the id mappings and hashes in
+   */
+  public SiteMirror(final Wordpress source, final Wordpress target,
+      final File stateFile) {
+    this.source = source;
+    this.target = target;
+    this.stateFile = stateFile;
+  }
+  
+  /**
+   * @param threads
+   *          the number of objects copied at the same time
+   */
+  public void setThreads(final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.threads = threads;
+  }
+  
+  /**
+   * @param authors
+   *          maps user ids on the source to user ids on the target, for
+   *          users whose login names differ
+   */
+  public void setAuthors(final Map<Integer, Integer> authors) {
+    this.authors = new HashMap<>(authors);
+  }
+  
+  /**
+   * @param defaultAuthor
+   *          target user id for posts of unmapped authors, or null for the
+   *          user of the target connection
+   */
+  public void setDefaultAuthor(final Integer defaultAuthor) {
+    this.defaultAuthor = defaultAuthor;
+  }
+  
+  /**
+   * Runs the copy.
+   * 
+   * @return number of objects per type and outcome, e.g. "posts.created" or
+   *         "terms.unchanged"
+   * @throws IOException
+   *           if the state file cannot be read or written
+   * @throws InsufficientRightsException
+   *           if the objects cannot be listed on the source
+   * @throws InvalidArgumentsException
+   *           if a taxonomy cannot be listed
+   * @throws XmlRpcFault
+   *           if there is a generic error during listing
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  public Map<String, Integer> mirror() throws IOException,
+      InsufficientRightsException, InvalidArgumentsException, XmlRpcFault,
+      InterruptedException {
+    readState();
+    this.counts.clear();
+    final ExecutorService executor = Executors
+        .newFixedThreadPool(this.threads);
+    try {
+      mirrorTerms(executor);
+      writeState();
+      mapUsers();
+      mirrorMedia(executor);
+      writeState();
+      mirrorPosts(executor);
+      writeState();
+      mirrorComments(executor);
+      writeState();
+    } finally {
+      executor.shutdownNow();
+    }
+    final Map<String, Integer> result = new TreeMap<>();
+    for (final Map.Entry<String, AtomicInteger> e : this.counts.entrySet()) {
+      result.put(e.getKey(), Integer.valueOf(e.getValue().get()));
+    }
+    return result;
+  }
+  
+  @SuppressWarnings("nls")
+  private void mirrorTerms(final ExecutorService executor)
+      throws InsufficientRightsException, InvalidArgumentsException,
+      XmlRpcFault, InterruptedException {
+    final Set<String> targetTaxonomies = new HashSet<>();
+    for (final Taxonomy t : this.target.getTaxonomies()) {
+      targetTaxonomies.add(t.getName());
+    }
+    for (final Taxonomy taxonomy : this.source.getTaxonomies()) {
+      final String name = taxonomy.getName();
+      if (!targetTaxonomies.contains(name)) {
+        continue;
+      }
+      final List<Term> terms = new ArrayList<>();
+      for (final Term t : this.source.iterateTerms(name, null)) {
+        terms.add(t);
+      }
+      run(executor, "terms", levels(terms, Term::getTerm_id, Term::getParent),
+          s -> {
+            final Integer parent = mapParent("term:" + name, s.getParent());
+            if (parent == null) {
+              return Outcome.SKIPPED;
+            }
+            final Term t = new Term();
+            t.setName(s.getName());
+            t.setSlug(s.getSlug());
+            t.setDescription(s.getDescription());
+            t.setTaxonomy(name);
+            t.setParent(parent);
+            final String key = "term:" + name + "\t" + s.getTerm_id();
+            final String hash = hash(t);
+            final Mapping m = this.mappings.get(key);
+            if (m != null && m.hash.equals(hash)) {
+              return Outcome.UNCHANGED;
+            }
+            Integer targetId = m != null ? m.targetId : null;
+            if (targetId == null && s.getSlug() != null) {
+              final Term existing = this.target.getTermIndex(name)
+                  .getBySlug(s.getSlug());
+              targetId = existing != null ? existing.getTerm_id() : null;
+            }
+            if (targetId != null) {
+              this.target.editTerm(targetId, t);
+              this.mappings.put(key, new Mapping(targetId, hash, null));
+              return Outcome.UPDATED;
+            }
+            this.mappings.put(key,
+                new Mapping(this.target.newTerm(t), hash, null));
+            return Outcome.CREATED;
+          });
+    }
+  }
+  
+  private void mapUsers() throws XmlRpcFault, InsufficientRightsException {
+    final Map<String, Integer> byLogin = new HashMap<>();
+    for (final Author a : this.target.getAuthors()) {
+      byLogin.put(a.getUser_login(), a.getUser_id());
+    }
+    this.users.clear();
+    for (final Author a : this.source.getAuthors()) {
+      final Integer mapped = this.authors.containsKey(a.getUser_id())
+          ? this.authors.get(a.getUser_id()) : byLogin.get(a.getUser_login());
+      if (mapped != null) {
+        this.users.put(a.getUser_id(), mapped);
+      }
+    }
+  }
+  
+  @SuppressWarnings("nls")
+  private void mirrorMedia(final ExecutorService executor)
+      throws InterruptedException {
+    final List<MediaItem> items = new ArrayList<>();
+    for (final MediaItem i : this.source.iterateMediaLibrary(null)) {
+      items.add(i);
+    }
+    run(executor, "media", Collections.singletonList(items), s -> {
+      final String fileName = s.getLink()
+          .substring(s.getLink().lastIndexOf('/') + 1);
+      final MediaItem t = new MediaItem();
+      t.setTitle(s.getTitle());
+      t.setCaption(s.getCaption());
+      t.setDescription(s.getDescription());
+      t.setLink(fileName);
+      final String key = "media\t" + s.getAttachment_id();
+      final String hash = hash(t);
+      final Mapping m = this.mappings.get(key);
+      if (m != null) {
+        this.urls.put(s.getLink(), m.url);
+        if (m.hash.equals(hash)) {
+          return Outcome.UNCHANGED;
+        }
+        editAttachment(m.targetId, s);
+        this.mappings.put(key, new Mapping(m.targetId, hash, m.url));
+        return Outcome.UPDATED;
+      }
+      final MediaItemUploadResult r;
+      try (InputStream in = new URL(s.getLink()).openStream()) {
+        r = this.target.uploadFile(in, fileName);
+      }
+      if (r == null) {
+        throw new FileUploadException();
+      }
+      editAttachment(r.getId(), s);
+      this.urls.put(s.getLink(), r.getUrl());
+      this.mappings.put(key, new Mapping(r.getId(), hash, r.getUrl()));
+      return Outcome.CREATED;
+    });
+  }
+  
+  private void editAttachment(final Integer targetId, final MediaItem s)
+      throws Exception {
+    final Post p = new Post();
+    p.setPost_title(s.getTitle());
+    p.setPost_excerpt(s.getCaption());
+    p.setPost_content(s.getDescription());
+    this.target.editPost(targetId, p);
+  }
+  
+  @SuppressWarnings("nls")
+  private void mirrorPosts(final ExecutorService executor)
+      throws XmlRpcFault, InterruptedException {
+    final Set<String> targetTypes = new HashSet<>();
+    for (final PostType t : this.target.getPostTypes()) {
+      targetTypes.add(t.getName());
+    }
+    final List<Post> posts = new ArrayList<>();
+    long newWatermark = this.watermark;
+    for (final PostType type : this.source.getPostTypes()) {
+      if ("attachment".equals(type.getName())
+          || !targetTypes.contains(type.getName())) {
+        continue;
+      }
+      final FilterPost filter = new FilterPost();
+      filter.setPost_type(type.getName());
+      filter.setPost_status("any");
+      filter.setOrderby("modified");
+      filter.setOrder("DESC");
+      try (PrefetchingIterator<Post> it = this.source.iteratePosts(filter)
+          .iterator()) {
+        while (it.hasNext()) {
+          final Post p = it.next();
+          final Date modified = p.getPost_modified_gmt();
+          if (modified != null) {
+            if (modified.getTime() < this.watermark - WATERMARK_SKEW) {
+              break;
+            }
+            newWatermark = Math.max(newWatermark, modified.getTime());
+          }
+          posts.add(p);
+        }
+      }
+    }
+    final int failedBefore = count("posts", Outcome.FAILED)
+        + count("posts", Outcome.SKIPPED);
+    run(executor, "posts", levels(posts, Post::getPost_id,
+        Post::getPost_parent), s -> {
+          final Integer parent = mapParent("post", s.getPost_parent());
+          if (parent == null) {
+            return Outcome.SKIPPED;
+          }
+          final Post t = copyPost(s);
+          t.setPost_parent(parent);
+          final String key = "post\t" + s.getPost_id();
+          final String hash = hash(t);
+          final Mapping m = this.mappings.get(key);
+          if (m != null && m.hash.equals(hash)) {
+            return Outcome.UNCHANGED;
+          }
+          if (m != null) {
+            this.target.editPost(m.targetId, t);
+            this.mappings.put(key, new Mapping(m.targetId, hash, null));
+            return Outcome.UPDATED;
+          }
+          this.mappings.put(key,
+              new Mapping(this.target.newPost(t), hash, null));
+          return Outcome.CREATED;
+        });
+    if (count("posts", Outcome.FAILED)
+        + count("posts", Outcome.SKIPPED) == failedBefore) {
+      this.watermark = newWatermark; // otherwise retry them next time
+    }
+  }
+  
+  /**
+   * @return what is sent to the target for a source post
+   */
+  @SuppressWarnings("nls")
+  private Post copyPost(final Post s) {
+    final Post t = new Post();
+    t.post_title = s.post_title;
+    t.post_date = s.post_date;
+    t.post_status = s.post_status;
+    t.post_type = s.post_type;
+    t.post_format = s.post_format;
+    t.post_name = s.post_name;
+    t.post_password = s.post_password;
+    t.post_excerpt = s.post_excerpt;
+    t.menu_order = s.menu_order;
+    t.comment_status = s.comment_status;
+    t.ping_status = s.ping_status;
+    t.sticky = s.sticky;
+    t.post_author = s.post_author != null ? this.users.get(s.post_author)
+        : null;
+    if (t.post_author == null) {
+      t.post_author = this.defaultAuthor;
+    }
+    String content = s.post_content;
+    if (content != null) {
+      for (final Map.Entry<String, String> u : this.urls.entrySet()) {
+        if (u.getValue() != null) {
+          content = content.replace(u.getKey(), u.getValue());
+        }
+      }
+    }
+    t.post_content = content;
+    if (s.terms != null) {
+      t.terms = new ArrayList<>();
+      for (final Term term : s.terms) {
+        final Mapping m = this.mappings
+            .get("term:" + term.getTaxonomy() + "\t" + term.getTerm_id());
+        if (m != null) {
+          final Term mapped = new Term();
+          mapped.setTerm_id(m.targetId);
+          mapped.setTaxonomy(term.getTaxonomy());
+          t.terms.add(mapped);
+        }
+      }
+    }
+    if (s.custom_fields != null) {
+      t.custom_fields = new ArrayList<>();
+      for (final CustomField f : s.custom_fields) {
+        if (!f.key.startsWith("_")) { // protected fields cannot be set
+          final CustomField c = new CustomField();
+          c.key = f.key;
+          c.value = f.value;
+          t.custom_fields.add(c);
+        }
+      }
+    }
+    return t;
+  }
+  
+  @SuppressWarnings("nls")
+  private void mirrorComments(final ExecutorService executor)
+      throws InterruptedException {
+    final List<Comment> comments = new ArrayList<>();
+    for (final Comment c : this.source.iterateComments(null, null)) {
+      comments.add(c);
+    }
+    run(executor, "comments", levels(comments, Comment::getComment_id,
+        Comment::getParent), s -> {
+          final Mapping post = this.mappings.get("post\t" + s.getPost_id());
+          final Integer parent = mapParent("comment", s.getParent());
+          if (post == null || parent == null) {
+            return Outcome.SKIPPED;
+          }
+          final Comment t = new Comment();
+          t.setContent(s.getContent());
+          t.setAuthor(s.getAuthor());
+          t.setAuthor_url(s.getAuthor_url());
+          t.setAuthor_email(s.getAuthor_email());
+          t.setStatus(s.getStatus());
+          t.setDate_created_gmt(s.getDate_created_gmt());
+          final String key = "comment\t" + s.getComment_id();
+          final String hash = hash(t) + post.targetId + "/" + parent;
+          final Mapping m = this.mappings.get(key);
+          if (m != null && m.hash.equals(hash)) {
+            return Outcome.UNCHANGED;
+          }
+          Outcome outcome = Outcome.UPDATED;
+          Integer targetId = m != null ? m.targetId : null;
+          if (targetId == null) {
+            // created as the target user, the author is set by the edit
+            targetId = this.target.newComment(post.targetId, parent,
+                s.getContent(), s.getAuthor(), s.getAuthor_url(),
+                s.getAuthor_email());
+            outcome = Outcome.CREATED;
+          }
+          t.setComment_id(targetId);
+          this.target.editComment(t);
+          this.mappings.put(key, new Mapping(targetId, hash, null));
+          return outcome;
+        });
+  }
+  
+  /**
+   * @return the target id of a parent, 0 for no parent, or null if the
+   *         parent is not copied yet
+   */
+  @SuppressWarnings("nls")
+  private Integer mapParent(final String type, final Integer parent) {
+    if (parent == null || parent.intValue() == 0) {
+      return Integer.valueOf(0);
+    }
+    final Mapping m = this.mappings.get(type + "\t" + parent);
+    return m != null ? m.targetId : null;
+  }
+  
+  /**
+   * Work done for one object
+   */
+  @FunctionalInterface
+  private interface Task<T> {
+    Outcome copy(T item) throws Exception;
+  }
+  
+  /**
+   * Copies the objects level by level, the objects of a level in parallel.
+   */
+  @SuppressWarnings("nls")
+  private <T> void run(final ExecutorService executor, final String type,
+      final List<List<T>> levels, final Task<T> task)
+          throws InterruptedException {
+    for (final List<T> level : levels) {
+      final List<Future<Outcome>> results = new ArrayList<>();
+      for (final T item : level) {
+        results.add(executor.submit(new Callable<Outcome>() {
+          @Override
+          public Outcome call() {
+            try {
+              return task.copy(item);
+            } catch (final Exception e) {
+              logger.warn("cannot copy {} {}: {}", type,
+                  ((XmlRpcMapped) item).toOneLinerString(), e.toString());
+              return Outcome.FAILED;
+            }
+          }
+        }));
+      }
+      for (final Future<Outcome> f : results) {
+        try {
+          increment(type, f.get());
+        } catch (final ExecutionException e) {
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+    }
+  }
+  
+  private synchronized void increment(final String type,
+      final Outcome outcome) {
+    final String key = type + "." + outcome.name().toLowerCase(); //$NON-NLS-1$
+    AtomicInteger c = this.counts.get(key);
+    if (c == null) {
+      c = new AtomicInteger();
+      this.counts.put(key, c);
+    }
+    c.incrementAndGet();
+  }
+  
+  private synchronized int count(final String type, final Outcome outcome) {
+    final AtomicInteger c = this.counts
+        .get(type + "." + outcome.name().toLowerCase()); //$NON-NLS-1$
+    return c == null ? 0 : c.get();
+  }
+  
+  /**
+   * Orders objects so that each comes in a later level than its parent, when
+   * the parent is among them too.
+   * 
+   * @param items
+   *          objects to order
+   * @param id
+   *          gives the id of an object
+   * @param parent
+   *          gives the id of the parent of an object, or null
+   * @return the objects by level, top level first; objects in a cycle or
+   *         whose parent is not in the list count as top level
+   */
+  static <T> List<List<T>> levels(final List<T> items,
+      final Function<T, Integer> id, final Function<T, Integer> parent) {
+    final Map<Integer, T> byId = new HashMap<>();
+    for (final T item : items) {
+      byId.put(id.apply(item), item);
+    }
+    final Map<Integer, Integer> depths = new HashMap<>();
+    final List<List<T>> result = new ArrayList<>();
+    for (final T item : items) {
+      // walk up to the first ancestor with a known depth, or the top
+      final List<Integer> path = new ArrayList<>();
+      Integer current = id.apply(item);
+      int depth = -1;
+      while (current != null) {
+        final Integer known = depths.get(current);
+        if (known != null) {
+          depth = known.intValue();
+          break;
+        }
+        if (path.contains(current) || !byId.containsKey(current)) {
+          break; // a cycle, or a parent that is not being copied
+        }
+        path.add(current);
+        current = parent.apply(byId.get(current));
+      }
+      for (int i = path.size() - 1; i >= 0; i--) {
+        depths.put(path.get(i), Integer.valueOf(++depth));
+      }
+      final int d = depths.get(id.apply(item)).intValue();
+      while (result.size() <= d) {
+        result.add(new ArrayList<T>());
+      }
+      result.get(d).add(item);
+    }
+    return result;
+  }
+  
+  @SuppressWarnings("nls")
+  private static String hash(final XmlRpcMapped o) throws IOException {
+    final StringBuilder json = new StringBuilder();
+    o.writeJSON(json);
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-1")
+          .digest(json.toString().getBytes(StandardCharsets.UTF_8));
+      final StringBuilder result = new StringBuilder();
+      for (final byte b : digest) {
+        result.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+      }
+      return result.toString();
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  /**
+   * State lines are "type source-id target-id hash [url]", and one
+   * "#watermark millis" line.
+   */
+  @SuppressWarnings("nls")
+  private void readState() throws IOException {
+    this.mappings.clear();
+    this.urls.clear();
+    this.watermark = 0;
+    if (!this.stateFile.exists()) {
+      return;
+    }
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(
+        new FileInputStream(this.stateFile), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = r.readLine()) != null) {
+        final String[] f = line.split("\t");
+        if (f[0].equals(WATERMARK) && f.length == 2) {
+          this.watermark = Long.parseLong(f[1]);
+        } else if (f.length >= 4) {
+          this.mappings.put(f[0] + "\t" + f[1], new Mapping(
+              Integer.valueOf(f[2]), f[3], f.length > 4 ? f[4] : null));
+        }
+      }
+    }
+  }
+  
+  /**
+   * Replaces the state file atomically.
+   */
+  @SuppressWarnings("nls")
+  private void writeState() throws IOException {
+    final File dir = this.stateFile.getAbsoluteFile().getParentFile();
+    final File temp = File.createTempFile("mirror", null, dir);
+    try {
+      try (Writer w = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+        w.write(WATERMARK + "\t" + this.watermark + "\n");
+        for (final Map.Entry<String, Mapping> e : this.mappings.entrySet()) {
+          final Mapping m = e.getValue();
+          w.write(e.getKey() + "\t" + m.targetId + "\t" + m.hash
+              + (m.url != null ? "\t" + m.url : "") + "\n");
+        }
+      }
+      Files.move(temp.toPath(), this.stateFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      temp.delete();
+    }
+  }
+}
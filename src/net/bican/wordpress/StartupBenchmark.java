@@ -0,0 +1,203 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures how long the command line takes from the start of its JVM to its
+ * first request to the server, and to its exit. The command runs against a
+ * local stand-in of the XML-RPC endpoint that answers every call with the
+ * same post, so that the network does not count.
+ * 
+ * <pre>
+ * StartupBenchmark [--runs n] [--archive file]
+ * StartupBenchmark --train file
+ * </pre>
+ * 
+ * <p>
+ * With an archive, the runs are measured with and without the class data
+ * sharing archive. With --train, the command runs once to write the archive
+ * of the classes it loads, as the build does next to the command line jar.
+ * Dynamic archives need Java 13 or newer.
+ * 
+ * @author Can Bican
+ */
+@SuppressWarnings("nls")
+public class StartupBenchmark {
+  private static final String RESPONSE = "<?xml version=\"1.0\"?>"
+      + "<methodResponse><params><param><value><struct>"
+      + "<member><name>post_id</name><value><string>1</string></value></member>"
+      + "<member><name>post_title</name><value><string>startup</string></value></member>"
+      + "<member><name>post_status</name><value><string>publish</string></value></member>"
+      + "</struct></value></param></params></methodResponse>";
+  
+  private final AtomicLong firstRequest = new AtomicLong();
+  private HttpServer server = null;
+  
+  /**
+   * @param args
+   *          see above
+   * @throws Exception
+   *           if a run fails
+   */
+  public static void main(final String[] args) throws Exception {
+    int runs = 10;
+    File archive = null;
+    File train = null;
+    for (int i = 0; i < args.length; i++) {
+      final String a = args[i];
+      if (i + 1 == args.length) {
+        throw new IllegalArgumentException(a + " needs a value");
+      }
+      if (a.equals("--runs")) {
+        runs = Integer.parseInt(args[++i]);
+      } else if (a.equals("--archive")) {
+        archive = new File(args[++i]).getAbsoluteFile();
+      } else if (a.equals("--train")) {
+        train = new File(args[++i]).getAbsoluteFile();
+      } else {
+        throw new IllegalArgumentException("unknown argument " + a);
+      }
+    }
+    final StartupBenchmark benchmark = new StartupBenchmark();
+    benchmark.start();
+    try {
+      if (train != null) {
+        Files.deleteIfExists(train.toPath());
+        benchmark.run("-XX:ArchiveClassesAtExit=" + train.getPath());
+        if (!train.isFile()) {
+          throw new IOException("the JVM did not write " + train);
+        }
+        System.out.println("wrote " + train);
+      } else {
+        // the first run fills the file system caches
+        benchmark.run();
+        benchmark.measure("default", runs);
+        if (archive != null) {
+          benchmark.measure("archive", runs,
+              "-XX:SharedArchiveFile=" + archive.getPath(), "-Xshare:auto");
+        }
+      }
+    } finally {
+      benchmark.stop();
+    }
+  }
+  
+  private void start() throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress(
+        InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext("/xmlrpc.php", this::answer);
+    this.server.start();
+  }
+  
+  private void stop() {
+    this.server.stop(0);
+  }
+  
+  private void answer(final HttpExchange exchange) throws IOException {
+    this.firstRequest.compareAndSet(0, System.nanoTime());
+    try (InputStream in = exchange.getRequestBody()) {
+      final byte[] buffer = new byte[8192];
+      while (in.read(buffer) >= 0) {
+        // the request does not matter
+      }
+    }
+    final byte[] body = RESPONSE.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/xml");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+  
+  private void measure(final String name, final int runs,
+      final String... jvmOptions) throws IOException, InterruptedException {
+    final List<Long> first = new ArrayList<>();
+    final List<Long> exit = new ArrayList<>();
+    for (int i = 0; i < runs; i++) {
+      final long[] times = run(jvmOptions);
+      first.add(Long.valueOf(times[0]));
+      exit.add(Long.valueOf(times[1]));
+    }
+    Collections.sort(first);
+    Collections.sort(exit);
+    System.out.println(String.format(
+        "%-8s first request: median %4d ms, min %4d ms; "
+            + "exit: median %4d ms, min %4d ms",
+        name, millis(first.get(runs / 2)), millis(first.get(0)),
+        millis(exit.get(runs / 2)), millis(exit.get(0))));
+  }
+  
+  private static Long millis(final Long nanos) {
+    return Long.valueOf(TimeUnit.NANOSECONDS.toMillis(nanos.longValue()));
+  }
+  
+  /**
+   * Runs the command line once, as the launcher does.
+   * 
+   * @return the nanoseconds until the first request and until the exit
+   */
+  private long[] run(final String... jvmOptions)
+      throws IOException, InterruptedException {
+    final List<String> command = new ArrayList<>();
+    command.add(System.getProperty("java.home") + File.separator + "bin"
+        + File.separator + "java");
+    command.addAll(Arrays.asList(jvmOptions));
+    // never hand the command to a daemon that happens to run
+    command.add("-Djwordpress.daemon=" + new File(
+        System.getProperty("java.io.tmpdir"), "jwordpress-benchmark-none"));
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(DaemonClient.class.getName());
+    command.add("--url");
+    command.add("http://127.0.0.1:" + this.server.getAddress().getPort()
+        + "/xmlrpc.php");
+    command.add("--user");
+    command.add("benchmark");
+    command.add("--pass");
+    command.add("benchmark");
+    command.add("--getpost");
+    command.add("1");
+    final File output = File.createTempFile("benchmark", ".out");
+    try {
+      this.firstRequest.set(0);
+      final long started = System.nanoTime();
+      final Process process = new ProcessBuilder(command)
+          .redirectErrorStream(true).redirectOutput(output).start();
+      final int status = process.waitFor();
+      final long exited = System.nanoTime();
+      final long first = this.firstRequest.get();
+      if (status != 0 || first == 0) {
+        System.err.write(Files.readAllBytes(output.toPath()));
+        throw new IOException("the command failed with status " + status);
+      }
+      return new long[] { first - started, exited - started };
+    } finally {
+      output.delete();
+    }
+  }
+}
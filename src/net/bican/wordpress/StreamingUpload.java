@@ -0,0 +1,462 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import net.bican.wordpress.util.MetricsRegistry;
+import redstone.xmlrpc.XmlRpcArray;
+import redstone.xmlrpc.XmlRpcException;
+import redstone.xmlrpc.XmlRpcFault;
+import redstone.xmlrpc.XmlRpcStruct;
+
+/**
+ * Sends a <code>wp.uploadFile</code> request with the file data
+ * base64-encoded on the fly into the connection, instead of building the
+ * whole request in memory as the xml-rpc client does. The memory used does
+ * not depend on the size of the file. Uploads are recorded in the
+ * {@link MetricsRegistry} of the client, if it has one, as
+ * <code>wp.uploadFile</code> calls.
+ * 
+ * @author Can Bican
+ */
+class StreamingUpload {
+  /** bytes read at a time, a multiple of 3 so no padding is emitted early */
+  private static final int CHUNK = 3 * 16 * 1024;
+  /** bytes of a file mapped at a time */
+  private static final long WINDOW = 64L << 20;
+  /** whether a server takes chunked requests, by url, once it is known */
+  private static final ConcurrentMap<String, Boolean> CHUNKING =
+      new ConcurrentHashMap<>();
+  
+  private final URL url;
+  private final Integer blogId;
+  private final String username;
+  private final String password;
+  private final MetricsRegistry metrics;
+  
+  /**
+   * An upload, sent by one or two requests
+   */
+  private interface Request {
+    XmlRpcStruct send() throws IOException, XmlRpcFault;
+  }
+  
+  StreamingUpload(final URL url, final Integer blogId, final String username,
+      final String password, final MetricsRegistry metrics) {
+    this.url = url;
+    this.blogId = blogId;
+    this.username = username;
+    this.password = password;
+    this.metrics = metrics;
+  }
+  
+  private XmlRpcStruct recorded(final Request request)
+      throws IOException, XmlRpcFault {
+    if (this.metrics == null) {
+      return request.send();
+    }
+    final long started = this.metrics.start();
+    Throwable error = null;
+    try {
+      return request.send();
+    } catch (final IOException | XmlRpcFault | RuntimeException e) {
+      error = e;
+      throw e;
+    } finally {
+      this.metrics.end("wp.uploadFile", started, error); //$NON-NLS-1$
+    }
+  }
+  
+  /**
+   * Uploads data of unknown length, using a chunked request. Servers that
+   * answer 411 Length Required, as many behind FastCGI do, get the data
+   * copied to a temporary file first and sent with its length. Until a
+   * server has taken a chunked request, the data is copied while it is sent,
+   * so a 411 can be retried.
+   */
+  XmlRpcStruct send(final InputStream data, final String name,
+      final String type, final Boolean overwrite, final Integer postId)
+          throws IOException, XmlRpcFault {
+    return recorded(() -> upload(data, name, type, overwrite, postId));
+  }
+  
+  private XmlRpcStruct upload(final InputStream data, final String name,
+      final String type, final Boolean overwrite, final Integer postId)
+          throws IOException, XmlRpcFault {
+    final String server = this.url.toString();
+    final Boolean chunking = CHUNKING.get(server);
+    if (Boolean.TRUE.equals(chunking)) {
+      final XmlRpcStruct r = chunked(data, null, name, type, overwrite,
+          postId);
+      if (r != null) {
+        return r;
+      }
+      CHUNKING.put(server, Boolean.FALSE);
+      throw new XmlRpcException("HTTP 411 Length Required"); //$NON-NLS-1$
+    }
+    final Path copy = Files.createTempFile("upload", null); //$NON-NLS-1$
+    try {
+      try (OutputStream spool = Files.newOutputStream(copy)) {
+        if (chunking == null) {
+          final XmlRpcStruct r = chunked(data, spool, name, type, overwrite,
+              postId);
+          if (r != null) {
+            CHUNKING.put(server, Boolean.TRUE);
+            return r;
+          }
+          CHUNKING.put(server, Boolean.FALSE);
+        }
+        final byte[] buffer = new byte[CHUNK];
+        int n;
+        while ((n = data.read(buffer)) != -1) {
+          spool.write(buffer, 0, n);
+        }
+      }
+      try (FileChannel ch = FileChannel.open(copy,
+          StandardOpenOption.READ)) {
+        return upload(ch, name, type, overwrite, postId);
+      }
+    } finally {
+      Files.deleteIfExists(copy);
+    }
+  }
+  
+  /**
+   * @param spool
+   *          where to copy the data read, or null
+   * @return the response, or null if the server requires the length
+   */
+  private XmlRpcStruct chunked(final InputStream data,
+      final OutputStream spool, final String name, final String type,
+      final Boolean overwrite, final Integer postId)
+          throws IOException, XmlRpcFault {
+    final byte[][] frame = frame(name, type, overwrite, postId);
+    final HttpURLConnection c = open();
+    c.setChunkedStreamingMode(CHUNK);
+    try (OutputStream out = c.getOutputStream()) {
+      out.write(frame[0]);
+      try (OutputStream enc = encoder(out)) {
+        final byte[] buffer = new byte[CHUNK];
+        int n;
+        while ((n = data.read(buffer)) != -1) {
+          if (spool != null) {
+            spool.write(buffer, 0, n);
+          }
+          enc.write(buffer, 0, n);
+        }
+      }
+      out.write(frame[1]);
+    } catch (final IOException e) {
+      // the server may have answered before reading the whole request
+      if (lengthRequired(c)) {
+        return null;
+      }
+      throw e;
+    }
+    return lengthRequired(c) ? null : response(c);
+  }
+  
+  private static boolean lengthRequired(final HttpURLConnection c) {
+    try {
+      if (c.getResponseCode() == HttpURLConnection.HTTP_LENGTH_REQUIRED) {
+        c.disconnect();
+        return true;
+      }
+      return false;
+    } catch (final IOException e) {
+      return false;
+    }
+  }
+  
+  /**
+   * Uploads a file, mapping it into memory a window at a time. The length of
+   * the request is known in advance, so it is not chunked.
+   */
+  XmlRpcStruct send(final FileChannel data, final String name,
+      final String type, final Boolean overwrite, final Integer postId)
+          throws IOException, XmlRpcFault {
+    return recorded(() -> upload(data, name, type, overwrite, postId));
+  }
+  
+  private XmlRpcStruct upload(final FileChannel data, final String name,
+      final String type, final Boolean overwrite, final Integer postId)
+          throws IOException, XmlRpcFault {
+    final byte[][] frame = frame(name, type, overwrite, postId);
+    final long size = data.size();
+    final HttpURLConnection c = open();
+    c.setFixedLengthStreamingMode(
+        frame[0].length + (size + 2) / 3 * 4 + frame[1].length);
+    try (OutputStream out = c.getOutputStream()) {
+      out.write(frame[0]);
+      try (OutputStream enc = encoder(out)) {
+        final byte[] buffer = new byte[CHUNK];
+        for (long pos = 0; pos < size; pos += WINDOW) {
+          final MappedByteBuffer window = data
+              .map(FileChannel.MapMode.READ_ONLY, pos,
+                  Math.min(WINDOW, size - pos));
+          while (window.hasRemaining()) {
+            final int n = Math.min(buffer.length, window.remaining());
+            window.get(buffer, 0, n);
+            enc.write(buffer, 0, n);
+          }
+        }
+      }
+      out.write(frame[1]);
+    }
+    return response(c);
+  }
+  
+  private HttpURLConnection open() throws IOException {
+    final HttpURLConnection c = (HttpURLConnection) this.url.openConnection();
+    c.setDoOutput(true);
+    c.setRequestMethod("POST"); //$NON-NLS-1$
+    c.setRequestProperty("Content-Type", //$NON-NLS-1$
+        "text/xml; charset=UTF-8"); //$NON-NLS-1$
+    return c;
+  }
+  
+  /**
+   * The base64 stream writes its padding when it is closed, which must not
+   * close the connection.
+   */
+  private static OutputStream encoder(final OutputStream out) {
+    return Base64.getEncoder().wrap(new FilterOutputStream(out) {
+      @Override
+      public void write(final byte[] b, final int off, final int len)
+          throws IOException {
+        this.out.write(b, off, len);
+      }
+      
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    });
+  }
+  
+  /**
+   * @return the request before and after the base64 data
+   */
+  @SuppressWarnings("nls")
+  private byte[][] frame(final String name, final String type,
+      final Boolean overwrite, final Integer postId) {
+    final StringBuilder head = new StringBuilder(512);
+    head.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+        .append("<methodCall><methodName>wp.uploadFile</methodName><params>")
+        .append("<param><value><int>").append(this.blogId)
+        .append("</int></value></param>");
+    param(head, this.username);
+    param(head, this.password);
+    head.append("<param><value><struct>");
+    member(head, "name").append("<string>").append(escape(name))
+        .append("</string></value></member>");
+    member(head, "type").append("<string>").append(escape(type))
+        .append("</string></value></member>");
+    if (postId != null) {
+      member(head, "post_id").append("<int>").append(postId)
+          .append("</int></value></member>");
+    }
+    if (overwrite != null) {
+      member(head, "overwrite").append("<boolean>")
+          .append(overwrite.booleanValue() ? 1 : 0)
+          .append("</boolean></value></member>");
+    }
+    member(head, "bits").append("<base64>");
+    final String tail = "</base64></value></member></struct></value></param>"
+        + "</params></methodCall>";
+    return new byte[][] { head.toString().getBytes(StandardCharsets.UTF_8),
+        tail.getBytes(StandardCharsets.UTF_8) };
+  }
+  
+  @SuppressWarnings("nls")
+  private static void param(final StringBuilder sb, final String value) {
+    sb.append("<param><value><string>").append(escape(value))
+        .append("</string></value></param>");
+  }
+  
+  @SuppressWarnings("nls")
+  private static StringBuilder member(final StringBuilder sb,
+      final String name) {
+    return sb.append("<member><name>").append(name).append("</name><value>");
+  }
+  
+  @SuppressWarnings("nls")
+  private static String escape(final String s) {
+    if (s == null) {
+      return "";
+    }
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+  
+  private static XmlRpcStruct response(final HttpURLConnection c)
+      throws IOException, XmlRpcFault {
+    final int status = c.getResponseCode();
+    if (status != HttpURLConnection.HTTP_OK) {
+      final String message = c.getResponseMessage();
+      c.disconnect();
+      throw new XmlRpcException("HTTP " + status + " " + message); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    final ResponseHandler handler = new ResponseHandler();
+    try (InputStream in = c.getInputStream()) {
+      final SAXParserFactory factory = SAXParserFactory.newInstance();
+      factory.setFeature(
+          "http://apache.org/xml/features/disallow-doctype-decl", true); //$NON-NLS-1$
+      factory.newSAXParser().parse(in, handler);
+    } catch (final ParserConfigurationException | SAXException e) {
+      throw new XmlRpcException(e.getMessage(), e);
+    }
+    if (handler.fault) {
+      final XmlRpcStruct f = (XmlRpcStruct) handler.value;
+      throw new XmlRpcFault(((Number) f.get("faultCode")).intValue(), //$NON-NLS-1$
+          String.valueOf(f.get("faultString"))); //$NON-NLS-1$
+    }
+    if (!(handler.value instanceof XmlRpcStruct)) {
+      throw new XmlRpcException("unexpected response: " + handler.value); //$NON-NLS-1$
+    }
+    return (XmlRpcStruct) handler.value;
+  }
+  
+  /**
+   * Builds the value of a <code>methodResponse</code> with the same types
+   * the xml-rpc client produces.
+   */
+  private static class ResponseHandler extends DefaultHandler {
+    private final Deque<Object> containers = new ArrayDeque<>();
+    private final Deque<String> names = new ArrayDeque<>();
+    private final StringBuilder text = new StringBuilder();
+    /** whether the current value element had a child element */
+    private boolean typed = false;
+    boolean fault = false;
+    Object value = null;
+    
+    @Override
+    @SuppressWarnings("nls")
+    public void startElement(final String uri, final String localName,
+        final String qName, final Attributes attributes) {
+      this.text.setLength(0);
+      switch (qName) {
+        case "fault":
+          this.fault = true;
+          break;
+        case "value":
+          this.typed = false;
+          break;
+        case "struct":
+          this.typed = true;
+          this.containers.push(new XmlRpcStruct());
+          break;
+        case "array":
+          this.typed = true;
+          this.containers.push(new XmlRpcArray());
+          break;
+        default:
+          this.typed = true;
+      }
+    }
+    
+    @Override
+    public void characters(final char[] ch, final int start,
+        final int length) {
+      this.text.append(ch, start, length);
+    }
+    
+    @Override
+    @SuppressWarnings("nls")
+    public void endElement(final String uri, final String localName,
+        final String qName) throws SAXException {
+      final String t = this.text.toString();
+      switch (qName) {
+        case "name":
+          this.names.push(t);
+          break;
+        case "value":
+          if (!this.typed) {
+            add(t);
+          }
+          this.typed = true;
+          break;
+        case "struct":
+        case "array":
+          add(this.containers.pop());
+          break;
+        case "i4":
+        case "int":
+          add(Integer.valueOf(t.trim()));
+          break;
+        case "i8":
+          add(Long.valueOf(t.trim()));
+          break;
+        case "boolean":
+          add(Boolean.valueOf("1".equals(t.trim())));
+          break;
+        case "double":
+          add(Double.valueOf(t.trim()));
+          break;
+        case "string":
+          add(t);
+          break;
+        case "nil":
+          add(null);
+          break;
+        case "base64":
+          add(Base64.getMimeDecoder().decode(t));
+          break;
+        case "dateTime.iso8601":
+          try {
+            add(new SimpleDateFormat("yyyyMMdd'T'HH:mm:ss").parse(t.trim()));
+          } catch (final ParseException e) {
+            throw new SAXException(e);
+          }
+          break;
+        default:
+          break;
+      }
+      this.typed = true;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void add(final Object v) {
+      final Object top = this.containers.peek();
+      if (top instanceof XmlRpcStruct) {
+        ((XmlRpcStruct) top).put(this.names.pop(), v);
+      } else if (top instanceof XmlRpcArray) {
+        ((XmlRpcArray) top).add(v);
+      } else {
+        this.value = v;
+      }
+    }
+  }
+}
@@ -111,4 +111,22 @@ public class TermFilter extends XmlRpcMapped {
   public void setSearch(final String search) {
     this.search = search;
   }
+  
+  /**
+   * @param offset
+   *          offset of the copy
+   * @param number
+   *          number of the copy
+   * @return a copy of this filter for the given page
+   */
+  TermFilter page(final Integer offset, final Integer number) {
+    final TermFilter copy = new TermFilter();
+    copy.orderby = this.orderby;
+    copy.order = this.order;
+    copy.hide_empty = this.hide_empty;
+    copy.search = this.search;
+    copy.offset = offset;
+    copy.number = number;
+    return copy;
+  }
 }
@@ -0,0 +1,491 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bican.wordpress.exceptions.InsufficientRightsException;
+import net.bican.wordpress.exceptions.InvalidArgumentsException;
+import net.bican.wordpress.exceptions.ObjectNotFoundException;
+import redstone.xmlrpc.XmlRpcFault;
+
+/**
+ * A cached index of all terms of a taxonomy, with lookups by id, slug and
+ * name, the parent/child tree and resolution of term names to ids, creating
+ * the missing terms on the way.
+ * 
+ * @author Can Bican
+ */
+public class TermIndex {
+  /**
+   * Default number of terms to fetch per request while loading the index
+   */
+  public static final int DEFAULT_PAGE_SIZE = 100;
+  
+  private static final Integer ROOT = Integer.valueOf(0);
+  private static final Logger logger = LoggerFactory.getLogger(TermIndex.class);
+  
+  private final Wordpress wp;
+  private final String taxonomy;
+  private final int pageSize;
+  private volatile Snapshot snapshot = null;
+  private ScheduledExecutorService refresher = null;
+  
+  /**
+   * Immutable view of the index, replaced as a whole on each refresh.
+   */
+  private static class Snapshot {
+    final Map<Integer, Term> byId;
+    final Map<String, Term> bySlug;
+    final Map<String, List<Term>> byName;
+    final Map<Integer, List<Term>> children;
+    
+    Snapshot(final Collection<Term> terms) {
+      this.byId = new HashMap<>();
+      this.bySlug = new HashMap<>();
+      this.byName = new HashMap<>();
+      this.children = new HashMap<>();
+      for (final Term term : terms) {
+        this.byId.put(term.getTerm_id(), term);
+        if (term.getSlug() != null) {
+          this.bySlug.put(term.getSlug(), term);
+        }
+        if (term.getName() != null) {
+          final String key = nameKey(term.getName());
+          List<Term> named = this.byName.get(key);
+          if (named == null) {
+            named = new ArrayList<>();
+            this.byName.put(key, named);
+          }
+          named.add(term);
+        }
+        final Integer parent = parentOf(term);
+        List<Term> siblings = this.children.get(parent);
+        if (siblings == null) {
+          siblings = new ArrayList<>();
+          this.children.put(parent, siblings);
+        }
+        siblings.add(term);
+      }
+    }
+  }
+  
+  /**
+   * @param wp
+   *          wordpress connection to load the terms from
+   * @param taxonomy
+   *          taxonomy name
+   */
+  public TermIndex(final Wordpress wp, final String taxonomy) {
+    this(wp, taxonomy, DEFAULT_PAGE_SIZE);
+  }
+  
+  /**
+   * @param wp
+   *          wordpress connection to load the terms from
+   * @param taxonomy
+   *          taxonomy name
+   * @param pageSize
+   *          number of terms to fetch per request
+   */
+  public TermIndex(final Wordpress wp, final String taxonomy,
+      final int pageSize) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("pageSize: " + pageSize); //$NON-NLS-1$
+    }
+    this.wp = wp;
+    this.taxonomy = taxonomy;
+    this.pageSize = pageSize;
+  }
+  
+  static String nameKey(final String name) {
+    return name.trim().toLowerCase(Locale.ROOT);
+  }
+  
+  static Integer parentOf(final Term term) {
+    final Integer parent = term.getParent();
+    return parent == null ? ROOT : parent;
+  }
+  
+  /**
+   * @return the taxonomy name
+   */
+  public String getTaxonomy() {
+    return this.taxonomy;
+  }
+  
+  /**
+   * Reloads all terms of the taxonomy page by page and replaces the index.
+   * Holds the same lock as {@link #resolve(String, Integer)}, so a term
+   * created during a refresh is not lost when the index is replaced.
+   * 
+   * @throws InsufficientRightsException
+   *           if the user does not have the assign_terms cap for this taxonomy
+   * @throws InvalidArgumentsException
+   *           if invalid taxonomy name is specified
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public synchronized void refresh() throws InsufficientRightsException,
+      InvalidArgumentsException, XmlRpcFault {
+    final List<Term> terms = new ArrayList<>();
+    final TermFilter filter = new TermFilter();
+    filter.setHide_empty(false);
+    filter.setNumber(Integer.valueOf(this.pageSize));
+    int offset = 0;
+    while (true) {
+      filter.setOffset(Integer.valueOf(offset));
+      final List<Term> page = this.wp.getTerms(this.taxonomy, filter);
+      if (page == null) {
+        break;
+      }
+      terms.addAll(page);
+      if (page.size() < this.pageSize) {
+        break;
+      }
+      offset += page.size();
+    }
+    this.snapshot = new Snapshot(terms);
+    logger.debug("indexed {} terms of {}", Integer.valueOf(terms.size()), //$NON-NLS-1$
+        this.taxonomy);
+  }
+  
+  private Snapshot current() throws InsufficientRightsException,
+      InvalidArgumentsException, XmlRpcFault {
+    Snapshot s = this.snapshot;
+    if (s == null) {
+      synchronized (this) {
+        if (this.snapshot == null) {
+          refresh();
+        }
+        s = this.snapshot;
+      }
+    }
+    return s;
+  }
+  
+  /**
+   * Refreshes the index periodically on a background daemon thread. Errors
+   * during refresh are logged and the previous contents are kept.
+   * 
+   * @param period
+   *          time between refreshes
+   * @param unit
+   *          unit of period
+   */
+  public synchronized void startRefresh(final long period,
+      final TimeUnit unit) {
+    stopRefresh();
+    this.refresher = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r,
+                "termindex-" + TermIndex.this.taxonomy); //$NON-NLS-1$
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    this.refresher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          refresh();
+        } catch (InsufficientRightsException | InvalidArgumentsException
+            | XmlRpcFault | RuntimeException e) {
+          logger.warn("cannot refresh terms of {}: {}", //$NON-NLS-1$
+              TermIndex.this.taxonomy, e.getLocalizedMessage());
+        }
+      }
+    }, period, period, unit);
+  }
+  
+  /**
+   * Stops the background refresh, if started.
+   */
+  public synchronized void stopRefresh() {
+    if (this.refresher != null) {
+      this.refresher.shutdownNow();
+      this.refresher = null;
+    }
+  }
+  
+  /**
+   * @return all indexed terms
+   * @throws InsufficientRightsException
+   *           if the user does not have the assign_terms cap for this taxonomy
+   * @throws InvalidArgumentsException
+   *           if invalid taxonomy name is specified
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public Collection<Term> getTerms() throws InsufficientRightsException,
+      InvalidArgumentsException, XmlRpcFault {
+    return Collections.unmodifiableCollection(current().byId.values());
+  }
+  
+  /**
+   * @param termId
+   *          term id
+   * @return the term, or null if there is no such term
+   * @throws InsufficientRightsException
+   *           if the user does not have the assign_terms cap for this taxonomy
+   * @throws InvalidArgumentsException
+   *           if invalid taxonomy name is specified
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public Term getById(final Integer termId) throws InsufficientRightsException,
+      InvalidArgumentsException, XmlRpcFault {
+    return current().byId.get(termId);
+  }
+  
+  /**
+   * @param slug
+   *          term slug
+   * @return the term, or null if there is no such term
+   * @throws InsufficientRightsException
+   *           if the user does not have the assign_terms cap for this taxonomy
+   * @throws InvalidArgumentsException
+   *           if invalid taxonomy name is specified
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public Term getBySlug(final String slug) throws InsufficientRightsException,
+      InvalidArgumentsException, XmlRpcFault {
+    return current().bySlug.get(slug);
+  }
+  
+  /**
+   * @param name
+   *          term name, compared case insensitively
+   * @return the first term with that name, or null if there is no such term
+   * @throws InsufficientRightsException
+   *           if the user does not have the assign_terms cap for this taxonomy
+   * @throws InvalidArgumentsException
+   *           if invalid taxonomy name is specified
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public Term getByName(final String name) throws InsufficientRightsException,
+      InvalidArgumentsException, XmlRpcFault {
+    final List<Term> named = current().byName.get(nameKey(name));
+    return named == null ? null : named.get(0);
+  }
+  
+  /**
+   * @param name
+   *          term name, compared case insensitively
+   * @param parentId
+   *          id of the parent term, 0 or null for top level terms
+   * @return the term with that name under the parent, or null if there is no
+   *         such term
+   * @throws InsufficientRightsException
+   *           if the user does not have the assign_terms cap for this taxonomy
+   * @throws InvalidArgumentsException
+   *           if invalid taxonomy name is specified
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public Term getByName(final String name, final Integer parentId)
+      throws InsufficientRightsException, InvalidArgumentsException,
+      XmlRpcFault {
+    return findByName(current(), name, parentId == null ? ROOT : parentId);
+  }
+  
+  private static Term findByName(final Snapshot s, final String name,
+      final Integer parentId) {
+    final List<Term> named = s.byName.get(nameKey(name));
+    if (named != null) {
+      for (final Term term : named) {
+        if (parentOf(term).equals(parentId)) {
+          return term;
+        }
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * @param termId
+   *          term id, 0 for the top level terms
+   * @return the direct children of the term
+   * @throws InsufficientRightsException
+   *           if the user does not have the assign_terms cap for this taxonomy
+   * @throws InvalidArgumentsException
+   *           if invalid taxonomy name is specified
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public List<Term> getChildren(final Integer termId)
+      throws InsufficientRightsException, InvalidArgumentsException,
+      XmlRpcFault {
+    final List<Term> children = current().children.get(termId);
+    if (children == null) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(children);
+  }
+  
+  /**
+   * @param termId
+   *          term id
+   * @return the ancestors of the term, starting from its parent up to the top
+   *         level term
+   * @throws InsufficientRightsException
+   *           if the user does not have the assign_terms cap for this taxonomy
+   * @throws InvalidArgumentsException
+   *           if invalid taxonomy name is specified
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public List<Term> getAncestors(final Integer termId)
+      throws InsufficientRightsException, InvalidArgumentsException,
+      XmlRpcFault {
+    final Snapshot s = current();
+    final List<Term> result = new ArrayList<>();
+    Term term = s.byId.get(termId);
+    while (term != null && !ROOT.equals(parentOf(term))) {
+      term = s.byId.get(term.getParent());
+      if (term == null || result.contains(term)) {
+        break; // dangling parent or a cycle in broken data
+      }
+      result.add(term);
+    }
+    return result;
+  }
+  
+  /**
+   * @param ancestorId
+   *          possible ancestor term id
+   * @param termId
+   *          term id
+   * @return true if ancestorId is one of the ancestors of termId
+   * @throws InsufficientRightsException
+   *           if the user does not have the assign_terms cap for this taxonomy
+   * @throws InvalidArgumentsException
+   *           if invalid taxonomy name is specified
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public boolean isAncestor(final Integer ancestorId, final Integer termId)
+      throws InsufficientRightsException, InvalidArgumentsException,
+      XmlRpcFault {
+    for (final Term term : getAncestors(termId)) {
+      if (term.getTerm_id().equals(ancestorId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Finds the term with the given name under the parent, creating it if it
+   * does not exist.
+   * 
+   * @param name
+   *          term name
+   * @param parentId
+   *          id of the parent term, 0 or null for top level terms
+   * @return the existing or newly created term
+   * @throws InsufficientRightsException
+   *           if the user does not have the assign_terms cap for this taxonomy
+   * @throws InvalidArgumentsException
+   *           if invalid taxonomy name is specified
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public Term resolve(final String name, final Integer parentId)
+      throws InsufficientRightsException, InvalidArgumentsException,
+      XmlRpcFault {
+    final Integer parent = parentId == null ? ROOT : parentId;
+    Term term = findByName(current(), name, parent);
+    if (term != null) {
+      return term;
+    }
+    synchronized (this) {
+      final Snapshot s = current();
+      term = findByName(s, name, parent);
+      if (term == null) {
+        term = new Term();
+        term.setTaxonomy(this.taxonomy);
+        term.setName(name);
+        term.setSlug(""); //$NON-NLS-1$
+        term.setParent(parent);
+        term = created(term, this.wp.newTerm(term));
+        final List<Term> terms = new ArrayList<>(s.byId.values());
+        terms.add(term);
+        this.snapshot = new Snapshot(terms);
+        logger.debug("created term {} in {}", name, this.taxonomy); //$NON-NLS-1$
+      }
+    }
+    return term;
+  }
+  
+  /**
+   * Reads a newly created term back, for the slug WordPress made from its
+   * name, keeping the term as sent if it cannot be read.
+   */
+  private Term created(final Term term, final Integer termId)
+      throws InsufficientRightsException, InvalidArgumentsException,
+      XmlRpcFault {
+    term.setTerm_id(termId);
+    try {
+      return this.wp.getTerm(this.taxonomy, termId);
+    } catch (final ObjectNotFoundException e) {
+      logger.warn("cannot read created term {} of {}", termId, //$NON-NLS-1$
+          this.taxonomy);
+      term.setSlug(null);
+      return term;
+    }
+  }
+  
+  /**
+   * Resolves a path of term names, each one a child of the previous one,
+   * creating the missing terms from the top down.
+   * 
+   * @param names
+   *          names from the top level term down to the requested term
+   * @return the term for the last name in the path
+   * @throws InsufficientRightsException
+   *           if the user does not have the assign_terms cap for this taxonomy
+   * @throws InvalidArgumentsException
+   *           if invalid taxonomy name is specified, or the path is empty
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public Term resolvePath(final String... names)
+      throws InsufficientRightsException, InvalidArgumentsException,
+      XmlRpcFault {
+    if (names.length == 0) {
+      throw new InvalidArgumentsException();
+    }
+    Term term = null;
+    Integer parent = ROOT;
+    for (final String name : names) {
+      term = resolve(name, parent);
+      parent = term.getTerm_id();
+    }
+    return term;
+  }
+}
@@ -5,21 +5,29 @@
  */
 package net.bican.wordpress;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
-import javax.activation.MimetypesFileTypeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,7 +36,11 @@ import net.bican.wordpress.exceptions.FileUploadException;
 import net.bican.wordpress.exceptions.InsufficientRightsException;
 import net.bican.wordpress.exceptions.InvalidArgumentsException;
 import net.bican.wordpress.exceptions.ObjectNotFoundException;
+import net.bican.wordpress.util.CallStats;
+import net.bican.wordpress.util.MetricsRegistry;
+import net.bican.wordpress.util.MimeTypes;
 import redstone.xmlrpc.XmlRpcArray;
+import redstone.xmlrpc.XmlRpcClient;
 import redstone.xmlrpc.XmlRpcFault;
 import redstone.xmlrpc.XmlRpcProxy;
 import redstone.xmlrpc.XmlRpcStruct;
@@ -41,11 +53,24 @@ import redstone.xmlrpc.XmlRpcStruct;
 public class Wordpress {
   private static final Integer BLOGID = Integer.valueOf(0);
   private String password = null;
-  private PingbackBridge pingback = null;
-  private PingbackExtensionsBridge pingbackExt = null;
   private String username = null;
-  private WordpressBridge wp = null;
   private String xmlRpcUrl = null;
+  private URL url = null;
+  private final ConcurrentMap<Class<?>, Object> bridges =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, TermIndex> termIndexes =
+      new ConcurrentHashMap<>();
+  private ThreadLocal<XmlRpcClient> client = null;
+  private volatile LookupBatcher batcher = null;
+  private volatile NegativeCache negativeCache = null;
+  private volatile SiteMetadata siteMetadata = null;
+  private volatile MetricsRegistry metrics = null;
+  private final LongAdder clients = new LongAdder();
+  private final LongSupplier clientsCounter = this.clients::sum;
+  private final LongSupplier batchGauge = () -> {
+    final LookupBatcher b = this.batcher;
+    return b != null ? b.pending() : 0;
+  };
   private static final Logger logger = LoggerFactory.getLogger(Wordpress.class);
   
   @SuppressWarnings("unused")
@@ -105,7 +130,7 @@ public class Wordpress {
    */
   public List<URL> getPingbacks(final String url) throws XmlRpcFault {
     List<URL> result = null;
-    final XmlRpcArray r = this.pingbackExt.getPingbacks(url);
+    final XmlRpcArray r = pingbackExt().getPingbacks(url);
     result = new ArrayList<>();
     for (final Object rec : r) {
       try {
@@ -118,16 +143,241 @@ public class Wordpress {
     return result;
   }
   
-  @SuppressWarnings("nls")
+  /**
+   * Every thread talks to the server through its own proxies, so a single
+   * instance can be shared by concurrent callers. The proxies of a bridge are
+   * made on its first call, so that a command line run pays only for the
+   * bridge it uses.
+   */
   private void initMetaWebLog() throws MalformedURLException {
-    final URL url = new URL(this.xmlRpcUrl);
-    this.wp = (WordpressBridge) XmlRpcProxy.createProxy(url, "wp",
-        new Class[] { WordpressBridge.class }, true);
-    this.pingback = (PingbackBridge) XmlRpcProxy.createProxy(url, "pingback",
-        new Class[] { PingbackBridge.class }, true);
-    this.pingbackExt = (PingbackExtensionsBridge) XmlRpcProxy.createProxy(url,
-        "pingback.extensions", new Class[] { PingbackExtensionsBridge.class },
-        true);
+    final URL u = CallStats.instrument(new URL(this.xmlRpcUrl));
+    this.url = u;
+    this.client = new ThreadLocal<XmlRpcClient>() {
+      @Override
+      protected XmlRpcClient initialValue() {
+        Wordpress.this.clients.increment();
+        return new XmlRpcClient(u, true);
+      }
+    };
+  }
+  
+  private <T> T bridge(final String objectName, final Class<T> type) {
+    return type.cast(this.bridges.computeIfAbsent(type,
+        t -> perThread(this.url, objectName, type)));
+  }
+  
+  @SuppressWarnings("nls")
+  private WordpressBridge wp() {
+    return bridge("wp", WordpressBridge.class);
+  }
+  
+  @SuppressWarnings("nls")
+  private PingbackBridge pingback() {
+    return bridge("pingback", PingbackBridge.class);
+  }
+  
+  @SuppressWarnings("nls")
+  private PingbackExtensionsBridge pingbackExt() {
+    return bridge("pingback.extensions", PingbackExtensionsBridge.class);
+  }
+  
+  private <T> T perThread(final URL url, final String objectName,
+      final Class<T> bridge) {
+    final ThreadLocal<Object> proxies = new ThreadLocal<Object>() {
+      @Override
+      protected Object initialValue() {
+        Wordpress.this.clients.increment();
+        return XmlRpcProxy.createProxy(url, objectName,
+            new Class[] { bridge }, true);
+      }
+    };
+    return bridge.cast(Proxy.newProxyInstance(bridge.getClassLoader(),
+        new Class[] { bridge }, new InvocationHandler() {
+          @Override
+          public Object invoke(final Object proxy, final Method method,
+              final Object[] args) throws Throwable {
+            final MetricsRegistry m = method.getDeclaringClass() == bridge
+                ? Wordpress.this.metrics : null;
+            final long started = m != null ? m.start() : 0;
+            Throwable error = null;
+            try {
+              return method.invoke(proxies.get(), args);
+            } catch (final InvocationTargetException e) {
+              error = e.getCause();
+              throw error;
+            } finally {
+              if (m != null) {
+                m.end(objectName + "." + method.getName(), //$NON-NLS-1$
+                    started, error);
+              }
+            }
+          }
+        }));
+  }
+  
+  /**
+   * @return the xmlrpc communication point of this instance
+   */
+  public String getXmlRpcUrl() {
+    return this.xmlRpcUrl;
+  }
+  
+  /**
+   * @return the user name of this instance
+   */
+  public String getUsername() {
+    return this.username;
+  }
+  
+  /**
+   * @return a new multicall request for this blog and user
+   */
+  MultiCall newMultiCall() {
+    return new MultiCall(this.client.get(), BLOGID, this.username,
+        this.password, this.metrics);
+  }
+  
+  /**
+   * @return the registry the calls are recorded in, or null if not set
+   */
+  public MetricsRegistry getMetrics() {
+    return this.metrics;
+  }
+  
+  /**
+   * Records the calls of this instance in a registry: their number, errors
+   * and durations by method name, uploads included. The registry also gets
+   * the counter wordpress_clients_created_total, the number of XML-RPC
+   * clients made so far (one per thread and bridge), and the gauge
+   * wordpress_batch_queue, the lookups waiting for their batch when batching
+   * is enabled; they add up the instances sharing the registry.
+   * 
+   * @param metrics
+   *          the registry, or null to stop recording
+   */
+  @SuppressWarnings("nls")
+  public synchronized void setMetrics(final MetricsRegistry metrics) {
+    final MetricsRegistry old = this.metrics;
+    if (old == metrics) {
+      return;
+    }
+    if (old != null) {
+      old.removeFromGauge("wordpress_clients_created_total",
+          this.clientsCounter);
+      old.removeFromGauge("wordpress_batch_queue", this.batchGauge);
+    }
+    if (metrics != null) {
+      metrics.addToCounter("wordpress_clients_created_total",
+          "XML-RPC clients made, one per thread and bridge.",
+          this.clientsCounter);
+      metrics.addToGauge("wordpress_batch_queue",
+          "Lookups waiting for their batch to be sent.", this.batchGauge);
+    }
+    this.metrics = metrics;
+  }
+  
+  /**
+   * Starts collecting the lookups made through {@link #getOption(String)},
+   * {@link #getPost(Integer)}, {@link #getUser(Integer)} and
+   * {@link #getMediaItem(Integer)}. Lookups issued from different threads
+   * within the window are sent together in a single request, and each caller
+   * receives its own result.
+   * 
+   * @param window
+   *          how long to wait for more lookups after the first one
+   * @param unit
+   *          unit of window
+   * @param maxBatchSize
+   *          number of lookups that sends the batch without waiting for the
+   *          window to end
+   */
+  public synchronized void enableBatching(final long window,
+      final TimeUnit unit, final int maxBatchSize) {
+    disableBatching();
+    this.batcher = new LookupBatcher(this, window, unit, maxBatchSize);
+  }
+  
+  /**
+   * Stops batching lookups, sending the ones that are already waiting.
+   */
+  public synchronized void disableBatching() {
+    final LookupBatcher b = this.batcher;
+    this.batcher = null;
+    if (b != null) {
+      b.shutdown();
+    }
+  }
+  
+  /**
+   * @return the cache of objects known to be missing, or null if not set
+   */
+  public NegativeCache getNegativeCache() {
+    return this.negativeCache;
+  }
+  
+  /**
+   * Sets the cache of objects known to be missing. With a cache set, lookups
+   * by id that failed with "not found" fail again without a request until
+   * the cache forgets them or this instance creates the object.
+   * 
+   * @param negativeCache
+   *          the cache, or null to disable it
+   */
+  public void setNegativeCache(final NegativeCache negativeCache) {
+    this.negativeCache = negativeCache;
+  }
+  
+  /**
+   * @return the metadata snapshot answering the listings of post types,
+   *         formats and statuses, comment statuses, taxonomies, options and
+   *         blogs, or null if not set
+   */
+  public SiteMetadata getSiteMetadata() {
+    return this.siteMetadata;
+  }
+  
+  /**
+   * Sets the metadata snapshot to answer {@link #getPostTypes()},
+   * {@link #getPostFormats()}, {@link #getPostStatusList()},
+   * {@link #getCommentStatusList()}, {@link #getTaxonomies()},
+   * {@link #getOptions()} and {@link #getUsersBlogs()} from, without a
+   * request. The snapshot is used as it is; how stale it may be is up to the
+   * caller, see
+   * {@link SiteMetadata#get(Wordpress, File, long, long, TimeUnit)}.
+   * 
+   * @param siteMetadata
+   *          snapshot of the blog and user of this instance, or null to
+   *          fetch the metadata on every call again
+   */
+  public void setSiteMetadata(final SiteMetadata siteMetadata) {
+    if (siteMetadata != null
+        && (!siteMetadata.getXmlRpcUrl().equals(this.xmlRpcUrl)
+            || !siteMetadata.getUsername().equals(this.username))) {
+      throw new IllegalArgumentException();
+    }
+    this.siteMetadata = siteMetadata;
+  }
+  
+  private void checkNotKnownMissing(final NegativeCache.Type type,
+      final Object key) throws ObjectNotFoundException {
+    final NegativeCache c = this.negativeCache;
+    if (c != null && c.isKnownMissing(type, key)) {
+      throw new ObjectNotFoundException(String.valueOf(key), false);
+    }
+  }
+  
+  private void markMissing(final NegativeCache.Type type, final Object key) {
+    final NegativeCache c = this.negativeCache;
+    if (c != null) {
+      c.markMissing(type, key);
+    }
+  }
+  
+  private void markPresent(final NegativeCache.Type type, final Object key) {
+    final NegativeCache c = this.negativeCache;
+    if (c != null && key != null) {
+      c.markPresent(type, key);
+    }
   }
   
   /**
@@ -141,7 +391,7 @@ public class Wordpress {
    */
   public String ping(final String pagelinkedfrom, final String pagelinkedto)
       throws XmlRpcFault {
-    return this.pingback.ping(pagelinkedfrom, pagelinkedto);
+    return pingback().ping(pagelinkedfrom, pagelinkedto);
   }
   
   /**
@@ -158,10 +408,10 @@ public class Wordpress {
     try {
       XmlRpcStruct struct;
       if (postId.intValue() != -1) {
-        struct = this.wp.getCommentCount(BLOGID, this.username, this.password,
+        struct = wp().getCommentCount(BLOGID, this.username, this.password,
             postId);
       } else {
-        struct = this.wp.getCommentCount(BLOGID, this.username, this.password);
+        struct = wp().getCommentCount(BLOGID, this.username, this.password);
       }
       final CommentCount cc = new CommentCount();
       cc.fromXmlRpcStruct(struct);
@@ -210,7 +460,7 @@ public class Wordpress {
       if (offset != null) {
         filter.put("offset", offset); //$NON-NLS-1$
       }
-      final XmlRpcArray r = this.wp.getComments(BLOGID, this.username,
+      final XmlRpcArray r = wp().getComments(BLOGID, this.username,
           this.password, filter);
       return fillFromXmlRpcArray(r, Comment.class, new Comment());
     } catch (final XmlRpcFault e) {
@@ -224,6 +474,44 @@ public class Wordpress {
     }
   }
   
+  /**
+   * Streams all matching comments. The stream fetches pages as it goes, and
+   * fetches the pages of its parts concurrently when it is parallel; see
+   * {@link PagedSpliterator}.
+   * 
+   * @param status
+   *          One of "approve", "hold", or "spam". Or, null to show all.
+   * @param post_id
+   *          Filter comments by post_id, or null to not filter.
+   * @param parallel
+   *          to return a parallel stream
+   * @return the comments
+   */
+  public Stream<Comment> streamComments(final String status,
+      final Integer post_id, final boolean parallel) {
+    return PagedSpliterator.stream(
+        (offset, number) -> getComments(status, post_id,
+            Integer.valueOf(number), Integer.valueOf(offset)),
+        null, null, parallel);
+  }
+  
+  /**
+   * Iterates over all matching comments; see {@link PrefetchingIterable}.
+   * 
+   * @param status
+   *          One of "approve", "hold", or "spam". Or, null to show all.
+   * @param post_id
+   *          Filter comments by post_id, or null to not filter.
+   * @return the comments
+   */
+  public PrefetchingIterable<Comment> iterateComments(final String status,
+      final Integer post_id) {
+    return new PrefetchingIterable<>(
+        (offset, number) -> getComments(status, post_id,
+            Integer.valueOf(number), Integer.valueOf(offset)),
+        null, null);
+  }
+  
   /**
    * @param comment_id
    *          comment_id to fetch
@@ -237,8 +525,9 @@ public class Wordpress {
    */
   public Comment getComment(final Integer comment_id)
       throws XmlRpcFault, InsufficientRightsException, ObjectNotFoundException {
+    checkNotKnownMissing(NegativeCache.Type.COMMENT, comment_id);
     try {
-      final XmlRpcStruct struct = this.wp.getComment(BLOGID, this.username,
+      final XmlRpcStruct struct = wp().getComment(BLOGID, this.username,
           this.password, comment_id);
       final Comment comment = new Comment();
       comment.fromXmlRpcStruct(struct);
@@ -249,6 +538,7 @@ public class Wordpress {
         case 403:
           throw new InsufficientRightsException();
         case 404:
+          markMissing(NegativeCache.Type.COMMENT, comment_id);
           throw new ObjectNotFoundException();
         default:
           throw e;
@@ -256,6 +546,26 @@ public class Wordpress {
     }
   }
   
+  /**
+   * @param comment_id
+   *          comment_id to check
+   * @return true if the comment exists, false if it does not, without
+   *         throwing {@link ObjectNotFoundException}
+   * @throws InsufficientRightsException
+   *           if the user does not have the moderate_comments cap
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public boolean commentExists(final Integer comment_id)
+      throws XmlRpcFault, InsufficientRightsException {
+    try {
+      getComment(comment_id);
+      return true;
+    } catch (final ObjectNotFoundException e) {
+      return false;
+    }
+  }
+  
   /**
    * @param post_id
    *          Post to attach the comment to.
@@ -299,8 +609,9 @@ public class Wordpress {
       if (author_email != null) {
         comment.put("author_email", author_email);
       }
-      final Integer comment_id = this.wp.newComment(BLOGID, this.username,
+      final Integer comment_id = wp().newComment(BLOGID, this.username,
           this.password, post_id, comment);
+      markPresent(NegativeCache.Type.COMMENT, comment_id);
       return comment_id;
     } catch (final XmlRpcFault e) {
       final int err = e.getErrorCode();
@@ -321,7 +632,15 @@ public class Wordpress {
    *           if there is a generic error during request
    */
   public CommentStatusList getCommentStatusList() throws XmlRpcFault {
-    final XmlRpcStruct csl = this.wp.getCommentStatusList(BLOGID, this.username,
+    final SiteMetadata m = this.siteMetadata;
+    if (m != null) {
+      return m.getCommentStatusList();
+    }
+    return fetchCommentStatusList();
+  }
+  
+  CommentStatusList fetchCommentStatusList() throws XmlRpcFault {
+    final XmlRpcStruct csl = wp().getCommentStatusList(BLOGID, this.username,
         this.password);
     final CommentStatusList result = new CommentStatusList();
     result.fromXmlRpcStruct(csl);
@@ -343,7 +662,7 @@ public class Wordpress {
   public boolean deleteComment(final Integer commentID)
       throws InsufficientRightsException, ObjectNotFoundException, XmlRpcFault {
     try {
-      return this.wp
+      return wp()
           .deleteComment(BLOGID, this.username, this.password, commentID)
           .booleanValue();
     } catch (final XmlRpcFault e) {
@@ -378,7 +697,7 @@ public class Wordpress {
       ObjectNotFoundException, XmlRpcFault {
     Boolean r;
     try {
-      r = this.wp.editComment(BLOGID, this.username, this.password,
+      r = wp().editComment(BLOGID, this.username, this.password,
           comment.getComment_id(), comment);
       return r.booleanValue();
     } catch (final XmlRpcFault e) {
@@ -402,7 +721,15 @@ public class Wordpress {
    *           when there is an error with the request
    */
   public List<Taxonomy> getTaxonomies() throws XmlRpcFault {
-    final XmlRpcArray r = this.wp.getTaxonomies(BLOGID, this.username,
+    final SiteMetadata m = this.siteMetadata;
+    if (m != null) {
+      return m.getTaxonomies();
+    }
+    return fetchTaxonomies();
+  }
+  
+  List<Taxonomy> fetchTaxonomies() throws XmlRpcFault {
+    final XmlRpcArray r = wp().getTaxonomies(BLOGID, this.username,
         this.password);
     return fillFromXmlRpcArray(r, Taxonomy.class, new Taxonomy());
   }
@@ -422,7 +749,7 @@ public class Wordpress {
       throws InsufficientRightsException, InvalidArgumentsException,
       XmlRpcFault {
     try {
-      final XmlRpcStruct r = this.wp.getTaxonomy(BLOGID, this.username,
+      final XmlRpcStruct r = wp().getTaxonomy(BLOGID, this.username,
           this.password, taxonomy);
       final Taxonomy t = new Taxonomy();
       t.fromXmlRpcStruct(r);
@@ -475,9 +802,9 @@ public class Wordpress {
       XmlRpcFault {
     try {
       final XmlRpcArray r = filter != null
-          ? this.wp.getTerms(BLOGID, this.username, this.password, taxonomy,
+          ? wp().getTerms(BLOGID, this.username, this.password, taxonomy,
               filter.toXmlRpcStruct())
-          : this.wp.getTerms(BLOGID, this.username, this.password, taxonomy);
+          : wp().getTerms(BLOGID, this.username, this.password, taxonomy);
       return fillFromXmlRpcArray(r, Term.class, new Term());
     } catch (final XmlRpcFault e) {
       final int err = e.getErrorCode();
@@ -492,6 +819,48 @@ public class Wordpress {
     }
   }
   
+  /**
+   * Streams the terms of a taxonomy. The stream fetches pages as it goes,
+   * and fetches the pages of its parts concurrently when it is parallel; see
+   * {@link PagedSpliterator}.
+   * 
+   * @param taxonomy
+   *          taxonomy name
+   * @param filter
+   *          filter for the terms, or null; its offset and number limit the
+   *          stream
+   * @param parallel
+   *          to return a parallel stream
+   * @return the terms
+   */
+  public Stream<Term> streamTerms(final String taxonomy,
+      final TermFilter filter, final boolean parallel) {
+    final TermFilter f = filter != null ? filter : new TermFilter();
+    return PagedSpliterator.stream(
+        (offset, number) -> getTerms(taxonomy,
+            f.page(Integer.valueOf(offset), Integer.valueOf(number))),
+        f.getOffset(), f.getNumber(), parallel);
+  }
+  
+  /**
+   * Iterates over the terms of a taxonomy; see {@link PrefetchingIterable}.
+   * 
+   * @param taxonomy
+   *          taxonomy name
+   * @param filter
+   *          filter for the terms, or null; its offset and number limit the
+   *          iteration
+   * @return the terms
+   */
+  public PrefetchingIterable<Term> iterateTerms(final String taxonomy,
+      final TermFilter filter) {
+    final TermFilter f = filter != null ? filter : new TermFilter();
+    return new PrefetchingIterable<>(
+        (offset, number) -> getTerms(taxonomy,
+            f.page(Integer.valueOf(offset), Integer.valueOf(number))),
+        f.getOffset(), f.getNumber());
+  }
+  
   /**
    * @param taxonomy
    *          taxonomy name
@@ -510,8 +879,9 @@ public class Wordpress {
   public Term getTerm(final String taxonomy, final Integer termId)
       throws InsufficientRightsException, InvalidArgumentsException,
       ObjectNotFoundException, XmlRpcFault {
+    checkNotKnownMissing(NegativeCache.Type.TERM, taxonomy + ':' + termId);
     try {
-      final XmlRpcStruct r = this.wp.getTerm(BLOGID, this.username,
+      final XmlRpcStruct r = wp().getTerm(BLOGID, this.username,
           this.password, taxonomy, termId);
       final Term t = new Term();
       t.fromXmlRpcStruct(r);
@@ -524,6 +894,7 @@ public class Wordpress {
         case 403:
           throw new InvalidArgumentsException(taxonomy);
         case 404:
+          markMissing(NegativeCache.Type.TERM, taxonomy + ':' + termId);
           throw new ObjectNotFoundException(termId.toString());
         default:
           throw e;
@@ -545,8 +916,9 @@ public class Wordpress {
   public Integer newTerm(final Term term) throws InsufficientRightsException,
       InvalidArgumentsException, XmlRpcFault {
     try {
-      final String r = this.wp.newTerm(BLOGID, this.username, this.password,
+      final String r = wp().newTerm(BLOGID, this.username, this.password,
           term.toXmlRpcStruct());
+      markPresent(NegativeCache.Type.TERM, term.getTaxonomy() + ':' + r);
       return Integer.valueOf(r);
     } catch (final XmlRpcFault e) {
       final int err = e.getErrorCode();
@@ -577,7 +949,7 @@ public class Wordpress {
   public boolean deleteTerm(final String taxonomy, final Integer termId)
       throws InsufficientRightsException, XmlRpcFault {
     try {
-      final Boolean r = this.wp.deleteTerm(BLOGID, this.username, this.password,
+      final Boolean r = wp().deleteTerm(BLOGID, this.username, this.password,
           taxonomy, termId);
       return r.booleanValue();
     } catch (final XmlRpcFault e) {
@@ -627,7 +999,7 @@ public class Wordpress {
       if (content.getParent() != null) {
         datar.put("parent", content.getParent()); //$NON-NLS-1$
       }
-      final Boolean r = this.wp.editTerm(BLOGID, this.username, this.password,
+      final Boolean r = wp().editTerm(BLOGID, this.username, this.password,
           termId, datar);
       return r.booleanValue();
     } catch (final XmlRpcFault e) {
@@ -645,12 +1017,33 @@ public class Wordpress {
     }
   }
   
+  /**
+   * @param taxonomy
+   *          taxonomy name
+   * @return the cached term index of the taxonomy, loaded on first use
+   */
+  public TermIndex getTermIndex(final String taxonomy) {
+    TermIndex index = this.termIndexes.get(taxonomy);
+    if (index == null) {
+      final TermIndex newIndex = new TermIndex(this, taxonomy);
+      index = this.termIndexes.putIfAbsent(taxonomy, newIndex);
+      if (index == null) {
+        index = newIndex;
+      }
+    }
+    return index;
+  }
+  
   /**
    * @return the list of options
    * @throws XmlRpcFault
    *           if there is a generic error during request
    */
   public List<Option> getOptions() throws XmlRpcFault {
+    final SiteMetadata m = this.siteMetadata;
+    if (m != null) {
+      return m.getOptions();
+    }
     return this.getOptions(null, null);
   }
   
@@ -662,6 +1055,18 @@ public class Wordpress {
    *           if there is a generic error during request
    */
   public Option getOption(final String optionName) throws XmlRpcFault {
+    final LookupBatcher b = this.batcher;
+    if (b != null) {
+      final XmlRpcStruct r = (XmlRpcStruct) b
+          .lookup(LookupBatcher.Kind.OPTION, optionName);
+      if (r == null) {
+        return null;
+      }
+      final Option option = new Option();
+      option.setName(optionName);
+      option.fromXmlRpcStruct(r);
+      return option;
+    }
     final List<Option> result = this.getOptions(optionName, null);
     return result == null || result.size() == 0 ? null : result.get(0);
   }
@@ -686,8 +1091,8 @@ public class Wordpress {
       }
     }
     final XmlRpcStruct r = options != null
-        ? this.wp.getOptions(BLOGID, this.username, this.password, options)
-        : this.wp.getOptions(BLOGID, this.username, this.password);
+        ? wp().getOptions(BLOGID, this.username, this.password, options)
+        : wp().getOptions(BLOGID, this.username, this.password);
     return structToOptions(r);
   }
   
@@ -739,7 +1144,7 @@ public class Wordpress {
       }
       final XmlRpcArray optsArr = new XmlRpcArray();
       optsArr.add(opts);
-      final XmlRpcStruct r = this.wp.setOptions(BLOGID, this.username,
+      final XmlRpcStruct r = wp().setOptions(BLOGID, this.username,
           this.password, opts);
       return structToOptions(r);
     } catch (final XmlRpcFault e) {
@@ -760,7 +1165,15 @@ public class Wordpress {
    *           if there is a generic error during request
    */
   public List<UserBlog> getUsersBlogs() throws XmlRpcFault {
-    final XmlRpcArray r = this.wp.getUsersBlogs(this.username, this.password);
+    final SiteMetadata m = this.siteMetadata;
+    if (m != null) {
+      return m.getUsersBlogs();
+    }
+    return fetchUsersBlogs();
+  }
+  
+  List<UserBlog> fetchUsersBlogs() throws XmlRpcFault {
+    final XmlRpcArray r = wp().getUsersBlogs(this.username, this.password);
     return fillFromXmlRpcArray(r, UserBlog.class, new UserBlog());
   }
   
@@ -777,9 +1190,13 @@ public class Wordpress {
    */
   public User getUser(final Integer userId)
       throws InsufficientRightsException, ObjectNotFoundException, XmlRpcFault {
+    checkNotKnownMissing(NegativeCache.Type.USER, userId);
     try {
-      final XmlRpcStruct r = this.wp.getUser(BLOGID, this.username,
-          this.password, userId);
+      final LookupBatcher b = this.batcher;
+      final XmlRpcStruct r = b != null
+          ? (XmlRpcStruct) b.lookup(LookupBatcher.Kind.USER, userId)
+          : wp().getUser(BLOGID, this.username,
+              this.password, userId);
       final User user = new User();
       user.fromXmlRpcStruct(r);
       return user;
@@ -789,6 +1206,7 @@ public class Wordpress {
         case 401:
           throw new InsufficientRightsException();
         case 404:
+          markMissing(NegativeCache.Type.USER, userId);
           throw new ObjectNotFoundException(userId.toString());
         default:
           throw e;
@@ -796,6 +1214,26 @@ public class Wordpress {
     }
   }
   
+  /**
+   * @param userId
+   *          user id to check
+   * @return true if the user exists, false if it does not, without throwing
+   *         {@link ObjectNotFoundException}
+   * @throws InsufficientRightsException
+   *           if user does not have permission to edit the user
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public boolean userExists(final Integer userId)
+      throws InsufficientRightsException, XmlRpcFault {
+    try {
+      getUser(userId);
+      return true;
+    } catch (final ObjectNotFoundException e) {
+      return false;
+    }
+  }
+  
   /**
    * @return the list users
    * @throws InsufficientRightsException
@@ -827,10 +1265,10 @@ public class Wordpress {
     try {
       XmlRpcArray r;
       if (filter == null) {
-        r = this.wp.getUsers(BLOGID, this.username, this.password);
+        r = wp().getUsers(BLOGID, this.username, this.password);
       } else {
         final XmlRpcStruct f = filter.buildWithNonNullValues();
-        r = this.wp.getUsers(BLOGID, this.username, this.password, f);
+        r = wp().getUsers(BLOGID, this.username, this.password, f);
       }
       return fillFromXmlRpcArray(r, User.class, new User());
     } catch (final XmlRpcFault e) {
@@ -849,6 +1287,22 @@ public class Wordpress {
     }
   }
   
+  /**
+   * Iterates over the users; see {@link PrefetchingIterable}.
+   * 
+   * @param filter
+   *          filter for the users, or null; its offset and number limit the
+   *          iteration
+   * @return the users
+   */
+  public PrefetchingIterable<User> iterateUsers(final FilterUser filter) {
+    final FilterUser f = filter != null ? filter : new FilterUser();
+    return new PrefetchingIterable<>(
+        (offset, number) -> getUsers(
+            f.page(Integer.valueOf(offset), Integer.valueOf(number))),
+        f.getOffset(), f.getNumber());
+  }
+  
   /**
    * @return the user profile of the current user
    * @throws InsufficientRightsException
@@ -858,7 +1312,7 @@ public class Wordpress {
    */
   public User getProfile() throws InsufficientRightsException, XmlRpcFault {
     try {
-      final XmlRpcStruct r = this.wp.getProfile(BLOGID, this.username,
+      final XmlRpcStruct r = wp().getProfile(BLOGID, this.username,
           this.password);
       final User user = new User();
       user.fromXmlRpcStruct(r);
@@ -906,7 +1360,7 @@ public class Wordpress {
       if (user.getNicename() != null) {
         content.put("nicename", user.getNicename()); //$NON-NLS-1$
       }
-      final Boolean r = this.wp.editProfile(BLOGID, this.username,
+      final Boolean r = wp().editProfile(BLOGID, this.username,
           this.password, content);
       return r.booleanValue();
     } catch (final XmlRpcFault e) {
@@ -930,7 +1384,7 @@ public class Wordpress {
   public List<Author> getAuthors()
       throws InsufficientRightsException, XmlRpcFault {
     try {
-      final XmlRpcArray r = this.wp.getAuthors(BLOGID, this.username,
+      final XmlRpcArray r = wp().getAuthors(BLOGID, this.username,
           this.password);
       return fillFromXmlRpcArray(r, Author.class, new Author());
     } catch (final XmlRpcFault e) {
@@ -957,9 +1411,14 @@ public class Wordpress {
    */
   public MediaItem getMediaItem(final Integer attachmentId)
       throws InsufficientRightsException, ObjectNotFoundException, XmlRpcFault {
+    checkNotKnownMissing(NegativeCache.Type.MEDIA_ITEM, attachmentId);
     try {
-      final XmlRpcStruct r = this.wp.getMediaItem(BLOGID, this.username,
-          this.password, attachmentId);
+      final LookupBatcher b = this.batcher;
+      final XmlRpcStruct r = b != null
+          ? (XmlRpcStruct) b.lookup(LookupBatcher.Kind.MEDIA_ITEM,
+              attachmentId)
+          : wp().getMediaItem(BLOGID, this.username,
+              this.password, attachmentId);
       final MediaItem result = new MediaItem();
       result.fromXmlRpcStruct(r);
       return result;
@@ -969,6 +1428,7 @@ public class Wordpress {
         case 403: // TODO wrong return code again?
           throw new InsufficientRightsException();
         case 404:
+          markMissing(NegativeCache.Type.MEDIA_ITEM, attachmentId);
           throw new ObjectNotFoundException(attachmentId.toString());
         default:
           throw e;
@@ -976,6 +1436,26 @@ public class Wordpress {
     }
   }
   
+  /**
+   * @param attachmentId
+   *          the attachment id to check
+   * @return true if the media item exists, false if it does not, without
+   *         throwing {@link ObjectNotFoundException}
+   * @throws InsufficientRightsException
+   *           if the user lacks the upload_files cap
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public boolean mediaItemExists(final Integer attachmentId)
+      throws InsufficientRightsException, XmlRpcFault {
+    try {
+      getMediaItem(attachmentId);
+      return true;
+    } catch (final ObjectNotFoundException e) {
+      return false;
+    }
+  }
+  
   /**
    * @return the list of media items
    * @throws InsufficientRightsException
@@ -1016,10 +1496,10 @@ public class Wordpress {
         if (filter.getParent_id() != null) {
           filterXml.put("parent_id", filter.getParent_id()); //$NON-NLS-1$
         }
-        r = this.wp.getMediaLibrary(BLOGID, this.username, this.password,
+        r = wp().getMediaLibrary(BLOGID, this.username, this.password,
             filterXml);
       } else {
-        r = this.wp.getMediaLibrary(BLOGID, this.username, this.password);
+        r = wp().getMediaLibrary(BLOGID, this.username, this.password);
       }
       return fillFromXmlRpcArray(r, MediaItem.class, new MediaItem());
     } catch (final XmlRpcFault e) {
@@ -1033,6 +1513,44 @@ public class Wordpress {
     }
   }
   
+  /**
+   * Streams the media library. The stream fetches pages as it goes, and
+   * fetches the pages of its parts concurrently when it is parallel; see
+   * {@link PagedSpliterator}.
+   * 
+   * @param filter
+   *          filter for the media items, or null; its offset and number limit
+   *          the stream
+   * @param parallel
+   *          to return a parallel stream
+   * @return the media items
+   */
+  public Stream<MediaItem> streamMediaLibrary(final FilterMediaItem filter,
+      final boolean parallel) {
+    final FilterMediaItem f = filter != null ? filter : new FilterMediaItem();
+    return PagedSpliterator.stream(
+        (offset, number) -> getMediaLibrary(
+            f.page(Integer.valueOf(offset), Integer.valueOf(number))),
+        f.getOffset(), f.getNumber(), parallel);
+  }
+  
+  /**
+   * Iterates over the media library; see {@link PrefetchingIterable}.
+   * 
+   * @param filter
+   *          filter for the media items, or null; its offset and number limit
+   *          the iteration
+   * @return the media items
+   */
+  public PrefetchingIterable<MediaItem> iterateMediaLibrary(
+      final FilterMediaItem filter) {
+    final FilterMediaItem f = filter != null ? filter : new FilterMediaItem();
+    return new PrefetchingIterable<>(
+        (offset, number) -> getMediaLibrary(
+            f.page(Integer.valueOf(offset), Integer.valueOf(number))),
+        f.getOffset(), f.getNumber());
+  }
+  
   /**
    * @param media
    *          file data
@@ -1048,8 +1566,7 @@ public class Wordpress {
    * @throws XmlRpcFault
    *           if there is a generic error during request
    * @throws IOException
-   *           if there is an I/O problem processing the file data on a
-   *           temporary file
+   *           if the file data cannot be read
    */
   public MediaItemUploadResult uploadFile(final InputStream media,
       final String fileName, final Boolean overwrite)
@@ -1071,8 +1588,7 @@ public class Wordpress {
    * @throws XmlRpcFault
    *           if there is a generic error during request
    * @throws IOException
-   *           if there is an I/O problem processing the file data on a
-   *           temporary file
+   *           if the file data cannot be read
    */
   public MediaItemUploadResult uploadFile(final InputStream media,
       final String fileName) throws InsufficientRightsException,
@@ -1097,55 +1613,99 @@ public class Wordpress {
    * @throws XmlRpcFault
    *           if there is a generic error during request
    * @throws IOException
-   *           if there is an I/O problem processing the file data on a
-   *           temporary file
+   *           if the file data cannot be read
    */
-  @SuppressWarnings("unchecked")
   public MediaItemUploadResult uploadFile(final InputStream media,
       final String fileName, final Boolean overwrite, final Integer postId)
           throws InsufficientRightsException, FileUploadException, XmlRpcFault,
           IOException {
+    final InputStream in = media.markSupported() ? media
+        : new BufferedInputStream(media);
+    final String mimeType = MimeTypes.detect(in, fileName);
     try {
-      final XmlRpcStruct data = new XmlRpcStruct();
-      final File tempFile = File.createTempFile("mediauploadwpj", null); //$NON-NLS-1$
-      tempFile.deleteOnExit();
-      Files.copy(media, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-      final String mimeType = new MimetypesFileTypeMap()
-          .getContentType(tempFile);
-      final ByteArrayOutputStream out = new ByteArrayOutputStream();
-      final byte[] buffer = new byte[1024];
-      try (InputStream mediaTemp = new FileInputStream(tempFile)) {
-        int len = mediaTemp.read(buffer);
-        while (len != -1) {
-          out.write(buffer, 0, len);
-          len = mediaTemp.read(buffer);
-        }
-      }
-      tempFile.delete();
-      data.put("name", fileName); //$NON-NLS-1$
-      data.put("type", mimeType); //$NON-NLS-1$
-      data.put("bits", out.toByteArray()); //$NON-NLS-1$
-      if (postId != null) {
-        data.put("post_id", postId); //$NON-NLS-1$
-      }
-      if (overwrite != null) {
-        data.put("overwrite", overwrite); //$NON-NLS-1$
-      }
-      final XmlRpcStruct r = this.wp.uploadFile(BLOGID, this.username,
-          this.password, data);
-      final MediaItemUploadResult result = new MediaItemUploadResult();
-      result.fromXmlRpcStruct(r);
-      return result;
+      return uploaded(newUpload().send(in, fileName, mimeType, overwrite,
+          postId));
     } catch (final XmlRpcFault e) {
-      final int err = e.getErrorCode();
-      switch (err) {
-        case 401:
-          throw new InsufficientRightsException();
-        case 500:
-          throw new FileUploadException();
-        default:
-          throw e;
-      }
+      throw uploadFault(e);
+    }
+  }
+  
+  /**
+   * Uploads a file without reading it into memory; the file is mapped and
+   * encoded into the request as it is sent.
+   * 
+   * @param file
+   *          the file, uploaded under its own name
+   * @return the result of the operation
+   * @throws InsufficientRightsException
+   *           if the user does not have the upload_files cap
+   * @throws FileUploadException
+   *           if the file cannot be uploaded
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   * @throws IOException
+   *           if the file cannot be read
+   */
+  public MediaItemUploadResult uploadFile(final Path file)
+      throws InsufficientRightsException, FileUploadException, XmlRpcFault,
+      IOException {
+    return this.uploadFile(file, null, null);
+  }
+  
+  /**
+   * Uploads a file without reading it into memory; the file is mapped and
+   * encoded into the request as it is sent.
+   * 
+   * @param file
+   *          the file, uploaded under its own name
+   * @param overwrite
+   *          to overwrite an existing file
+   * @param postId
+   *          post id, or null
+   * @return the result of the operation
+   * @throws InsufficientRightsException
+   *           if the user does not have the upload_files cap
+   * @throws FileUploadException
+   *           if the file cannot be uploaded
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   * @throws IOException
+   *           if the file cannot be read
+   */
+  public MediaItemUploadResult uploadFile(final Path file,
+      final Boolean overwrite, final Integer postId)
+          throws InsufficientRightsException, FileUploadException, XmlRpcFault,
+          IOException {
+    final String mimeType = MimeTypes.detect(file);
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      return uploaded(newUpload().send(ch, file.getFileName().toString(),
+          mimeType, overwrite, postId));
+    } catch (final XmlRpcFault e) {
+      throw uploadFault(e);
+    }
+  }
+  
+  private StreamingUpload newUpload() throws MalformedURLException {
+    return new StreamingUpload(this.url, BLOGID, this.username,
+        this.password, this.metrics);
+  }
+  
+  private MediaItemUploadResult uploaded(final XmlRpcStruct r) {
+    final MediaItemUploadResult result = new MediaItemUploadResult();
+    result.fromXmlRpcStruct(r);
+    markPresent(NegativeCache.Type.MEDIA_ITEM, result.getId());
+    return result;
+  }
+  
+  private static XmlRpcFault uploadFault(final XmlRpcFault e)
+      throws InsufficientRightsException, FileUploadException {
+    switch (e.getErrorCode()) {
+      case 401:
+        throw new InsufficientRightsException();
+      case 500:
+        throw new FileUploadException();
+      default:
+        return e;
     }
   }
   
@@ -1162,9 +1722,13 @@ public class Wordpress {
    */
   public Post getPost(final Integer postId)
       throws InsufficientRightsException, ObjectNotFoundException, XmlRpcFault {
+    checkNotKnownMissing(NegativeCache.Type.POST, postId);
     try {
-      final XmlRpcStruct r = this.wp.getPost(BLOGID, this.username,
-          this.password, postId);
+      final LookupBatcher b = this.batcher;
+      final XmlRpcStruct r = b != null
+          ? (XmlRpcStruct) b.lookup(LookupBatcher.Kind.POST, postId)
+          : wp().getPost(BLOGID, this.username,
+              this.password, postId);
       final Post result = new Post();
       result.fromXmlRpcStruct(r);
       return result;
@@ -1174,6 +1738,7 @@ public class Wordpress {
         case 401:
           throw new InsufficientRightsException();
         case 404:
+          markMissing(NegativeCache.Type.POST, postId);
           throw new ObjectNotFoundException(postId.toString());
         default:
           throw e;
@@ -1181,6 +1746,26 @@ public class Wordpress {
     }
   }
   
+  /**
+   * @param postId
+   *          post id to check
+   * @return true if the post exists, false if it does not, without throwing
+   *         {@link ObjectNotFoundException}
+   * @throws InsufficientRightsException
+   *           if user does not have permission to edit the post
+   * @throws XmlRpcFault
+   *           if there is a generic error during request
+   */
+  public boolean postExists(final Integer postId)
+      throws InsufficientRightsException, XmlRpcFault {
+    try {
+      getPost(postId);
+      return true;
+    } catch (final ObjectNotFoundException e) {
+      return false;
+    }
+  }
+  
   /**
    * @return the list of posts
    * @throws XmlRpcFault
@@ -1200,17 +1785,55 @@ public class Wordpress {
   public List<Post> getPosts(final FilterPost filter) throws XmlRpcFault {
     XmlRpcArray r = null;
     if (filter == null) {
-      r = this.wp.getPosts(BLOGID, this.username, this.password);
+      r = wp().getPosts(BLOGID, this.username, this.password);
     } else {
-      r = this.wp.getPosts(BLOGID, this.username, this.password,
+      r = wp().getPosts(BLOGID, this.username, this.password,
           filter.toXmlRpcStruct());
     }
     return fillFromXmlRpcArray(r, Post.class, new Post());
   }
   
+  /**
+   * Streams the posts. The stream fetches pages as it goes, and fetches the
+   * pages of its parts concurrently when it is parallel; see
+   * {@link PagedSpliterator}.
+   * 
+   * @param filter
+   *          filter for the posts, or null; its offset and number limit the
+   *          stream
+   * @param parallel
+   *          to return a parallel stream
+   * @return the posts
+   */
+  public Stream<Post> streamPosts(final FilterPost filter,
+      final boolean parallel) {
+    final FilterPost f = filter != null ? filter : new FilterPost();
+    return PagedSpliterator.stream(
+        (offset, number) -> getPosts(
+            f.page(Integer.valueOf(offset), Integer.valueOf(number))),
+        f.getOffset(), f.getNumber(), parallel);
+  }
+  
+  /**
+   * Iterates over the posts; see {@link PrefetchingIterable}.
+   * 
+   * @param filter
+   *          filter for the posts, or null; its offset and number limit the
+   *          iteration
+   * @return the posts
+   */
+  public PrefetchingIterable<Post> iteratePosts(final FilterPost filter) {
+    final FilterPost f = filter != null ? filter : new FilterPost();
+    return new PrefetchingIterable<>(
+        (offset, number) -> getPosts(
+            f.page(Integer.valueOf(offset), Integer.valueOf(number))),
+        f.getOffset(), f.getNumber());
+  }
+  
   /**
    * @param post
-   *          new post contents
+   *          new post contents, terms without a term id are resolved by name
+   *          through {@link #getTermIndex(String)}
    * @return the post id
    * @throws InsufficientRightsException
    *           one of the following reasons:
@@ -1231,8 +1854,8 @@ public class Wordpress {
    *           <li>if an ambiguous term name is used in terms_names</li>
    *           </ul>
    * @throws InvalidArgumentsException
-   *           if invalid post_type is specified or if an invalid term ID is
-   *           specified in terms
+   *           if invalid post_type is specified, if an invalid term ID is
+   *           specified in terms or if a term has neither an id nor a name
    * @throws ObjectNotFoundException
    *           if no author with that post_author ID exists or if no attachment
    *           with that post_thumbnail ID exists
@@ -1243,24 +1866,10 @@ public class Wordpress {
   public Integer newPost(final Post post) throws InsufficientRightsException,
       InvalidArgumentsException, ObjectNotFoundException, XmlRpcFault {
     try {
-      List<Term> oldTerms = post.getTerms();
-      XmlRpcStruct postX = post.toXmlRpcStruct();
-      if (oldTerms != null) {
-        XmlRpcStruct newTerms = new XmlRpcStruct();
-        for (Term term : post.getTerms()) {
-          XmlRpcArray ts = (XmlRpcArray) newTerms.get(term.getTaxonomy());
-          if (ts==null) {
-            XmlRpcArray tXs = new XmlRpcArray();
-            tXs.add(term.getTerm_id());
-            newTerms.put(term.getTaxonomy(), tXs);
-          } else {
-            ts.add(term.getTerm_id());
-          }
-        }
-        postX.put("terms", newTerms); //$NON-NLS-1$
-      }
-      return Integer.valueOf(
-          this.wp.newPost(BLOGID, this.username, this.password, postX));
+      final Integer postId = Integer.valueOf(wp().newPost(BLOGID,
+          this.username, this.password, postToXmlRpcStruct(post)));
+      markPresent(NegativeCache.Type.POST, postId);
+      return postId;
     } catch (final XmlRpcFault e) {
       final int err = e.getErrorCode();
       switch (err) {
@@ -1276,11 +1885,47 @@ public class Wordpress {
     }
   }
   
+  /**
+   * Converts the post for sending, turning its terms into a struct of term ids
+   * per taxonomy. Terms without an id are looked up by name (under their
+   * parent, if set) in the term index of their taxonomy, and created if
+   * missing.
+   */
+  @SuppressWarnings("unchecked")
+  private XmlRpcStruct postToXmlRpcStruct(final Post post)
+      throws InsufficientRightsException, InvalidArgumentsException,
+      XmlRpcFault {
+    final XmlRpcStruct postX = post.toXmlRpcStruct();
+    if (post.getTerms() != null) {
+      final XmlRpcStruct newTerms = new XmlRpcStruct();
+      for (final Term term : post.getTerms()) {
+        Integer termId = term.getTerm_id();
+        if (termId == null && term.getName() != null) {
+          termId = getTermIndex(term.getTaxonomy())
+              .resolve(term.getName(), term.getParent()).getTerm_id();
+        }
+        if (termId == null) {
+          throw new InvalidArgumentsException(
+              "term without an id or a name in " + term.getTaxonomy()); //$NON-NLS-1$
+        }
+        XmlRpcArray ts = (XmlRpcArray) newTerms.get(term.getTaxonomy());
+        if (ts == null) {
+          ts = new XmlRpcArray();
+          newTerms.put(term.getTaxonomy(), ts);
+        }
+        ts.add(termId);
+      }
+      postX.put("terms", newTerms); //$NON-NLS-1$
+    }
+    return postX;
+  }
+  
   /**
    * @param postId
    *          post id to edit
    * @param post
-   *          edited contents
+   *          edited contents, terms without a term id are resolved by name
+   *          through {@link #getTermIndex(String)}
    * @return true
    * @throws InsufficientRightsException
    *           one of the following reasons:
@@ -1301,8 +1946,8 @@ public class Wordpress {
    *           <li>if an ambiguous term name is used in terms_names</li>
    *           </ul>
    * @throws InvalidArgumentsException
-   *           if invalid post_type is specified or if an invalid term ID is
-   *           specified in terms
+   *           if invalid post_type is specified, if an invalid term ID is
+   *           specified in terms or if a term has neither an id nor a name
    * @throws ObjectNotFoundException
    *           if no author with that post_author ID exists or if no attachment
    *           with that post_thumbnail ID exists
@@ -1313,8 +1958,8 @@ public class Wordpress {
       throws InsufficientRightsException, InvalidArgumentsException,
       ObjectNotFoundException, XmlRpcFault {
     try {
-      final Boolean r = this.wp.editPost(BLOGID, this.username, this.password,
-          postId, post.toXmlRpcStruct());
+      final Boolean r = wp().editPost(BLOGID, this.username, this.password,
+          postId, postToXmlRpcStruct(post));
       return r.booleanValue();
     } catch (final XmlRpcFault e) {
       final int err = e.getErrorCode();
@@ -1345,7 +1990,7 @@ public class Wordpress {
   public boolean deletePost(final Integer postId)
       throws InsufficientRightsException, ObjectNotFoundException, XmlRpcFault {
     try {
-      return this.wp.deletePost(BLOGID, this.username, this.password, postId)
+      return wp().deletePost(BLOGID, this.username, this.password, postId)
           .booleanValue();
     } catch (final XmlRpcFault e) {
       final int err = e.getErrorCode();
@@ -1375,7 +2020,7 @@ public class Wordpress {
       throws InsufficientRightsException, InvalidArgumentsException,
       XmlRpcFault {
     try {
-      final XmlRpcStruct r = this.wp.getPostType(BLOGID, this.username,
+      final XmlRpcStruct r = wp().getPostType(BLOGID, this.username,
           this.password, postTypeName);
       final PostType result = new PostType();
       result.fromXmlRpcStruct(r);
@@ -1400,6 +2045,10 @@ public class Wordpress {
    *           if there is a generic error during request
    */
   public List<PostType> getPostTypes() throws XmlRpcFault {
+    final SiteMetadata m = this.siteMetadata;
+    if (m != null) {
+      return m.getPostTypes();
+    }
     return this.getPostTypes(null);
   }
   
@@ -1417,7 +2066,7 @@ public class Wordpress {
       throws XmlRpcFault {
     XmlRpcStruct r;
     if (filter == null) {
-      r = this.wp.getPostTypes(BLOGID, this.username, this.password);
+      r = wp().getPostTypes(BLOGID, this.username, this.password);
     } else {
       final XmlRpcStruct postTypeFilter = new XmlRpcStruct();
       for (String k : filter.keySet()) {
@@ -1426,7 +2075,7 @@ public class Wordpress {
           postTypeFilter.put(k, v);
         }
       }
-      r = this.wp.getPostTypes(BLOGID, this.username, this.password,
+      r = wp().getPostTypes(BLOGID, this.username, this.password,
           postTypeFilter);
     }
     final List<PostType> result = new ArrayList<>();
@@ -1448,6 +2097,10 @@ public class Wordpress {
    */
   public Map<String, String> getPostFormats()
       throws InsufficientRightsException, XmlRpcFault {
+    final SiteMetadata m = this.siteMetadata;
+    if (m != null) {
+      return m.getPostFormats();
+    }
     return this.getPostFormats(false);
   }
   
@@ -1467,13 +2120,13 @@ public class Wordpress {
     List<String> filtered = null;
     try {
       if (!showSupported) {
-        r = this.wp.getPostFormats(BLOGID, this.username, this.password);
+        r = wp().getPostFormats(BLOGID, this.username, this.password);
       } else {
         final XmlRpcArray filter = new XmlRpcArray();
         final XmlRpcStruct ss = new XmlRpcStruct();
         ss.put("show-supported", "true"); //$NON-NLS-1$ //$NON-NLS-2$
         filter.add(ss);
-        r = this.wp.getPostFormats(BLOGID, this.username, this.password, ss);
+        r = wp().getPostFormats(BLOGID, this.username, this.password, ss);
         final XmlRpcArray f = r.getArray("supported"); //$NON-NLS-1$
         filtered = new ArrayList<>();
         for (final Object fItem : f) {
@@ -1515,8 +2168,17 @@ public class Wordpress {
    */
   public Map<String, String> getPostStatusList()
       throws InsufficientRightsException, XmlRpcFault {
+    final SiteMetadata m = this.siteMetadata;
+    if (m != null) {
+      return m.getPostStatusList();
+    }
+    return fetchPostStatusList();
+  }
+  
+  Map<String, String> fetchPostStatusList()
+      throws InsufficientRightsException, XmlRpcFault {
     try {
-      final XmlRpcStruct r = this.wp.getPostStatusList(BLOGID, this.username,
+      final XmlRpcStruct r = wp().getPostStatusList(BLOGID, this.username,
           this.password);
       if (r != null) {
         final Map<String, String> result = new HashMap<>();
@@ -1536,4 +2198,24 @@ public class Wordpress {
       }
     }
   }
+  
+  /**
+   * Restores the blog to a snapshot of an incremental backup.
+   * 
+   * @param backupDirectory
+   *          directory of the backup
+   * @param snapshot
+   *          number of the snapshot
+   * @return the number of objects per kind and outcome, such as
+   *         "posts.updated"
+   * @throws IOException
+   *           if the backup cannot be read
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   * @see SiteBackup#restore(int, Wordpress)
+   */
+  public Map<String, Integer> restoreBackup(final File backupDirectory,
+      final int snapshot) throws IOException, InterruptedException {
+    return new SiteBackup(this, backupDirectory).restore(snapshot);
+  }
 }
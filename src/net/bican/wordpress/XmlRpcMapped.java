@@ -5,6 +5,8 @@
  */
 package net.bican.wordpress;
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
@@ -15,10 +17,12 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.bican.wordpress.util.CallStats;
 import redstone.xmlrpc.XmlRpcArray;
 import redstone.xmlrpc.XmlRpcStruct;
 
@@ -28,11 +32,17 @@ import redstone.xmlrpc.XmlRpcStruct;
  * 
  * @author Can Bican
  */
-public abstract class XmlRpcMapped {
+public abstract class XmlRpcMapped implements Serializable {
   
-  @SuppressWarnings("nls")
-  private static final SimpleDateFormat sdf = new SimpleDateFormat(
-      "yyyyMMdd'T'HH:mm:ss");
+  private static final long serialVersionUID = 8064453349385711426L;
+  private static final ThreadLocal<SimpleDateFormat> sdf =
+      new ThreadLocal<SimpleDateFormat>() {
+    @SuppressWarnings("nls")
+    @Override
+    protected SimpleDateFormat initialValue() {
+      return new SimpleDateFormat("yyyyMMdd'T'HH:mm:ss");
+    }
+  };
   private static final Logger logger = LoggerFactory
       .getLogger(XmlRpcMapped.class);
       
@@ -60,7 +70,7 @@ public abstract class XmlRpcMapped {
           if (showFieldName)
             result += field.getName() + fieldDelimiter;
           if (fType == Date.class) {
-            result += sdf.format(field.get(this));
+            result += sdf.get().format(field.get(this));
           } else {
             result += field.get(this);
           }
@@ -92,12 +102,155 @@ public abstract class XmlRpcMapped {
     return toGenericString(":", "", false).replaceAll(":$", "");
   }
   
+  /**
+   * Writes the object as a single line JSON object. Dates are written in the
+   * same format as in toString().
+   * 
+   * @param out
+   *          where to write to
+   * @throws IOException
+   *           if the output cannot be written
+   */
+  public void writeJSON(final Appendable out) throws IOException {
+    out.append('{');
+    boolean first = true;
+    for (Field field : this.getClass().getDeclaredFields()) {
+      if (!Modifier.isStatic(field.getModifiers())) {
+        try {
+          Object v = field.get(this);
+          if (v != null) {
+            if (!first) {
+              out.append(',');
+            }
+            first = false;
+            writeJSONString(out, field.getName());
+            out.append(':');
+            writeJSONValue(out, v);
+          }
+        } catch (IllegalAccessException e) {
+          logger.error("cannot receive field {}, {}", //$NON-NLS-1$
+              field.getName(), e.getLocalizedMessage());
+        }
+      }
+    }
+    out.append('}');
+  }
+  
+  /**
+   * @param d
+   *          a date
+   * @return the date in the same format as in toString()
+   */
+  static String formatDate(final Date d) {
+    return sdf.get().format(d);
+  }
+  
+  /**
+   * @param out
+   *          where to write to
+   * @param v
+   *          value to write; mapped objects, lists, maps, numbers, booleans
+   *          and dates are written as their JSON counterparts, anything else
+   *          as a string
+   * @throws IOException
+   *           if the output cannot be written
+   */
+  @SuppressWarnings("nls")
+  public static void writeJSONValue(final Appendable out, final Object v)
+      throws IOException {
+    if (v == null) {
+      out.append("null");
+    } else if (v instanceof XmlRpcMapped) {
+      ((XmlRpcMapped) v).writeJSON(out);
+    } else if (v instanceof Number || v instanceof Boolean) {
+      out.append(v.toString());
+    } else if (v instanceof Date) {
+      writeJSONString(out, sdf.get().format((Date) v));
+    } else if (v instanceof List) {
+      out.append('[');
+      boolean first = true;
+      for (Object o : (List<?>) v) {
+        if (!first) {
+          out.append(',');
+        }
+        first = false;
+        writeJSONValue(out, o);
+      }
+      out.append(']');
+    } else if (v instanceof Map) {
+      out.append('{');
+      boolean first = true;
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) v).entrySet()) {
+        if (!first) {
+          out.append(',');
+        }
+        first = false;
+        writeJSONString(out, String.valueOf(e.getKey()));
+        out.append(':');
+        writeJSONValue(out, e.getValue());
+      }
+      out.append('}');
+    } else {
+      writeJSONString(out, v.toString());
+    }
+  }
+  
+  /**
+   * @param out
+   *          where to write to
+   * @param s
+   *          string to write as a quoted and escaped JSON string
+   * @throws IOException
+   *           if the output cannot be written
+   */
+  @SuppressWarnings("nls")
+  public static void writeJSONString(final Appendable out, final String s)
+      throws IOException {
+    out.append('"');
+    for (int i = 0, il = s.length(); i < il; i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          out.append("\\\"");
+          break;
+        case '\\':
+          out.append("\\\\");
+          break;
+        case '\n':
+          out.append("\\n");
+          break;
+        case '\r':
+          out.append("\\r");
+          break;
+        case '\t':
+          out.append("\\t");
+          break;
+        default:
+          if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+            out.append(String.format("\\u%04x", Integer.valueOf(c)));
+          } else {
+            out.append(c);
+          }
+      }
+    }
+    out.append('"');
+  }
+  
   /**
    * @param x
    *          XmlRpcStruct to create the object from
    */
-  @SuppressWarnings({ "nls", "unchecked" })
   public void fromXmlRpcStruct(XmlRpcStruct x) {
+    final long started = CallStats.startMapping();
+    try {
+      map(x);
+    } finally {
+      CallStats.endMapping(started);
+    }
+  }
+  
+  @SuppressWarnings({ "nls", "unchecked" })
+  private void map(XmlRpcStruct x) {
     Field[] f = this.getClass().getDeclaredFields();
     String k = null;
     Object v = null;
@@ -176,7 +329,7 @@ public abstract class XmlRpcMapped {
             } else if (kType == Date.class) {
               try {
                 if (v.getClass() != Date.class) {
-                  Date vDate = sdf.parse((String) v);
+                  Date vDate = sdf.get().parse((String) v);
                   field.set(this, vDate);
                 } else {
                   field.set(this, v);
@@ -9,6 +9,7 @@
  */
 package net.bican.wordpress.configuration;
 
+import java.util.Iterator;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
@@ -16,18 +17,33 @@ import org.apache.commons.configuration.BaseConfiguration;
 
 /**
  * 
+ * The preferences of a package, read when the configuration is first
+ * queried, so that command lines that have all their options do not pay for
+ * the preferences store.
  * 
  * @author Can Bican
  * 
  */
 public class PreferencesConfiguration extends BaseConfiguration {
 
+  private Class<?> cl = null;
+  private boolean loaded = false;
+
   /**
    * @param cl Calling class
    */
   public PreferencesConfiguration(Class<?> cl) {
+    this.cl = cl;
+  }
+
+  private synchronized void load() {
+    if (this.loaded) {
+      return;
+    }
+    // set first, adding a property looks up its previous value
+    this.loaded = true;
     try {
-      Preferences p = Preferences.userNodeForPackage(cl);
+      Preferences p = Preferences.userNodeForPackage(this.cl);
       for (String preference : p.keys()) {
         this.addProperty(preference, p.get(preference, null));
       }
@@ -35,4 +51,28 @@ public class PreferencesConfiguration extends BaseConfiguration {
       // then we end up with an empty set of preferences, no big deal
     }
   }
+
+  @Override
+  public Object getProperty(String key) {
+    load();
+    return super.getProperty(key);
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    load();
+    return super.containsKey(key);
+  }
+
+  @Override
+  public Iterator<String> getKeys() {
+    load();
+    return super.getKeys();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    load();
+    return super.isEmpty();
+  }
 }
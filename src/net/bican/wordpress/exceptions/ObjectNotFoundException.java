@@ -25,6 +25,17 @@ public class ObjectNotFoundException extends Exception {
     super(message);
   }
 
+  /**
+   * @param message
+   *          argument value that caused the exception
+   * @param writableStackTrace
+   *          false to skip filling in the stack trace, for cheap exceptions
+   *          that are thrown without a request
+   */
+  public ObjectNotFoundException(String message, boolean writableStackTrace) {
+    super(message, null, false, writableStackTrace);
+  }
+  
   /**
    * default constructor
    */
@@ -0,0 +1,322 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.util;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.net.UnknownHostException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time of the XML-RPC calls goes: the requests and their bytes,
+ * and the time spent connecting, sending, waiting for the server, receiving,
+ * decoding the responses, mapping them to objects and parsing input files.
+ * 
+ * <p>
+ * Each command counts in its own counters, from {@link #start(boolean)} to
+ * {@link #stop()}: they take the work of the thread that started them and
+ * of the threads it starts, so commands running at the same time in one
+ * process do not count each other's requests. Work done on threads that
+ * were running before, such as shared pools, is not counted. When a thread
+ * has no counters, connections are not wrapped and the cost is a thread
+ * local read.
+ * A connection is measured from its first use to the end of its response;
+ * receiving is the time spent blocked reading, and decoding is the rest of
+ * the time until the response is read, as the response is parsed while it
+ * is read.
+ * 
+ * @author Can Bican
+ */
+public final class CallStats {
+  /**
+   * Measures of a single request
+   */
+  static class Request {
+    String method = "?"; //$NON-NLS-1$
+    long sent;
+    long received;
+    long connectNanos;
+    long sendNanos;
+    long waitNanos;
+    long transferNanos;
+    long decodeNanos;
+    
+    @SuppressWarnings("nls")
+    @Override
+    public String toString() {
+      return String.format(
+          "%-24s sent %8d B, received %9d B, connect %5d ms, send %5d ms, "
+              + "wait %6d ms, transfer %5d ms, decode %5d ms",
+          this.method, Long.valueOf(this.sent), Long.valueOf(this.received),
+          millis(this.connectNanos), millis(this.sendNanos),
+          millis(this.waitNanos), millis(this.transferNanos),
+          millis(this.decodeNanos));
+    }
+  }
+  
+  /** the counters of the command running on a thread */
+  private static final InheritableThreadLocal<CallStats> current =
+      new InheritableThreadLocal<>();
+  private static final ThreadLocal<int[]> mappingDepth =
+      new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+          return new int[1];
+        }
+      };
+  
+  /**
+   * Opens the connections of an instrumented URL, wrapped while the
+   * counters are on
+   */
+  private static final URLStreamHandler HANDLER = new URLStreamHandler() {
+    @Override
+    protected URLConnection openConnection(final URL u) throws IOException {
+      return wrap(new URL(u.toExternalForm()).openConnection());
+    }
+    
+    @Override
+    protected URLConnection openConnection(final URL u, final Proxy p)
+        throws IOException {
+      return wrap(new URL(u.toExternalForm()).openConnection(p));
+    }
+  };
+  
+  private final boolean explain;
+  private volatile boolean enabled = true;
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder received = new LongAdder();
+  private final LongAdder connectNanos = new LongAdder();
+  private final LongAdder sendNanos = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+  private final LongAdder transferNanos = new LongAdder();
+  private final LongAdder decodeNanos = new LongAdder();
+  private final LongAdder mappings = new LongAdder();
+  private final LongAdder mappingNanos = new LongAdder();
+  private final LongAdder parses = new LongAdder();
+  private final LongAdder parseNanos = new LongAdder();
+  private final AtomicLong dnsNanos = new AtomicLong(-1);
+  private final Queue<Request> log = new ConcurrentLinkedQueue<>();
+  
+  private CallStats(final boolean explain) {
+    this.explain = explain;
+  }
+  
+  /**
+   * Starts counting the work of the current thread, and of the threads it
+   * starts from now on, in new counters.
+   * 
+   * @param explainRequests
+   *          to keep the measures of every request too
+   * @return the counters
+   */
+  public static CallStats start(final boolean explainRequests) {
+    final CallStats stats = new CallStats(explainRequests);
+    current.set(stats);
+    return stats;
+  }
+  
+  /**
+   * Stops counting; threads that still use these counters stop too.
+   */
+  public void stop() {
+    this.enabled = false;
+    if (current.get() == this) {
+      current.remove();
+    }
+  }
+  
+  /**
+   * @return <code>true</code> if the work of the current thread is counted
+   */
+  public static boolean isEnabled() {
+    return active() != null;
+  }
+  
+  private static CallStats active() {
+    final CallStats stats = current.get();
+    return stats != null && stats.enabled ? stats : null;
+  }
+  
+  /**
+   * @param url
+   *          an http or https URL
+   * @return the same URL, whose connections are measured when they are
+   *         opened by a thread whose work is counted
+   * @throws MalformedURLException
+   *           if the URL is faulty
+   */
+  public static URL instrument(final URL url) throws MalformedURLException {
+    return new URL(null, url.toExternalForm(), HANDLER);
+  }
+  
+  /**
+   * Resolves the host of the URL and records the time it takes, so that the
+   * connections that follow find it in the cache of the JVM.
+   * 
+   * @param url
+   *          the URL
+   */
+  public void resolve(final URL url) {
+    final long started = System.nanoTime();
+    try {
+      InetAddress.getAllByName(url.getHost());
+    } catch (final UnknownHostException e) {
+      // the connection reports it
+    }
+    this.dnsNanos.set(System.nanoTime() - started);
+  }
+  
+  /**
+   * Starts measuring the mapping of a response to an object; mappings of
+   * nested objects are counted in the outermost one.
+   * 
+   * @return the value to pass to {@link #endMapping(long)}
+   */
+  public static long startMapping() {
+    if (active() == null) {
+      return 0;
+    }
+    return mappingDepth.get()[0]++ == 0 ? System.nanoTime() : -1;
+  }
+  
+  /**
+   * @param started
+   *          the value returned by {@link #startMapping()}
+   */
+  public static void endMapping(final long started) {
+    if (started == 0) {
+      return;
+    }
+    mappingDepth.get()[0]--;
+    final CallStats stats = active();
+    if (started > 0 && stats != null) {
+      stats.mappings.increment();
+      stats.mappingNanos.add(System.nanoTime() - started);
+    }
+  }
+  
+  /**
+   * @return the value to pass to {@link #endParsing(long)}
+   */
+  public static long startParsing() {
+    return active() != null ? System.nanoTime() : 0;
+  }
+  
+  /**
+   * @param started
+   *          the value returned by {@link #startParsing()}
+   */
+  public static void endParsing(final long started) {
+    final CallStats stats = active();
+    if (started != 0 && stats != null) {
+      stats.parses.increment();
+      stats.parseNanos.add(System.nanoTime() - started);
+    }
+  }
+  
+  /**
+   * Prints the counters.
+   * 
+   * @param out
+   *          where to print to
+   */
+  @SuppressWarnings("nls")
+  public void report(final PrintStream out) {
+    if (this.explain) {
+      int i = 0;
+      for (final Request r : this.log) {
+        out.println(String.format("#%-4d %s", Integer.valueOf(++i), r));
+      }
+    }
+    final long dns = this.dnsNanos.get();
+    if (dns >= 0) {
+      line(out, "dns", millis(dns), "ms");
+    }
+    line(out, "requests", Long.valueOf(this.requests.sum()), "");
+    line(out, "sent", Long.valueOf(this.sent.sum()), "bytes");
+    line(out, "received", Long.valueOf(this.received.sum()), "bytes");
+    line(out, "connect (tcp, tls)", millis(this.connectNanos.sum()), "ms");
+    line(out, "send", millis(this.sendNanos.sum()), "ms");
+    line(out, "server (to first byte)", millis(this.waitNanos.sum()), "ms");
+    line(out, "transfer", millis(this.transferNanos.sum()), "ms");
+    line(out, "decode", millis(this.decodeNanos.sum()), "ms");
+    line(out, "mapping", millis(this.mappingNanos.sum()),
+        "ms, " + this.mappings.sum() + " objects");
+    line(out, "file parsing", millis(this.parseNanos.sum()),
+        "ms, " + this.parses.sum() + " files");
+  }
+  
+  /**
+   * @param out
+   *          where to print to
+   * @param name
+   *          what is measured
+   * @param value
+   *          the measure
+   * @param unit
+   *          unit and remarks
+   */
+  @SuppressWarnings("nls")
+  public static void line(final PrintStream out, final String name,
+      final Long value, final String unit) {
+    out.println(String.format("%-24s %9d %s", name, value, unit).trim());
+  }
+  
+  static Long millis(final long nanos) {
+    return Long.valueOf(TimeUnit.NANOSECONDS.toMillis(nanos));
+  }
+  
+  private static URLConnection wrap(final URLConnection c) {
+    final CallStats stats = active();
+    if (stats == null || !(c instanceof HttpURLConnection)) {
+      return c;
+    }
+    stats.requests.increment();
+    return new InstrumentedConnection((HttpURLConnection) c, stats);
+  }
+  
+  void sent(final long bytes, final long nanos) {
+    this.sent.add(bytes);
+    this.sendNanos.add(nanos);
+  }
+  
+  void received(final long bytes, final long nanos) {
+    this.received.add(bytes);
+    this.transferNanos.add(nanos);
+  }
+  
+  void connected(final long nanos) {
+    this.connectNanos.add(nanos);
+  }
+  
+  void waited(final long nanos) {
+    this.waitNanos.add(nanos);
+  }
+  
+  void decoded(final Request r) {
+    this.decodeNanos.add(r.decodeNanos);
+    if (this.explain) {
+      this.log.add(r);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter of strings with one byte counter per slot, so that keys can
+ * be removed as well as added. Like any Bloom filter it may report a key that
+ * was never added, with the false positive probability it was sized for.
+ * 
+ * @author Can Bican
+ */
+public class CountingBloomFilter {
+  private final byte[] counters;
+  private final int hashes;
+  private int size = 0;
+  
+  /**
+   * @param expectedInsertions
+   *          number of keys the filter is sized for
+   * @param fpp
+   *          false positive probability at expectedInsertions keys
+   */
+  public CountingBloomFilter(final int expectedInsertions, final double fpp) {
+    if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1) {
+      throw new IllegalArgumentException();
+    }
+    final double ln2 = Math.log(2);
+    final long slots = (long) Math.ceil(
+        -expectedInsertions * Math.log(fpp) / (ln2 * ln2));
+    this.counters = new byte[(int) Math.min(Integer.MAX_VALUE - 8,
+        Math.max(64, slots))];
+    this.hashes = (int) Math.max(1,
+        Math.round((double) this.counters.length / expectedInsertions * ln2));
+  }
+  
+  private static long hash(final String key) {
+    // 64 bit FNV-1a over UTF-8, finished with the murmur3 mixer
+    long h = 0xcbf29ce484222325L;
+    for (final byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+  
+  private int slot(final long hash, final int i) {
+    final int h1 = (int) hash;
+    final int h2 = (int) (hash >>> 32);
+    final int combined = h1 + i * h2;
+    return (combined & Integer.MAX_VALUE) % this.counters.length;
+  }
+  
+  /**
+   * @param key
+   *          key to add
+   */
+  public synchronized void add(final String key) {
+    final long h = hash(key);
+    for (int i = 0; i < this.hashes; i++) {
+      final int s = slot(h, i);
+      if (this.counters[s] != (byte) 0xff) {
+        this.counters[s]++;
+      }
+    }
+    this.size++;
+  }
+  
+  /**
+   * Removes a key. Removing a key that was not added may remove others too,
+   * so this does nothing unless the key might be in the filter.
+   * 
+   * @param key
+   *          key to remove
+   */
+  public synchronized void remove(final String key) {
+    if (!mightContain(key)) {
+      return;
+    }
+    final long h = hash(key);
+    for (int i = 0; i < this.hashes; i++) {
+      final int s = slot(h, i);
+      if (this.counters[s] != (byte) 0xff) { // saturated counters stay
+        this.counters[s]--;
+      }
+    }
+    this.size--;
+  }
+  
+  /**
+   * @param key
+   *          key to check
+   * @return false if the key is definitely not in the filter, true if it
+   *         probably is
+   */
+  public synchronized boolean mightContain(final String key) {
+    final long h = hash(key);
+    for (int i = 0; i < this.hashes; i++) {
+      if (this.counters[slot(h, i)] == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * @return number of keys added and not removed
+   */
+  public synchronized int size() {
+    return this.size;
+  }
+  
+  /**
+   * Removes all keys.
+   */
+  public synchronized void clear() {
+    Arrays.fill(this.counters, (byte) 0);
+    this.size = 0;
+  }
+}
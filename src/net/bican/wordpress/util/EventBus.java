@@ -0,0 +1,289 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-process publish/subscribe bus over a bounded ring buffer. Every
+ * subscriber receives every event published after it subscribed, in order,
+ * on its own thread. A slot of the ring is reused only when all subscribers
+ * have passed it, so publishing blocks while the slowest subscriber is a
+ * full ring behind: slow consumers slow the publisher down instead of
+ * making the buffer grow.
+ * 
+ * <p>
+ * Exceptions thrown by a subscriber are logged and do not stop it.
+ * 
+ * @author Can Bican
+ * @param <E>
+ *          type of the events
+ */
+public class EventBus<E> implements AutoCloseable {
+  private static final Logger logger = LoggerFactory
+      .getLogger(EventBus.class);
+  
+  private final Object[] ring;
+  private final int mask;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = this.lock.newCondition();
+  private final Condition notEmpty = this.lock.newCondition();
+  private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+  /** sequence of the next event, guarded by lock */
+  private long published = 0;
+  private volatile boolean closed = false;
+  
+  /**
+   * A subscription, which stops delivery when it is closed
+   */
+  public interface Subscription extends AutoCloseable {
+    /**
+     * @return the number of published events not delivered yet
+     */
+    long getLag();
+    
+    @Override
+    void close();
+  }
+  
+  /**
+   * @param capacity
+   *          number of events buffered, rounded up to a power of two
+   */
+  public EventBus(final int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException();
+    }
+    final int size = Integer.highestOneBit(capacity - 1) << 1;
+    this.ring = new Object[Math.max(1, size)];
+    this.mask = this.ring.length - 1;
+  }
+  
+  /**
+   * @return the number of events buffered
+   */
+  public int getCapacity() {
+    return this.ring.length;
+  }
+  
+  private long slowest() {
+    long result = this.published;
+    for (final Subscriber s : this.subscribers) {
+      result = Math.min(result, s.cursor);
+    }
+    return result;
+  }
+  
+  /**
+   * Publishes an event, waiting while the ring is full.
+   * 
+   * @param event
+   *          the event
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  public void publish(final E event) throws InterruptedException {
+    offer(event, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+  
+  /**
+   * Publishes an event, waiting at most the timeout while the ring is full.
+   * 
+   * @param event
+   *          the event
+   * @param timeout
+   *          time to wait
+   * @param unit
+   *          unit of the timeout
+   * @return false if the ring stayed full
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  public boolean offer(final E event, final long timeout,
+      final TimeUnit unit) throws InterruptedException {
+    if (event == null) {
+      throw new IllegalArgumentException();
+    }
+    long nanos = unit.toNanos(timeout);
+    this.lock.lockInterruptibly();
+    try {
+      while (this.published - slowest() >= this.ring.length) {
+        if (this.closed) {
+          throw new IllegalStateException("closed"); //$NON-NLS-1$
+        }
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = this.notFull.awaitNanos(nanos);
+      }
+      if (this.closed) {
+        throw new IllegalStateException("closed"); //$NON-NLS-1$
+      }
+      this.ring[(int) (this.published & this.mask)] = event;
+      this.published++;
+      this.notEmpty.signalAll();
+      return true;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+  
+  /**
+   * Subscribes to all events.
+   * 
+   * @param consumer
+   *          receives the events, on a thread of its own
+   * @return the subscription
+   */
+  public Subscription subscribe(final Consumer<? super E> consumer) {
+    this.lock.lock();
+    try {
+      if (this.closed) {
+        throw new IllegalStateException("closed"); //$NON-NLS-1$
+      }
+      final Subscriber s = new Subscriber(consumer, this.published);
+      this.subscribers.add(s);
+      final Thread t = new Thread(s, "subscriber"); //$NON-NLS-1$
+      t.setDaemon(true);
+      t.start();
+      return s;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+  
+  /**
+   * Subscribes to the events of a type.
+   * 
+   * @param type
+   *          type of the events to receive
+   * @param consumer
+   *          receives the events, on a thread of its own
+   * @return the subscription
+   */
+  public <T extends E> Subscription subscribe(final Class<T> type,
+      final Consumer<? super T> consumer) {
+    return subscribe(e -> {
+      if (type.isInstance(e)) {
+        consumer.accept(type.cast(e));
+      }
+    });
+  }
+  
+  /**
+   * Stops accepting events; the subscribers stop after delivering the ones
+   * published already.
+   */
+  @Override
+  public void close() {
+    this.lock.lock();
+    try {
+      this.closed = true;
+      this.notEmpty.signalAll();
+      this.notFull.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+  
+  private class Subscriber implements Subscription, Runnable {
+    private final Consumer<? super E> consumer;
+    /** sequence of the next event to deliver, written under lock */
+    volatile long cursor;
+    private volatile boolean cancelled = false;
+    
+    Subscriber(final Consumer<? super E> consumer, final long cursor) {
+      this.consumer = consumer;
+      this.cursor = cursor;
+    }
+    
+    @Override
+    public long getLag() {
+      EventBus.this.lock.lock();
+      try {
+        return EventBus.this.published - this.cursor;
+      } finally {
+        EventBus.this.lock.unlock();
+      }
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+      final ReentrantLock l = EventBus.this.lock;
+      try {
+        while (true) {
+          long end;
+          l.lockInterruptibly();
+          try {
+            while (this.cursor == EventBus.this.published && !this.cancelled
+                && !EventBus.this.closed) {
+              EventBus.this.notEmpty.await();
+            }
+            if (this.cancelled
+                || this.cursor == EventBus.this.published) {
+              return;
+            }
+            end = EventBus.this.published;
+          } finally {
+            l.unlock();
+          }
+          // the slots up to end are not reused before the cursor moves
+          for (long i = this.cursor; i < end && !this.cancelled; i++) {
+            final E event = (E) EventBus.this.ring[(int) (i
+                & EventBus.this.mask)];
+            try {
+              this.consumer.accept(event);
+            } catch (final RuntimeException e) {
+              logger.warn("subscriber failed on {}: {}", event, //$NON-NLS-1$
+                  e.toString());
+            }
+          }
+          l.lock();
+          try {
+            this.cursor = end;
+            EventBus.this.notFull.signalAll();
+          } finally {
+            l.unlock();
+          }
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        EventBus.this.subscribers.remove(this);
+        l.lock();
+        try {
+          EventBus.this.notFull.signalAll();
+        } finally {
+          l.unlock();
+        }
+      }
+    }
+    
+    @Override
+    public void close() {
+      this.cancelled = true;
+      EventBus.this.lock.lock();
+      try {
+        EventBus.this.notEmpty.signalAll();
+      } finally {
+        EventBus.this.lock.unlock();
+      }
+    }
+  }
+}
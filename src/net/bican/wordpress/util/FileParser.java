@@ -7,6 +7,10 @@ package net.bican.wordpress.util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,6 +32,16 @@ public class FileParser {
   private static final Logger logger = LoggerFactory
       .getLogger(FileParser.class);
       
+  /**
+   * Line separating the documents of a multi-document file
+   */
+  public static final String SEPARATOR = "---"; //$NON-NLS-1$
+  
+  private static final Pattern KEY = Pattern.compile("([\\d\\w_]+):", //$NON-NLS-1$
+      Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+  private static final ConcurrentMap<String, Class<?>> classes =
+      new ConcurrentHashMap<>();
+  
   /**
    * Parses a file to create an xmlrpc compliant object
    * 
@@ -39,38 +53,92 @@ public class FileParser {
    * @throws InvalidPostFormatException
    *           when the file format is invalid
    */
-  @SuppressWarnings("nls")
   public static XmlRpcStruct parseFile(BufferedReader input)
       throws IOException, InvalidPostFormatException {
+    final long started = CallStats.startParsing();
+    try {
+      return parse(input, false).get(0);
+    } finally {
+      CallStats.endParsing(started);
+    }
+  }
+  
+  /**
+   * Parses a file of many documents, separated by lines of
+   * {@link #SEPARATOR}, each in the format read by
+   * {@link #parseFile(BufferedReader)}. Documents without keys are skipped.
+   * Only for files known to hold many documents: a line of {@link #SEPARATOR}
+   * always ends a document here, while {@link #parseFile(BufferedReader)}
+   * keeps it in the value it is in.
+   * 
+   * @param input
+   *          reader for the file
+   * @return New xmlrpc objects, in the order of the file
+   * @throws IOException
+   *           when the file cannot be read
+   * @throws InvalidPostFormatException
+   *           when the file format is invalid
+   */
+  public static List<XmlRpcStruct> parseDocuments(BufferedReader input)
+      throws IOException, InvalidPostFormatException {
+    final long started = CallStats.startParsing();
+    try {
+      return parse(input, true);
+    } finally {
+      CallStats.endParsing(started);
+    }
+  }
+  
+  /**
+   * A line starting with a key begins a value, which goes on in the lines
+   * that follow until the next key; empty lines and lines starting with
+   * "#" are ignored.
+   */
+  @SuppressWarnings("nls")
+  private static List<XmlRpcStruct> parse(BufferedReader input,
+      boolean documents) throws IOException, InvalidPostFormatException {
+    final List<XmlRpcStruct> result = new ArrayList<>();
+    final Matcher m = KEY.matcher("");
+    final StringBuilder value = new StringBuilder();
     XmlRpcStruct p = new XmlRpcStruct();
+    boolean keys = false;
+    String key = null;
     String line;
-    String prevKey = null;
-    String prevValue = null;
-    Pattern keyPattern;
-    keyPattern = Pattern.compile("^[\\d\\w_]+:",
-        Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
     while ((line = input.readLine()) != null) {
-      if ((!"".equals(line)) && (!line.startsWith("#"))) {
-        Matcher m = keyPattern.matcher(line);
-        if (m.find()) {
-          if (prevKey != null) {
-            FileParser.putVal(p, prevKey, prevValue);
-          }
-          String[] vals = line.split(":", 2);
-          prevKey = vals[0];
-          prevValue = vals[1];
-        } else {
-          if (prevValue != null) {
-            prevValue += line;
-          } else {
-            throw new InvalidPostFormatException();
-          }
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      if (documents && SEPARATOR.equals(line.trim())) {
+        if (key != null) {
+          FileParser.putVal(p, key, value.toString());
+          key = null;
+        }
+        if (keys) {
+          result.add(p);
+          p = new XmlRpcStruct();
+          keys = false;
+        }
+      } else if (m.reset(line).lookingAt()) {
+        if (key != null) {
+          FileParser.putVal(p, key, value.toString());
         }
+        key = m.group(1);
+        keys = true;
+        value.setLength(0);
+        value.append(line, m.end(), line.length());
+      } else if (key != null) {
+        value.append(line);
+      } else {
+        throw new InvalidPostFormatException();
       }
     }
-    if (prevKey != null)
-      FileParser.putVal(p, prevKey, prevValue);
-    return p;
+    if (key != null) {
+      FileParser.putVal(p, key, value.toString());
+    }
+    if (keys || !documents) {
+      result.add(p);
+    }
+    return result;
   }
   
   /**
@@ -97,8 +165,7 @@ public class FileParser {
               vals.add(jArr.getString(i));
             }
           } else {
-            String className = FileParser.getClassName(key);
-            Class<?> cl = Class.forName(className);
+            Class<?> cl = FileParser.classOf(key);
             for (int i = 0; i < jArr.length(); i++) {
               JSONConvertable o = (JSONConvertable) cl.newInstance();
               o.fromJSONObject(jArr.getJSONObject(i));
@@ -119,20 +186,37 @@ public class FileParser {
     }
   }
   
+  /**
+   * @return the class of the objects in the array of a key, such as
+   *         {@link net.bican.wordpress.Term} for "terms"
+   */
+  static Class<?> classOf(String key) throws ClassNotFoundException {
+    Class<?> cl = classes.get(key);
+    if (cl == null) {
+      cl = Class.forName(getClassName(key));
+      classes.put(key, cl);
+    }
+    return cl;
+  }
+  
   @SuppressWarnings("nls")
   static String getClassName(String key) {
-    String className = key;
-    while (className.contains("_")) {
-      int pos = className.indexOf("_");
-      Character ch = Character.valueOf(className.charAt(pos + 1));
-      char chNew = Character.toUpperCase(ch.charValue());
-      className = className.replaceFirst("_" + ch, chNew + "");
+    final StringBuilder className = new StringBuilder("net.bican.wordpress.");
+    boolean upper = true;
+    int end = key.length();
+    if (end > 0 && key.charAt(end - 1) == 's') {
+      end--;
+    }
+    for (int i = 0; i < end; i++) {
+      final char ch = key.charAt(i);
+      if (ch == '_') {
+        upper = true;
+      } else {
+        className.append(upper ? Character.toUpperCase(ch) : ch);
+        upper = false;
+      }
     }
-    className = className.replaceFirst("s$", "");
-    Character ch = Character.valueOf(className.charAt(0));
-    char chNew = Character.toUpperCase(ch.charValue());
-    className = className.replaceFirst("^" + ch, chNew + "");
-    return "net.bican.wordpress." + className;
+    return className.toString();
   }
   
 }
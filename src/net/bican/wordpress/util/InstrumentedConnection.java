@@ -0,0 +1,414 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.util;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.security.Permission;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTTP connection that reports its bytes and times to {@link CallStats},
+ * and passes everything else to the connection it wraps.
+ * 
+ * @author Can Bican
+ */
+class InstrumentedConnection extends HttpURLConnection {
+  private static final int HEAD = 512;
+  
+  private final HttpURLConnection c;
+  private final CallStats stats;
+  private final CallStats.Request request = new CallStats.Request();
+  private final byte[] head = new byte[HEAD];
+  private int headLength = 0;
+  private boolean connected = false;
+  private long requestSent = 0;
+  private long responseStart = 0;
+  private boolean finished = false;
+  
+  InstrumentedConnection(final HttpURLConnection c, final CallStats stats) {
+    super(c.getURL());
+    this.c = c;
+    this.stats = stats;
+  }
+  
+  private synchronized void ensureConnected() throws IOException {
+    if (!this.connected) {
+      final long started = System.nanoTime();
+      this.c.connect();
+      final long nanos = System.nanoTime() - started;
+      this.connected = true;
+      this.request.connectNanos = nanos;
+      this.stats.connected(nanos);
+    }
+  }
+  
+  /**
+   * Waits for the response headers, and counts the wait once.
+   */
+  private synchronized void awaitResponse() throws IOException {
+    if (this.responseStart == 0) {
+      ensureConnected();
+      final long started = System.nanoTime();
+      this.c.getResponseCode();
+      this.responseStart = System.nanoTime();
+      final long nanos = this.responseStart
+          - (this.requestSent != 0 ? this.requestSent : started);
+      this.request.waitNanos = nanos;
+      this.stats.waited(nanos);
+    }
+  }
+  
+  /**
+   * Records the request when its response is read.
+   */
+  synchronized void finish() {
+    if (this.finished || this.responseStart == 0) {
+      return;
+    }
+    this.finished = true;
+    this.request.decodeNanos = Math.max(0, System.nanoTime()
+        - this.responseStart - this.request.transferNanos);
+    final String text = new String(this.head, 0, this.headLength,
+        StandardCharsets.UTF_8);
+    final int from = text.indexOf("<methodName>"); //$NON-NLS-1$
+    final int to = text.indexOf("</methodName>"); //$NON-NLS-1$
+    if (from >= 0 && to > from) {
+      this.request.method = text.substring(from + 12, to).trim();
+    }
+    this.stats.decoded(this.request);
+  }
+  
+  @Override
+  public void connect() throws IOException {
+    ensureConnected();
+  }
+  
+  @Override
+  public void disconnect() {
+    finish();
+    this.c.disconnect();
+  }
+  
+  @Override
+  public boolean usingProxy() {
+    return this.c.usingProxy();
+  }
+  
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    ensureConnected();
+    return new FilterOutputStream(this.c.getOutputStream()) {
+      @Override
+      public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+      
+      @Override
+      public void write(final byte[] b, final int off, final int len)
+          throws IOException {
+        final long started = System.nanoTime();
+        this.out.write(b, off, len);
+        final long nanos = System.nanoTime() - started;
+        sent(b, off, len, nanos);
+      }
+      
+      @Override
+      public void close() throws IOException {
+        final long started = System.nanoTime();
+        super.close();
+        sent(null, 0, 0, System.nanoTime() - started);
+        InstrumentedConnection.this.requestSent = System.nanoTime();
+      }
+    };
+  }
+  
+  private synchronized void sent(final byte[] b, final int off,
+      final int len, final long nanos) {
+    if (b != null && this.headLength < HEAD) {
+      final int n = Math.min(len, HEAD - this.headLength);
+      System.arraycopy(b, off, this.head, this.headLength, n);
+      this.headLength += n;
+    }
+    this.request.sent += len;
+    this.request.sendNanos += nanos;
+    this.stats.sent(len, nanos);
+  }
+  
+  @Override
+  public InputStream getInputStream() throws IOException {
+    awaitResponse();
+    return counted(this.c.getInputStream());
+  }
+  
+  @Override
+  public InputStream getErrorStream() {
+    final InputStream in = this.c.getErrorStream();
+    return in == null ? null : counted(in);
+  }
+  
+  private InputStream counted(final InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+      }
+      
+      @Override
+      public int read(final byte[] b, final int off, final int len)
+          throws IOException {
+        final long started = System.nanoTime();
+        final int n = this.in.read(b, off, len);
+        received(Math.max(n, 0), System.nanoTime() - started);
+        if (n < 0) {
+          finish();
+        }
+        return n;
+      }
+      
+      @Override
+      public void close() throws IOException {
+        super.close();
+        finish();
+      }
+    };
+  }
+  
+  private synchronized void received(final int n, final long nanos) {
+    this.request.received += n;
+    this.request.transferNanos += nanos;
+    this.stats.received(n, nanos);
+  }
+  
+  @Override
+  public int getResponseCode() throws IOException {
+    awaitResponse();
+    return this.c.getResponseCode();
+  }
+  
+  @Override
+  public String getResponseMessage() throws IOException {
+    awaitResponse();
+    return this.c.getResponseMessage();
+  }
+  
+  @Override
+  public void setRequestMethod(final String method) throws ProtocolException {
+    this.c.setRequestMethod(method);
+  }
+  
+  @Override
+  public String getRequestMethod() {
+    return this.c.getRequestMethod();
+  }
+  
+  @Override
+  public void setInstanceFollowRedirects(final boolean followRedirects) {
+    this.c.setInstanceFollowRedirects(followRedirects);
+  }
+  
+  @Override
+  public boolean getInstanceFollowRedirects() {
+    return this.c.getInstanceFollowRedirects();
+  }
+  
+  @Override
+  public void setFixedLengthStreamingMode(final int contentLength) {
+    this.c.setFixedLengthStreamingMode(contentLength);
+  }
+  
+  @Override
+  public void setFixedLengthStreamingMode(final long contentLength) {
+    this.c.setFixedLengthStreamingMode(contentLength);
+  }
+  
+  @Override
+  public void setChunkedStreamingMode(final int chunklen) {
+    this.c.setChunkedStreamingMode(chunklen);
+  }
+  
+  @Override
+  public void setRequestProperty(final String key, final String value) {
+    this.c.setRequestProperty(key, value);
+  }
+  
+  @Override
+  public void addRequestProperty(final String key, final String value) {
+    this.c.addRequestProperty(key, value);
+  }
+  
+  @Override
+  public String getRequestProperty(final String key) {
+    return this.c.getRequestProperty(key);
+  }
+  
+  @Override
+  public Map<String, List<String>> getRequestProperties() {
+    return this.c.getRequestProperties();
+  }
+  
+  @Override
+  public void setDoInput(final boolean doinput) {
+    this.c.setDoInput(doinput);
+  }
+  
+  @Override
+  public boolean getDoInput() {
+    return this.c.getDoInput();
+  }
+  
+  @Override
+  public void setDoOutput(final boolean dooutput) {
+    this.c.setDoOutput(dooutput);
+  }
+  
+  @Override
+  public boolean getDoOutput() {
+    return this.c.getDoOutput();
+  }
+  
+  @Override
+  public void setUseCaches(final boolean usecaches) {
+    this.c.setUseCaches(usecaches);
+  }
+  
+  @Override
+  public boolean getUseCaches() {
+    return this.c.getUseCaches();
+  }
+  
+  @Override
+  public void setAllowUserInteraction(final boolean allowuserinteraction) {
+    this.c.setAllowUserInteraction(allowuserinteraction);
+  }
+  
+  @Override
+  public boolean getAllowUserInteraction() {
+    return this.c.getAllowUserInteraction();
+  }
+  
+  @Override
+  public void setIfModifiedSince(final long ifmodifiedsince) {
+    this.c.setIfModifiedSince(ifmodifiedsince);
+  }
+  
+  @Override
+  public long getIfModifiedSince() {
+    return this.c.getIfModifiedSince();
+  }
+  
+  @Override
+  public void setConnectTimeout(final int timeout) {
+    this.c.setConnectTimeout(timeout);
+  }
+  
+  @Override
+  public int getConnectTimeout() {
+    return this.c.getConnectTimeout();
+  }
+  
+  @Override
+  public void setReadTimeout(final int timeout) {
+    this.c.setReadTimeout(timeout);
+  }
+  
+  @Override
+  public int getReadTimeout() {
+    return this.c.getReadTimeout();
+  }
+  
+  @Override
+  public String getHeaderField(final String name) {
+    return this.c.getHeaderField(name);
+  }
+  
+  @Override
+  public String getHeaderField(final int n) {
+    return this.c.getHeaderField(n);
+  }
+  
+  @Override
+  public String getHeaderFieldKey(final int n) {
+    return this.c.getHeaderFieldKey(n);
+  }
+  
+  @Override
+  public Map<String, List<String>> getHeaderFields() {
+    return this.c.getHeaderFields();
+  }
+  
+  @Override
+  public long getHeaderFieldDate(final String name, final long defaultValue) {
+    return this.c.getHeaderFieldDate(name, defaultValue);
+  }
+  
+  @Override
+  public int getHeaderFieldInt(final String name, final int defaultValue) {
+    return this.c.getHeaderFieldInt(name, defaultValue);
+  }
+  
+  @Override
+  public long getHeaderFieldLong(final String name, final long defaultValue) {
+    return this.c.getHeaderFieldLong(name, defaultValue);
+  }
+  
+  @Override
+  public String getContentType() {
+    return this.c.getContentType();
+  }
+  
+  @Override
+  public String getContentEncoding() {
+    return this.c.getContentEncoding();
+  }
+  
+  @Override
+  public int getContentLength() {
+    return this.c.getContentLength();
+  }
+  
+  @Override
+  public long getContentLengthLong() {
+    return this.c.getContentLengthLong();
+  }
+  
+  @Override
+  public long getDate() {
+    return this.c.getDate();
+  }
+  
+  @Override
+  public long getExpiration() {
+    return this.c.getExpiration();
+  }
+  
+  @Override
+  public long getLastModified() {
+    return this.c.getLastModified();
+  }
+  
+  @Override
+  public Permission getPermission() throws IOException {
+    return this.c.getPermission();
+  }
+  
+  @Override
+  public String toString() {
+    return this.c.toString();
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in microseconds with log-linear buckets, as in
+ * HdrHistogram: every power of two is split into {@value #SUB_BUCKETS}
+ * buckets, so a value is known within about 6%. Recording does not lock;
+ * reading while values are recorded gives an approximate snapshot.
+ * 
+ * @author Can Bican
+ */
+public class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  /** buckets per power of two */
+  public static final int SUB_BUCKETS = 1 << SUB_BITS;
+  /** values up to 2^40 microseconds, about 12 days */
+  private static final int MAX_EXPONENT = 40;
+  
+  private final AtomicLongArray counts = new AtomicLongArray(
+      (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+  
+  /**
+   * @param micros
+   *          the duration in microseconds, negative values count as 0
+   */
+  public void record(final long micros) {
+    final long v = Math.max(micros, 0);
+    this.counts.incrementAndGet(index(v));
+    this.count.increment();
+    this.sum.add(v);
+    if (v > this.max.get()) {
+      this.max.accumulateAndGet(v, Math::max);
+    }
+  }
+  
+  /**
+   * @return number of values recorded
+   */
+  public long getCount() {
+    return this.count.sum();
+  }
+  
+  /**
+   * @return sum of the values recorded, in microseconds
+   */
+  public long getSum() {
+    return this.sum.sum();
+  }
+  
+  /**
+   * @return the largest value recorded, in microseconds
+   */
+  public long getMax() {
+    return this.max.get();
+  }
+  
+  /**
+   * @return mean of the values recorded, in microseconds, or 0 if there are
+   *         none
+   */
+  public double getMean() {
+    final long n = getCount();
+    return n == 0 ? 0 : (double) getSum() / n;
+  }
+  
+  /**
+   * @param quantile
+   *          between 0 and 1, such as 0.99
+   * @return the highest value of the bucket the quantile falls in, in
+   *         microseconds, at most the largest value recorded; 0 if there are
+   *         no values
+   */
+  public long getValueAtQuantile(final double quantile) {
+    if (quantile < 0 || quantile > 1) {
+      throw new IllegalArgumentException();
+    }
+    final int buckets = this.counts.length();
+    long total = 0;
+    for (int i = 0; i < buckets; i++) {
+      total += this.counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < buckets; i++) {
+      seen += this.counts.get(i);
+      if (seen >= rank) {
+        return Math.min(lowest(i + 1) - 1, getMax());
+      }
+    }
+    return getMax();
+  }
+  
+  static int index(final long v) {
+    if (v < SUB_BUCKETS) {
+      return (int) v;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(v);
+    if (exponent > MAX_EXPONENT) {
+      return (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS - 1;
+    }
+    final int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+  
+  /**
+   * @return the lowest value of a bucket
+   */
+  static long lowest(final int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+    final int sub = index % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Calls, errors and latencies of an XML-RPC method
+ * 
+ * @author Can Bican
+ */
+public class MethodMetrics implements MethodMetricsMXBean {
+  /** the error code of the calls that failed without a fault */
+  public static final String TRANSPORT = "transport"; //$NON-NLS-1$
+  
+  private final String method;
+  private final LongAdder calls = new LongAdder();
+  private final ConcurrentMap<String, LongAdder> errors =
+      new ConcurrentHashMap<>();
+  private final LatencyHistogram latency = new LatencyHistogram();
+  
+  MethodMetrics(final String method) {
+    this.method = method;
+  }
+  
+  /**
+   * @param nanos
+   *          duration of the call
+   * @param errorCode
+   *          fault code, {@link #TRANSPORT}, or null if the call succeeded
+   */
+  void record(final long nanos, final String errorCode) {
+    this.calls.increment();
+    this.latency.record(nanos / 1000);
+    if (errorCode != null) {
+      LongAdder a = this.errors.get(errorCode);
+      if (a == null) {
+        a = this.errors.computeIfAbsent(errorCode, k -> new LongAdder());
+      }
+      a.increment();
+    }
+  }
+  
+  /**
+   * @return the durations of the calls
+   */
+  public LatencyHistogram getLatency() {
+    return this.latency;
+  }
+  
+  @Override
+  public String getMethod() {
+    return this.method;
+  }
+  
+  @Override
+  public long getCalls() {
+    return this.calls.sum();
+  }
+  
+  @Override
+  public long getErrors() {
+    long n = 0;
+    for (final LongAdder a : this.errors.values()) {
+      n += a.sum();
+    }
+    return n;
+  }
+  
+  @Override
+  public Map<String, Long> getErrorsByCode() {
+    final Map<String, Long> result = new TreeMap<>();
+    for (final Map.Entry<String, LongAdder> e : this.errors.entrySet()) {
+      result.put(e.getKey(), Long.valueOf(e.getValue().sum()));
+    }
+    return result;
+  }
+  
+  @Override
+  public double getMeanMillis() {
+    return this.latency.getMean() / 1000;
+  }
+  
+  @Override
+  public double getMaxMillis() {
+    return this.latency.getMax() / 1000.0;
+  }
+  
+  @Override
+  public double get50thPercentileMillis() {
+    return this.latency.getValueAtQuantile(0.5) / 1000.0;
+  }
+  
+  @Override
+  public double get90thPercentileMillis() {
+    return this.latency.getValueAtQuantile(0.9) / 1000.0;
+  }
+  
+  @Override
+  public double get99thPercentileMillis() {
+    return this.latency.getValueAtQuantile(0.99) / 1000.0;
+  }
+  
+  @Override
+  public double get999thPercentileMillis() {
+    return this.latency.getValueAtQuantile(0.999) / 1000.0;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.util;
+
+import java.util.Map;
+
+/**
+ * The measures of an XML-RPC method, as seen through JMX
+ * 
+ * @author Can Bican
+ */
+public interface MethodMetricsMXBean {
+  /**
+   * @return name of the method, such as wp.getPost
+   */
+  String getMethod();
+  
+  /**
+   * @return number of calls
+   */
+  long getCalls();
+  
+  /**
+   * @return number of failed calls
+   */
+  long getErrors();
+  
+  /**
+   * @return number of failed calls by fault code, or "transport" for the
+   *         calls that did not get a response
+   */
+  Map<String, Long> getErrorsByCode();
+  
+  /**
+   * @return mean duration of the calls in milliseconds
+   */
+  double getMeanMillis();
+  
+  /**
+   * @return longest call in milliseconds
+   */
+  double getMaxMillis();
+  
+  /**
+   * @return median duration of the calls in milliseconds
+   */
+  double get50thPercentileMillis();
+  
+  /**
+   * @return 90th percentile of the durations in milliseconds
+   */
+  double get90thPercentileMillis();
+  
+  /**
+   * @return 99th percentile of the durations in milliseconds
+   */
+  double get99thPercentileMillis();
+  
+  /**
+   * @return 99.9th percentile of the durations in milliseconds
+   */
+  double get999thPercentileMillis();
+}
@@ -0,0 +1,434 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redstone.xmlrpc.XmlRpcFault;
+
+/**
+ * Measures of the XML-RPC calls of a client: per method, the number of
+ * calls, the errors by fault code and a {@link LatencyHistogram} of their
+ * durations; gauges such as the calls in progress, and counters of other
+ * things such as the clients made. The measures can be
+ * read directly, through JMX after {@link #registerMBeans(MBeanServer)}, or in
+ * the Prometheus text format, which {@link PrometheusEndpoint} serves over
+ * HTTP.
+ * 
+ * <p>
+ * Recording a call does not lock, so a registry can be shared by all the
+ * threads of a client.
+ * 
+ * @author Can Bican
+ */
+public class MetricsRegistry implements MetricsRegistryMXBean {
+  /** JMX domain of the MBeans */
+  public static final String DOMAIN = "net.bican.wordpress"; //$NON-NLS-1$
+  /** gauge of the calls in progress */
+  public static final String ACTIVE_CALLS = "wordpress_active_calls"; //$NON-NLS-1$
+  
+  private static final Pattern NAME = Pattern
+      .compile("[a-zA-Z_:][a-zA-Z0-9_:]*"); //$NON-NLS-1$
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+  private static final Logger logger = LoggerFactory
+      .getLogger(MetricsRegistry.class);
+  
+  /**
+   * A gauge or a counter, read when the measures are, the sum of the values
+   * added to it
+   */
+  private static class Gauge {
+    final String help;
+    final boolean counter;
+    final List<LongSupplier> values = new CopyOnWriteArrayList<>();
+    
+    Gauge(final String help, final boolean counter) {
+      this.help = help;
+      this.counter = counter;
+    }
+    
+    long read() {
+      long sum = 0;
+      for (final LongSupplier v : this.values) {
+        sum += v.getAsLong();
+      }
+      return sum;
+    }
+  }
+  
+  private final String name;
+  private final ConcurrentMap<String, MethodMetrics> methods =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Gauge> gauges =
+      new ConcurrentHashMap<>();
+  private final LongAdder active = new LongAdder();
+  private MBeanServer server = null;
+  
+  /**
+   * @param name
+   *          name of the registry, which tells the MBeans of clients apart
+   */
+  @SuppressWarnings("nls")
+  public MetricsRegistry(final String name) {
+    if (name == null || name.isEmpty()) {
+      throw new IllegalArgumentException();
+    }
+    this.name = name;
+    gauge(ACTIVE_CALLS, "XML-RPC calls in progress.", this.active::sum);
+  }
+  
+  @Override
+  public String getName() {
+    return this.name;
+  }
+  
+  /**
+   * @param method
+   *          name of an XML-RPC method
+   * @return the measures of the method, created on its first use
+   */
+  public MethodMetrics method(final String method) {
+    final MethodMetrics m = this.methods.get(method);
+    if (m != null) {
+      return m;
+    }
+    return this.methods.computeIfAbsent(method, k -> {
+      final MethodMetrics created = new MethodMetrics(k);
+      register(created);
+      return created;
+    });
+  }
+  
+  /**
+   * @return the measures of the methods called so far, by name
+   */
+  public Collection<MethodMetrics> getMethods() {
+    return new TreeMap<>(this.methods).values();
+  }
+  
+  /**
+   * Adds a gauge, or replaces the one with the same name.
+   * 
+   * @param gaugeName
+   *          name in the Prometheus format, such as wordpress_queue_depth
+   * @param help
+   *          what the gauge measures
+   * @param value
+   *          reads the gauge
+   */
+  public void gauge(final String gaugeName, final String help,
+      final LongSupplier value) {
+    check(gaugeName, value);
+    final Gauge g = new Gauge(help, false);
+    g.values.add(value);
+    this.gauges.put(gaugeName, g);
+  }
+  
+  /**
+   * Adds a value to the sum read by a gauge, creating the gauge on its first
+   * use, so that many sources, such as the clients sharing a registry, are
+   * counted together.
+   * 
+   * @param gaugeName
+   *          name in the Prometheus format, such as wordpress_queue_depth
+   * @param help
+   *          what the gauge measures
+   * @param value
+   *          reads the value, to pass to
+   *          {@link #removeFromGauge(String, LongSupplier)} later
+   */
+  public void addToGauge(final String gaugeName, final String help,
+      final LongSupplier value) {
+    add(gaugeName, help, value, false);
+  }
+  
+  /**
+   * Adds a value to the sum read by a counter, creating the counter on its
+   * first use, so that many sources are counted together. The values must
+   * only grow, while their source is added.
+   * 
+   * @param counterName
+   *          name in the Prometheus format, ending with _total
+   * @param help
+   *          what the counter counts
+   * @param value
+   *          reads the value, to pass to
+   *          {@link #removeFromGauge(String, LongSupplier)} later
+   */
+  public void addToCounter(final String counterName, final String help,
+      final LongSupplier value) {
+    if (counterName == null || !counterName.endsWith("_total")) { //$NON-NLS-1$
+      throw new IllegalArgumentException();
+    }
+    add(counterName, help, value, true);
+  }
+  
+  private void add(final String gaugeName, final String help,
+      final LongSupplier value, final boolean counter) {
+    check(gaugeName, value);
+    this.gauges.compute(gaugeName, (k, g) -> {
+      if (g != null && g.counter != counter) {
+        throw new IllegalArgumentException(gaugeName);
+      }
+      final Gauge result = g != null ? g : new Gauge(help, counter);
+      result.values.add(value);
+      return result;
+    });
+  }
+  
+  /**
+   * Removes a value added by
+   * {@link #addToGauge(String, String, LongSupplier)} or
+   * {@link #addToCounter(String, String, LongSupplier)}, and the gauge or
+   * counter with its last value.
+   * 
+   * @param gaugeName
+   *          name of the gauge or counter
+   * @param value
+   *          the value added
+   */
+  public void removeFromGauge(final String gaugeName,
+      final LongSupplier value) {
+    this.gauges.computeIfPresent(gaugeName, (k, g) -> {
+      g.values.remove(value);
+      return g.values.isEmpty() ? null : g;
+    });
+  }
+  
+  private static void check(final String gaugeName,
+      final LongSupplier value) {
+    if (gaugeName == null || !NAME.matcher(gaugeName).matches()
+        || value == null) {
+      throw new IllegalArgumentException();
+    }
+  }
+  
+  @Override
+  public Map<String, Long> getGauges() {
+    return read(false);
+  }
+  
+  @Override
+  public Map<String, Long> getCounters() {
+    return read(true);
+  }
+  
+  private Map<String, Long> read(final boolean counters) {
+    final Map<String, Long> result = new TreeMap<>();
+    for (final Map.Entry<String, Gauge> e : this.gauges.entrySet()) {
+      if (e.getValue().counter == counters) {
+        result.put(e.getKey(), Long.valueOf(e.getValue().read()));
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Marks the start of a call.
+   * 
+   * @return the value to pass to {@link #end(String, long, Throwable)}
+   */
+  public long start() {
+    this.active.increment();
+    return System.nanoTime();
+  }
+  
+  /**
+   * Records a call.
+   * 
+   * @param method
+   *          name of the XML-RPC method
+   * @param started
+   *          the value returned by {@link #start()}
+   * @param error
+   *          what the call failed with, or null
+   */
+  public void end(final String method, final long started,
+      final Throwable error) {
+    final long nanos = System.nanoTime() - started;
+    this.active.decrement();
+    String code = null;
+    if (error instanceof XmlRpcFault) {
+      code = String.valueOf(((XmlRpcFault) error).getErrorCode());
+    } else if (error != null) {
+      code = MethodMetrics.TRANSPORT;
+    }
+    method(method).record(nanos, code);
+  }
+  
+  /**
+   * Registers the registry and its methods as MBeans, including the methods
+   * called later.
+   * 
+   * @param mbeanServer
+   *          the server, such as
+   *          {@link java.lang.management.ManagementFactory#getPlatformMBeanServer()}
+   * @throws JMException
+   *           if the MBean of the registry cannot be registered
+   */
+  public synchronized void registerMBeans(final MBeanServer mbeanServer)
+      throws JMException {
+    if (this.server != null) {
+      return;
+    }
+    mbeanServer.registerMBean(this, objectName(null));
+    this.server = mbeanServer;
+    for (final MethodMetrics m : this.methods.values()) {
+      register(m);
+    }
+  }
+  
+  /**
+   * Removes the MBeans registered by {@link #registerMBeans(MBeanServer)}.
+   */
+  public synchronized void unregisterMBeans() {
+    final MBeanServer s = this.server;
+    if (s == null) {
+      return;
+    }
+    this.server = null;
+    try {
+      s.unregisterMBean(objectName(null));
+      for (final String method : this.methods.keySet()) {
+        final ObjectName n = objectName(method);
+        if (s.isRegistered(n)) {
+          s.unregisterMBean(n);
+        }
+      }
+    } catch (final JMException e) {
+      logger.warn("cannot unregister the metrics of {}: {}", this.name, //$NON-NLS-1$
+          e.getLocalizedMessage());
+    }
+  }
+  
+  /**
+   * @param method
+   *          name of a method, or null for the registry
+   * @return name of the MBean
+   * @throws JMException
+   *           if the name is faulty
+   */
+  @SuppressWarnings("nls")
+  public ObjectName objectName(final String method) throws JMException {
+    return new ObjectName(DOMAIN + ":type=Metrics,name="
+        + ObjectName.quote(this.name)
+        + (method != null ? ",method=" + ObjectName.quote(method) : ""));
+  }
+  
+  private synchronized void register(final MethodMetrics m) {
+    if (this.server == null) {
+      return;
+    }
+    try {
+      this.server.registerMBean(m, objectName(m.getMethod()));
+    } catch (final InstanceAlreadyExistsException e) {
+      // registered by a concurrent call
+    } catch (final JMException e) {
+      logger.warn("cannot register the metrics of {}: {}", m.getMethod(), //$NON-NLS-1$
+          e.getLocalizedMessage());
+    }
+  }
+  
+  /**
+   * Writes the measures in the Prometheus text format.
+   * 
+   * @param out
+   *          where to write to
+   * @throws IOException
+   *           if out cannot be written to
+   */
+  @SuppressWarnings("nls")
+  public void writePrometheus(final Writer out) throws IOException {
+    final Collection<MethodMetrics> all = getMethods();
+    header(out, "wordpress_calls_total", "Number of XML-RPC calls.",
+        "counter");
+    for (final MethodMetrics m : all) {
+      sample(out, "wordpress_calls_total", m, null, null,
+          Long.toString(m.getCalls()));
+    }
+    header(out, "wordpress_errors_total",
+        "Number of failed XML-RPC calls by fault code.", "counter");
+    for (final MethodMetrics m : all) {
+      for (final Map.Entry<String, Long> e : m.getErrorsByCode().entrySet()) {
+        sample(out, "wordpress_errors_total", m, "code", e.getKey(),
+            e.getValue().toString());
+      }
+    }
+    header(out, "wordpress_call_duration_seconds",
+        "Duration of XML-RPC calls.", "summary");
+    for (final MethodMetrics m : all) {
+      final LatencyHistogram h = m.getLatency();
+      for (final double q : QUANTILES) {
+        sample(out, "wordpress_call_duration_seconds", m, "quantile",
+            Double.toString(q), seconds(h.getValueAtQuantile(q)));
+      }
+      sample(out, "wordpress_call_duration_seconds_sum", m, null, null,
+          seconds(h.getSum()));
+      sample(out, "wordpress_call_duration_seconds_count", m, null, null,
+          Long.toString(h.getCount()));
+    }
+    for (final Map.Entry<String, Gauge> e : new TreeMap<>(this.gauges)
+        .entrySet()) {
+      header(out, e.getKey(), e.getValue().help,
+          e.getValue().counter ? "counter" : "gauge");
+      out.write(e.getKey() + " " + e.getValue().read() + "\n");
+    }
+    out.flush();
+  }
+  
+  @SuppressWarnings("nls")
+  private static void header(final Writer out, final String metric,
+      final String help, final String type) throws IOException {
+    if (help != null) {
+      out.write("# HELP " + metric + " "
+          + help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+    }
+    out.write("# TYPE " + metric + " " + type + "\n");
+  }
+  
+  @SuppressWarnings("nls")
+  private static void sample(final Writer out, final String metric,
+      final MethodMetrics m, final String label, final String value,
+      final String sample) throws IOException {
+    out.write(metric + "{method=\"" + escape(m.getMethod()) + "\""
+        + (label != null ? "," + label + "=\"" + escape(value) + "\"" : "")
+        + "} " + sample + "\n");
+  }
+  
+  @SuppressWarnings("nls")
+  private static String escape(final String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n",
+        "\\n");
+  }
+  
+  private static String seconds(final long micros) {
+    return Double.toString(micros / (double) TimeUnit.SECONDS.toMicros(1));
+  }
+}
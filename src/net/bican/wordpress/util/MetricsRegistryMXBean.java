@@ -0,0 +1,35 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.util;
+
+import java.util.Map;
+
+/**
+ * The gauges of a client, as seen through JMX; the measures of each method
+ * are in its own {@link MethodMetricsMXBean}.
+ * 
+ * @author Can Bican
+ */
+public interface MetricsRegistryMXBean {
+  /**
+   * @return name of the registry
+   */
+  String getName();
+  
+  /**
+   * @return current value of every gauge by name
+   */
+  Map<String, Long> getGauges();
+  
+  /**
+   * @return current value of every counter by name
+   */
+  Map<String, Long> getCounters();
+}
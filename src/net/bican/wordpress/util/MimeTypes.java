@@ -0,0 +1,252 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.activation.MimetypesFileTypeMap;
+
+/**
+ * Detects the MIME type of media files from their first bytes, falling back
+ * to the file name extension for formats without a signature. The extension
+ * table is loaded once, on first use, and shared; lookups are cached per
+ * extension.
+ * 
+ * @author Can Bican
+ */
+@SuppressWarnings("nls")
+public final class MimeTypes {
+  /** number of leading bytes the detection looks at */
+  public static final int MAGIC_LENGTH = 16;
+  
+  /** type of unrecognized data */
+  public static final String DEFAULT = "application/octet-stream";
+  
+  private static final ConcurrentMap<String, String> byExtension =
+      new ConcurrentHashMap<>();
+  
+  /**
+   * The extension table, loaded on the first lookup by name, which data
+   * recognized by its signature never needs.
+   */
+  private static final class Extensions {
+    static final MimetypesFileTypeMap MAP = new MimetypesFileTypeMap();
+    
+    static {
+      MAP.addMimeTypes("image/jpeg jpg jpeg jpe\n" + "image/png png\n"
+          + "image/gif gif\n" + "image/webp webp\n" + "image/bmp bmp\n"
+          + "image/tiff tif tiff\n" + "image/x-icon ico\n"
+          + "image/svg+xml svg\n" + "image/heic heic\n"
+          + "application/pdf pdf\n" + "application/zip zip\n"
+          + "application/msword doc\n"
+          + "application/vnd.openxmlformats-officedocument.wordprocessingml.document docx\n"
+          + "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet xlsx\n"
+          + "application/vnd.openxmlformats-officedocument.presentationml.presentation pptx\n"
+          + "application/vnd.oasis.opendocument.text odt\n"
+          + "audio/mpeg mp3\n" + "audio/ogg ogg oga\n" + "audio/flac flac\n"
+          + "audio/wav wav\n" + "audio/mp4 m4a\n" + "video/mp4 mp4 m4v\n"
+          + "video/quicktime mov\n" + "video/webm webm\n"
+          + "video/x-msvideo avi\n" + "video/ogg ogv\n" + "text/plain txt\n"
+          + "text/csv csv\n");
+    }
+  }
+  
+  private MimeTypes() {
+    // only static methods
+  }
+  
+  /**
+   * @param fileName
+   *          name of the file
+   * @return the type registered for the extension of the file name
+   */
+  public static String forName(final String fileName) {
+    if (fileName == null) {
+      return DEFAULT;
+    }
+    final int dot = fileName.lastIndexOf('.');
+    final int slash = Math.max(fileName.lastIndexOf('/'),
+        fileName.lastIndexOf('\\'));
+    if (dot <= slash) {
+      return DEFAULT;
+    }
+    final String ext = fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+    return byExtension.computeIfAbsent(ext,
+        e -> Extensions.MAP.getContentType("file." + e));
+  }
+  
+  /**
+   * @param head
+   *          leading bytes of the data
+   * @param length
+   *          number of valid bytes in head
+   * @param fileName
+   *          name of the file, used when the bytes are not recognized
+   * @return the MIME type
+   */
+  public static String detect(final byte[] head, final int length,
+      final String fileName) {
+    final String magic = magic(head, Math.max(0, length));
+    if (magic == null) {
+      return forName(fileName);
+    }
+    if (magic.equals("application/zip")) {
+      // office documents are zip archives, their extension is more telling
+      final String named = forName(fileName);
+      if (!named.equals(DEFAULT)) {
+        return named;
+      }
+    }
+    return magic;
+  }
+  
+  /**
+   * Detects the type of a stream without consuming it; the stream is read up
+   * to {@link #MAGIC_LENGTH} bytes and reset.
+   * 
+   * @param in
+   *          the data, which must support mark and reset
+   * @param fileName
+   *          name of the file, used when the bytes are not recognized
+   * @return the MIME type
+   * @throws IOException
+   *           if the stream cannot be read
+   */
+  public static String detect(final InputStream in, final String fileName)
+      throws IOException {
+    if (!in.markSupported()) {
+      throw new IllegalArgumentException("mark is not supported");
+    }
+    final byte[] head = new byte[MAGIC_LENGTH];
+    in.mark(MAGIC_LENGTH);
+    int n = 0;
+    try {
+      int r;
+      while (n < head.length && (r = in.read(head, n, head.length - n)) > 0) {
+        n += r;
+      }
+    } finally {
+      in.reset();
+    }
+    return detect(head, n, fileName);
+  }
+  
+  /**
+   * @param file
+   *          the file
+   * @return the MIME type
+   * @throws IOException
+   *           if the file cannot be read
+   */
+  public static String detect(final Path file) throws IOException {
+    final ByteBuffer head = ByteBuffer.allocate(MAGIC_LENGTH);
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      while (head.hasRemaining() && ch.read(head) > 0) {
+        // fill the buffer
+      }
+    }
+    final Path name = file.getFileName();
+    return detect(head.array(), head.position(),
+        name == null ? null : name.toString());
+  }
+  
+  private static boolean at(final byte[] b, final int length,
+      final int offset, final int... sig) {
+    if (length < offset + sig.length) {
+      return false;
+    }
+    for (int i = 0; i < sig.length; i++) {
+      if ((b[offset + i] & 0xff) != sig[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  private static boolean at(final byte[] b, final int length,
+      final int offset, final String sig) {
+    return length >= offset + sig.length() && new String(b, offset,
+        sig.length(), StandardCharsets.ISO_8859_1).equals(sig);
+  }
+  
+  private static String magic(final byte[] b, final int n) {
+    if (at(b, n, 0, 0xff, 0xd8, 0xff)) {
+      return "image/jpeg";
+    }
+    if (at(b, n, 0, 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a)) {
+      return "image/png";
+    }
+    if (at(b, n, 0, "GIF87a") || at(b, n, 0, "GIF89a")) {
+      return "image/gif";
+    }
+    if (at(b, n, 0, "RIFF")) {
+      if (at(b, n, 8, "WEBP")) {
+        return "image/webp";
+      }
+      if (at(b, n, 8, "WAVE")) {
+        return "audio/wav";
+      }
+      if (at(b, n, 8, "AVI ")) {
+        return "video/x-msvideo";
+      }
+      return null;
+    }
+    if (at(b, n, 0, 'I', 'I', 0x2a, 0) || at(b, n, 0, 'M', 'M', 0, 0x2a)) {
+      return "image/tiff";
+    }
+    if (at(b, n, 0, 0, 0, 1, 0)) {
+      return "image/x-icon";
+    }
+    if (at(b, n, 0, "BM") && n >= 6) {
+      return "image/bmp";
+    }
+    if (at(b, n, 0, "%PDF-")) {
+      return "application/pdf";
+    }
+    if (at(b, n, 0, 'P', 'K', 3, 4)) {
+      return "application/zip";
+    }
+    if (at(b, n, 0, "ID3") || n >= 2 && (b[0] & 0xff) == 0xff
+        && (b[1] & 0xe6) == 0xe2) {
+      return "audio/mpeg";
+    }
+    if (at(b, n, 0, "OggS")) {
+      return "audio/ogg";
+    }
+    if (at(b, n, 0, "fLaC")) {
+      return "audio/flac";
+    }
+    if (at(b, n, 0, 0x1a, 0x45, 0xdf, 0xa3)) {
+      return "video/webm";
+    }
+    if (at(b, n, 4, "ftyp")) {
+      if (at(b, n, 8, "qt  ")) {
+        return "video/quicktime";
+      }
+      if (at(b, n, 8, "M4A ")) {
+        return "audio/mp4";
+      }
+      if (at(b, n, 8, "heic") || at(b, n, 8, "heix")) {
+        return "image/heic";
+      }
+      return "video/mp4";
+    }
+    return null;
+  }
+}
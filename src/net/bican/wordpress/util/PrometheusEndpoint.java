@@ -0,0 +1,105 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP server answering <code>GET /metrics</code> with the measures
+ * of a {@link MetricsRegistry} in the Prometheus text format, on a single
+ * daemon thread.
+ * 
+ * @author Can Bican
+ */
+public class PrometheusEndpoint implements Closeable {
+  private static final String CONTENT_TYPE =
+      "text/plain; version=0.0.4; charset=utf-8"; //$NON-NLS-1$
+  
+  private final MetricsRegistry registry;
+  private final HttpServer server;
+  private final ExecutorService executor;
+  
+  /**
+   * Starts serving the measures.
+   * 
+   * @param registry
+   *          the measures
+   * @param address
+   *          address to listen on; port 0 picks a free port
+   * @throws IOException
+   *           if the address cannot be listened on
+   */
+  @SuppressWarnings("nls")
+  public PrometheusEndpoint(final MetricsRegistry registry,
+      final InetSocketAddress address) throws IOException {
+    if (registry == null) {
+      throw new IllegalArgumentException();
+    }
+    this.registry = registry;
+    this.server = HttpServer.create(address, 16);
+    this.executor = Executors.newSingleThreadExecutor(r -> {
+      final Thread t = new Thread(r, "wordpress-metrics");
+      t.setDaemon(true);
+      return t;
+    });
+    this.server.setExecutor(this.executor);
+    this.server.createContext("/metrics", this::answer);
+    this.server.start();
+  }
+  
+  /**
+   * @return the port the endpoint listens on
+   */
+  public int getPort() {
+    return this.server.getAddress().getPort();
+  }
+  
+  @SuppressWarnings("nls")
+  private void answer(final HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      final ByteArrayOutputStream body = new ByteArrayOutputStream();
+      try (Writer w = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+        this.registry.writePrometheus(w);
+      }
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, body.size());
+      try (OutputStream out = exchange.getResponseBody()) {
+        body.writeTo(out);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+  
+  /**
+   * Stops serving.
+   */
+  @Override
+  public void close() {
+    this.server.stop(0);
+    this.executor.shutdown();
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.bican.wordpress.BackupSegment.Record;
+import net.bican.wordpress.test.AbstractWordpressTest;
+
+/**
+ * Writes and reads segments, and compacts a backup made of hand written
+ * segments, without a blog.
+ */
+@SuppressWarnings({ "javadoc", "nls" })
+public class BackupSegmentTest extends AbstractWordpressTest {
+  private File dir;
+  
+  @Before
+  public void createDirectory() throws IOException {
+    this.dir = Files.createTempDirectory("segments").toFile();
+  }
+  
+  @After
+  public void deleteDirectory() throws IOException {
+    Files.walk(this.dir.toPath()).sorted(Comparator.reverseOrder())
+        .forEach(p -> p.toFile().delete());
+  }
+  
+  private static Option option(final String name, final String value) {
+    final Option o = new Option();
+    o.setName(name);
+    o.setValue(value);
+    return o;
+  }
+  
+  private static Record record(final String id, final int snapshot,
+      final String value) throws IOException {
+    return new Record(SiteBackup.Kind.OPTION.name(), id, snapshot,
+        value == null ? "" : value,
+        value == null ? null : BackupSegment.encode(option(id, value)));
+  }
+  
+  private File write(final String name, final int blockSize,
+      final List<Record> records) throws IOException {
+    final File f = new File(this.dir, name);
+    try (BackupSegment.Writer w = new BackupSegment.Writer(f, blockSize)) {
+      for (final Record r : records) {
+        w.add(r);
+      }
+      assertEquals(records.size(), w.getCount());
+    }
+    return f;
+  }
+  
+  @Test
+  public void testEncodeDecode() throws Exception {
+    final Post post = new Post();
+    post.setPost_id(Integer.valueOf(7));
+    post.setPost_title("title <&>");
+    final StringBuilder content = new StringBuilder();
+    while (content.length() < 100000) {
+      content.append("longer than writeUTF takes \u00e7\u011f ");
+    }
+    post.setPost_content(content.toString());
+    post.setPost_date_gmt(new Date(1400000000000L));
+    post.setSticky(Boolean.TRUE);
+    final Term term = new Term();
+    term.setTerm_id(Integer.valueOf(3));
+    term.setName("news");
+    post.setTerms(Arrays.asList(term));
+    final Post back = BackupSegment.decode(BackupSegment.encode(post),
+        Post.class);
+    assertEquals(post.getPost_id(), back.getPost_id());
+    assertEquals(post.getPost_title(), back.getPost_title());
+    assertEquals(post.getPost_content(), back.getPost_content());
+    assertEquals(post.getPost_date_gmt(), back.getPost_date_gmt());
+    assertEquals(Boolean.TRUE, back.isSticky());
+    assertEquals(1, back.getTerms().size());
+    assertEquals("news", back.getTerms().get(0).getName());
+    assertNull(back.getPost_excerpt());
+  }
+  
+  @Test
+  public void testWriteRead() throws Exception {
+    final List<Record> records = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      final String id = String.format("%04d", Integer.valueOf(i));
+      for (int s = 1; s <= 1 + i % 3; s++) {
+        records.add(record(id, s, s == 3 && i % 2 == 0 ? null : "v" + s));
+      }
+    }
+    // small blocks, so the records of a key span blocks
+    final BackupSegment segment = new BackupSegment(
+        write("a.seg", 200, records));
+    final List<Record> read = new ArrayList<>();
+    try (BackupSegment.RecordIterator it = segment.iterator()) {
+      while (it.hasNext()) {
+        read.add(it.next());
+      }
+    }
+    assertEquals(records.size(), read.size());
+    for (int i = 0; i < records.size(); i++) {
+      assertEquals(0, records.get(i).compareTo(read.get(i)));
+      assertEquals(records.get(i).fingerprint, read.get(i).fingerprint);
+      assertEquals(records.get(i).isDeleted(), read.get(i).isDeleted());
+    }
+    for (int i = 0; i < 300; i++) {
+      final String id = String.format("%04d", Integer.valueOf(i));
+      final List<Record> found = segment
+          .find(Record.key(SiteBackup.Kind.OPTION.name(), id));
+      assertEquals(id, 1 + i % 3, found.size());
+      for (int s = 0; s < found.size(); s++) {
+        assertEquals(s + 1, found.get(s).snapshot);
+      }
+      final Record last = found.get(found.size() - 1);
+      if (!last.isDeleted()) {
+        assertEquals("v" + last.snapshot,
+            BackupSegment.decode(last.data, Option.class).getValue());
+      }
+    }
+    assertTrue(segment
+        .find(Record.key(SiteBackup.Kind.OPTION.name(), "0150x")).isEmpty());
+    assertTrue(segment.find(Record.key("A", "0")).isEmpty());
+    assertTrue(segment.find(Record.key("Z", "0")).isEmpty());
+  }
+  
+  @Test
+  public void testEmptySegment() throws Exception {
+    final BackupSegment segment = new BackupSegment(
+        write("empty.seg", 200, new ArrayList<Record>()));
+    try (BackupSegment.RecordIterator it = segment.iterator()) {
+      assertFalse(it.hasNext());
+    }
+    assertTrue(segment.find(Record.key("OPTION", "x")).isEmpty());
+  }
+  
+  @Test
+  public void testOutOfOrder() throws Exception {
+    try {
+      write("bad.seg", 200, Arrays.asList(record("b", 1, "v"),
+          record("a", 1, "v")));
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+  }
+  
+  @Test
+  public void testTruncated() throws Exception {
+    final File f = write("cut.seg", 200,
+        Arrays.asList(record("a", 1, "v"), record("b", 1, "v")));
+    try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+    try {
+      new BackupSegment(f);
+      fail();
+    } catch (final IOException e) {
+      // expected
+    }
+  }
+  
+  @Test
+  public void testCompact() throws Exception {
+    // snapshot 1 has a, b and c; 2 changes a and deletes b; 3 changes c
+    write("segment-000001.seg", 100, Arrays.asList(record("a", 1, "a1"),
+        record("b", 1, "b1"), record("c", 1, "c1")));
+    write("segment-000002.seg", 100,
+        Arrays.asList(record("a", 2, "a2"), record("b", 2, null)));
+    write("segment-000003.seg", 100, Arrays.asList(record("c", 3, "c3")));
+    Files.write(new File(this.dir, SiteBackup.CATALOG).toPath(),
+        ("next\t4\nsnapshot\t1\t1000\t3\nsnapshot\t2\t2000\t2\n"
+            + "snapshot\t3\t3000\t1\nsegment\tsegment-000001.seg\n"
+            + "segment\tsegment-000002.seg\nsegment\tsegment-000003.seg\n")
+                .getBytes(StandardCharsets.UTF_8));
+    final SiteBackup backup = new SiteBackup(null, this.dir);
+    backup.setBlockSize(100);
+    backup.setRetainSnapshots(2);
+    assertEquals("c1", values(backup, 2).get(1));
+    assertEquals(3, backup.compact());
+    
+    assertEquals(2, backup.getSnapshots().size());
+    assertEquals(2, backup.getSnapshots().get(0).getNumber());
+    final File[] segments = this.dir
+        .listFiles((d, name) -> name.endsWith(".seg"));
+    assertEquals(1, segments.length);
+    assertEquals(Arrays.asList("a2", "c1"), values(backup, 2));
+    assertEquals(Arrays.asList("a2", "c3"), values(backup, 3));
+    assertNull(backup.get(3, SiteBackup.Kind.OPTION, "b"));
+    assertEquals("c1", ((Option) backup.get(2, SiteBackup.Kind.OPTION, "c"))
+        .getValue());
+    // a1 is not seen by snapshot 2, and b is gone with its deletion
+    final List<Record> left = new ArrayList<>();
+    try (BackupSegment.RecordIterator it = new BackupSegment(segments[0])
+        .iterator()) {
+      while (it.hasNext()) {
+        left.add(it.next());
+      }
+    }
+    assertEquals(3, left.size());
+    assertEquals(0, backup.compact());
+  }
+  
+  private static List<String> values(final SiteBackup backup,
+      final int snapshot) throws IOException {
+    final List<String> result = new ArrayList<>();
+    for (final XmlRpcMapped o : backup.read(snapshot,
+        SiteBackup.Kind.OPTION)) {
+      result.add(((Option) o).getValue());
+    }
+    return result;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import net.bican.wordpress.test.AbstractWordpressTest;
+
+@SuppressWarnings({ "javadoc", "static-method", "nls" })
+public class DaemonTest extends AbstractWordpressTest {
+  
+  private static int run(final File state, final ByteArrayOutputStream out,
+      final ByteArrayOutputStream err, final String... args)
+          throws IOException {
+    return DaemonClient.run(state, args,
+        new ByteArrayInputStream(new byte[0]), out, err);
+  }
+  
+  @Test
+  public void testRoundTrip() throws Exception {
+    final File dir = Files.createTempDirectory("daemon").toFile();
+    final File state = new File(dir, "daemon");
+    try (Daemon daemon = new Daemon(state)) {
+      daemon.setIdleTimeout(0, TimeUnit.SECONDS);
+      daemon.start();
+      final String[] s = new String(Files.readAllBytes(state.toPath()),
+          StandardCharsets.UTF_8).trim().split(" ");
+      assertEquals(String.valueOf(daemon.getPort()), s[0]);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ByteArrayOutputStream err = new ByteArrayOutputStream();
+      assertEquals(0, run(state, out, err, "--help"));
+      assertTrue(out.toString("UTF-8").contains("--daemon"));
+      assertEquals(0, err.size());
+      out = new ByteArrayOutputStream();
+      err = new ByteArrayOutputStream();
+      assertEquals(0, run(state, out, err, "--format", "xml"));
+      assertEquals(0, out.size());
+      assertTrue(err.toString("UTF-8").contains("--format"));
+      
+      // a client with a wrong token does not take the daemon for its own
+      final File wrong = new File(dir, "wrong");
+      Files.write(wrong.toPath(),
+          (s[0] + " wrong\n").getBytes(StandardCharsets.UTF_8));
+      out = new ByteArrayOutputStream();
+      assertEquals(-1, run(wrong, out, err, "--help"));
+      assertEquals(0, out.size());
+      wrong.delete();
+      
+      // still serving clients with the token
+      out = new ByteArrayOutputStream();
+      assertEquals(0, run(state, out, err, "--help"));
+      assertTrue(out.size() > 0);
+      
+      assertEquals(0, run(state, out, err, "--daemon-stop"));
+      daemon.awaitTermination();
+      assertFalse(state.exists());
+      assertEquals(-1, run(state, out, err, "--help"));
+    } finally {
+      state.delete();
+      dir.delete();
+    }
+  }
+  
+  @Test
+  public void testStalePort() throws Exception {
+    final File dir = Files.createTempDirectory("daemon").toFile();
+    final File state = new File(dir, "daemon");
+    try (ServerSocket other = new ServerSocket(0, 1,
+        InetAddress.getLoopbackAddress())) {
+      Files.write(state.toPath(), (other.getLocalPort() + " secret\n")
+          .getBytes(StandardCharsets.UTF_8));
+      final ByteArrayOutputStream received = new ByteArrayOutputStream();
+      final Thread listener = new Thread(() -> {
+        try (Socket socket = other.accept()) {
+          final DataOutputStream answer = new DataOutputStream(
+              socket.getOutputStream());
+          answer.writeUTF("nonce");
+          answer.writeUTF("not a proof");
+          answer.flush();
+          final InputStream in = socket.getInputStream();
+          final byte[] buffer = new byte[8192];
+          int n;
+          while ((n = in.read(buffer)) != -1) {
+            received.write(buffer, 0, n);
+          }
+        } catch (final IOException e) {
+          // client gone
+        }
+      });
+      listener.start();
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(-1, run(state, out, out, "--user", "admin", "--pass",
+          "password"));
+      listener.join(5000);
+      // the listener got the nonce of the client only
+      final String text = received.toString("UTF-8");
+      assertFalse(text.contains("secret"));
+      assertFalse(text.contains("password"));
+      assertFalse(text.contains(new File("").getAbsolutePath()));
+    } finally {
+      state.delete();
+      dir.delete();
+    }
+  }
+}
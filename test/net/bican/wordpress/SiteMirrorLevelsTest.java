@@ -0,0 +1,86 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.bican.wordpress.test.AbstractWordpressTest;
+
+@SuppressWarnings({ "static-method", "javadoc", "boxing" })
+public class SiteMirrorLevelsTest extends AbstractWordpressTest {
+  
+  private static Term term(int id, Integer parent) {
+    Term t = new Term();
+    t.setTerm_id(id);
+    t.setParent(parent);
+    return t;
+  }
+  
+  private static List<Integer> ids(List<Term> level) {
+    List<Integer> result = new ArrayList<>();
+    for (Term t : level) {
+      result.add(t.getTerm_id());
+    }
+    return result;
+  }
+  
+  @Test
+  public void testLevelsParentsFirst() {
+    // children listed before their parents
+    List<Term> terms = Arrays.asList(term(3, 2), term(4, 2), term(2, 1),
+        term(1, null), term(5, null));
+    List<List<Term>> levels = SiteMirror.levels(terms, Term::getTerm_id,
+        Term::getParent);
+    assertEquals(3, levels.size());
+    assertEquals(Arrays.asList(1, 5), ids(levels.get(0)));
+    assertEquals(Arrays.asList(2), ids(levels.get(1)));
+    assertEquals(Arrays.asList(3, 4), ids(levels.get(2)));
+  }
+  
+  @Test
+  public void testLevelsMissingParent() {
+    List<Term> terms = Arrays.asList(term(2, 99), term(3, 2));
+    List<List<Term>> levels = SiteMirror.levels(terms, Term::getTerm_id,
+        Term::getParent);
+    assertEquals(2, levels.size());
+    assertEquals(Arrays.asList(2), ids(levels.get(0)));
+    assertEquals(Arrays.asList(3), ids(levels.get(1)));
+  }
+  
+  @Test
+  public void testLevelsCycle() {
+    List<Term> terms = Arrays.asList(term(1, 2), term(2, 1), term(3, 1));
+    List<List<Term>> levels = SiteMirror.levels(terms, Term::getTerm_id,
+        Term::getParent);
+    int total = 0;
+    for (List<Term> level : levels) {
+      total += level.size();
+    }
+    assertEquals(3, total);
+    // each term comes once, after its parent unless the parent is in a cycle
+    List<Integer> order = new ArrayList<>();
+    for (List<Term> level : levels) {
+      order.addAll(ids(level));
+    }
+    assertTrue(order.indexOf(1) < order.indexOf(3));
+  }
+  
+  @Test
+  public void testLevelsEmpty() {
+    assertTrue(SiteMirror.levels(new ArrayList<Term>(), Term::getTerm_id,
+        Term::getParent).isEmpty());
+  }
+}
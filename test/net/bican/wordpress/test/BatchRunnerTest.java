@@ -0,0 +1,58 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+
+import net.bican.wordpress.BatchRunner;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+@SuppressWarnings({ "static-method", "javadoc", "nls" })
+public class BatchRunnerTest extends AbstractWordpressTest {
+  
+  @Test
+  public void testBatch() throws Exception {
+    final BatchRunner runner = new BatchRunner(WP);
+    runner.setThreads(3);
+    final StringBuilder in = new StringBuilder("# comment\n\n");
+    for (int i = 0; i < 10; i++) {
+      in.append("supportedstatus\ngetpost 999999\nnosuchcommand\n");
+    }
+    final StringWriter out = new StringWriter();
+    final Map<String, Integer> counts = runner.run(
+        new BufferedReader(new StringReader(in.toString())), out);
+    assertEquals(Integer.valueOf(10), counts.get("ok"));
+    assertEquals(Integer.valueOf(20), counts.get("error"));
+    final String[] lines = out.toString().split("\n");
+    assertEquals(30, lines.length);
+    for (int i = 0; i < lines.length; i++) {
+      final JSONObject o = new JSONObject(lines[i]);
+      assertEquals(i + 3, o.getInt("line"));
+      switch (i % 3) {
+        case 0:
+          assertEquals("ok", o.getString("status"));
+          assertTrue(o.getJSONObject("result").has("publish"));
+          break;
+        case 1:
+          assertEquals("ObjectNotFoundException", o.getString("error"));
+          break;
+        default:
+          assertEquals("IllegalArgumentException", o.getString("error"));
+      }
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import net.bican.wordpress.util.CallStats;
+
+@SuppressWarnings({ "javadoc", "nls" })
+public class CallStatsTest extends AbstractWordpressTest {
+  private HttpServer server;
+  private URL url;
+  
+  @Before
+  public void startServer() throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+        0);
+    this.server.createContext("/", ex -> {
+      try (InputStream in = ex.getRequestBody()) {
+        while (in.read() != -1) {
+          // drain
+        }
+      }
+      final byte[] out = "<methodResponse/>".getBytes(StandardCharsets.UTF_8);
+      ex.sendResponseHeaders(200, out.length);
+      try (OutputStream os = ex.getResponseBody()) {
+        os.write(out);
+      }
+    });
+    this.server.setExecutor(Executors.newCachedThreadPool());
+    this.server.start();
+    this.url = CallStats.instrument(new URL("http://127.0.0.1:"
+        + this.server.getAddress().getPort() + "/xmlrpc.php"));
+  }
+  
+  @After
+  public void stopServer() {
+    this.server.stop(0);
+  }
+  
+  /**
+   * @return the number on a line of the report
+   */
+  static long value(final CallStats stats, final String name) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    stats.report(new PrintStream(bytes, true));
+    for (final String line : new String(bytes.toByteArray(),
+        StandardCharsets.UTF_8).split("\n")) {
+      if (line.startsWith(name + " ")) {
+        return Long.parseLong(line.substring(name.length()).trim()
+            .split(" ")[0]);
+      }
+    }
+    throw new AssertionError("no " + name + " in the report");
+  }
+  
+  private void call() throws IOException {
+    final HttpURLConnection c = (HttpURLConnection) this.url
+        .openConnection();
+    c.setDoOutput(true);
+    try (OutputStream out = c.getOutputStream()) {
+      out.write("<methodCall/>".getBytes(StandardCharsets.UTF_8));
+    }
+    try (InputStream in = c.getInputStream()) {
+      while (in.read() != -1) {
+        // read it all
+      }
+    }
+  }
+  
+  @Test
+  public void testOffUntilStarted() throws Exception {
+    assertFalse(CallStats.isEnabled());
+    assertFalse(this.url.openConnection().getClass().getName()
+        .contains("Instrumented"));
+    final CallStats stats = CallStats.start(false);
+    try {
+      assertTrue(CallStats.isEnabled());
+      assertTrue(this.url.openConnection().getClass().getName()
+          .contains("Instrumented"));
+    } finally {
+      stats.stop();
+    }
+    assertFalse(CallStats.isEnabled());
+    call();
+    assertEquals(1, value(stats, "requests"));
+  }
+  
+  @Test
+  public void testCounts() throws Exception {
+    final CallStats stats = CallStats.start(false);
+    try {
+      call();
+      call();
+      final long outer = CallStats.startMapping();
+      final long inner = CallStats.startMapping();
+      CallStats.endMapping(inner);
+      CallStats.endMapping(outer);
+      CallStats.endParsing(CallStats.startParsing());
+    } finally {
+      stats.stop();
+    }
+    assertEquals(2, value(stats, "requests"));
+    assertEquals(2 * "<methodCall/>".length(), value(stats, "sent"));
+    assertEquals(2 * "<methodResponse/>".length(),
+        value(stats, "received"));
+    final ByteArrayOutputStream report = new ByteArrayOutputStream();
+    stats.report(new PrintStream(report, true));
+    final String text = new String(report.toByteArray(),
+        StandardCharsets.UTF_8);
+    assertTrue(text.contains("1 objects"));
+    assertTrue(text.contains("1 files"));
+  }
+  
+  @Test
+  public void testThreadsStartedByTheCommand() throws Exception {
+    final CallStats stats = CallStats.start(false);
+    try {
+      final Thread t = new Thread(() -> {
+        try {
+          call();
+        } catch (final IOException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+      t.start();
+      t.join();
+    } finally {
+      stats.stop();
+    }
+    assertEquals(1, value(stats, "requests"));
+  }
+  
+  @Test
+  public void testConcurrentCommands() throws Exception {
+    final CyclicBarrier started = new CyclicBarrier(2);
+    final CyclicBarrier stopped = new CyclicBarrier(2);
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final Future<CallStats> first = executor.submit(() -> {
+        final CallStats stats = CallStats.start(false);
+        started.await();
+        call();
+        call();
+        stats.stop();
+        stopped.await();
+        return stats;
+      });
+      final Future<CallStats> second = executor.submit(() -> {
+        started.await();
+        // the first command stopping leaves this one counting
+        final CallStats stats = CallStats.start(true);
+        stopped.await();
+        for (int i = 0; i < 3; i++) {
+          call();
+        }
+        stats.stop();
+        return stats;
+      });
+      assertEquals(2, value(first.get(10, TimeUnit.SECONDS), "requests"));
+      assertEquals(3, value(second.get(10, TimeUnit.SECONDS), "requests"));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.bican.wordpress.ChangeEvent;
+import net.bican.wordpress.ChangePoller;
+import net.bican.wordpress.Post;
+import net.bican.wordpress.util.EventBus;
+
+import org.junit.Test;
+
+@SuppressWarnings({ "static-method", "javadoc", "nls", "boxing" })
+public class ChangePollerTest extends AbstractWordpressTest {
+  
+  @Test
+  public void testEventBus() throws Exception {
+    try (EventBus<Object> bus = new EventBus<>(4)) {
+      assertEquals(4, bus.getCapacity());
+      final List<Object> all = Collections.synchronizedList(new ArrayList<>());
+      final List<Integer> slow = Collections
+          .synchronizedList(new ArrayList<Integer>());
+      bus.subscribe(all::add);
+      bus.subscribe(Integer.class, i -> {
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        slow.add(i);
+      });
+      for (int i = 0; i < 100; i++) {
+        bus.publish(i);
+        bus.publish("s" + i);
+      }
+      final long end = System.currentTimeMillis() + 5000;
+      while (slow.size() < 100 && System.currentTimeMillis() < end) {
+        Thread.sleep(10);
+      }
+      assertEquals(200, all.size());
+      for (int i = 0; i < 100; i++) {
+        assertEquals(Integer.valueOf(i), slow.get(i));
+      }
+    }
+  }
+  
+  @Test
+  public void testPoll() throws Exception {
+    final BlockingQueue<ChangeEvent> events = new LinkedBlockingQueue<>();
+    try (EventBus<ChangeEvent> bus = new EventBus<>(16);
+        ChangePoller poller = new ChangePoller(WP, bus, null)) {
+      bus.subscribe(events::add);
+      assertEquals(0, poller.poll());
+      Post post = new Post();
+      post.setPost_title("change poller test");
+      post.setPost_content("change poller test content");
+      post.setPost_status("publish");
+      Integer id = WP.newPost(post);
+      WP.newComment(id, 0, "change poller comment", "admin", "", "");
+      assertEquals(2, poller.poll());
+      ChangeEvent e = events.poll(5, TimeUnit.SECONDS);
+      assertTrue(e instanceof ChangeEvent.PostChanged);
+      assertEquals(id, ((ChangeEvent.PostChanged) e).getPost().getPost_id());
+      e = events.poll(5, TimeUnit.SECONDS);
+      assertTrue(e instanceof ChangeEvent.CommentAdded);
+      assertEquals(id,
+          ((ChangeEvent.CommentAdded) e).getComment().getPost_id());
+      assertEquals(0, poller.poll());
+      WP.deletePost(id);
+      assertEquals(1, poller.poll());
+      e = events.poll(5, TimeUnit.SECONDS);
+      assertTrue(e instanceof ChangeEvent.PostDeleted);
+      WP.deletePost(id);
+    }
+  }
+  
+  @Test
+  public void testFailedPublishIsRetried() throws Exception {
+    final BlockingQueue<ChangeEvent> events = new LinkedBlockingQueue<>();
+    final AtomicBoolean failNext = new AtomicBoolean(false);
+    try (EventBus<ChangeEvent> bus = new EventBus<ChangeEvent>(16) {
+      @Override
+      public void publish(ChangeEvent event) throws InterruptedException {
+        if (failNext.getAndSet(false)) {
+          throw new InterruptedException("injected");
+        }
+        super.publish(event);
+      }
+    }; ChangePoller poller = new ChangePoller(WP, bus, null)) {
+      bus.subscribe(events::add);
+      assertEquals(0, poller.poll());
+      Post post = new Post();
+      post.setPost_title("change poller failure test");
+      post.setPost_content("change poller failure test content");
+      post.setPost_status("publish");
+      Integer id = WP.newPost(post);
+      failNext.set(true);
+      try {
+        poller.poll();
+        fail("publishing should have failed");
+      } catch (InterruptedException e) {
+        // expected
+      }
+      assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+      assertEquals(1, poller.poll());
+      ChangeEvent e = events.poll(5, TimeUnit.SECONDS);
+      assertTrue(e instanceof ChangeEvent.PostChanged);
+      assertEquals(id, ((ChangeEvent.PostChanged) e).getPost().getPost_id());
+      assertEquals(0, poller.poll());
+      WP.deletePost(id);
+      WP.deletePost(id);
+    }
+  }
+}
@@ -12,12 +12,15 @@ package net.bican.wordpress.test;
 import static org.junit.Assert.*;
 
 import java.util.List;
+import java.util.Map;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import net.bican.wordpress.Comment;
 import net.bican.wordpress.CommentCount;
+import net.bican.wordpress.CommentModerator;
+import net.bican.wordpress.CommentModerator.Decision;
 import net.bican.wordpress.CommentStatusList;
 import net.bican.wordpress.Post;
 
@@ -75,6 +78,39 @@ public class CommentTest extends AbstractWordpressTest {
     WP.deletePost(pId);
   }
   
+  @Test
+  public void testModerate() throws Exception {
+    final Integer pId = WP.newPost(post);
+    Integer approve = WP.newComment(pId, 0, "good comment", "admin", "", "");
+    Integer spam = WP.newComment(pId, 0, "spam comment", "admin", "", "");
+    Integer delete = WP.newComment(pId, 0, "delete me", "admin", "", "");
+    for (Integer id : new Integer[] { approve, spam, delete }) {
+      Comment c = WP.getComment(id);
+      c.setStatus("hold");
+      WP.editComment(c);
+    }
+    CommentModerator moderator = new CommentModerator(WP, c -> {
+      if (!c.getPost_id().equals(pId)) {
+        return Decision.HOLD;
+      }
+      if (c.getContent().contains("spam")) {
+        return Decision.SPAM;
+      }
+      return c.getContent().contains("delete") ? Decision.DELETE
+          : Decision.APPROVE;
+    });
+    moderator.setMaxBatchSize(2);
+    Map<Decision, Integer> r = moderator.moderate();
+    assertEquals(0, moderator.getFailures());
+    assertEquals(1, r.get(Decision.APPROVE).intValue());
+    assertEquals(1, r.get(Decision.SPAM).intValue());
+    assertEquals(1, r.get(Decision.DELETE).intValue());
+    assertEquals("approve", WP.getComment(approve).getStatus());
+    assertEquals("spam", WP.getComment(spam).getStatus());
+    assertEquals("trash", WP.getComment(delete).getStatus());
+    WP.deletePost(pId);
+  }
+  
   @Test
   public void testGetCommentStatusList() throws Exception {
     CommentStatusList r = WP.getCommentStatusList();
@@ -0,0 +1,150 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.bican.wordpress.util.CallStats;
+
+/**
+ * Measures connections to a local server that answers 200 for
+ * <code>/ok</code> and 500 with a body for anything else.
+ */
+@SuppressWarnings({ "javadoc", "nls" })
+public class InstrumentedConnectionTest extends AbstractWordpressTest {
+  private static final String CALL = "<?xml version=\"1.0\"?><methodCall>"
+      + "<methodName>wp.getPost</methodName><params/></methodCall>";
+  private static final String RESPONSE = "<methodResponse/>";
+  private static final String ERROR = "internal error";
+  private HttpServer server;
+  private CallStats stats;
+  
+  @Before
+  public void startServer() throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+        0);
+    this.server.createContext("/", this::handle);
+    this.server.start();
+    this.stats = CallStats.start(true);
+  }
+  
+  @After
+  public void stopServer() {
+    this.stats.stop();
+    this.server.stop(0);
+  }
+  
+  private void handle(final HttpExchange ex) throws IOException {
+    try (InputStream in = ex.getRequestBody()) {
+      while (in.read() != -1) {
+        // drain
+      }
+    }
+    final boolean ok = ex.getRequestURI().getPath().equals("/ok");
+    final byte[] out = (ok ? RESPONSE : ERROR)
+        .getBytes(StandardCharsets.UTF_8);
+    ex.getResponseHeaders().set("X-Echo",
+        String.valueOf(ex.getRequestHeaders().getFirst("X-Test")));
+    ex.sendResponseHeaders(ok ? 200 : 500, out.length);
+    try (OutputStream os = ex.getResponseBody()) {
+      os.write(out);
+    }
+  }
+  
+  private HttpURLConnection open(final String path) throws IOException {
+    return (HttpURLConnection) CallStats.instrument(new URL("http://127.0.0.1:"
+        + this.server.getAddress().getPort() + path)).openConnection();
+  }
+  
+  private static String read(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream i = in) {
+      int b;
+      while ((b = i.read()) != -1) {
+        out.write(b);
+      }
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+  
+  private String report() {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    this.stats.report(new PrintStream(bytes, true));
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+  
+  @Test
+  public void testRequest() throws Exception {
+    final HttpURLConnection c = open("/ok");
+    c.setDoOutput(true);
+    c.setRequestProperty("X-Test", "passed");
+    assertEquals("passed", c.getRequestProperty("X-Test"));
+    try (OutputStream out = c.getOutputStream()) {
+      out.write(CALL.getBytes(StandardCharsets.UTF_8));
+    }
+    assertEquals(200, c.getResponseCode());
+    assertEquals("passed", c.getHeaderField("X-Echo"));
+    assertEquals(RESPONSE.length(), c.getContentLength());
+    assertEquals(RESPONSE, read(c.getInputStream()));
+    assertEquals(1, CallStatsTest.value(this.stats, "requests"));
+    assertEquals(CALL.length(), CallStatsTest.value(this.stats, "sent"));
+    assertEquals(RESPONSE.length(),
+        CallStatsTest.value(this.stats, "received"));
+    // the method is read from the request for the log of requests
+    final String first = report().split("\n")[0];
+    assertTrue(first, first.startsWith("#1    wp.getPost "));
+  }
+  
+  @Test
+  public void testErrorStream() throws Exception {
+    final HttpURLConnection c = open("/fail");
+    c.setDoOutput(true);
+    try (OutputStream out = c.getOutputStream()) {
+      out.write(CALL.getBytes(StandardCharsets.UTF_8));
+    }
+    assertEquals(500, c.getResponseCode());
+    try {
+      c.getInputStream();
+      fail();
+    } catch (final IOException e) {
+      // expected
+    }
+    assertEquals(ERROR, read(c.getErrorStream()));
+    assertEquals(ERROR.length(), CallStatsTest.value(this.stats, "received"));
+    assertTrue(report().startsWith("#1    wp.getPost "));
+  }
+  
+  @Test
+  public void testNothingRead() throws Exception {
+    final HttpURLConnection c = open("/ok");
+    c.disconnect();
+    // counted as a request, but has no measures to log
+    assertEquals(1, CallStatsTest.value(this.stats, "requests"));
+    assertEquals(0, CallStatsTest.value(this.stats, "received"));
+    assertFalse(report().startsWith("#"));
+  }
+}
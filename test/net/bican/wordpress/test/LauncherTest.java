@@ -0,0 +1,116 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Runs the jwordpress launcher with a stand-in java that reports a version
+ * and echoes its arguments.
+ */
+@SuppressWarnings({ "javadoc", "static-method", "nls" })
+public class LauncherTest extends AbstractWordpressTest {
+  
+  private static String launch(final String versionLine,
+      final boolean archive) throws Exception {
+    final Path dir = Files.createTempDirectory("launcher");
+    try {
+      final Path bin = Files.createDirectories(dir.resolve("jdk/bin"));
+      final Path java = bin.resolve("java");
+      Files.write(java, ("#!/bin/sh\n" + "if [ \"$1\" = -version ]\n"
+          + "then\n" + "  echo '" + versionLine + "' >&2\n"
+          + "  echo probed >> \"$(dirname $0)/probes\"\n" + "  exit 0\n"
+          + "fi\n" + "echo \"$@\"\n").getBytes(StandardCharsets.UTF_8));
+      java.toFile().setExecutable(true);
+      final Path app = Files.createDirectories(dir.resolve("app"));
+      final Path launcher = app.resolve("jwordpress");
+      Files.copy(new File("jwordpress").toPath(), launcher,
+          StandardCopyOption.REPLACE_EXISTING);
+      Files.createFile(app.resolve("@PACKAGE@-@VERSION@-cli.jar"));
+      if (archive) {
+        Files.createFile(app.resolve("@PACKAGE@-@VERSION@-cli.jsa"));
+      }
+      // twice, the second run uses the version probed by the first
+      final String[] lines = new String[2];
+      for (int i = 0; i < lines.length; i++) {
+        final ProcessBuilder pb = new ProcessBuilder("bash",
+            launcher.toString(), "--help");
+        pb.environment().put("JAVA_HOME", dir.resolve("jdk").toString());
+        pb.environment().put("HOME", dir.toString());
+        pb.redirectErrorStream(true);
+        final Process p = pb.start();
+        lines[i] = new String(readAll(p), StandardCharsets.UTF_8).trim();
+        assertEquals(0, p.waitFor());
+      }
+      assertEquals(lines[0], lines[1]);
+      if (archive) {
+        assertEquals(1, Files.readAllLines(bin.resolve("probes")).size());
+      }
+      return lines[1];
+    } finally {
+      Files.walk(dir).sorted(Comparator.reverseOrder())
+          .forEach(p -> p.toFile().delete());
+    }
+  }
+  
+  private static byte[] readAll(final Process p) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int n;
+    while ((n = p.getInputStream().read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+  
+  @Test
+  public void testArchiveFlags() throws Exception {
+    Assume.assumeTrue(new File("/bin/bash").canExecute());
+    String line = launch("openjdk version \"17.0.2\" 2022-01-18", true);
+    assertTrue(line.contains("-XX:SharedArchiveFile="));
+    assertTrue(line.contains("-Xshare:auto"));
+    assertTrue(line.endsWith("net.bican.wordpress.DaemonClient --help"));
+    line = launch("openjdk version \"13\" 2019-09-17", true);
+    assertTrue(line.contains("-XX:SharedArchiveFile="));
+  }
+  
+  @Test
+  public void testNoArchiveFlagsBeforeJava13() throws Exception {
+    Assume.assumeTrue(new File("/bin/bash").canExecute());
+    String line = launch("java version \"1.8.0_292\"", true);
+    assertFalse(line.contains("-XX:SharedArchiveFile"));
+    assertFalse(line.contains("-Xlog"));
+    assertTrue(line.startsWith("-cp "));
+    line = launch("openjdk version \"11.0.12\" 2021-07-20", true);
+    assertFalse(line.contains("-Xlog"));
+    // a version that cannot be read
+    line = launch("something else", true);
+    assertFalse(line.contains("-Xlog"));
+  }
+  
+  @Test
+  public void testNoArchive() throws Exception {
+    Assume.assumeTrue(new File("/bin/bash").canExecute());
+    final String line = launch("openjdk version \"17.0.2\"", false);
+    assertTrue(line.startsWith("-cp "));
+    assertTrue(line.endsWith("net.bican.wordpress.DaemonClient --help"));
+  }
+}
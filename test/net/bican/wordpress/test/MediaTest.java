@@ -11,15 +11,28 @@ package net.bican.wordpress.test;
 
 import static org.junit.Assert.*;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
 
 import org.junit.Test;
 
+import net.bican.wordpress.ImageOptimizer;
 import net.bican.wordpress.MediaItem;
 import net.bican.wordpress.MediaItemUploadResult;
+import net.bican.wordpress.MediaMirror;
+import net.bican.wordpress.MediaUploader;
 
 @SuppressWarnings({ "javadoc", "static-method", "nls" })
 public class MediaTest extends AbstractWordpressTest {
@@ -34,13 +47,23 @@ public class MediaTest extends AbstractWordpressTest {
       assertNotNull(r);
       assertEquals(TEST_IMAGE, r.getFile());
       assertNotNull(r.getId());
-      assertEquals("application/octet-stream", r.getType());
+      assertEquals("image/jpeg", r.getType());
       assertNotNull(r.getUrl());
       WP.deletePost(r.getId()); // it seems that this is how you
                                 // delete a file
     }
   }
   
+  @Test
+  public void testUploadPath() throws Exception {
+    MediaItemUploadResult r = WP.uploadFile(new File("test/" + TEST_IMAGE)
+        .toPath());
+    assertNotNull(r);
+    assertEquals(TEST_IMAGE, r.getFile());
+    assertEquals("image/jpeg", r.getType());
+    WP.deletePost(r.getId());
+  }
+  
   @Test
   public void testGetMediaItem() throws Exception {
     try (InputStream media = new FileInputStream(
@@ -69,4 +92,151 @@ public class MediaTest extends AbstractWordpressTest {
     assertNotNull(r);
     assertTrue(r.size() > 0);
   }
+  
+  @Test
+  public void testMediaUploader() throws Exception {
+    final File index = File.createTempFile("media", ".index");
+    index.delete();
+    final Path image = new File("test/" + TEST_IMAGE).toPath();
+    final Path copy = Files.createTempDirectory("media").resolve(TEST_IMAGE);
+    Files.copy(image, copy);
+    try {
+      MediaUploader uploader = new MediaUploader(WP, index);
+      uploader.setThreads(2);
+      Map<Path, MediaItemUploadResult> r = uploader
+          .upload(Arrays.asList(image, copy));
+      assertEquals(2, r.size());
+      assertTrue(uploader.getFailures().isEmpty());
+      final Integer id = r.get(image).getId();
+      assertNotNull(id);
+      assertEquals(id, r.get(copy).getId());
+      r = new MediaUploader(WP, index).upload(Arrays.asList(image));
+      assertEquals(id, r.get(image).getId());
+      WP.deletePost(id);
+    } finally {
+      Files.delete(copy);
+      Files.delete(copy.getParent());
+      index.delete();
+    }
+  }
+  
+  @Test
+  public void testImageOptimizer() throws Exception {
+    final Path dir = Files.createTempDirectory("media");
+    final Path big = dir.resolve("big.jpg");
+    BufferedImage image = new BufferedImage(1600, 1200,
+        BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        image.setRGB(x, y, x * 7 ^ y * 13);
+      }
+    }
+    ImageIO.write(image, "jpg", big.toFile());
+    ImageOptimizer optimizer = new ImageOptimizer(dir.resolve("work"));
+    optimizer.setMaxDimension(400);
+    Map<Path, Path> r = optimizer.optimize(Arrays.asList(big));
+    Path copy = r.get(big);
+    assertFalse(big.equals(copy));
+    assertEquals("big.jpg", copy.getFileName().toString());
+    BufferedImage small = ImageIO.read(copy.toFile());
+    assertEquals(400, small.getWidth());
+    assertEquals(300, small.getHeight());
+    assertEquals(1, optimizer.getOptimized());
+    assertEquals(Files.size(big) - Files.size(copy),
+        optimizer.getBytesSaved());
+    optimizer.discard(copy);
+    assertFalse(Files.exists(copy));
+    Files.delete(big);
+    Files.delete(dir.resolve("work"));
+    Files.delete(dir);
+  }
+  
+  @Test
+  public void testImageOptimizerOrientation() throws Exception {
+    final Path dir = Files.createTempDirectory("media");
+    final Path big = dir.resolve("turned.jpg");
+    BufferedImage image = new BufferedImage(1600, 1200,
+        BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        image.setRGB(x, y, x < 800 ? 0xff0000 : 0x0000ff);
+      }
+    }
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpg", jpeg);
+    byte[] data = jpeg.toByteArray();
+    // an Exif segment saying the image is shown turned clockwise
+    byte[] exif = { (byte) 0xff, (byte) 0xe1, 0, 34, 'E', 'x', 'i', 'f', 0,
+        0, 'M', 'M', 0, 42, 0, 0, 0, 8, 0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1,
+        0, 6, 0, 0, 0, 0, 0, 0 };
+    try (OutputStream out = Files.newOutputStream(big)) {
+      out.write(data, 0, 2);
+      out.write(exif);
+      out.write(data, 2, data.length - 2);
+    }
+    ImageOptimizer optimizer = new ImageOptimizer(dir.resolve("work"));
+    optimizer.setMaxDimension(400);
+    Path copy = optimizer.optimize(big);
+    assertFalse(big.equals(copy));
+    BufferedImage small = ImageIO.read(copy.toFile());
+    assertEquals(300, small.getWidth());
+    assertEquals(400, small.getHeight());
+    // the left half is on top now
+    assertTrue((small.getRGB(150, 50) >> 16 & 0xff) > 200);
+    assertTrue((small.getRGB(150, 350) & 0xff) > 200);
+    optimizer.discard(copy);
+    Files.delete(big);
+    Files.delete(dir.resolve("work"));
+    Files.delete(dir);
+  }
+  
+  @Test
+  public void testMediaUploaderOptimizeFailure() throws Exception {
+    final File index = File.createTempFile("media", ".index");
+    index.delete();
+    final Path image = new File("test/" + TEST_IMAGE).toPath();
+    try {
+      MediaUploader uploader = new MediaUploader(WP, index);
+      uploader.setOptimizer(new ImageOptimizer(Files.createTempDirectory(
+          "media")) {
+        @Override
+        public Path optimize(final Path file) throws IOException {
+          throw new IOException("cannot write the copy");
+        }
+      });
+      Map<Path, MediaItemUploadResult> r = uploader
+          .upload(Arrays.asList(image));
+      assertTrue(uploader.getFailures().isEmpty());
+      assertNotNull(r.get(image).getId());
+      WP.deletePost(r.get(image).getId());
+    } finally {
+      index.delete();
+    }
+  }
+  
+  @Test
+  public void testMediaMirror() throws Exception {
+    final Path image = new File("test/" + TEST_IMAGE).toPath();
+    final MediaItemUploadResult uploaded = WP.uploadFile(image);
+    final Path dir = Files.createTempDirectory("mirror");
+    try {
+      MediaMirror mirror = new MediaMirror(WP, dir.toFile());
+      mirror.setConnections(4);
+      mirror.setSizes("thumbnail");
+      Map<String, Integer> r = mirror.mirror();
+      assertTrue(mirror.getFailures().isEmpty());
+      assertTrue(r.get("downloaded").intValue() > 0);
+      Path copy = mirror.locate(uploaded.getUrl());
+      assertNotNull(copy);
+      assertTrue(Arrays.equals(Files.readAllBytes(image),
+          Files.readAllBytes(copy)));
+      r = new MediaMirror(WP, dir.toFile()).mirror();
+      assertEquals(Integer.valueOf(0), r.get("downloaded"));
+      assertTrue(r.get("unchanged").intValue() > 0);
+    } finally {
+      WP.deletePost(uploaded.getId());
+      Files.walk(dir).sorted((a, b) -> b.compareTo(a))
+          .forEach(p -> p.toFile().delete());
+    }
+  }
 }
@@ -0,0 +1,155 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.function.LongSupplier;
+
+import javax.management.MBeanServer;
+
+import net.bican.wordpress.Wordpress;
+import net.bican.wordpress.exceptions.ObjectNotFoundException;
+import net.bican.wordpress.util.MethodMetrics;
+import net.bican.wordpress.util.MetricsRegistry;
+import net.bican.wordpress.util.PrometheusEndpoint;
+
+import org.junit.Test;
+
+@SuppressWarnings({ "static-method", "javadoc", "nls" })
+public class MetricsTest extends AbstractWordpressTest {
+  
+  @Test
+  public void testMetrics() throws Exception {
+    final MetricsRegistry metrics = new MetricsRegistry("test");
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    metrics.registerMBeans(server);
+    WP.setMetrics(metrics);
+    try {
+      WP.getPostStatusList();
+      WP.getPostStatusList();
+      try {
+        WP.getPost(Integer.valueOf(999999));
+        fail("post should not exist");
+      } catch (final ObjectNotFoundException e) {
+        // expected
+      }
+      final MethodMetrics status = metrics.method("wp.getPostStatusList");
+      assertEquals(2, status.getCalls());
+      assertEquals(0, status.getErrors());
+      assertEquals(2, status.getLatency().getCount());
+      assertTrue(status.getMaxMillis() > 0);
+      final MethodMetrics post = metrics.method("wp.getPost");
+      assertEquals(1, post.getCalls());
+      assertEquals(Long.valueOf(1), post.getErrorsByCode().get("404"));
+      assertEquals(Long.valueOf(2), server.getAttribute(
+          metrics.objectName("wp.getPostStatusList"), "Calls"));
+      assertEquals(Long.valueOf(0),
+          metrics.getGauges().get(MetricsRegistry.ACTIVE_CALLS));
+      
+      try (PrometheusEndpoint endpoint = new PrometheusEndpoint(metrics,
+          new InetSocketAddress("127.0.0.1", 0));
+          InputStream in = new URL(
+              "http://127.0.0.1:" + endpoint.getPort() + "/metrics")
+                  .openStream();
+          Scanner s = new Scanner(in, StandardCharsets.UTF_8.name())) {
+        final String text = s.useDelimiter("\\A").next();
+        assertTrue(text.contains(
+            "wordpress_calls_total{method=\"wp.getPostStatusList\"} 2\n"));
+        assertTrue(text.contains(
+            "wordpress_errors_total{method=\"wp.getPost\",code=\"404\"} 1\n"));
+        assertTrue(text.contains(
+            "# TYPE wordpress_clients_created_total counter\n"));
+      }
+    } finally {
+      WP.setMetrics(null);
+      metrics.unregisterMBeans();
+    }
+    assertFalse(server.isRegistered(metrics.objectName(null)));
+  }
+  
+  @Test
+  public void testSummedGauge() {
+    final MetricsRegistry metrics = new MetricsRegistry("sum");
+    final LongSupplier one = () -> 3;
+    final LongSupplier two = () -> 4;
+    metrics.addToGauge("wordpress_test", "Test.", one);
+    metrics.addToGauge("wordpress_test", "Test.", two);
+    assertEquals(Long.valueOf(7), metrics.getGauges().get("wordpress_test"));
+    metrics.removeFromGauge("wordpress_test", one);
+    assertEquals(Long.valueOf(4), metrics.getGauges().get("wordpress_test"));
+    metrics.removeFromGauge("wordpress_test", two);
+    assertFalse(metrics.getGauges().containsKey("wordpress_test"));
+    // replaced, not added up
+    metrics.gauge("wordpress_test", "Test.", one);
+    metrics.gauge("wordpress_test", "Test.", two);
+    assertEquals(Long.valueOf(4), metrics.getGauges().get("wordpress_test"));
+  }
+  
+  @Test
+  public void testCounter() throws Exception {
+    final MetricsRegistry metrics = new MetricsRegistry("counter");
+    final LongSupplier one = () -> 3;
+    metrics.addToCounter("wordpress_test_total", "Test.", one);
+    metrics.addToCounter("wordpress_test_total", "Test.", () -> 4);
+    assertEquals(Long.valueOf(7),
+        metrics.getCounters().get("wordpress_test_total"));
+    assertFalse(metrics.getGauges().containsKey("wordpress_test_total"));
+    final StringWriter out = new StringWriter();
+    metrics.writePrometheus(out);
+    assertTrue(out.toString()
+        .contains("# TYPE wordpress_test_total counter\n"));
+    assertTrue(out.toString().contains("wordpress_test_total 7\n"));
+    metrics.removeFromGauge("wordpress_test_total", one);
+    assertEquals(Long.valueOf(4),
+        metrics.getCounters().get("wordpress_test_total"));
+    try {
+      metrics.addToCounter("wordpress_test", "Test.", one);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // counters end with _total
+    }
+    try {
+      metrics.addToGauge("wordpress_test_total", "Test.", one);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // already a counter
+    }
+  }
+  
+  @Test
+  public void testSharedRegistry() throws Exception {
+    final MetricsRegistry metrics = new MetricsRegistry("shared");
+    final Wordpress first = new Wordpress("user", "pass",
+        "http://127.0.0.1/first/xmlrpc.php");
+    final Wordpress second = new Wordpress("user", "pass",
+        "http://127.0.0.1/second/xmlrpc.php");
+    first.setMetrics(metrics);
+    second.setMetrics(metrics);
+    first.setMetrics(null);
+    // the measures of the second client are still there
+    assertEquals(Long.valueOf(0),
+        metrics.getCounters().get("wordpress_clients_created_total"));
+    assertEquals(Long.valueOf(0),
+        metrics.getGauges().get("wordpress_batch_queue"));
+    second.setMetrics(null);
+    assertFalse(metrics.getCounters()
+        .containsKey("wordpress_clients_created_total"));
+    assertFalse(metrics.getGauges().containsKey("wordpress_batch_queue"));
+    assertTrue(metrics.getGauges().containsKey(MetricsRegistry.ACTIVE_CALLS));
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import net.bican.wordpress.util.MimeTypes;
+
+@SuppressWarnings({ "javadoc", "static-method", "nls" })
+public class MimeTypesTest extends AbstractWordpressTest {
+  
+  private static byte[] bytes(final int... b) {
+    final byte[] result = new byte[b.length];
+    for (int i = 0; i < b.length; i++) {
+      result[i] = (byte) b[i];
+    }
+    return result;
+  }
+  
+  private static String detect(final byte[] head, final String name) {
+    return MimeTypes.detect(head, head.length, name);
+  }
+  
+  @Test
+  public void testSignatures() {
+    assertEquals("image/jpeg", detect(bytes(0xff, 0xd8, 0xff, 0xe0), "x"));
+    assertEquals("image/png",
+        detect(bytes(0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a), "x.jpg"));
+    assertEquals("image/gif",
+        detect("GIF89a".getBytes(StandardCharsets.US_ASCII), null));
+    assertEquals("image/webp",
+        detect("RIFF\0\0\0\0WEBP".getBytes(StandardCharsets.US_ASCII), "x"));
+    assertEquals("application/pdf",
+        detect("%PDF-1.4".getBytes(StandardCharsets.US_ASCII), "x"));
+    assertEquals("video/quicktime", detect(
+        "\0\0\0\u0014ftypqt  ".getBytes(StandardCharsets.ISO_8859_1), "x"));
+  }
+  
+  @Test
+  public void testFallbackToName() {
+    final byte[] text = "hello".getBytes(StandardCharsets.US_ASCII);
+    assertEquals("text/plain", detect(text, "notes.TXT"));
+    assertEquals("image/svg+xml", detect(text, "dir/logo.svg"));
+    assertEquals(MimeTypes.DEFAULT, detect(text, "dir.d/noextension"));
+    assertEquals(MimeTypes.DEFAULT, detect(text, null));
+    assertEquals(MimeTypes.DEFAULT, detect(new byte[0], "x.unknown"));
+    // office documents are zip archives
+    final byte[] zip = bytes('P', 'K', 3, 4);
+    assertEquals("application/zip", detect(zip, "archive"));
+    assertEquals(
+        "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+        detect(zip, "letter.docx"));
+  }
+  
+  @Test
+  public void testDetectStream() throws Exception {
+    final byte[] data = bytes(0xff, 0xd8, 0xff, 0xe1, 1, 2, 3);
+    try (InputStream in = new BufferedInputStream(
+        new ByteArrayInputStream(data))) {
+      assertEquals("image/jpeg", MimeTypes.detect(in, "x.png"));
+      // nothing consumed
+      assertEquals(0xff, in.read());
+      assertEquals(0xd8, in.read());
+    }
+  }
+  
+  @Test
+  public void testDetectPath() throws Exception {
+    final Path file = Files.createTempFile("mime", ".pdf");
+    try {
+      Files.write(file, "not a pdf".getBytes(StandardCharsets.US_ASCII));
+      assertEquals("application/pdf", MimeTypes.detect(file));
+      Files.write(file, bytes(0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a));
+      assertEquals("image/png", MimeTypes.detect(file));
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import net.bican.wordpress.NegativeCache;
+import net.bican.wordpress.Wordpress;
+import net.bican.wordpress.util.CountingBloomFilter;
+
+import org.junit.Test;
+
+@SuppressWarnings({ "static-method", "javadoc", "nls", "boxing" })
+public class NegativeCacheTest extends AbstractWordpressTest {
+  
+  @Test
+  public void testCountingBloomFilter() {
+    CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+    for (int i = 0; i < 1000; i++) {
+      filter.add("key" + i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(filter.mightContain("key" + i));
+    }
+    int falsePositives = 0;
+    for (int i = 1000; i < 11000; i++) {
+      if (filter.mightContain("key" + i)) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 300);
+    filter.clear();
+    filter.add("key1");
+    filter.add("key2");
+    filter.remove("key1");
+    assertFalse(filter.mightContain("key1"));
+    assertTrue(filter.mightContain("key2"));
+    assertEquals(1, filter.size());
+  }
+  
+  @Test
+  public void testNegativeCache() {
+    NegativeCache cache = new NegativeCache(2, 0.01, 1, TimeUnit.HOURS);
+    cache.markMissing(NegativeCache.Type.POST, 1);
+    assertTrue(cache.isKnownMissing(NegativeCache.Type.POST, 1));
+    assertFalse(cache.isKnownMissing(NegativeCache.Type.USER, 1));
+    cache.markMissing(NegativeCache.Type.POST, 2);
+    cache.markMissing(NegativeCache.Type.POST, 3);
+    assertTrue(cache.isKnownMissing(NegativeCache.Type.POST, 1));
+    cache.markMissing(NegativeCache.Type.POST, 4);
+    cache.markMissing(NegativeCache.Type.POST, 5);
+    assertFalse(cache.isKnownMissing(NegativeCache.Type.POST, 1));
+    cache.markPresent(NegativeCache.Type.POST, 5);
+    assertFalse(cache.isKnownMissing(NegativeCache.Type.POST, 5));
+  }
+  
+  @Test
+  public void testPostExists() throws Exception {
+    Wordpress wp = new Wordpress(USERNAME, PASSWORD, XMLRPCURL);
+    wp.setNegativeCache(new NegativeCache(100, 0.01, 1, TimeUnit.HOURS));
+    assertFalse(wp.postExists(9999999));
+    assertTrue(wp.getNegativeCache().isKnownMissing(NegativeCache.Type.POST,
+        9999999));
+    assertFalse(wp.postExists(9999999));
+    assertTrue(wp.postExists(1));
+  }
+}
@@ -11,9 +11,16 @@ package net.bican.wordpress.test;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import net.bican.wordpress.Option;
+import net.bican.wordpress.Wordpress;
 
 import org.junit.Test;
 
@@ -80,4 +87,31 @@ public class OptionsTest extends AbstractWordpressTest {
     option2.setValue(DEFAULT_SITE_TITLE);
     WP.setOptions(option1, option2);
   }
+  
+  @Test
+  public void testBatchedGetOption() throws Exception {
+    final Wordpress wp = new Wordpress(USERNAME, PASSWORD, XMLRPCURL);
+    wp.enableBatching(50, TimeUnit.MILLISECONDS, 10);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Option>> results = new ArrayList<>();
+      for (final String name : new String[] { BLOG_TAGLINE, BLOG_TITLE,
+          BLOG_TAGLINE, "no_such_option" }) { //$NON-NLS-1$
+        results.add(pool.submit(new Callable<Option>() {
+          @Override
+          public Option call() throws Exception {
+            return wp.getOption(name);
+          }
+        }));
+      }
+      assertEquals(BLOG_TAGLINE, results.get(0).get().getName());
+      assertEquals(SITE_TAGLINE, results.get(0).get().getDesc());
+      assertEquals(BLOG_TITLE, results.get(1).get().getName());
+      assertEquals(BLOG_TAGLINE, results.get(2).get().getName());
+      assertNull(results.get(3).get());
+    } finally {
+      pool.shutdown();
+      wp.disableBatching();
+    }
+  }
 }
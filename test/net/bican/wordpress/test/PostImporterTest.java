@@ -0,0 +1,214 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import net.bican.wordpress.Post;
+import net.bican.wordpress.PostImporter;
+import net.bican.wordpress.PostImporter.Status;
+
+import org.junit.Test;
+
+@SuppressWarnings({ "static-method", "javadoc", "nls" })
+public class PostImporterTest extends AbstractWordpressTest {
+  
+  private static File postFile(final File dir, final String name,
+      final String title) throws Exception {
+    File f = new File(dir, name + ".txt");
+    Files.write(f.toPath(), ("post_title: " + title + "\npost_name: " + name
+        + "\npost_status: publish\npost_content: imported content\n")
+            .getBytes(StandardCharsets.UTF_8));
+    return f;
+  }
+  
+  @Test
+  public void testImportAndResume() throws Exception {
+    File dir = Files.createTempDirectory("import").toFile();
+    File journal = new File(dir, "import.journal");
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      files.add(postFile(dir, "imported-post-" + i, "imported " + i));
+    }
+    PostImporter importer = new PostImporter(WP, journal);
+    importer.setThreads(1, 1, 1, 3);
+    importer.setQueueSize(2);
+    Map<Status, Integer> counts = importer.importFiles(files);
+    assertEquals(5, counts.get(Status.CREATED).intValue());
+    assertEquals(0, counts.get(Status.FAILED).intValue());
+    
+    final List<Integer> ids = new ArrayList<>();
+    importer = new PostImporter(WP, journal);
+    importer.setListener(new PostImporter.Listener() {
+      @Override
+      public void imported(PostImporter.Result result) {
+        synchronized (ids) {
+          ids.add(result.getPostId());
+        }
+      }
+    });
+    counts = importer.importFiles(files);
+    assertEquals(5, counts.get(Status.SKIPPED).intValue());
+    assertEquals(0, counts.get(Status.CREATED).intValue());
+    for (Integer id : ids) {
+      assertEquals("imported content", WP.getPost(id).getPost_content());
+    }
+    
+    postFile(dir, "imported-post-0", "updated 0");
+    importer = new PostImporter(WP, null);
+    importer.setUpsert(true);
+    counts = importer.importFiles(files.subList(0, 1));
+    assertEquals(1, counts.get(Status.UPDATED).intValue());
+    for (Integer id : ids) {
+      Post p = WP.getPost(id);
+      if (p.getPost_name().equals("imported-post-0")) {
+        assertEquals("updated 0", p.getPost_title());
+      }
+      WP.deletePost(id);
+    }
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+  
+  @Test
+  public void testMultiPostFile() throws Exception {
+    File dir = Files.createTempDirectory("import").toFile();
+    File journal = new File(dir, "import.journal");
+    File f = new File(dir, "posts.txt");
+    Files.write(f.toPath(), ("post_title: first\npost_content: one\n---\n"
+        + "post_title: second\npost_content: two\n---\n"
+        + "post_title: third\npost_content: th\nree\n")
+            .getBytes(StandardCharsets.UTF_8));
+    List<Post> posts = Post.listFromFile(f);
+    assertEquals(3, posts.size());
+    assertEquals("three", posts.get(2).getPost_content());
+    
+    final List<PostImporter.Result> results = new ArrayList<>();
+    PostImporter importer = new PostImporter(WP, journal);
+    importer.setMultiPost(true);
+    importer.setListener(new PostImporter.Listener() {
+      @Override
+      public void imported(PostImporter.Result result) {
+        synchronized (results) {
+          results.add(result);
+        }
+      }
+    });
+    Map<Status, Integer> counts = importer.importFiles(Arrays.asList(f));
+    assertEquals(3, counts.get(Status.CREATED).intValue());
+    importer = new PostImporter(WP, journal);
+    importer.setMultiPost(true);
+    counts = importer.importFiles(Arrays.asList(f));
+    assertEquals(3, counts.get(Status.SKIPPED).intValue());
+    for (PostImporter.Result r : results) {
+      if (r.getKey().equals(f.getPath() + "#3")) {
+        assertEquals("third", WP.getPost(r.getPostId()).getPost_title());
+      }
+      WP.deletePost(r.getPostId());
+    }
+    for (File d : dir.listFiles()) {
+      d.delete();
+    }
+    dir.delete();
+  }
+  
+  @Test
+  public void testResumeMultiPostFile() throws Exception {
+    File dir = Files.createTempDirectory("import").toFile();
+    File journal = new File(dir, "import.journal");
+    File f = new File(dir, "posts.txt");
+    Files.write(f.toPath(), ("post_title: first\npost_content: one\n---\n"
+        + "post_title: second\npost_content: two\n---\n"
+        + "post_title: third\npost_content: three\n")
+            .getBytes(StandardCharsets.UTF_8));
+    final Map<String, Integer> ids = new HashMap<>();
+    PostImporter.Listener listener = new PostImporter.Listener() {
+      @Override
+      public void imported(PostImporter.Result result) {
+        synchronized (ids) {
+          ids.put(result.getKey(), result.getPostId());
+        }
+      }
+    };
+    PostImporter importer = new PostImporter(WP, journal);
+    importer.setMultiPost(true);
+    importer.setListener(listener);
+    Map<Status, Integer> counts = importer.importFiles(Arrays.asList(f));
+    assertEquals(3, counts.get(Status.CREATED).intValue());
+    assertEquals(new HashSet<>(Arrays.asList(f.getPath() + "#1",
+        f.getPath() + "#2", f.getPath() + "#3")), ids.keySet());
+    
+    // as if the import was interrupted before the second post
+    List<String> kept = new ArrayList<>();
+    for (String line : Files.readAllLines(journal.toPath(),
+        StandardCharsets.UTF_8)) {
+      if (!line.endsWith("#2")) {
+        kept.add(line);
+      }
+    }
+    Files.write(journal.toPath(), kept, StandardCharsets.UTF_8);
+    Integer second = ids.get(f.getPath() + "#2");
+    WP.deletePost(second);
+    WP.deletePost(second);
+    ids.clear();
+    importer = new PostImporter(WP, journal);
+    importer.setMultiPost(true);
+    importer.setListener(listener);
+    counts = importer.importFiles(Arrays.asList(f));
+    assertEquals(1, counts.get(Status.CREATED).intValue());
+    assertEquals(2, counts.get(Status.SKIPPED).intValue());
+    assertEquals("second",
+        WP.getPost(ids.get(f.getPath() + "#2")).getPost_title());
+    for (Integer id : ids.values()) {
+      WP.deletePost(id);
+    }
+    for (File d : dir.listFiles()) {
+      d.delete();
+    }
+    dir.delete();
+  }
+  
+  @Test
+  public void testSeparatorInSinglePost() throws Exception {
+    File dir = Files.createTempDirectory("import").toFile();
+    File f = new File(dir, "post.txt");
+    Files.write(f.toPath(), ("post_title: rules\npost_content: above\n---\n"
+        + "below\n").getBytes(StandardCharsets.UTF_8));
+    assertEquals("above---below", Post.fromFile(f).getPost_content());
+    final List<Integer> ids = new ArrayList<>();
+    PostImporter importer = new PostImporter(WP, null);
+    importer.setListener(new PostImporter.Listener() {
+      @Override
+      public void imported(PostImporter.Result result) {
+        synchronized (ids) {
+          ids.add(result.getPostId());
+        }
+      }
+    });
+    Map<Status, Integer> counts = importer.importFiles(Arrays.asList(f));
+    assertEquals(1, counts.get(Status.CREATED).intValue());
+    assertEquals("above---below", WP.getPost(ids.get(0)).getPost_content());
+    WP.deletePost(ids.get(0));
+    f.delete();
+    dir.delete();
+  }
+}
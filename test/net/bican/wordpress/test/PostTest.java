@@ -7,10 +7,13 @@ package net.bican.wordpress.test;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -18,6 +21,7 @@ import org.junit.Test;
 import net.bican.wordpress.FilterPost;
 import net.bican.wordpress.Post;
 import net.bican.wordpress.PostType;
+import net.bican.wordpress.PrefetchingIterable;
 import net.bican.wordpress.Term;
 
 @SuppressWarnings({ "static-method", "javadoc", "nls" })
@@ -165,6 +169,58 @@ public class PostTest extends AbstractWordpressTest {
     WP.deletePost(p);
   }
   
+  @Test
+  public void testStreamPosts() throws Exception {
+    final List<Integer> ids = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      ids.add(WP.newPost(post));
+    }
+    FilterPost filter = new FilterPost();
+    filter.setNumber(Integer.valueOf(1000));
+    List<Integer> expected = new ArrayList<>();
+    for (Post p : WP.getPosts(filter)) {
+      expected.add(p.getPost_id());
+    }
+    List<Integer> streamed = WP.streamPosts(null, true)
+        .map(Post::getPost_id).collect(Collectors.toList());
+    assertEquals(expected, streamed);
+    filter.setOffset(Integer.valueOf(3));
+    filter.setNumber(Integer.valueOf(7));
+    assertEquals(expected.subList(3, 10), WP.streamPosts(filter, true)
+        .map(Post::getPost_id).collect(Collectors.toList()));
+    for (Integer id : ids) {
+      WP.deletePost(id);
+    }
+  }
+  
+  @Test
+  public void testIteratePosts() throws Exception {
+    final List<Integer> ids = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      ids.add(WP.newPost(post));
+    }
+    FilterPost filter = new FilterPost();
+    filter.setNumber(Integer.valueOf(1000));
+    List<Integer> expected = new ArrayList<>();
+    for (Post p : WP.getPosts(filter)) {
+      expected.add(p.getPost_id());
+    }
+    PrefetchingIterable<Post> posts = WP.iteratePosts(null);
+    posts.setPageSize(2);
+    List<Integer> iterated = new ArrayList<>();
+    for (Post p : posts) {
+      iterated.add(p.getPost_id());
+    }
+    assertEquals(expected, iterated);
+    try (Stream<Post> s = posts.stream()) {
+      assertEquals(expected.subList(0, 3), s.limit(3).map(Post::getPost_id)
+          .collect(Collectors.toList()));
+    }
+    for (Integer id : ids) {
+      WP.deletePost(id);
+    }
+  }
+  
   @Test
   public void testSetCategory() throws Exception {
     List<Term> terms = WP.getTerms("category");
@@ -0,0 +1,59 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.bican.wordpress.Post;
+import net.bican.wordpress.RangeRunner;
+import net.bican.wordpress.exceptions.ObjectNotFoundException;
+
+import org.junit.Test;
+
+@SuppressWarnings({ "static-method", "javadoc", "nls" })
+public class RangeRunnerTest extends AbstractWordpressTest {
+  
+  @Test
+  public void testRange() throws Exception {
+    final Post post = new Post();
+    post.setPost_title("range test");
+    post.setPost_content("range test");
+    final Integer id = WP.newPost(post);
+    try {
+      final RangeRunner runner = new RangeRunner(WP);
+      runner.setParallel(4);
+      runner.setBatchSize(3);
+      final List<RangeRunner.Result> results = new ArrayList<>();
+      final Map<String, Integer> counts = runner.run(
+          RangeRunner.Operation.GETPOST,
+          RangeRunner.ids(id + ",999990-999999," + id, null, null),
+          r -> results.add(r));
+      assertEquals(12, results.size());
+      assertEquals(Integer.valueOf(2), counts.get("ok"));
+      assertEquals(Integer.valueOf(10), counts.get("error"));
+      assertEquals(id, results.get(0).getId());
+      assertEquals("range test",
+          ((Post) results.get(0).getValue()).getPost_title());
+      for (int i = 1; i < 11; i++) {
+        assertEquals(Integer.valueOf(999989 + i), results.get(i).getId());
+        assertTrue(
+            results.get(i).getError() instanceof ObjectNotFoundException);
+      }
+      assertEquals(id, results.get(11).getId());
+      assertNull(results.get(11).getError());
+    } finally {
+      WP.deletePost(id);
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import net.bican.wordpress.RecordWriter;
+import net.bican.wordpress.User;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+@SuppressWarnings({ "static-method", "javadoc", "nls" })
+public class RecordWriterTest extends AbstractWordpressTest {
+  
+  @Test
+  public void testFormats() throws Exception {
+    final List<User> users = WP.getUsers();
+    assertTrue(users.size() > 0);
+    
+    StringWriter out = new StringWriter();
+    RecordWriter w = new RecordWriter(out, RecordWriter.Format.NDJSON);
+    w.writeAll(WP.iterateUsers(null));
+    w.finish();
+    assertTrue(w.getCount() >= users.size());
+    final String[] lines = out.toString().split("\n");
+    assertEquals(w.getCount(), lines.length);
+    assertEquals(users.get(0).getUsername(),
+        new JSONObject(lines[0]).getString("username"));
+    
+    out = new StringWriter();
+    w = new RecordWriter(out, RecordWriter.Format.JSON);
+    w.writeAll(users);
+    w.finish();
+    assertEquals(users.size(), new JSONArray(out.toString()).length());
+    
+    out = new StringWriter();
+    w = new RecordWriter(out, RecordWriter.Format.CSV);
+    w.writeAll(users);
+    w.finish();
+    assertTrue(out.toString().startsWith("user_id,"));
+    
+    out = new StringWriter();
+    w = new RecordWriter(out, RecordWriter.Format.TSV);
+    w.write("a\tb\nc");
+    w.finish();
+    assertEquals("value\na\\tb\\nc\n", out.toString());
+    
+    assertEquals(RecordWriter.Format.CSV, RecordWriter.Format.of("csv"));
+    assertNull(RecordWriter.Format.of("xml"));
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import net.bican.wordpress.Post;
+import net.bican.wordpress.SearchIndex;
+import net.bican.wordpress.SearchIndex.Hit;
+
+import org.junit.Test;
+
+@SuppressWarnings({ "static-method", "javadoc", "nls" })
+public class SearchIndexTest extends AbstractWordpressTest {
+  
+  @Test
+  public void testSearch() throws Exception {
+    File dir = Files.createTempDirectory("search").toFile();
+    SearchIndex index = new SearchIndex(WP, dir);
+    index.sync(true);
+    Post post = new Post();
+    post.setPost_title("Zyzzyva search test");
+    post.setPost_content("<p>the <em>quixotic</em> zyzzyva</p>");
+    post.setPost_status("publish");
+    Integer id = WP.newPost(post);
+    try {
+      Map<String, Integer> counts = index.sync(false);
+      assertEquals(Integer.valueOf(1), counts.get("indexed"));
+      List<Hit> hits = index.search("ZYZZYVA", 10);
+      assertEquals(1, hits.size());
+      assertEquals(id, hits.get(0).getPostId());
+      assertEquals(1, index.search("\"quixotic zyzzyva\"", 10).size());
+      assertEquals(0, index.search("\"zyzzyva quixotic\"", 10).size());
+      assertEquals(0, index.search("em", 10).size());
+      // a new instance reads the index from the files
+      assertEquals(1, new SearchIndex(WP, dir).search("zyzzyva", 10).size());
+    } finally {
+      WP.deletePost(id);
+    }
+    index.sync(true);
+    assertEquals(0, index.search("zyzzyva", 10).size());
+    index.merge();
+    assertEquals(0, index.search("zyzzyva", 10).size());
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+}
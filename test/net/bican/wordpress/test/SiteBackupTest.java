@@ -0,0 +1,69 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+
+import net.bican.wordpress.FilterPost;
+import net.bican.wordpress.Post;
+import net.bican.wordpress.SiteBackup;
+import net.bican.wordpress.SiteBackup.Kind;
+import net.bican.wordpress.SiteBackup.Snapshot;
+
+import org.junit.Test;
+
+@SuppressWarnings({ "static-method", "javadoc", "nls" })
+public class SiteBackupTest extends AbstractWordpressTest {
+  
+  @Test
+  public void testBackupAndRestore() throws Exception {
+    File dir = Files.createTempDirectory("backup").toFile();
+    SiteBackup backup = new SiteBackup(WP, dir);
+    Snapshot first = backup.backup();
+    assertEquals(1, first.getNumber());
+    assertTrue(first.getRecords() > 0);
+    Snapshot unchanged = backup.backup();
+    assertEquals(0, unchanged.getRecords());
+    Post post = new Post();
+    post.setPost_title("backup test post");
+    post.setPost_content("backup test content");
+    post.setPost_status("publish");
+    Integer id = WP.newPost(post);
+    Snapshot third = backup.backup();
+    assertTrue(third.getRecords() > 0);
+    assertNull(backup.get(2, Kind.POST, id.toString()));
+    Post backedUp = (Post) backup.get(3, Kind.POST, id.toString());
+    assertEquals("backup test content", backedUp.getPost_content());
+    assertEquals(backup.read(2, Kind.POST).size() + 1,
+        backup.read(3, Kind.POST).size());
+    WP.deletePost(id);
+    WP.deletePost(id); // out of the trash too
+    Map<String, Integer> counts = WP.restoreBackup(dir, 3);
+    assertEquals(Integer.valueOf(1), counts.get("posts.created"));
+    assertNull(counts.get("posts.failed"));
+    FilterPost filter = new FilterPost();
+    filter.setNumber(Integer.valueOf(1));
+    Post restored = WP.getPosts(filter).get(0);
+    assertEquals("backup test post", restored.getPost_title());
+    WP.deletePost(restored.getPost_id());
+    backup.setRetainSnapshots(2);
+    assertEquals(2, backup.compact());
+    assertEquals(2, backup.getSnapshots().size());
+    assertNotNull(backup.get(3, Kind.POST, id.toString()));
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import net.bican.wordpress.FilterUser;
+import net.bican.wordpress.SiteExporter;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+@SuppressWarnings({ "static-method", "javadoc", "nls" })
+public class SiteExporterTest extends AbstractWordpressTest {
+  
+  private static int countLines(final File file) throws Exception {
+    int lines = 0;
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(
+        new GZIPInputStream(new FileInputStream(file)),
+        StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = r.readLine()) != null) {
+        assertNotNull(new JSONObject(line));
+        lines++;
+      }
+    }
+    return lines;
+  }
+  
+  @Test
+  public void testExport() throws Exception {
+    File dir = Files.createTempDirectory("export").toFile();
+    SiteExporter exporter = new SiteExporter(WP, dir);
+    exporter.setPageSize(2);
+    exporter.setThreads(3);
+    Map<String, Long> counts = exporter.export();
+    assertFalse(new File(dir, SiteExporter.JOURNAL).exists());
+    assertEquals(WP.getUsers(new FilterUser()).size(),
+        counts.get("users").longValue());
+    assertEquals(counts.get("users").longValue(),
+        countLines(new File(dir, "users.ndjson.gz")));
+    long terms = 0;
+    for (String k : counts.keySet()) {
+      if (k.startsWith("terms:")) {
+        terms += counts.get(k).longValue();
+      }
+    }
+    assertEquals(terms, countLines(new File(dir, "terms.ndjson.gz")));
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+  
+  @Test
+  public void testResume() throws Exception {
+    File dir = Files.createTempDirectory("export").toFile();
+    Map<String, Long> first = new SiteExporter(WP, dir).export();
+    long users = countLines(new File(dir, "users.ndjson.gz"));
+    // a journal that has the users written already, followed by a partial
+    // line
+    Files.write(new File(dir, SiteExporter.JOURNAL).toPath(),
+        ("page\tusers\t0\t" + users + "\tusers.ndjson.gz\t"
+            + new File(dir, "users.ndjson.gz").length() + "\nend\tusers\t1\n"
+            + "page\tcomm").getBytes(StandardCharsets.UTF_8));
+    SiteExporter exporter = new SiteExporter(WP, dir);
+    exporter.setPageSize(1000);
+    Map<String, Long> second = exporter.export();
+    assertEquals(first, second);
+    assertEquals(users, countLines(new File(dir, "users.ndjson.gz")));
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import net.bican.wordpress.SiteMetadata;
+
+import org.junit.Test;
+
+@SuppressWarnings({ "static-method", "javadoc", "nls" })
+public class SiteMetadataTest extends AbstractWordpressTest {
+  
+  @Test
+  public void testLoad() throws Exception {
+    SiteMetadata metadata = SiteMetadata.load(WP);
+    assertEquals(3, metadata.getPostTypes().size());
+    assertEquals(3, metadata.getTaxonomies().size());
+    assertEquals(1, metadata.getUsersBlogs().size());
+    assertTrue(metadata.getPostFormats().containsKey("standard"));
+    assertNotNull(metadata.getPostStatusList());
+    assertNotNull(metadata.getCommentStatusList());
+    assertNotNull(metadata.getOption(BLOG_TAGLINE));
+  }
+  
+  @Test
+  public void testSaveAndGet() throws Exception {
+    File dir = Files.createTempDirectory("metadata").toFile();
+    File file = SiteMetadata.fileFor(dir, WP);
+    SiteMetadata first = SiteMetadata.get(WP, dir, 1, 1, TimeUnit.HOURS);
+    assertTrue(file.exists());
+    SiteMetadata second = SiteMetadata.get(WP, dir, 1, 1, TimeUnit.HOURS);
+    assertEquals(first.getLoadedAt(), second.getLoadedAt());
+    assertEquals(first.getOptions().size(), second.getOptions().size());
+    SiteMetadata third = SiteMetadata.get(WP, dir, 0, 0, TimeUnit.HOURS);
+    assertTrue(third.getLoadedAt() >= first.getLoadedAt());
+    assertEquals(XMLRPCURL, SiteMetadata.read(file).getXmlRpcUrl());
+    file.delete();
+    dir.delete();
+  }
+  
+  @Test
+  public void testSnapshot() throws Exception {
+    SiteMetadata metadata = SiteMetadata.load(WP);
+    WP.setSiteMetadata(metadata);
+    try {
+      assertSame(metadata.getPostTypes(), WP.getPostTypes());
+      assertSame(metadata.getPostFormats(), WP.getPostFormats());
+      assertSame(metadata.getPostStatusList(), WP.getPostStatusList());
+      assertSame(metadata.getCommentStatusList(), WP.getCommentStatusList());
+      assertSame(metadata.getTaxonomies(), WP.getTaxonomies());
+      assertSame(metadata.getOptions(), WP.getOptions());
+      assertSame(metadata.getUsersBlogs(), WP.getUsersBlogs());
+      // loading again does not answer from the snapshot
+      assertNotSame(metadata.getPostTypes(),
+          SiteMetadata.load(WP).getPostTypes());
+    } finally {
+      WP.setSiteMetadata(null);
+    }
+    assertNotSame(metadata.getPostTypes(), WP.getPostTypes());
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import net.bican.wordpress.Post;
+import net.bican.wordpress.SiteMirror;
+import net.bican.wordpress.Wordpress;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+@SuppressWarnings({ "static-method", "javadoc", "nls", "boxing" })
+public class SiteMirrorTest extends AbstractWordpressTest {
+  
+  /**
+   * Needs a second blog to copy to, given by MIRROR_XMLRPCURL with the same
+   * user name and password; skipped otherwise.
+   */
+  @Test
+  public void testMirror() throws Exception {
+    String url = System.getenv("MIRROR_XMLRPCURL");
+    Assume.assumeTrue(url != null);
+    Wordpress target = new Wordpress(USERNAME, PASSWORD, url);
+    File dir = Files.createTempDirectory("mirror").toFile();
+    File state = new File(dir, "state");
+    Post post = new Post();
+    post.setPost_title("mirror test post");
+    post.setPost_content("mirror test content");
+    post.setPost_status("publish");
+    Integer id = WP.newPost(post);
+    Integer copy = null;
+    try {
+      SiteMirror mirror = new SiteMirror(WP, target, state);
+      Map<String, Integer> first = mirror.mirror();
+      assertNull(first.get("posts.failed"));
+      assertTrue(first.get("posts.created") >= 1);
+      copy = targetId(state, "post", id);
+      assertNotNull(copy);
+      assertEquals("mirror test content",
+          target.getPost(copy).getPost_content());
+      
+      Map<String, Integer> second = mirror.mirror();
+      assertNull(second.get("posts.created"));
+      assertNull(second.get("posts.updated"));
+      assertNull(second.get("terms.created"));
+      
+      Post changed = WP.getPost(id);
+      changed.setPost_content("mirror test content changed");
+      WP.editPost(id, changed);
+      Map<String, Integer> third = mirror.mirror();
+      assertEquals(Integer.valueOf(1), third.get("posts.updated"));
+      assertNull(third.get("posts.created"));
+      assertEquals(copy, targetId(state, "post", id));
+      assertEquals("mirror test content changed",
+          target.getPost(copy).getPost_content());
+    } finally {
+      WP.deletePost(id);
+      WP.deletePost(id);
+      if (copy != null) {
+        target.deletePost(copy);
+        target.deletePost(copy);
+      }
+      state.delete();
+      dir.delete();
+    }
+  }
+  
+  private static Integer targetId(File state, String type, Integer id)
+      throws Exception {
+    for (String line : Files.readAllLines(state.toPath(),
+        StandardCharsets.UTF_8)) {
+      String[] f = line.split("\t");
+      if (f.length >= 4 && f[0].equals(type) && f[1].equals(id.toString())) {
+        return Integer.valueOf(f[2]);
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * 
+ * Wordpress-java
+ * https://github.com/canbican/wordpress-java/
+ * 
+ * Copyright 2012-2015 Can Bican <can@bican.net>
+ * See the file 'COPYING' in the distribution for licensing terms.
+ * 
+ */
+package net.bican.wordpress.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.bican.wordpress.MediaItemUploadResult;
+import net.bican.wordpress.Wordpress;
+import net.bican.wordpress.exceptions.FileUploadException;
+import net.bican.wordpress.exceptions.InsufficientRightsException;
+import net.bican.wordpress.util.MethodMetrics;
+import net.bican.wordpress.util.MetricsRegistry;
+import redstone.xmlrpc.XmlRpcException;
+import redstone.xmlrpc.XmlRpcFault;
+
+/**
+ * Uploads to a local server that answers like the xml-rpc endpoint of a
+ * blog, or like one behind FastCGI that refuses chunked requests.
+ */
+@SuppressWarnings({ "javadoc", "nls" })
+public class StreamingUploadTest extends AbstractWordpressTest {
+  /** what is known of a server is kept by url, so each test has its own */
+  private static final AtomicInteger blogs = new AtomicInteger();
+  /** what the server does with the next requests */
+  private volatile String mode = "ok";
+  private final List<String> encodings = new CopyOnWriteArrayList<>();
+  private final List<byte[]> received = new CopyOnWriteArrayList<>();
+  private HttpServer server;
+  private Wordpress wp;
+  
+  @Before
+  public void startServer() throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+        0);
+    final String path = "/blog" + blogs.incrementAndGet() + "/xmlrpc.php";
+    this.server.createContext(path, this::handle);
+    this.server.start();
+    this.wp = new Wordpress("user", "pass", "http://127.0.0.1:"
+        + this.server.getAddress().getPort() + path);
+  }
+  
+  @After
+  public void stopServer() {
+    this.server.stop(0);
+  }
+  
+  private void handle(final HttpExchange ex) throws IOException {
+    final String chunked = ex.getRequestHeaders()
+        .getFirst("Transfer-Encoding");
+    this.encodings.add(chunked != null ? "chunked" : "length");
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (InputStream in = ex.getRequestBody()) {
+      final byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        body.write(buffer, 0, n);
+      }
+    }
+    if (chunked != null && this.mode.equals("length")) {
+      ex.sendResponseHeaders(411, -1);
+      ex.close();
+      return;
+    }
+    if (this.mode.equals("unavailable")) {
+      ex.sendResponseHeaders(503, -1);
+      ex.close();
+      return;
+    }
+    final String request = new String(body.toByteArray(),
+        StandardCharsets.UTF_8);
+    final String bits = request.substring(
+        request.indexOf("<base64>") + 8, request.indexOf("</base64>"));
+    this.received.add(Base64.getMimeDecoder().decode(bits));
+    final String response;
+    if (this.mode.startsWith("fault")) {
+      response = "<?xml version=\"1.0\"?><methodResponse><fault><value>"
+          + "<struct><member><name>faultCode</name><value><int>"
+          + this.mode.substring(5) + "</int></value></member>"
+          + "<member><name>faultString</name><value><string>refused"
+          + "</string></value></member></struct></value></fault>"
+          + "</methodResponse>";
+    } else {
+      response = "<?xml version=\"1.0\"?><methodResponse><params><param>"
+          + "<value><struct>"
+          + "<member><name>id</name><value><string>42</string></value>"
+          + "</member><member><name>file</name><value><string>a.png"
+          + "</string></value></member><member><name>url</name><value>"
+          + "<string>http://example.com/a.png</string></value></member>"
+          + "<member><name>type</name><value><string>image/png</string>"
+          + "</value></member></struct></value></param></params>"
+          + "</methodResponse>";
+    }
+    final byte[] out = response.getBytes(StandardCharsets.UTF_8);
+    ex.getResponseHeaders().set("Content-Type", "text/xml");
+    ex.sendResponseHeaders(200, out.length);
+    try (OutputStream os = ex.getResponseBody()) {
+      os.write(out);
+    }
+  }
+  
+  private static byte[] png(final int size) {
+    final byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) (i * 31);
+    }
+    System.arraycopy(new byte[] { (byte) 0x89, 'P', 'N', 'G', 0x0d, 0x0a,
+        0x1a, 0x0a }, 0, data, 0, 8);
+    return data;
+  }
+  
+  @Test
+  public void testUploadStream() throws Exception {
+    final byte[] data = png(200001);
+    final MediaItemUploadResult r = this.wp
+        .uploadFile(new ByteArrayInputStream(data), "a.png");
+    assertEquals(Integer.valueOf(42), r.getId());
+    assertEquals("http://example.com/a.png", r.getUrl());
+    assertArrayEquals(data, this.received.get(0));
+    assertEquals("chunked", this.encodings.get(0));
+  }
+  
+  @Test
+  public void testUploadPath() throws Exception {
+    final byte[] data = png(100000);
+    final Path file = Files.createTempFile("upload", ".png");
+    try {
+      Files.write(file, data);
+      final MediaItemUploadResult r = this.wp.uploadFile(file);
+      assertEquals(Integer.valueOf(42), r.getId());
+      assertArrayEquals(data, this.received.get(0));
+      assertEquals("length", this.encodings.get(0));
+    } finally {
+      Files.delete(file);
+    }
+  }
+  
+  @Test
+  public void testLengthRequired() throws Exception {
+    this.mode = "length";
+    final byte[] data = png(150000);
+    MediaItemUploadResult r = this.wp
+        .uploadFile(new ByteArrayInputStream(data), "a.png");
+    assertEquals(Integer.valueOf(42), r.getId());
+    assertEquals("chunked", this.encodings.get(0));
+    assertEquals("length", this.encodings.get(1));
+    assertArrayEquals(data, this.received.get(0));
+    // the server is known to need the length now
+    r = this.wp.uploadFile(new ByteArrayInputStream(data), "a.png");
+    assertEquals(Integer.valueOf(42), r.getId());
+    assertEquals(3, this.encodings.size());
+    assertEquals("length", this.encodings.get(2));
+    assertArrayEquals(data, this.received.get(1));
+  }
+  
+  @Test
+  public void testFaults() throws Exception {
+    final byte[] data = png(1000);
+    this.mode = "fault401";
+    try {
+      this.wp.uploadFile(new ByteArrayInputStream(data), "a.png");
+      fail();
+    } catch (final InsufficientRightsException e) {
+      // expected
+    }
+    this.mode = "fault500";
+    try {
+      this.wp.uploadFile(new ByteArrayInputStream(data), "a.png");
+      fail();
+    } catch (final FileUploadException e) {
+      // expected
+    }
+    this.mode = "fault403";
+    try {
+      this.wp.uploadFile(new ByteArrayInputStream(data), "a.png");
+      fail();
+    } catch (final XmlRpcFault e) {
+      assertEquals(403, e.getErrorCode());
+      assertEquals("refused", e.getMessage());
+    }
+    this.mode = "unavailable";
+    try {
+      this.wp.uploadFile(new ByteArrayInputStream(data), "a.png");
+      fail();
+    } catch (final XmlRpcException e) {
+      assertTrue(e.getMessage().contains("503"));
+    }
+  }
+  
+  @Test
+  public void testMetrics() throws Exception {
+    final MetricsRegistry metrics = new MetricsRegistry("uploads");
+    this.wp.setMetrics(metrics);
+    final byte[] data = png(1000);
+    this.mode = "length";
+    // the retry with the length is the same upload
+    this.wp.uploadFile(new ByteArrayInputStream(data), "a.png");
+    assertEquals(2, this.encodings.size());
+    this.wp.uploadFile(new ByteArrayInputStream(data), "a.png");
+    this.mode = "fault500";
+    try {
+      this.wp.uploadFile(new ByteArrayInputStream(data), "a.png");
+      fail();
+    } catch (final FileUploadException e) {
+      // expected
+    }
+    final MethodMetrics m = metrics.method("wp.uploadFile");
+    assertEquals(3, m.getCalls());
+    assertEquals(1, m.getErrors());
+    assertEquals(Long.valueOf(1), m.getErrorsByCode().get("500"));
+    assertEquals(Long.valueOf(0),
+        metrics.getGauges().get(MetricsRegistry.ACTIVE_CALLS));
+  }
+}
@@ -11,11 +11,15 @@ package net.bican.wordpress.test;
 
 import static org.junit.Assert.*;
 
+import java.util.Collections;
 import java.util.List;
 
+import net.bican.wordpress.Post;
 import net.bican.wordpress.Taxonomy;
 import net.bican.wordpress.Term;
 import net.bican.wordpress.TermFilter;
+import net.bican.wordpress.TermIndex;
+import net.bican.wordpress.exceptions.InvalidArgumentsException;
 
 import org.junit.Test;
 
@@ -110,4 +114,53 @@ public class TaxonomyTest extends AbstractWordpressTest {
     term = WP.getTerm("category", 1);
     assertEquals(oldName, term.getName());
   }
+  
+  @SuppressWarnings("boxing")
+  @Test
+  public void testTermIndex() throws Exception {
+    TermIndex index = WP.getTermIndex("category");
+    assertSame(index, WP.getTermIndex("category"));
+    Term term = index.getBySlug("uncategorized");
+    assertNotNull(term);
+    assertEquals("Uncategorized", term.getName());
+    assertSame(term, index.getById(term.getTerm_id()));
+    assertSame(term, index.getByName("uncategorized"));
+    assertNull(index.getByName("nosuchterm"));
+    assertTrue(index.getChildren(0).contains(term));
+    assertTrue(index.getAncestors(term.getTerm_id()).isEmpty());
+  }
+  
+  @SuppressWarnings("boxing")
+  @Test
+  public void testTermIndexResolvePath() throws Exception {
+    TermIndex index = new TermIndex(WP, "category", 1);
+    Term child = index.resolvePath("indexparent", "indexchild");
+    assertNotNull(child.getTerm_id());
+    assertEquals("indexchild", child.getSlug());
+    assertSame(child, index.getBySlug("indexchild"));
+    Term parent = index.getByName("indexparent", 0);
+    assertNotNull(parent);
+    assertEquals(parent.getTerm_id(), child.getParent());
+    assertTrue(index.isAncestor(parent.getTerm_id(), child.getTerm_id()));
+    assertSame(child, index.resolve("indexchild", parent.getTerm_id()));
+    index.refresh();
+    assertNotNull(index.getById(child.getTerm_id()));
+    assertTrue(WP.deleteTerm("category", child.getTerm_id()));
+    assertTrue(WP.deleteTerm("category", parent.getTerm_id()));
+  }
+  
+  @Test
+  public void testPostTermWithoutIdOrName() throws Exception {
+    Post post = new Post();
+    post.setPost_title("no term");
+    Term term = new Term();
+    term.setTaxonomy("category");
+    post.setTerms(Collections.singletonList(term));
+    try {
+      WP.newPost(post);
+      fail();
+    } catch (InvalidArgumentsException e) {
+      assertTrue(e.getMessage().contains("category"));
+    }
+  }
 }